@@ -0,0 +1,13 @@
+#!/bin/bash
+root=$(realpath $(dirname "$0"))
+root=$(dirname $root)
+dbname=$(logname)_db
+
+cd $root/java
+
+# Runs a benchmark class against the local database.
+# Example: ./bench.sh BookingBench <show id> [clients] [seconds]
+#          ./bench.sh OpsBench [op,op,...|all] [json file]
+bench=$1
+shift
+java -cp lib/*:bin/ $bench $dbname $PGPORT $(logname) "$@"
@@ -0,0 +1,9 @@
+#!/bin/bash
+root=$(realpath $(dirname "$0"))
+root=$(dirname $root)
+
+cd $root/java
+
+# Writes a synthetic data set in the data/*.csv format, to be loaded with ./load.sh <output dir>.
+# Example: ./generate.sh /tmp/$(logname)/sf10 10 [seed] [threads]
+java -cp lib/*:bin/ DataGenerator "$@"
@@ -0,0 +1,13 @@
+#!/bin/bash
+root=$(realpath $(dirname "$0"))
+root=$(dirname $root)
+dbname=$(logname)_db
+
+cd $root/java
+
+# Loads data/*.csv into a schema created by sql/create.sql using COPY FROM STDIN.
+# Example: ./load.sh [data dir] [batch rows] [parallel tables]
+# Run ./migrate.sh afterwards to create the occupancy rollups and booking history; sql/create.sql drops them.
+# Reloading a migrated database leaves the occupancy rollups and booking history stale; run ./rebuild-stats.sh afterwards.
+data=${1:-$root/data}
+java -cp lib/*:bin/ BulkLoader $dbname $PGPORT $(logname) $data ${2:-50000} ${3:-4}
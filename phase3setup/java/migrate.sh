@@ -0,0 +1,10 @@
+#!/bin/bash
+root=$(realpath $(dirname "$0"))
+root=$(dirname $root)
+dbname=$(logname)_db
+
+cd $root/java
+
+# Applies the versioned schema changes in sql/migrations that are not yet recorded.
+# Example: ./migrate.sh [migrations dir]
+java -cp lib/*:bin/ Migrations $dbname $PGPORT $(logname) ${1:-$root/sql/migrations}
@@ -0,0 +1,11 @@
+#!/bin/bash
+root=$(realpath $(dirname "$0"))
+root=$(dirname $root)
+dbname=$(logname)_db
+
+cd $root/java
+
+# Explains the application's queries and fails on seq scans or cost regressions.
+# Example: ./plancheck.sh [--update]
+# --update rewrites sql/plan-baseline.properties with the costs of this run.
+java -cp lib/*:bin/ PlanCheck $dbname $PGPORT $(logname) $root/sql/plan-baseline.properties "$@"
@@ -0,0 +1,12 @@
+#!/bin/bash
+root=$(realpath $(dirname "$0"))
+root=$(dirname $root)
+dbname=$(logname)_db
+
+cd $root/java
+
+# Recomputes the show_stats and theater_stats occupancy rollups and the user_booking_history
+# table from the base tables, e.g. after a bulk load.
+# Example: ./rebuild-stats.sh
+java -cp lib/*:bin/ OccupancyStats $dbname $PGPORT $(logname)
+java -cp lib/*:bin/ BookingHistory $dbname $PGPORT $(logname)
@@ -0,0 +1,12 @@
+#!/bin/bash
+root=$(realpath $(dirname "$0"))
+root=$(dirname $root)
+dbname=$(logname)_db
+
+cd $root/java
+
+# Serves the Ticketmaster operations over a tab-separated line protocol on localhost.
+# Example: ./serve.sh [listen port]
+# Metrics: JAVA_OPTS="-Dticketmaster.metrics.port=9404 -Dticketmaster.metrics.slowQueryMs=50" ./serve.sh,
+# then curl http://127.0.0.1:9404/metrics
+java $JAVA_OPTS -cp lib/*:bin/ TicketmasterServer $dbname $PGPORT $(logname) "$@"
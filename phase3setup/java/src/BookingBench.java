@@ -0,0 +1,247 @@
+import java.sql.Connection;
+import java.sql.SQLException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Measures BookingManager throughput when many clients book the same show
+ * at once.  Every client books one seat at a time until the show sells
+ * out or the time limit passes; the bookings made by the run are removed
+ * afterwards so it can be repeated against the same data.
+ *
+ * In swap mode every client books one seat and then keeps moving its
+ * booking to one or two random seats of the show with changeSeats()
+ * until the time limit passes.  Afterwards it checks that no seat ended
+ * up in two bookings: every booking must hold exactly Bookings.seats
+ * seats, be paid the price of those seats, and hold the seats its last
+ * successful change returned.
+ *
+ */
+
+public class BookingBench{
+	/**
+	 * @param args <dbname> <port> <user> <show id> [clients] [seconds] [book|swap]
+	 */
+	public static void main(String[] args) throws Exception {
+		if (args.length < 4) {
+			System.err.println (
+				"Usage: " + "java [-classpath <classpath>] " + BookingBench.class.getName () +
+				" <dbname> <port> <user> <show id> [clients] [seconds] [book|swap]");
+			return;
+		}//end if
+		final long sid = Long.parseLong(args[3]);
+		final int clients = args.length > 4 ? Integer.parseInt(args[4]) : 64;
+		int seconds = args.length > 5 ? Integer.parseInt(args[5]) : 30;
+		boolean swap = args.length > 6 && args[6].equals("swap");
+		if (System.getProperty("ticketmaster.pool.max") == null){
+			System.setProperty("ticketmaster.pool.max", Integer.toString(clients));
+		}//end if
+
+		Class.forName("org.postgresql.Driver");
+		final Ticketmaster esql = new Ticketmaster(args[0], args[1], args[2], "");
+		try{
+			final List<List<String>> users = esql.executeQueryAndReturnResult("SELECT email FROM Users LIMIT ?", clients);
+			if (users.isEmpty()){
+				System.err.println("No users to book with");
+				return;
+			}//end if
+			if (swap){
+				int violations = swap(esql, sid, users, clients, seconds);
+				System.exit(violations == 0 ? 0 : 1);
+			}//end if
+
+			final long deadline = System.nanoTime() + seconds * 1000000000L;
+			final AtomicBoolean soldOut = new AtomicBoolean(false);
+			final AtomicLong errors = new AtomicLong();
+			final ConcurrentLinkedQueue<Long> bids = new ConcurrentLinkedQueue<Long>();
+			final long[][] latencies = new long[clients][];
+			final CountDownLatch start = new CountDownLatch(1);
+			Thread[] threads = new Thread[clients];
+			for (int c = 0; c < clients; ++c){
+				final int client = c;
+				threads[c] = new Thread(() -> {
+					String email = users.get(client % users.size()).get(0);
+					long[] samples = new long[1024];
+					int n = 0;
+					try{
+						start.await();
+					}catch(InterruptedException e){
+						return;
+					}//end try
+					while (!soldOut.get() && System.nanoTime() < deadline){
+						long t0 = System.nanoTime();
+						try{
+							BookingManager.Booking booking = esql.getBookingManager().book(sid, email, 1, null, "Credit Card");
+							if (booking == null){
+								soldOut.set(true);
+								break;
+							}//end if
+							bids.add(booking.bid);
+							if (n == samples.length){
+								samples = Arrays.copyOf(samples, n * 2);
+							}//end if
+							samples[n++] = System.nanoTime() - t0;
+						}catch(SQLException e){
+							errors.incrementAndGet();
+						}//end try
+					}//end while
+					latencies[client] = Arrays.copyOf(samples, n);
+				}, "booking-client-" + c);
+				threads[c].start();
+			}//end for
+
+			long t0 = System.nanoTime();
+			start.countDown();
+			for (Thread t : threads){
+				t.join();
+			}//end for
+			double elapsed = (System.nanoTime() - t0) / 1e9;
+
+			long[] all = new long[0];
+			for (long[] l : latencies){
+				int from = all.length;
+				all = Arrays.copyOf(all, from + l.length);
+				System.arraycopy(l, 0, all, from, l.length);
+			}//end for
+			Arrays.sort(all);
+			System.out.println(String.format("clients=%d bookings=%d errors=%d soldOut=%b elapsed=%.2fs",
+				clients, all.length, errors.get(), soldOut.get(), elapsed));
+			System.out.println(String.format("throughput=%.1f bookings/sec p50=%.2fms p99=%.2fms max=%.2fms",
+				all.length / elapsed, percentile(all, 0.50), percentile(all, 0.99), percentile(all, 1.0)));
+
+			cleanup(esql, sid, new ArrayList<Long>(bids));
+		}finally{
+			esql.cleanup();
+		}//end try
+	}
+
+	static double percentile(long[] sorted, double p){
+		if (sorted.length == 0){
+			return 0;
+		}//end if
+		int i = (int) Math.ceil(p * sorted.length) - 1;
+		return sorted[Math.max(0, Math.min(sorted.length - 1, i))] / 1e6;
+	}
+
+	/*
+	 * the swap mode: returns the number of bookings whose seats or payment
+	 * are inconsistent afterwards
+	 */
+	static int swap(Ticketmaster esql, long sid, List<List<String>> users, int clients, int seconds) throws Exception {
+		final List<Integer> numbers = new ArrayList<Integer>();
+		esql.executeQueryStreaming("SELECT DISTINCT CS.sno FROM ShowSeats SS, CinemaSeats CS "
+			+ "WHERE SS.sid = ? AND CS.csid = SS.csid ORDER BY 1", 0, row -> numbers.add(row.getInt(1)), sid);
+		final BookingManager.Booking[] last = new BookingManager.Booking[clients];
+		List<Long> bids = new ArrayList<Long>();
+		for (int c = 0; c < clients; ++c){
+			last[c] = esql.getBookingManager().book(sid, users.get(c % users.size()).get(0), 1, null, "Credit Card");
+			if (last[c] == null){
+				System.err.println("Show " + sid + " has fewer than " + clients + " free seats");
+				cleanup(esql, sid, bids);
+				return 1;
+			}//end if
+			bids.add(last[c].bid);
+		}//end for
+
+		final long deadline = System.nanoTime() + seconds * 1000000000L;
+		final AtomicLong changed = new AtomicLong();
+		final AtomicLong refused = new AtomicLong();
+		final AtomicLong errors = new AtomicLong();
+		final CountDownLatch start = new CountDownLatch(1);
+		Thread[] threads = new Thread[clients];
+		for (int c = 0; c < clients; ++c){
+			final int client = c;
+			threads[c] = new Thread(() -> {
+				ThreadLocalRandom random = ThreadLocalRandom.current();
+				try{
+					start.await();
+				}catch(InterruptedException e){
+					return;
+				}//end try
+				while (System.nanoTime() < deadline){
+					int[] seats = new int[1 + random.nextInt(2)];
+					for (int i = 0; i < seats.length; ++i){
+						seats[i] = numbers.get(random.nextInt(numbers.size()));
+					}//end for
+					try{
+						BookingManager.Booking b = esql.getBookingManager().changeSeats(last[client].bid, seats);
+						if (b == null){
+							refused.incrementAndGet();
+						}else{
+							last[client] = b;
+							changed.incrementAndGet();
+						}//end if
+					}catch(SQLException e){
+						errors.incrementAndGet();
+					}//end try
+				}//end while
+			}, "swap-client-" + c);
+			threads[c].start();
+		}//end for
+		long t0 = System.nanoTime();
+		start.countDown();
+		for (Thread t : threads){
+			t.join();
+		}//end for
+		double elapsed = (System.nanoTime() - t0) / 1e9;
+
+		//what the database holds for each booking
+		final Map<Long, String> held = new HashMap<Long, String>();
+		final int[] violations = { 0 };
+		esql.executeQueryStreaming("SELECT B.bid, B.seats, COUNT(SS.ssid), COALESCE(SUM(SS.price), 0), MAX(P.amount), "
+			+ "string_agg(CAST(CS.sno AS text), ',' ORDER BY CS.sno) "
+			+ "FROM Bookings B LEFT JOIN ShowSeats SS ON SS.bid = B.bid LEFT JOIN CinemaSeats CS ON CS.csid = SS.csid "
+			+ "LEFT JOIN Payments P ON P.bid = B.bid WHERE B.bid = ANY(CAST(? AS bigint[])) GROUP BY B.bid, B.seats", 0, row -> {
+				long bid = row.getLong(1);
+				if (row.getLong(2) != row.getLong(3) || Math.abs(row.getDouble(4) - row.getDouble(5)) > 0.005){
+					System.err.println("Booking " + bid + ": " + row.getLong(2) + " seats booked, " + row.getLong(3)
+						+ " held, seats cost " + row.getDouble(4) + ", paid " + row.getDouble(5));
+					++violations[0];
+				}//end if
+				held.put(bid, row.getString(6));
+				return true;
+			}, Ticketmaster.toArrayLiteral(bids));
+		for (BookingManager.Booking b : last){
+			StringBuilder expected = new StringBuilder();
+			for (int sno : b.seatNumbers){
+				expected.append(expected.length() > 0 ? "," : "").append(sno);
+			}//end for
+			if (!expected.toString().equals(held.get(b.bid))){
+				System.err.println("Booking " + b.bid + ": changed to seats " + expected + " but holds " + held.get(b.bid));
+				++violations[0];
+			}//end if
+		}//end for
+		System.out.println(String.format("clients=%d changes=%d refused=%d errors=%d elapsed=%.2fs violations=%d",
+			clients, changed.get(), refused.get(), errors.get(), elapsed, violations[0]));
+		System.out.println(String.format("throughput=%.1f changes/sec", changed.get() / elapsed));
+		cleanup(esql, sid, bids);
+		return violations[0];
+	}
+
+	//removes the bookings made by the run and frees their seats
+	static void cleanup(Ticketmaster esql, long sid, List<Long> bids) throws SQLException {
+		final int chunk = 1000;
+		for (int from = 0; from < bids.size(); from += chunk){
+			final String array = Ticketmaster.toArrayLiteral(bids.subList(from, Math.min(bids.size(), from + chunk)));
+			esql.executeTransaction(Connection.TRANSACTION_READ_COMMITTED, tx -> {
+				tx.query("SELECT bid FROM Bookings WHERE bid = ANY(CAST(? AS bigint[])) ORDER BY bid FOR UPDATE",
+					row -> true, array);
+				esql.getOccupancy().subtract(tx, array);
+				tx.update("DELETE FROM Payments WHERE bid = ANY(CAST(? AS bigint[]))", array);
+				tx.update("UPDATE ShowSeats SET bid = NULL WHERE bid = ANY(CAST(? AS bigint[]))", array);
+				tx.update("DELETE FROM Bookings WHERE bid = ANY(CAST(? AS bigint[]))", array);
+				esql.getBookingHistory().refresh(tx, array);
+				return null;
+			});
+		}//end for
+		esql.getSeatAvailability().invalidate(sid);
+	}
+}
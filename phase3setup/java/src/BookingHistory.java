@@ -0,0 +1,181 @@
+import java.sql.Connection;
+import java.sql.SQLException;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * The bookings of a user with their movie, show time, theater and seat
+ * numbers, read a page at a time from the user_booking_history table
+ * (migration V004).  Its primary key (email, bid) makes a page one range
+ * scan however many bookings the user has, and pages are fetched by
+ * keyset: the next page starts below the last bid of the previous one, so
+ * no rows are skipped with OFFSET.
+ *
+ * The table is denormalized from Bookings, Shows, Movies, ShowSeats,
+ * CinemaSeats and Theaters.  Transactions that insert, change or delete
+ * bookings call refresh() with the affected bookings before committing;
+ * it rewrites their rows, or deletes them for bookings that are gone.
+ *
+ */
+
+public class BookingHistory{
+	static final int PAGE_SIZE = Integer.getInteger("ticketmaster.history.pageSize", 20);
+
+	/**
+	 * One booking of a user.
+	 */
+	public static class Entry{
+		public final long bid;
+		public final String status;
+		public final String title;
+		public final String sdate;
+		public final String sttime;
+		public final String tname;
+		public final String seatNumbers;
+
+		Entry(long bid, String status, String title, String sdate, String sttime, String tname, String seatNumbers){
+			this.bid = bid;
+			this.status = status;
+			this.title = title;
+			this.sdate = sdate;
+			this.sttime = sttime;
+			this.tname = tname;
+			this.seatNumbers = seatNumbers;
+		}
+
+		public String[] toRow(){
+			return new String[] { Long.toString(this.bid), this.status, this.title, this.sdate, this.sttime,
+				this.tname == null ? "" : this.tname, this.seatNumbers };
+		}
+	}//end Entry
+
+	/**
+	 * A page of bookings, newest first.
+	 */
+	public static class Page{
+		public final List<Entry> entries;
+		//the key to pass as after for the next page, or 0 on the last page
+		public final long next;
+
+		Page(List<Entry> entries, long next){
+			this.entries = entries;
+			this.next = next;
+		}
+
+		public boolean hasMore(){
+			return this.next > 0;
+		}
+	}//end Page
+
+	static final String[] COLUMNS = { "bid", "status", "title", "sdate", "sttime", "tname", "seats" };
+
+	//the history rows of the bookings matching the filter, which may use arg.keys
+	private static String source(String from, String filter){
+		return "SELECT B.email, B.bid, B.sid, B.status, B.bdatetime, M.title, S.sdate, S.sttime, "
+			+ "(SELECT string_agg(DISTINCT T.tname, ', ') FROM ShowSeats SS, CinemaSeats CS, Theaters T "
+			+ "WHERE SS.bid = B.bid AND CS.csid = SS.csid AND T.tid = CS.tid), "
+			+ "COALESCE((SELECT array_agg(CS.sno ORDER BY CS.sno) FROM ShowSeats SS, CinemaSeats CS "
+			+ "WHERE SS.bid = B.bid AND CS.csid = SS.csid), '{}') "
+			+ "FROM " + from + "Bookings B, Shows S, Movies M "
+			+ "WHERE " + filter + " AND S.sid = B.sid AND M.mvid = S.mvid";
+	}
+
+	private static final String INSERT =
+		"INSERT INTO user_booking_history(email, bid, sid, status, bdatetime, title, sdate, sttime, tname, seat_numbers) ";
+
+	//params: bigint[] literal of booking IDs
+	static final String REFRESH_SQL =
+		"WITH arg AS (SELECT CAST(? AS bigint[]) AS keys), "
+		+ "gone AS (DELETE FROM user_booking_history H USING arg WHERE H.bid = ANY(arg.keys) "
+		+ "AND NOT EXISTS (SELECT 1 FROM Bookings B WHERE B.bid = H.bid)) "
+		+ INSERT + source("arg, ", "B.bid = ANY(arg.keys)") + " "
+		+ "ON CONFLICT (bid) DO UPDATE SET status = EXCLUDED.status, title = EXCLUDED.title, "
+		+ "sdate = EXCLUDED.sdate, sttime = EXCLUDED.sttime, tname = EXCLUDED.tname, seat_numbers = EXCLUDED.seat_numbers";
+	//params: email, bid to start below, page size
+	static final String PAGE_SQL =
+		"SELECT bid, status, title, sdate, sttime, tname, array_to_string(seat_numbers, ',') "
+		+ "FROM user_booking_history WHERE email = ? AND bid < ? ORDER BY bid DESC LIMIT ?";
+
+	private final Ticketmaster esql;
+
+	public BookingHistory(Ticketmaster esql){
+		this.esql = esql;
+	}
+
+	/**
+	 * Method to bring the history rows of bookings in line with the
+	 * bookings as the transaction has left them.
+	 */
+	public void refresh(Transaction tx, long... bids) throws SQLException {
+		refresh(tx, Ticketmaster.toArrayLiteral(bids));
+	}
+
+	/**
+	 * @param bids bigint[] literal of the booking IDs
+	 */
+	public void refresh(Transaction tx, String bids) throws SQLException {
+		tx.update(REFRESH_SQL, bids);
+	}
+
+	/**
+	 * Method to read a page of a user's bookings, newest first.
+	 *
+	 * @param email the user
+	 * @param after Page.next of the previous page, or 0 for the first page
+	 * @param limit the most bookings returned
+	 * @return the page
+	 * @throws java.sql.SQLException when the query fails
+	 */
+	public Page page(String email, long after, int limit) throws SQLException {
+		final List<Entry> entries = new ArrayList<Entry>(Math.min(limit, 1000));
+		this.esql.executeQueryStreaming(PAGE_SQL, 0, row -> {
+			entries.add(new Entry(row.getLong(1), row.getString(2), row.getString(3), row.getString(4),
+				row.getString(5), row.getString(6), row.getString(7)));
+			return true;
+		}, email, after > 0 ? after : Long.MAX_VALUE, limit);
+		long next = entries.size() == limit ? entries.get(entries.size() - 1).bid : 0;
+		return new Page(entries, next);
+	}
+
+	/**
+	 * Method to recompute the whole table from the base tables.  Booking
+	 * transactions that started before wait for it and then refresh their
+	 * rows on top of the rebuilt table.
+	 *
+	 * @return the number of rows written
+	 */
+	public int rebuild() throws SQLException {
+		return this.esql.executeTransaction(Connection.TRANSACTION_READ_COMMITTED, tx -> {
+			tx.update("LOCK TABLE user_booking_history IN EXCLUSIVE MODE");
+			tx.update("DELETE FROM user_booking_history");
+			return tx.update(INSERT + source("", "TRUE"));
+		});
+	}
+
+	/**
+	 * Rebuilds the table, e.g. after a bulk load.
+	 *
+	 * @param args <dbname> <port> <user>
+	 */
+	public static void main(String[] args) throws Exception {
+		if (args.length != 3) {
+			System.err.println (
+				"Usage: " + "java [-classpath <classpath>] " + BookingHistory.class.getName () +
+				" <dbname> <port> <user>");
+			return;
+		}//end if
+
+		Class.forName("org.postgresql.Driver");
+		Ticketmaster esql = new Ticketmaster(args[0], args[1], args[2], "");
+		try{
+			long start = System.currentTimeMillis();
+			int rows = esql.getBookingHistory().rebuild();
+			System.out.println("Rebuilt booking history of " + rows + " bookings in " + (System.currentTimeMillis() - start) + "ms");
+		}catch(SQLException e){
+			System.err.println(e.getMessage());
+			System.exit(1);
+		}finally{
+			esql.cleanup();
+		}//end try
+	}
+}
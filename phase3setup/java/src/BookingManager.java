@@ -0,0 +1,325 @@
+import java.sql.Connection;
+import java.sql.SQLException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+/**
+ * Books seats for a show as one transaction: the Bookings row, the claimed
+ * ShowSeats rows, the Payments row, the booking's occupancy delta
+ * and its row in the user's booking history are committed
+ * together or not at all.  A booking can also be taken as a pending hold and paid for later,
+ * see SeatHolds.  Seats picked by SeatAvailability are claimed first; if another
+ * session got to any of them, the rest are claimed with
+ * SELECT ... FOR UPDATE SKIP LOCKED so concurrent buyers of a hot show
+ * never queue behind each other's row locks.
+ *
+ * changeSeats() moves a booking to other seats of its show in one
+ * transaction.  It locks the booking and then every ShowSeats row it
+ * gives up or asks for in ssid order, so concurrent seat changes wait on
+ * each other in the same order and cannot deadlock.
+ *
+ */
+
+public class BookingManager{
+	//claims the seats picked in memory, skipping any sold in the meantime
+	static final String CLAIM_SELECTED =
+		"UPDATE ShowSeats SET bid = ? WHERE ssid = ANY(CAST(? AS bigint[])) AND bid IS NULL "
+		+ "RETURNING price, (SELECT CS.sno FROM CinemaSeats CS WHERE CS.csid = ShowSeats.csid)";
+	//claims any free seats of the show, passing over rows other sessions have locked
+	static final String CLAIM_ANY =
+		"UPDATE ShowSeats SET bid = ? WHERE ssid IN ("
+		+ "SELECT SS.ssid FROM ShowSeats SS, CinemaSeats CS "
+		+ "WHERE SS.sid = ? AND SS.bid IS NULL AND SS.csid = CS.csid "
+		+ "AND (CAST(? AS varchar) IS NULL OR CS.stype = ?) "
+		+ "ORDER BY CS.tid, CS.sno LIMIT ? FOR UPDATE OF SS SKIP LOCKED) "
+		+ "RETURNING price, (SELECT CS.sno FROM CinemaSeats CS WHERE CS.csid = ShowSeats.csid)";
+	/*
+	 * locks the seats a booking holds and the seats with the given numbers
+	 * in the theater of its seats, in ssid order.  params: sid, bid, int[]
+	 * literal of seat numbers, bid
+	 */
+	static final String LOCK_SEATS =
+		"SELECT SS.ssid, SS.bid, CS.sno FROM ShowSeats SS, CinemaSeats CS "
+		+ "WHERE SS.sid = ? AND CS.csid = SS.csid AND (SS.bid = ? OR (CS.sno = ANY(CAST(? AS integer[])) "
+		+ "AND CS.tid = (SELECT MIN(X.tid) FROM ShowSeats Y, CinemaSeats X WHERE Y.bid = ? AND X.csid = Y.csid))) "
+		+ "ORDER BY SS.ssid FOR UPDATE OF SS";
+	/*
+	 * locks a booking before its contribution to the rollups is read, so
+	 * that concurrent changes of it take turns.  params: bid
+	 */
+	static final String LOCK_BOOKING = "SELECT sid, status, email FROM Bookings WHERE bid = ? FOR UPDATE";
+	//the amount a booking's seats add up to.  params: bid
+	static final String AMOUNT_SQL = "SELECT COALESCE(SUM(price), 0) FROM ShowSeats WHERE bid = ?";
+
+	private final Ticketmaster esql;
+
+	/**
+	 * A committed booking.
+	 */
+	public static class Booking{
+		public final long bid;
+		public final long sid;
+		public final String email;
+		public final int[] seatNumbers;
+		public final double amount;
+
+		Booking(long bid, long sid, String email, int[] seatNumbers, double amount){
+			this.bid = bid;
+			this.sid = sid;
+			this.email = email;
+			this.seatNumbers = seatNumbers;
+			this.amount = amount;
+		}
+
+		public String toString(){
+			return "Booking " + this.bid + " for show " + this.sid + ": seats "
+				+ Arrays.toString(this.seatNumbers) + ", amount " + this.amount;
+		}
+	}//end Booking
+
+	public BookingManager(Ticketmaster esql){
+		this.esql = esql;
+	}
+
+	/**
+	 * Method to book and pay for seats of a show in one transaction.
+	 *
+	 * @param sid the show ID
+	 * @param email the user making the booking
+	 * @param seats the number of seats
+	 * @param seatType the seat type, or null for any
+	 * @param pmethod the payment method
+	 * @return the booking, or null if the show does not have enough free seats
+	 * @throws java.sql.SQLException when the booking fails or runs out of retries
+	 */
+	public Booking book(long sid, String email, int seats, String seatType, String pmethod) throws SQLException {
+		return reserve(sid, email, seats, seatType, pmethod);
+	}
+
+	/**
+	 * Method to hold seats of a show for a pending booking.  The seats are
+	 * released automatically unless confirm() is called within the hold TTL.
+	 *
+	 * @param sid the show ID
+	 * @param email the user making the booking
+	 * @param seats the number of seats
+	 * @param seatType the seat type, or null for any
+	 * @return the pending booking, or null if the show does not have enough free seats
+	 * @throws java.sql.SQLException when the booking fails or runs out of retries
+	 */
+	public Booking hold(long sid, String email, int seats, String seatType) throws SQLException {
+		Booking booking = reserve(sid, email, seats, seatType, null);
+		if (booking != null){
+			this.esql.getSeatHolds().schedule(booking.bid, sid, System.currentTimeMillis() + SeatHolds.TTL_MILLIS);
+		}//end if
+		return booking;
+	}
+
+	/**
+	 * Method to pay for a pending booking, keeping its held seats.
+	 *
+	 * @param bid the pending booking
+	 * @param pmethod the payment method
+	 * @return the amount paid, or -1 if the booking is not pending (for
+	 *         example because its hold expired)
+	 * @throws java.sql.SQLException when the payment fails or runs out of retries
+	 */
+	public double confirm(final long bid, final String pmethod) throws SQLException {
+		final OccupancyStats occupancy = this.esql.getOccupancy();
+		final BookingHistory history = this.esql.getBookingHistory();
+		return this.esql.executeTransaction(Connection.TRANSACTION_READ_COMMITTED, tx -> {
+			if (!"Pending".equals(lockStatus(tx, bid))){
+				tx.setRollbackOnly();
+				return -1.0;
+			}//end if
+			occupancy.subtract(tx, bid);
+			tx.update("UPDATE Bookings SET status = ? WHERE bid = ?", "Paid", bid);
+			final double[] amount = { 0 };
+			tx.query(AMOUNT_SQL, row -> {
+				amount[0] = row.getDouble(1);
+				return false;
+			}, bid);
+			long pid = tx.queryLong("SELECT nextval('payments_pid_seq')");
+			tx.update("INSERT INTO Payments(pid, bid, pmethod, pdatetime, amount, trid) VALUES (?, ?, ?, now(), ?, NULL)",
+				pid, bid, pmethod, (float) amount[0]);
+			occupancy.add(tx, bid);
+			history.refresh(tx, bid);
+			return amount[0];
+		});
+	}
+
+	/**
+	 * Method to move a booking to other seats of its show.  The seats it
+	 * gives up are released and the new ones claimed in one transaction,
+	 * together with its seat count, the amount of its payment when it is
+	 * paid, the occupancy rollups and its booking history.
+	 *
+	 * @param bid the booking, paid or pending
+	 * @param seatNumbers the seats the booking should hold afterwards, in
+	 *        the theater of its current seats; seats it already holds may
+	 *        be among them
+	 * @return the booking with its new seats and amount, or null when there
+	 *         is no such booking, it is cancelled, or one of the seats does
+	 *         not exist or belongs to another booking
+	 * @throws java.sql.SQLException when the change fails or runs out of retries
+	 */
+	public Booking changeSeats(final long bid, final int[] seatNumbers) throws SQLException {
+		final int[] wanted = Arrays.stream(seatNumbers).distinct().sorted().toArray();
+		if (wanted.length == 0){
+			throw new IllegalArgumentException("A booking needs at least one seat");
+		}//end if
+		final OccupancyStats occupancy = this.esql.getOccupancy();
+		final BookingHistory history = this.esql.getBookingHistory();
+		final long[] sid = { 0 };
+		Booking booking = this.esql.executeTransaction(Connection.TRANSACTION_READ_COMMITTED, tx -> {
+			final String[] found = { null, null };
+			tx.query(LOCK_BOOKING, row -> {
+				sid[0] = row.getLong(1);
+				found[0] = row.getString(2);
+				found[1] = row.getString(3);
+				return false;
+			}, bid);
+			if (found[0] == null || "Cancelled".equals(found[0])){
+				tx.setRollbackOnly();
+				return null;
+			}//end if
+
+			final List<Long> release = new ArrayList<Long>();
+			final List<Long> claim = new ArrayList<Long>();
+			final int[] matched = { 0 };
+			final boolean[] taken = { false };
+			tx.query(LOCK_SEATS, row -> {
+				long ssid = row.getLong(1);
+				long owner = row.getLong(2);
+				boolean free = row.wasNull();
+				boolean keep = Arrays.binarySearch(wanted, row.getInt(3)) >= 0;
+				if (keep){
+					++matched[0];
+				}//end if
+				if (!free && owner == bid){
+					if (!keep){
+						release.add(ssid);
+					}//end if
+				}else if (free){
+					claim.add(ssid);
+				}else{
+					taken[0] = true;
+				}//end if
+				return true;
+			}, sid[0], bid, Ticketmaster.toArrayLiteral(wanted), bid);
+			if (taken[0] || matched[0] != wanted.length){
+				tx.setRollbackOnly();
+				return null;
+			}//end if
+
+			occupancy.subtract(tx, bid);
+			if (!release.isEmpty()){
+				tx.update("UPDATE ShowSeats SET bid = NULL WHERE ssid = ANY(CAST(? AS bigint[]))",
+					Ticketmaster.toArrayLiteral(release));
+			}//end if
+			if (!claim.isEmpty()){
+				tx.update("UPDATE ShowSeats SET bid = ? WHERE ssid = ANY(CAST(? AS bigint[]))",
+					bid, Ticketmaster.toArrayLiteral(claim));
+			}//end if
+			tx.update("UPDATE Bookings SET seats = ? WHERE bid = ?", wanted.length, bid);
+			//recomputed rather than adjusted, so float rounding does not add up over changes
+			tx.update("UPDATE Payments SET amount = (" + AMOUNT_SQL + ") WHERE bid = ?", bid, bid);
+			occupancy.add(tx, bid);
+			history.refresh(tx, bid);
+			final double[] amount = { 0 };
+			tx.query(AMOUNT_SQL, row -> {
+				amount[0] = row.getDouble(1);
+				return false;
+			}, bid);
+			return new Booking(bid, sid[0], found[1], wanted, amount[0]);
+		});
+		if (booking != null){
+			//the in-memory seat map of the show no longer matches
+			this.esql.getSeatAvailability().invalidate(sid[0]);
+		}//end if
+		return booking;
+	}
+
+	/**
+	 * Method to lock a booking for the rest of the transaction.
+	 *
+	 * @return its status, or null when there is no such booking
+	 */
+	static String lockStatus(Transaction tx, long bid) throws SQLException {
+		final String[] status = { null };
+		tx.query(LOCK_BOOKING, row -> {
+			status[0] = row.getString(2);
+			return false;
+		}, bid);
+		return status[0];
+	}
+
+	//claims the seats and inserts the booking; pays for it unless pmethod is null
+	private Booking reserve(final long sid, final String email, final int seats, final String seatType,
+			final String pmethod) throws SQLException {
+		if (seats < 1){
+			throw new IllegalArgumentException("A booking needs at least one seat");
+		}//end if
+		SeatAvailability availability = this.esql.getSeatAvailability();
+		final OccupancyStats occupancy = this.esql.getOccupancy();
+		final BookingHistory history = this.esql.getBookingHistory();
+		final SeatAvailability.Selection selection = availability.hold(sid, seats, seatType);
+		final boolean[] fellBack = { false };
+		Booking booking;
+		try{
+			booking = this.esql.executeTransaction(Connection.TRANSACTION_READ_COMMITTED, tx -> {
+				final int[] seatNumbers = new int[seats];
+				final int[] claimed = { 0 };
+				final double[] amount = { 0 };
+				RowHandler collect = row -> {
+					amount[0] += row.getDouble(1);
+					seatNumbers[claimed[0]++] = row.getInt(2);
+					return true;
+				};
+
+				long bid = tx.queryLong("SELECT nextval('bookings_bid_seq')");
+				tx.update("INSERT INTO Bookings(bid, status, bdatetime, seats, sid, email) VALUES (?, ?, now(), ?, ?, ?)",
+					bid, pmethod == null ? "Pending" : "Paid", seats, sid, email);
+
+				fellBack[0] = false;
+				if (selection != null){
+					tx.query(CLAIM_SELECTED, collect, bid, Ticketmaster.toArrayLiteral(selection.ssids));
+				}//end if
+				if (claimed[0] < seats){
+					fellBack[0] = true;
+					tx.query(CLAIM_ANY, collect, bid, sid, seatType, seatType, seats - claimed[0]);
+				}//end if
+				if (claimed[0] < seats){
+					tx.setRollbackOnly();
+					return null;
+				}//end if
+
+				if (pmethod != null){
+					long pid = tx.queryLong("SELECT nextval('payments_pid_seq')");
+					tx.update("INSERT INTO Payments(pid, bid, pmethod, pdatetime, amount, trid) VALUES (?, ?, ?, now(), ?, NULL)",
+						pid, bid, pmethod, (float) amount[0]);
+				}//end if
+				occupancy.add(tx, bid);
+				history.refresh(tx, bid);
+				return new Booking(bid, sid, email, seatNumbers, amount[0]);
+			});
+		}catch(SQLException e){
+			if (selection != null){
+				availability.release(selection);
+			}//end if
+			throw e;
+		}//end try
+
+		if (selection != null && (booking == null || fellBack[0])){
+			availability.release(selection);
+		}//end if
+		if (fellBack[0]){
+			//the in-memory view of this show was stale
+			availability.invalidate(sid);
+		}else if (selection != null){
+			availability.sold(selection);
+		}//end if
+		return booking;
+	}
+}
@@ -0,0 +1,252 @@
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.sql.Connection;
+import java.sql.SQLException;
+import java.sql.Statement;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Properties;
+import java.util.Set;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+import org.postgresql.PGConnection;
+import org.postgresql.copy.CopyIn;
+
+/**
+ * Loads the phase3setup/data CSV files into an existing schema with the
+ * COPY FROM STDIN protocol, so the data never has to be placed on the
+ * database host.  Tables are loaded in foreign-key order; tables whose
+ * parents are already loaded can be copied in parallel on separate
+ * connections.  Each file is sent in batches of rows with a commit per
+ * batch.
+ *
+ */
+
+public class BulkLoader{
+	private static final int READ_BUFFER_BYTES = 1 << 16;
+
+	/**
+	 * A table loaded from one CSV file.
+	 */
+	static class Table{
+		final String name;
+		final String columns;
+		final String options;
+		final String[] parents;
+
+		Table(String name, String columns, String options, String... parents){
+			this.name = name;
+			this.columns = columns;
+			this.options = options;
+			this.parents = parents;
+		}
+
+		String copySql(){
+			return "COPY " + this.name + " (" + this.columns + ") FROM STDIN WITH DELIMITER ','" + this.options;
+		}
+	}//end Table
+
+	//every table in create.sql, parents before children
+	static final Table[] TABLES = {
+		new Table("Cities", "city_id, city_name, city_state, zip_code", ""),
+		new Table("Cinemas", "cid, city_id, cname, tnum", "", "Cities"),
+		new Table("Theaters", "tid, cid, tname, tseats", "", "Cinemas"),
+		new Table("CinemaSeats", "csid, tid, sno, stype", "", "Theaters"),
+		new Table("Movies", "mvid, title, rdate, country, description, duration, lang, genre", ""),
+		new Table("Users", "email, lname, fname, phone, pwd", ""),
+		new Table("Shows", "sid, mvid, sdate, sttime, edtime", "", "Movies"),
+		new Table("Bookings", "bid, status, bdatetime, seats, sid, email", "", "Shows", "Users"),
+		new Table("Payments", "pid, bid, pmethod, pdatetime, amount, trid", "", "Bookings"),
+		new Table("ShowSeats", "ssid, sid, csid, bid, price", " NULL AS ''", "Shows", "CinemaSeats", "Bookings"),
+		new Table("Plays", "sid, tid", "", "Shows", "Theaters"),
+	};
+
+	//moves the generated-key sequences past the loaded ids
+	static final String[] SEQUENCE_RESYNC = {
+		"SELECT setval('bookings_bid_seq', (SELECT COALESCE(MAX(bid), 0) + 1 FROM Bookings), false)",
+		"SELECT setval('payments_pid_seq', (SELECT COALESCE(MAX(pid), 0) + 1 FROM Payments), false)",
+		"SELECT setval('showseats_ssid_seq', (SELECT COALESCE(MAX(ssid), 0) + 1 FROM ShowSeats), false)",
+	};
+
+	private final ConnectionPool pool;
+	private final File dataDir;
+	private final int batchRows;
+	private final int parallelism;
+
+	public BulkLoader(ConnectionPool pool, File dataDir, int batchRows, int parallelism){
+		this.pool = pool;
+		this.dataDir = dataDir;
+		this.batchRows = batchRows;
+		this.parallelism = parallelism;
+	}
+
+	/**
+	 * Method to load every table.  Tables are grouped into waves whose
+	 * parents have all been loaded; the tables of a wave run concurrently
+	 * on up to parallelism connections.
+	 *
+	 * @return the total number of rows loaded
+	 * @throws Exception when a file cannot be read or a COPY fails
+	 */
+	public long loadAll() throws Exception {
+		long start = System.nanoTime();
+		long total = 0;
+		ExecutorService workers = Executors.newFixedThreadPool(this.parallelism);
+		try{
+			Set<String> loaded = new HashSet<String>();
+			List<Table> pending = new ArrayList<Table>(Arrays.asList(TABLES));
+			while (!pending.isEmpty()){
+				List<Table> wave = new ArrayList<Table>();
+				for (Table t : pending){
+					if (loaded.containsAll(Arrays.asList(t.parents))){
+						wave.add(t);
+					}//end if
+				}//end for
+
+				List<Future<Long>> results = new ArrayList<Future<Long>>();
+				for (final Table t : wave){
+					results.add(workers.submit(() -> loadTable(t)));
+				}//end for
+				for (Future<Long> f : results){
+					total += f.get();
+				}//end for
+
+				for (Table t : wave){
+					loaded.add(t.name);
+				}//end for
+				pending.removeAll(wave);
+			}//end while
+		}finally{
+			workers.shutdownNow();
+		}//end try
+		resyncSequences();
+		report("all tables", total, System.nanoTime() - start);
+		return total;
+	}
+
+	/**
+	 * Method to stream one CSV file into its table.  The file is read as raw
+	 * bytes and cut at line boundaries every batchRows rows; each batch is
+	 * one COPY followed by a commit.
+	 *
+	 * @param t the table to load
+	 * @return the number of rows loaded
+	 * @throws Exception when the file cannot be read or the COPY fails
+	 */
+	public long loadTable(Table t) throws Exception {
+		File file = new File(this.dataDir, t.name + ".csv");
+		long start = System.nanoTime();
+		long rows = 0;
+		ConnectionPool.PooledConnection pc = this.pool.acquire();
+		try (InputStream csv = new FileInputStream(file)){
+			Connection conn = pc.getConnection();
+			conn.setAutoCommit(false);
+			PGConnection pg = conn.unwrap(PGConnection.class);
+
+			byte[] buf = new byte[READ_BUFFER_BYTES];
+			CopyIn copy = null;
+			int inBatch = 0;
+			int n;
+			while ((n = csv.read(buf)) > 0){
+				int from = 0;
+				for (int i = 0; i < n; ++i){
+					if (buf[i] != '\n'){
+						continue;
+					}//end if
+					if (copy == null){
+						copy = pg.getCopyAPI().copyIn(t.copySql());
+					}//end if
+					++inBatch;
+					if (inBatch == this.batchRows){
+						copy.writeToCopy(buf, from, i + 1 - from);
+						from = i + 1;
+						rows += copy.endCopy();
+						conn.commit();
+						copy = null;
+						inBatch = 0;
+					}//end if
+				}//end for
+				if (from < n){
+					if (copy == null){
+						copy = pg.getCopyAPI().copyIn(t.copySql());
+					}//end if
+					copy.writeToCopy(buf, from, n - from);
+				}//end if
+			}//end while
+			if (copy != null){
+				rows += copy.endCopy();
+				conn.commit();
+			}//end if
+		}catch(SQLException e){
+			pc.failed(e);
+			throw new SQLException("Loading " + file + " failed after " + rows + " rows: " + e.getMessage(), e.getSQLState(), e);
+		}catch(IOException e){
+			throw new IOException("Loading " + file + " failed after " + rows + " rows: " + e.getMessage(), e);
+		}finally{
+			//rolls back an unfinished batch
+			this.pool.release(pc);
+		}//end try
+		report(t.name, rows, System.nanoTime() - start);
+		return rows;
+	}
+
+	private void resyncSequences() throws SQLException {
+		ConnectionPool.PooledConnection pc = this.pool.acquire();
+		try (Statement stmt = pc.getConnection().createStatement()){
+			for (String sql : SEQUENCE_RESYNC){
+				stmt.execute(sql);
+			}//end for
+		}catch(SQLException e){
+			pc.failed(e);
+			throw e;
+		}finally{
+			this.pool.release(pc);
+		}//end try
+	}
+
+	private static void report(String what, long rows, long nanos){
+		double seconds = nanos / 1e9;
+		System.out.println(String.format("%-12s %10d rows in %8.2fs (%.0f rows/sec)",
+			what, rows, seconds, seconds > 0 ? rows / seconds : 0.0));
+	}
+
+	/**
+	 * Loads the CSV files into an already created schema.
+	 *
+	 * @param args <dbname> <port> <user> <data dir> [batch rows] [parallel tables]
+	 */
+	public static void main(String[] args){
+		if (args.length < 4) {
+			System.err.println (
+				"Usage: " + "java [-classpath <classpath>] " + BulkLoader.class.getName () +
+				" <dbname> <port> <user> <data dir> [batch rows] [parallel tables]");
+			return;
+		}//end if
+		int batchRows = args.length > 4 ? Integer.parseInt(args[4]) : 50000;
+		int parallelism = args.length > 5 ? Integer.parseInt(args[5]) : 4;
+
+		Properties props = new Properties();
+		props.setProperty("user", args[2]);
+		props.setProperty("password", "");
+		String url = "jdbc:postgresql://localhost:" + args[1] + "/" + args[0];
+
+		ConnectionPool pool = null;
+		try{
+			pool = new ConnectionPool(url, props, 0, parallelism, 60000L, 60000L);
+			new BulkLoader(pool, new File(args[3]), batchRows, parallelism).loadAll();
+		}catch(Exception e){
+			System.err.println(e.getMessage());
+			System.exit(1);
+		}finally{
+			if (pool != null){
+				pool.close();
+			}//end if
+		}//end try
+	}
+}
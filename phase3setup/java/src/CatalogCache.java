@@ -0,0 +1,120 @@
+import java.sql.Date;
+import java.sql.SQLException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+
+/**
+ * Read-through cache of the theaters a show plays in, for menu 9.  Plays
+ * and Theaters rows change rarely compared to bookings, so the listing is
+ * served from memory and the database is only asked on a miss or once an
+ * entry's TTL has passed.  Writers call showChanged() so that the next
+ * read sees their changes.  Cached values are immutable, since callers
+ * on any thread share them.
+ *
+ */
+
+public class CatalogCache{
+	static final int MAX_SIZE = Integer.getInteger("ticketmaster.cache.size", 10000);
+	static final long TTL_MILLIS = Long.getLong("ticketmaster.cache.ttlSeconds", 300L) * 1000;
+
+	//a theater by primary key, and the theaters of a show
+	static final String THEATER_SQL = "SELECT tid, cid, tname, tseats FROM Theaters WHERE tid = ?";
+	static final String PLAYS_SQL = "SELECT tid FROM Plays WHERE sid = ? ORDER BY tid";
+
+	/**
+	 * The fields of a movie to add, as passed to addMovieShowing().
+	 */
+	public static class Movie{
+		public long mvid;
+		public String title;
+		public Date rdate;
+		public String country;
+		public String description;
+		public int duration;
+		public String lang;
+		public String genre;
+	}//end Movie
+
+	public static class Theater{
+		public final long tid;
+		public final long cid;
+		public final String tname;
+		public final long tseats;
+
+		Theater(long tid, long cid, String tname, long tseats){
+			this.tid = tid;
+			this.cid = cid;
+			this.tname = tname;
+			this.tseats = tseats;
+		}
+	}//end Theater
+
+	private final Ticketmaster esql;
+	private final LruCache<Long, Theater> theaters = new LruCache<Long, Theater>("theaters", MAX_SIZE, TTL_MILLIS);
+	//theater ids a show plays in
+	private final LruCache<Long, long[]> plays = new LruCache<Long, long[]>("plays", MAX_SIZE, TTL_MILLIS);
+
+	public CatalogCache(Ticketmaster esql){
+		this.esql = esql;
+	}
+
+	public Theater theater(long tid) throws SQLException {
+		return this.theaters.get(tid, key -> {
+			final Theater[] found = { null };
+			this.esql.executeQueryOnPrimary(THEATER_SQL,
+				0, row -> {
+					found[0] = new Theater(row.getLong(1), row.getLong(2), row.getString(3), row.getLong(4));
+					return false;
+				}, key);
+			return found[0];
+		});
+	}
+
+	/**
+	 * Method to list the theaters a show plays in.
+	 *
+	 * @param sid the show ID
+	 * @return the theaters, ordered by theater ID
+	 * @throws java.sql.SQLException when a lookup misses and the query fails
+	 */
+	public List<Theater> theatersPlayingShow(long sid) throws SQLException {
+		long[] tids = this.plays.get(sid, key -> {
+			final List<Long> found = new ArrayList<Long>();
+			this.esql.executeQueryOnPrimary(PLAYS_SQL,
+				0, row -> found.add(row.getLong(1)), key);
+			long[] ids = new long[found.size()];
+			for (int i = 0; i < ids.length; ++i){
+				ids[i] = found.get(i);
+			}//end for
+			return ids;
+		});
+		List<Theater> result = new ArrayList<Theater>(tids.length);
+		for (long tid : tids){
+			Theater t = theater(tid);
+			if (t != null){
+				result.add(t);
+			}//end if
+		}//end for
+		return Collections.unmodifiableList(result);
+	}
+
+	/**
+	 * Method to drop cached data derived from a show after it, or its
+	 * Plays rows, were written or deleted.
+	 */
+	public void showChanged(long sid){
+		this.plays.invalidate(sid);
+	}
+
+	public void invalidateAll(){
+		for (LruCache<?, ?> c : caches()){
+			c.invalidateAll();
+		}//end for
+	}
+
+	public List<LruCache<?, ?>> caches(){
+		return Arrays.<LruCache<?, ?>>asList(this.theaters, this.plays);
+	}
+}
@@ -0,0 +1,333 @@
+import java.sql.Connection;
+import java.sql.SQLException;
+import java.sql.Statement;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import org.postgresql.PGConnection;
+import org.postgresql.PGNotification;
+
+/**
+ * Committed changes to Shows, Plays, Movies and ShowSeats made by other
+ * processes, delivered to the in-memory caches within milliseconds
+ * instead of being found by polling.  Statement triggers installed by
+ * migrations V006 and V008 NOTIFY the ticketmaster_changes channel with
+ * the payload table|op|keys, the keys being the distinct show IDs (movie
+ * IDs for Movies) of the rows a statement touched.  PostgreSQL delivers
+ * notifications when the transaction commits, in commit order, and drops
+ * them when it rolls back.  ShowSeats changes come with every booking, so
+ * they are only sent when the database setting ticketmaster.feed_seats is
+ * on; otherwise a stale seat map is dropped when a booking finds its
+ * seats taken.
+ *
+ * A listener thread LISTENs on a connection of its own, outside the pool,
+ * parses each payload into a Change and puts it on a queue of QUEUE_SIZE
+ * changes.  A dispatcher thread takes up to BATCH_SIZE changes at a time
+ * off the queue and hands them to every Subscriber as one batch.  Changes
+ * sent from a connection of this process's pool are skipped: the code
+ * that made them has updated the caches already.
+ *
+ * The listener never blocks on a full queue, since the server buffers
+ * notifications for a listener that does not read them.  It drops the
+ * change instead, and the dispatcher resets every subscriber, which
+ * throws away everything it derived from the tables, once it catches up.
+ * Losing the connection does the same: notifications sent while nobody
+ * listened are gone.
+ *
+ */
+
+public class ChangeFeed{
+	static final String CHANNEL = "ticketmaster_changes";
+	static final int BATCH_SIZE = Integer.getInteger("ticketmaster.feed.batchSize", 256);
+	static final int QUEUE_SIZE = Integer.getInteger("ticketmaster.feed.queue", 10000);
+	//how long the listener waits for notifications before checking for close()
+	private static final int POLL_MILLIS = 500;
+	private static final long RECONNECT_MILLIS = 1000;
+
+	/**
+	 * The rows of one table changed by one statement.
+	 */
+	public static class Change{
+		//the table name in lower case, e.g. showseats
+		public final String table;
+		//INSERT, UPDATE or DELETE
+		public final String op;
+		//show IDs, or movie IDs for movies
+		public final long[] keys;
+
+		Change(String table, String op, long[] keys){
+			this.table = table;
+			this.op = op;
+			this.keys = keys;
+		}
+
+		/**
+		 * @return the change a notification payload describes, or null when
+		 *         it is malformed
+		 */
+		static Change parse(String payload){
+			String[] f = payload.split("\\|", 3);
+			if (f.length != 3 || f[2].isEmpty()){
+				return null;
+			}//end if
+			String[] k = f[2].split(",");
+			long[] keys = new long[k.length];
+			try{
+				for (int i = 0; i < k.length; ++i){
+					keys[i] = Long.parseLong(k[i]);
+				}//end for
+			}catch(NumberFormatException e){
+				return null;
+			}//end try
+			return new Change(f[0].toLowerCase(), f[1], keys);
+		}
+
+		//the payload it was parsed from
+		public String toString(){
+			StringBuilder sb = new StringBuilder(this.table).append('|').append(this.op).append('|');
+			for (int i = 0; i < this.keys.length; ++i){
+				sb.append(i > 0 ? "," : "").append(this.keys[i]);
+			}//end for
+			return sb.toString();
+		}
+	}//end Change
+
+	/**
+	 * Receives the changes on the dispatcher thread.
+	 */
+	public interface Subscriber{
+		/**
+		 * Method to apply a batch of changes, oldest first.  When it throws,
+		 * the subscriber is reset.
+		 */
+		void changed(List<Change> batch) throws SQLException;
+
+		/**
+		 * Method to drop everything derived from the tables, after changes
+		 * were lost.
+		 */
+		void reset();
+	}//end Subscriber
+
+	private final Ticketmaster esql;
+	private final List<Subscriber> subscribers = new CopyOnWriteArrayList<Subscriber>();
+	private final BlockingQueue<Change> queue = new ArrayBlockingQueue<Change>(QUEUE_SIZE);
+	private final AtomicLong received = new AtomicLong();
+	private final AtomicLong skipped = new AtomicLong();
+	private final AtomicLong dropped = new AtomicLong();
+	private final AtomicLong batches = new AtomicLong();
+	private final AtomicLong resets = new AtomicLong();
+	//set when changes were dropped or missed; the dispatcher resets the subscribers
+	private volatile boolean lost = false;
+	private volatile boolean closed = false;
+	private Thread listener = null;
+	private Thread dispatcher = null;
+
+	public ChangeFeed(Ticketmaster esql){
+		this.esql = esql;
+	}
+
+	public void subscribe(Subscriber s){
+		this.subscribers.add(s);
+	}
+
+	/**
+	 * Method to start listening.  The subscribers are reset once connected,
+	 * since nothing tells what changed before.
+	 */
+	public synchronized void start(){
+		if (this.listener == null && !this.closed){
+			this.listener = new Thread(this::listenLoop, "change-feed-listener");
+			this.listener.setDaemon(true);
+			this.listener.start();
+			this.dispatcher = new Thread(this::dispatchLoop, "change-feed-dispatcher");
+			this.dispatcher.setDaemon(true);
+			this.dispatcher.start();
+		}//end if
+	}
+
+	/**
+	 * Method to stop listening and wait for both threads to finish.  Queued
+	 * changes are dropped.
+	 */
+	public void close(){
+		this.closed = true;
+		Thread l, d;
+		synchronized (this){
+			l = this.listener;
+			d = this.dispatcher;
+		}//end synchronized
+		try{
+			if (l != null){
+				l.join(POLL_MILLIS * 4);
+			}//end if
+			if (d != null){
+				d.interrupt();
+				d.join(10000);
+			}//end if
+		}catch(InterruptedException e){
+			Thread.currentThread().interrupt();
+		}//end try
+	}
+
+	public long getReceived(){
+		return this.received.get();
+	}
+
+	//changes waiting for the dispatcher
+	public int getQueued(){
+		return this.queue.size();
+	}
+
+	public long getDropped(){
+		return this.dropped.get();
+	}
+
+	public String toString(){
+		return String.format("feed: received=%d skipped=%d dropped=%d batches=%d resets=%d queued=%d",
+			getReceived(), this.skipped.get(), getDropped(), this.batches.get(), this.resets.get(), getQueued());
+	}
+
+	private void listenLoop(){
+		Connection conn = null;
+		while (!this.closed){
+			try{
+				if (conn == null){
+					conn = this.esql.getPool().connect();
+					Statement stmt = conn.createStatement();
+					try{
+						stmt.execute("LISTEN " + CHANNEL);
+					}finally{
+						stmt.close();
+					}//end try
+					this.lost = true;
+				}//end if
+				PGNotification[] notes = conn.unwrap(PGConnection.class).getNotifications(POLL_MILLIS);
+				if (notes == null){
+					continue;
+				}//end if
+				for (PGNotification n : notes){
+					this.received.incrementAndGet();
+					if (this.esql.getPool().isBackend(n.getPID())){
+						this.skipped.incrementAndGet();
+						continue;
+					}//end if
+					Change c = Change.parse(n.getParameter());
+					if (c == null){
+						System.err.println("Ignoring malformed change: " + n.getParameter());
+					}else if (!this.queue.offer(c)){
+						this.dropped.incrementAndGet();
+						this.lost = true;
+					}//end if
+				}//end for
+			}catch(SQLException e){
+				if (!this.closed){
+					System.err.println("Change feed disconnected: " + e.getMessage());
+				}//end if
+				close(conn);
+				conn = null;
+				try{
+					Thread.sleep(RECONNECT_MILLIS);
+				}catch(InterruptedException ie){
+					break;
+				}//end try
+			}//end try
+		}//end while
+		close(conn);
+	}
+
+	private void dispatchLoop(){
+		List<Change> batch = new ArrayList<Change>(BATCH_SIZE);
+		while (!this.closed){
+			try{
+				Change first = this.queue.poll(100, TimeUnit.MILLISECONDS);
+				if (this.lost){
+					//whatever is queued is covered by the reset
+					this.lost = false;
+					this.queue.clear();
+					resetAll();
+					continue;
+				}//end if
+				if (first == null){
+					continue;
+				}//end if
+				batch.add(first);
+				this.queue.drainTo(batch, BATCH_SIZE - 1);
+			}catch(InterruptedException e){
+				return;
+			}//end try
+			Metrics.Scope op = this.esql.getMetrics().operation("feed.dispatch");
+			try{
+				for (Subscriber s : this.subscribers){
+					try{
+						s.changed(batch);
+					}catch(SQLException | RuntimeException e){
+						System.err.println("Applying changes failed: " + e.getMessage());
+						s.reset();
+					}//end try
+				}//end for
+			}finally{
+				op.close();
+			}//end try
+			this.batches.incrementAndGet();
+			batch.clear();
+		}//end while
+	}
+
+	private void resetAll(){
+		this.resets.incrementAndGet();
+		for (Subscriber s : this.subscribers){
+			s.reset();
+		}//end for
+	}
+
+	private static void close(Connection conn){
+		if (conn != null){
+			try{
+				conn.close();
+			}catch(SQLException e){
+				// ignored.
+			}//end try
+		}//end if
+	}
+
+	/**
+	 * Prints the changes as they arrive, to check the triggers or watch
+	 * another process write.
+	 *
+	 * @param args <dbname> <port> <user>
+	 */
+	public static void main(String[] args) throws Exception {
+		if (args.length != 3) {
+			System.err.println (
+				"Usage: " + "java [-classpath <classpath>] " + ChangeFeed.class.getName () +
+				" <dbname> <port> <user>");
+			return;
+		}//end if
+
+		Class.forName("org.postgresql.Driver");
+		Ticketmaster esql = new Ticketmaster(args[0], args[1], args[2], "");
+		ChangeFeed feed = esql.getChangeFeed();
+		feed.subscribe(new Subscriber(){
+			public void changed(List<Change> batch){
+				for (Change c : batch){
+					System.out.println(System.currentTimeMillis() + " " + c);
+				}//end for
+			}
+
+			public void reset(){
+				System.out.println(System.currentTimeMillis() + " reset");
+			}
+		});
+		feed.start();
+		try{
+			Thread.currentThread().join();
+		}finally{
+			esql.cleanup();
+		}//end try
+	}
+}
@@ -0,0 +1,366 @@
+import java.sql.DriverManager;
+import java.sql.Connection;
+import java.sql.PreparedStatement;
+import java.sql.SQLException;
+import java.util.Iterator;
+import java.util.Properties;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.LinkedBlockingDeque;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import org.postgresql.PGConnection;
+
+/**
+ * A bounded pool of physical PostgreSQL connections.  Callers borrow a
+ * connection with acquire() and must hand it back with release() once the
+ * statement is done, so that many threads can run queries in parallel
+ * without opening a connection per request.
+ *
+ */
+
+public class ConnectionPool{
+	//connections are considered stale after this long and validated on borrow
+	private static final long VALIDATE_AFTER_IDLE_MILLIS = 1000;
+	private static final int VALIDATION_TIMEOUT_SECONDS = 2;
+	private static final int CONNECT_ATTEMPTS = 3;
+	private static final long CONNECT_BACKOFF_MILLIS = 200;
+	//prepared statements cached per connection, and uses before a server-side prepare
+	private static final int STATEMENT_CACHE_SIZE = Integer.getInteger("ticketmaster.stmtcache.size", 64);
+	private static final int PREPARE_THRESHOLD = Integer.getInteger("ticketmaster.prepareThreshold", 3);
+
+	private final String url;
+	private final Properties props;
+	private final int minSize;
+	private final int maxSize;
+	private final long acquireTimeoutMillis;
+	private final long idleTimeoutMillis;
+	//connections are opened with setReadOnly(true), e.g. to a replica
+	private final boolean readOnly;
+
+	//idle connections, most recently used at the head
+	private final LinkedBlockingDeque<PooledConnection> idle = new LinkedBlockingDeque<PooledConnection>();
+	//one permit per connection that may be checked out
+	private final Semaphore permits;
+	private final AtomicInteger open = new AtomicInteger();
+	//server process IDs of the open connections
+	private final Set<Integer> backends = ConcurrentHashMap.newKeySet();
+	//time callers spent in acquire(), including opening a connection
+	private final LatencyHistogram waits = new LatencyHistogram();
+	private final ScheduledExecutorService evictor;
+	private volatile boolean closed = false;
+
+	/**
+	 * A physical connection owned by the pool.
+	 */
+	public static class PooledConnection{
+		private final Connection connection;
+		private final StatementCache statements;
+		private final int backend;
+		private long lastUsed;
+		private boolean broken = false;
+
+		PooledConnection(Connection connection) throws SQLException {
+			this.connection = connection;
+			this.backend = connection.unwrap(PGConnection.class).getBackendPID();
+			this.statements = new StatementCache(connection, STATEMENT_CACHE_SIZE, PREPARE_THRESHOLD);
+			this.lastUsed = System.currentTimeMillis();
+		}
+
+		public Connection getConnection(){
+			return this.connection;
+		}
+
+		/**
+		 * Method to get a cached prepared statement for this connection.
+		 *
+		 * @param sql the SQL text with ? placeholders
+		 * @return the prepared statement; it must not be closed by the caller
+		 * @throws java.sql.SQLException when the statement cannot be prepared
+		 */
+		public PreparedStatement prepare(String sql) throws SQLException {
+			return this.statements.prepare(sql);
+		}
+
+		/**
+		 * Records a failure seen on this connection.  Connection-class errors
+		 * (SQLState 08xxx) make the pool discard it instead of reusing it.
+		 *
+		 * @param e the error raised by a statement on this connection
+		 */
+		public void failed(SQLException e){
+			String state = e.getSQLState();
+			if (state == null || state.startsWith("08")){
+				this.broken = true;
+			}//end if
+		}
+	}//end PooledConnection
+
+	/**
+	 * Creates the pool and opens the minimum number of connections.
+	 *
+	 * @param url the JDBC connection URL
+	 * @param props driver properties, including user and password
+	 * @param minSize number of connections kept open while idle
+	 * @param maxSize upper bound on connections checked out at once
+	 * @param acquireTimeoutMillis how long acquire() waits for a free connection
+	 * @param idleTimeoutMillis idle connections above minSize are closed after this long
+	 * @throws java.sql.SQLException when the initial connections cannot be opened
+	 */
+	public ConnectionPool(String url, Properties props, int minSize, int maxSize,
+			long acquireTimeoutMillis, long idleTimeoutMillis) throws SQLException {
+		this(url, props, minSize, maxSize, acquireTimeoutMillis, idleTimeoutMillis, false);
+	}
+
+	/**
+	 * @param readOnly whether every connection is set read-only when opened
+	 */
+	public ConnectionPool(String url, Properties props, int minSize, int maxSize,
+			long acquireTimeoutMillis, long idleTimeoutMillis, boolean readOnly) throws SQLException {
+		if (minSize < 0 || maxSize < 1 || minSize > maxSize){
+			throw new IllegalArgumentException("Invalid pool size: min=" + minSize + " max=" + maxSize);
+		}//end if
+		this.url = url;
+		this.props = props;
+		this.minSize = minSize;
+		this.maxSize = maxSize;
+		this.acquireTimeoutMillis = acquireTimeoutMillis;
+		this.idleTimeoutMillis = idleTimeoutMillis;
+		this.readOnly = readOnly;
+		this.permits = new Semaphore(maxSize, true);
+
+		for (int i = 0; i < minSize; ++i){
+			this.idle.offerLast(open());
+		}//end for
+
+		this.evictor = Executors.newSingleThreadScheduledExecutor(new ThreadFactory(){
+			public Thread newThread(Runnable r){
+				Thread t = new Thread(r, "pool-evictor");
+				t.setDaemon(true);
+				return t;
+			}
+		});
+		long period = Math.max(1000, idleTimeoutMillis / 2);
+		this.evictor.scheduleWithFixedDelay(new Runnable(){
+			public void run(){
+				evictIdle();
+			}
+		}, period, period, TimeUnit.MILLISECONDS);
+	}
+
+	public String getUrl(){
+		return this.url;
+	}
+
+	public int getMaxSize(){
+		return this.maxSize;
+	}
+
+	//physical connections open, idle or checked out
+	public int getOpen(){
+		return this.open.get();
+	}
+
+	public int getIdle(){
+		return this.idle.size();
+	}
+
+	public int getInUse(){
+		return this.maxSize - this.permits.availablePermits();
+	}
+
+	//threads blocked in acquire() waiting for a connection
+	public int getWaiting(){
+		return this.permits.getQueueLength();
+	}
+
+	public LatencyHistogram getAcquireWaits(){
+		return this.waits;
+	}
+
+	/**
+	 * Method to borrow a connection.  Idle connections are reused most recently
+	 * used first and validated if they have been idle for a while; a new
+	 * connection is opened (with retries) when none is idle.
+	 *
+	 * @return a connection that must be passed back to release()
+	 * @throws java.sql.SQLException when no connection is available in time
+	 */
+	public PooledConnection acquire() throws SQLException {
+		if (this.closed){
+			throw new SQLException("Connection pool is closed", "08003");
+		}//end if
+		long start = System.nanoTime();
+		try{
+			if (!this.permits.tryAcquire(this.acquireTimeoutMillis, TimeUnit.MILLISECONDS)){
+				this.waits.record(System.nanoTime() - start);
+				throw new SQLException("Timed out after " + this.acquireTimeoutMillis
+					+ "ms waiting for a database connection", "08001");
+			}//end if
+		}catch(InterruptedException e){
+			Thread.currentThread().interrupt();
+			throw new SQLException("Interrupted waiting for a database connection", "08001", e);
+		}//end try
+
+		try{
+			PooledConnection pc;
+			while ((pc = this.idle.pollFirst()) != null){
+				if (isUsable(pc)){
+					return pc;
+				}//end if
+				discard(pc);
+			}//end while
+			return open();
+		}catch(SQLException e){
+			this.permits.release();
+			throw e;
+		}catch(RuntimeException e){
+			this.permits.release();
+			throw e;
+		}finally{
+			this.waits.record(System.nanoTime() - start);
+		}//end try
+	}
+
+	/**
+	 * Method to return a borrowed connection.  Connections left in a
+	 * transaction are rolled back; broken ones are closed and replaced on the
+	 * next acquire().
+	 *
+	 * @param pc the connection obtained from acquire()
+	 */
+	public void release(PooledConnection pc){
+		if (pc == null){
+			return;
+		}//end if
+		try{
+			if (pc.broken || this.closed || pc.connection.isClosed()){
+				discard(pc);
+				return;
+			}//end if
+			if (!pc.connection.getAutoCommit()){
+				pc.connection.rollback();
+				pc.connection.setAutoCommit(true);
+			}//end if
+			pc.lastUsed = System.currentTimeMillis();
+			this.idle.offerFirst(pc);
+		}catch(SQLException e){
+			discard(pc);
+		}finally{
+			this.permits.release();
+		}//end try
+	}
+
+	/**
+	 * Method to close every idle connection and refuse further acquires.
+	 * Connections still checked out are closed when they are released.
+	 */
+	public void close(){
+		this.closed = true;
+		this.evictor.shutdownNow();
+		PooledConnection pc;
+		while ((pc = this.idle.pollFirst()) != null){
+			discard(pc);
+		}//end while
+	}
+
+	/**
+	 * Method to open a connection that does not belong to the pool, for a
+	 * session that must stay on one connection such as a LISTEN.  The
+	 * caller closes it.
+	 *
+	 * @throws java.sql.SQLException when the connection cannot be opened
+	 */
+	public Connection connect() throws SQLException {
+		return DriverManager.getConnection(this.url, this.props);
+	}
+
+	/**
+	 * @return true when pid is the server process of one of the pool's
+	 *         open connections, e.g. the sender of a notification
+	 */
+	public boolean isBackend(int pid){
+		return this.backends.contains(pid);
+	}
+
+	private PooledConnection open() throws SQLException {
+		SQLException last = null;
+		for (int attempt = 1; attempt <= CONNECT_ATTEMPTS; ++attempt){
+			Connection conn = null;
+			try{
+				conn = DriverManager.getConnection(this.url, this.props);
+				conn.setReadOnly(this.readOnly);
+				PooledConnection pc = new PooledConnection(conn);
+				this.backends.add(pc.backend);
+				this.open.incrementAndGet();
+				return pc;
+			}catch(SQLException e){
+				if (conn != null){
+					try{
+						conn.close();
+					}catch(SQLException ce){
+						// ignored.
+					}//end try
+				}//end if
+				last = e;
+				try{
+					Thread.sleep(CONNECT_BACKOFF_MILLIS * attempt);
+				}catch(InterruptedException ie){
+					Thread.currentThread().interrupt();
+					break;
+				}//end try
+			}//end try
+		}//end for
+		throw last;
+	}
+
+	private boolean isUsable(PooledConnection pc){
+		try{
+			if (pc.connection.isClosed()){
+				return false;
+			}//end if
+			if (System.currentTimeMillis() - pc.lastUsed < VALIDATE_AFTER_IDLE_MILLIS){
+				return true;
+			}//end if
+			return pc.connection.isValid(VALIDATION_TIMEOUT_SECONDS);
+		}catch(SQLException e){
+			return false;
+		}//end try
+	}
+
+	private void discard(PooledConnection pc){
+		try{
+			pc.statements.clear();
+			pc.connection.close();
+		}catch(SQLException e){
+			// ignored.
+		}finally{
+			this.backends.remove(pc.backend);
+			this.open.decrementAndGet();
+		}//end try
+	}
+
+	//closes connections idle for longer than idleTimeoutMillis, keeping minSize open
+	private void evictIdle(){
+		long now = System.currentTimeMillis();
+		Iterator<PooledConnection> it = this.idle.descendingIterator();
+		while (it.hasNext() && this.open.get() > this.minSize){
+			PooledConnection pc = it.next();
+			if (now - pc.lastUsed > this.idleTimeoutMillis && this.idle.remove(pc)){
+				discard(pc);
+			}//end if
+		}//end while
+		//reconnect up to the minimum after failures or a database restart
+		try{
+			while (!this.closed && this.open.get() < this.minSize){
+				this.idle.offerLast(open());
+			}//end while
+		}catch(SQLException e){
+			// retried on the next run.
+		}//end try
+	}
+}
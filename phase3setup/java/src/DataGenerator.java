@@ -0,0 +1,447 @@
+import java.io.BufferedWriter;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+import java.nio.charset.StandardCharsets;
+import java.time.LocalDate;
+import java.util.ArrayDeque;
+import java.util.Arrays;
+import java.util.Random;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+/**
+ * Writes a synthetic, referentially consistent data set in the format of
+ * the phase3setup/data CSV files, for every table in create.sql, at a
+ * chosen scale factor.  At scale factor 1 there are 10,000 shows with
+ * about 1M ShowSeats and 100,000 Bookings; every table grows linearly.
+ *
+ * Output is a function of the seed and scale factor only.  Every row is
+ * drawn from its own random generator, seeded from the seed, the table and
+ * the row's key, so tables can be cut into chunks generated on all cores
+ * and the result does not depend on thread scheduling.  Chunks are written
+ * in order with a bounded number in flight, so memory stays flat however
+ * large the output.  The per-theater and per-show id offsets needed to
+ * keep ids dense are the only state kept for a whole table.
+ *
+ */
+
+public class DataGenerator{
+	//rows per unit of scale factor
+	static final int CITIES = 300;
+	static final int CINEMAS = 1000;
+	static final int MOVIES = 2000;
+	static final int USERS = 50000;
+	static final int SHOWS = 10000;
+	//bookings drawn per show are uniform in [0, 2 * BOOKINGS_PER_SHOW]
+	static final int BOOKINGS_PER_SHOW = 10;
+	//keys per chunk; a cinema or a show expands to a few hundred rows
+	static final int CHUNK_KEYS = 2000;
+	static final int CHUNK_FANOUT_KEYS = 20;
+
+	private static final int CITY = 1;
+	private static final int CINEMA = 2;
+	private static final int THEATER = 3;
+	private static final int MOVIE = 4;
+	private static final int USER = 5;
+	private static final int SHOW = 6;
+
+	private static final String[] CITY_NAMES = { "Springfield", "Riverside", "Franklin", "Greenville", "Bristol",
+		"Clinton", "Fairview", "Salem", "Madison", "Georgetown", "Arlington", "Ashland", "Oxford", "Jackson", "Burlington" };
+	private static final String[] STATES = { "AL", "AZ", "CA", "CO", "FL", "GA", "IL", "MA", "MI", "NC", "NJ", "NY",
+		"OH", "OR", "PA", "TN", "TX", "VA", "WA", "WI" };
+	private static final String[] CHAINS = { "Regal Cinemas", "AMC Theatres", "Cinemark", "Studio Movie Grill",
+		"General Cinemas", "Alamo Drafthouse", "Marcus Theatres", "Harkins Theatres" };
+	private static final String[] TITLE_WORDS = { "Love", "Night", "Return", "City", "Dark", "Last", "River", "Star",
+		"Secret", "Summer", "War", "Dream", "Ghost", "King", "Road", "Storm", "Heart", "Shadow", "Island", "Fire" };
+	private static final String[] COUNTRIES = { "United States", "United Kingdom", "France", "Germany", "India", "Japan" };
+	private static final String[] LANGS = { "en", "en", "en", "fr", "de", "hi", "ja" };
+	private static final String[] GENRES = { "Action", "Drama", "Comedy", "Horror", "Romance", "Animation", "Thriller" };
+	private static final String[] FIRST_NAMES = { "Armand", "Alberto", "Wyatt", "Maria", "Olivia", "Noah", "Liam",
+		"Emma", "Ava", "Lucas", "Mia", "Ethan", "Chloe", "Mason", "Zoe", "Logan" };
+	private static final String[] LAST_NAMES = { "Enderle", "Scarlett", "Ruoff", "Smith", "Garcia", "Nguyen", "Kim",
+		"Brown", "Lopez", "Miller", "Davis", "Wilson", "Moore", "Taylor", "Clark", "Lewis" };
+	private static final String[] PAY_METHODS = { "Credit Card", "Credit Card", "Credit Card", "Cash" };
+	private static final char[] HEX = "0123456789abcdef".toCharArray();
+	private static final LocalDate FIRST_SHOW_DATE = LocalDate.of(2019, 1, 1);
+	private static final int SHOW_DAYS = 730;
+
+	/**
+	 * Generates the rows of one chunk of keys into one buffer per output
+	 * file.
+	 */
+	interface ChunkBody{
+		void generate(long from, long to, StringBuilder[] out);
+	}
+
+	/**
+	 * What a show contains: its theater and the seat count of each booking.
+	 */
+	static class ShowPlan{
+		int tid;
+		int[] bookingSeats;
+	}//end ShowPlan
+
+	private final File dir;
+	private final long seed;
+	private final int threads;
+	private final int cities;
+	private final int cinemas;
+	private final int movies;
+	private final int users;
+	private final int shows;
+
+	//first theater of each cinema, and one past the last at [cinemas]
+	private int[] theaterBase;
+	//first csid of each theater, and one past the last at [theaters]
+	private long[] seatBase;
+	//first bid and first ssid of each show
+	private long[] bookingBase;
+	private long[] showSeatBase;
+
+	public DataGenerator(File dir, double scale, long seed, int threads){
+		this.dir = dir;
+		this.seed = seed;
+		this.threads = threads;
+		this.cities = Math.max(1, (int) (CITIES * scale));
+		this.cinemas = Math.max(1, (int) (CINEMAS * scale));
+		this.movies = Math.max(1, (int) (MOVIES * scale));
+		this.users = Math.max(1, (int) (USERS * scale));
+		this.shows = Math.max(1, (int) (SHOWS * scale));
+	}
+
+	/**
+	 * Method to write every table.
+	 *
+	 * @throws Exception when a file cannot be written or a worker fails
+	 */
+	public void generateAll() throws Exception {
+		long start = System.nanoTime();
+		ExecutorService workers = Executors.newFixedThreadPool(this.threads);
+		try{
+			planTheaters();
+			planShows();
+			long rows = 0;
+			rows += generate(workers, this.cities, CHUNK_KEYS, new String[] { "Cities" }, this::cities);
+			rows += generate(workers, this.cinemas, CHUNK_FANOUT_KEYS, new String[] { "Cinemas", "Theaters", "CinemaSeats" }, this::cinemas);
+			rows += generate(workers, this.movies, CHUNK_KEYS, new String[] { "Movies" }, this::movies);
+			rows += generate(workers, this.users, CHUNK_KEYS, new String[] { "Users" }, this::users);
+			rows += generate(workers, this.shows, CHUNK_FANOUT_KEYS,
+				new String[] { "Shows", "Plays", "Bookings", "Payments", "ShowSeats" }, this::shows);
+			report("Total", rows, start);
+		}finally{
+			workers.shutdownNow();
+		}//end try
+	}
+
+	/*
+	 * cuts [1, count] into chunks, generates them on the workers and writes
+	 * them in key order, keeping at most two chunks per worker in flight
+	 */
+	private long generate(ExecutorService workers, long count, int chunkKeys, String[] tables, final ChunkBody body) throws Exception {
+		long start = System.nanoTime();
+		Writer[] files = new Writer[tables.length];
+		long rows = 0;
+		try{
+			for (int i = 0; i < tables.length; ++i){
+				files[i] = new BufferedWriter(new OutputStreamWriter(
+					new FileOutputStream(new File(this.dir, tables[i] + ".csv")), StandardCharsets.UTF_8), 1 << 16);
+			}//end for
+			ArrayDeque<Future<StringBuilder[]>> inFlight = new ArrayDeque<Future<StringBuilder[]>>();
+			final int outputs = tables.length;
+			for (long from = 1; from <= count || !inFlight.isEmpty(); ){
+				if (from <= count && inFlight.size() < 2 * this.threads){
+					final long lo = from;
+					final long hi = Math.min(count, from + chunkKeys - 1);
+					inFlight.add(workers.submit(() -> {
+						StringBuilder[] out = new StringBuilder[outputs];
+						for (int i = 0; i < outputs; ++i){
+							out[i] = new StringBuilder();
+						}//end for
+						body.generate(lo, hi, out);
+						return out;
+					}));
+					from = hi + 1;
+					continue;
+				}//end if
+				StringBuilder[] out = inFlight.poll().get();
+				for (int i = 0; i < outputs; ++i){
+					files[i].append(out[i]);
+					rows += lines(out[i]);
+				}//end for
+			}//end for
+		}finally{
+			for (Writer w : files){
+				if (w != null){
+					w.close();
+				}//end if
+			}//end for
+		}//end try
+		report(String.join(", ", tables), rows, start);
+		return rows;
+	}
+
+	private void planTheaters(){
+		this.theaterBase = new int[this.cinemas + 1];
+		this.theaterBase[0] = 1;
+		for (int c = 1; c <= this.cinemas; ++c){
+			this.theaterBase[c] = this.theaterBase[c - 1] + theaterCount(c);
+		}//end for
+		int theaters = this.theaterBase[this.cinemas] - 1;
+		this.seatBase = new long[theaters + 2];
+		this.seatBase[1] = 1;
+		for (int t = 1; t <= theaters; ++t){
+			this.seatBase[t + 1] = this.seatBase[t] + seatCount(t);
+		}//end for
+	}
+
+	private void planShows(){
+		this.bookingBase = new long[this.shows + 2];
+		this.showSeatBase = new long[this.shows + 2];
+		this.bookingBase[1] = 1;
+		this.showSeatBase[1] = 1;
+		for (int s = 1; s <= this.shows; ++s){
+			ShowPlan plan = plan(s);
+			this.bookingBase[s + 1] = this.bookingBase[s] + plan.bookingSeats.length;
+			this.showSeatBase[s + 1] = this.showSeatBase[s] + seatCount(plan.tid);
+		}//end for
+	}
+
+	private int theaterCount(int cid){
+		return 5 + rng(CINEMA, cid).nextInt(6);
+	}
+
+	private int seatCount(int tid){
+		return 50 + rng(THEATER, tid).nextInt(101);
+	}
+
+	private int theaters(){
+		return this.theaterBase[this.cinemas] - 1;
+	}
+
+	//the theater and bookings of a show; drawn the same way by both passes
+	private ShowPlan plan(int sid){
+		Random r = rng(SHOW, sid);
+		ShowPlan plan = new ShowPlan();
+		plan.tid = 1 + r.nextInt(theaters());
+		int free = seatCount(plan.tid);
+		int wanted = r.nextInt(2 * BOOKINGS_PER_SHOW + 1);
+		int[] seats = new int[wanted];
+		int n = 0;
+		while (n < wanted){
+			int k = 1 + r.nextInt(4);
+			if (k > free){
+				break;
+			}//end if
+			seats[n++] = k;
+			free -= k;
+		}//end while
+		plan.bookingSeats = n == wanted ? seats : Arrays.copyOf(seats, n);
+		return plan;
+	}
+
+	private void cities(long from, long to, StringBuilder[] out){
+		for (long id = from; id <= to; ++id){
+			Random r = rng(CITY, id);
+			out[0].append(id).append(',').append(pick(r, CITY_NAMES)).append(' ').append(id).append(',')
+				.append(pick(r, STATES)).append(',').append(10000 + r.nextInt(90000)).append('\n');
+		}//end for
+	}
+
+	private void cinemas(long from, long to, StringBuilder[] out){
+		for (int cid = (int) from; cid <= to; ++cid){
+			Random r = rng(CINEMA, cid);
+			int tnum = this.theaterBase[cid] - this.theaterBase[cid - 1];
+			String cname = pick(r, CHAINS);
+			out[0].append(cid).append(',').append(1 + r.nextInt(this.cities)).append(',')
+				.append(cname).append(',').append(tnum).append('\n');
+			for (int k = 0; k < tnum; ++k){
+				int tid = this.theaterBase[cid - 1] + k;
+				int seats = seatCount(tid);
+				out[1].append(tid).append(',').append(cid).append(',').append(cname).append(" Theaters ")
+					.append(k + 1).append(',').append(seats).append('\n');
+				long csid = this.seatBase[tid];
+				for (int sno = 1; sno <= seats; ++sno, ++csid){
+					out[2].append(csid).append(',').append(tid).append(',').append(sno).append(',')
+						.append(sno > seats - 2 ? "Handicap" : "Regular").append('\n');
+				}//end for
+			}//end for
+		}//end for
+	}
+
+	private void movies(long from, long to, StringBuilder[] out){
+		for (long mvid = from; mvid <= to; ++mvid){
+			Random r = rng(MOVIE, mvid);
+			out[0].append(mvid).append(',').append(pick(r, TITLE_WORDS)).append(' ').append(pick(r, TITLE_WORDS))
+				.append(' ').append(mvid).append(',');
+			date(out[0], LocalDate.of(1970, 1, 1).plusDays(r.nextInt(20000)));
+			out[0].append(',').append(pick(r, COUNTRIES)).append(",Good movie,").append(duration(mvid)).append(',')
+				.append(pick(r, LANGS)).append(',').append(pick(r, GENRES)).append('\n');
+		}//end for
+	}
+
+	//seconds; drawn from its own generator so shows can look it up
+	private int duration(long mvid){
+		return 4000 + rng(MOVIE, -mvid).nextInt(6001);
+	}
+
+	private void users(long from, long to, StringBuilder[] out){
+		for (long id = from; id <= to; ++id){
+			Random r = rng(USER, id);
+			out[0].append(email(id)).append(',').append(pick(r, LAST_NAMES)).append(',').append(pick(r, FIRST_NAMES))
+				.append(',').append(2000000000L + (long) (r.nextDouble() * 7999999999L)).append(',');
+			for (int i = 0; i < 64; ++i){
+				out[0].append(HEX[r.nextInt(16)]);
+			}//end for
+			out[0].append('\n');
+		}//end for
+	}
+
+	private static String email(long user){
+		return "user" + user + "@example.com";
+	}
+
+	/*
+	 * a show, the theater it plays in, its bookings with their payments and
+	 * one show seat per seat of the theater; booked seats are taken front
+	 * to back with the odd gap
+	 */
+	private void shows(long from, long to, StringBuilder[] out){
+		for (int sid = (int) from; sid <= to; ++sid){
+			ShowPlan plan = plan(sid);
+			Random r = rng(SHOW, -sid);
+			long mvid = 1 + r.nextInt(this.movies);
+			LocalDate sdate = FIRST_SHOW_DATE.plusDays(r.nextInt(SHOW_DAYS));
+			int start = 8 * 60 + 5 * r.nextInt(15 * 12);
+			int end = (start + duration(mvid) / 60) % (24 * 60);
+			out[0].append(sid).append(',').append(mvid).append(',');
+			date(out[0], sdate);
+			out[0].append(',').append(start / 60).append(':').append(pad(start % 60)).append(',')
+				.append(end / 60).append(':').append(pad(end % 60)).append('\n');
+			out[1].append(sid).append(',').append(plan.tid).append('\n');
+
+			int seats = seatCount(plan.tid);
+			long[] seatBid = new long[seats + 1];
+			double[] price = new double[seats + 1];
+			for (int sno = 1; sno <= seats; ++sno){
+				price[sno] = 5 + r.nextInt(8);
+			}//end for
+			int next = 1;
+			for (int b = 0; b < plan.bookingSeats.length; ++b){
+				long bid = this.bookingBase[sid] + b;
+				int k = plan.bookingSeats[b];
+				int gap = Math.min(r.nextInt(3), seats - next + 1 - remaining(plan.bookingSeats, b));
+				next += Math.max(0, gap);
+				double amount = 0;
+				for (int i = 0; i < k; ++i, ++next){
+					seatBid[next] = bid;
+					amount += price[next];
+				}//end for
+				int roll = r.nextInt(10);
+				String status = roll < 8 ? "Paid" : roll == 8 ? "Pending" : "Cancelled";
+				LocalDate bdate = sdate.minusDays(r.nextInt(30));
+				String bdatetime = r.nextInt(24) + ":" + pad(r.nextInt(60));
+				out[2].append(bid).append(',').append(status).append(',');
+				date(out[2], bdate);
+				out[2].append(' ').append(bdatetime).append(',').append(k).append(',').append(sid).append(',')
+					.append(email(1 + r.nextInt(this.users))).append('\n');
+				if (status.equals("Paid")){
+					//one payment per paid booking, keyed like it
+					out[3].append(bid).append(',').append(bid).append(',').append(pick(r, PAY_METHODS)).append(',');
+					date(out[3], bdate);
+					out[3].append(' ').append(bdatetime).append(',').append((long) amount).append(',')
+						.append(10000000 + r.nextInt(90000000)).append('\n');
+				}//end if
+			}//end for
+			long ssid = this.showSeatBase[sid];
+			long csid = this.seatBase[plan.tid];
+			for (int sno = 1; sno <= seats; ++sno, ++ssid, ++csid){
+				out[4].append(ssid).append(',').append(sid).append(',').append(csid).append(',');
+				if (seatBid[sno] != 0){
+					out[4].append(seatBid[sno]);
+				}//end if
+				out[4].append(',').append((long) price[sno]).append('\n');
+			}//end for
+		}//end for
+	}
+
+	//seats still to place for bookings b onwards
+	private static int remaining(int[] bookingSeats, int b){
+		int n = 0;
+		for (int i = b; i < bookingSeats.length; ++i){
+			n += bookingSeats[i];
+		}//end for
+		return n;
+	}
+
+	//M/d/yyyy, as in the bundled CSVs
+	private static void date(StringBuilder out, LocalDate d){
+		out.append(d.getMonthValue()).append('/').append(d.getDayOfMonth()).append('/').append(d.getYear());
+	}
+
+	private static String pad(int n){
+		return n < 10 ? "0" + n : Integer.toString(n);
+	}
+
+	private static String pick(Random r, String[] values){
+		return values[r.nextInt(values.length)];
+	}
+
+	private Random rng(int stream, long id){
+		return new Random(mix(mix(this.seed + stream) + id));
+	}
+
+	//SplitMix64 finalizer, so neighbouring ids get unrelated seeds
+	private static long mix(long z){
+		z += 0x9e3779b97f4a7c15L;
+		z = (z ^ (z >>> 30)) * 0xbf58476d1ce4e5b9L;
+		z = (z ^ (z >>> 27)) * 0x94d049bb133111ebL;
+		return z ^ (z >>> 31);
+	}
+
+	private static long lines(StringBuilder sb){
+		long n = 0;
+		for (int i = 0; i < sb.length(); ++i){
+			if (sb.charAt(i) == '\n'){
+				++n;
+			}//end if
+		}//end for
+		return n;
+	}
+
+	private static void report(String what, long rows, long startNanos){
+		double seconds = (System.nanoTime() - startNanos) / 1e9;
+		System.out.println(String.format("%s: %d rows in %.1f s (%.0f rows/s)",
+			what, rows, seconds, seconds > 0 ? rows / seconds : 0.0));
+	}
+
+	/**
+	 * Writes the CSV files into a directory, which is created if needed.
+	 *
+	 * @param args <output dir> [scale factor] [seed] [threads]
+	 */
+	public static void main(String[] args){
+		if (args.length < 1) {
+			System.err.println (
+				"Usage: " + "java [-classpath <classpath>] " + DataGenerator.class.getName () +
+				" <output dir> [scale factor] [seed] [threads]");
+			return;
+		}//end if
+		File dir = new File(args[0]);
+		double scale = args.length > 1 ? Double.parseDouble(args[1]) : 1.0;
+		long seed = args.length > 2 ? Long.parseLong(args[2]) : 42L;
+		int threads = args.length > 3 ? Integer.parseInt(args[3]) : Runtime.getRuntime().availableProcessors();
+		try{
+			if (!dir.isDirectory() && !dir.mkdirs()){
+				throw new IOException("Cannot create " + dir);
+			}//end if
+			new DataGenerator(dir, scale, seed, threads).generateAll();
+		}catch(Exception e){
+			System.err.println(e.getMessage());
+			System.exit(1);
+		}//end try
+	}
+}
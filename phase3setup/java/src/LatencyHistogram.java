@@ -0,0 +1,114 @@
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * A lock-free latency histogram over log-linear buckets, in the manner of
+ * HdrHistogram: every power of two of nanoseconds is split into
+ * SUB_BUCKETS equal buckets, so a recorded value is off by at most
+ * 1/SUB_BUCKETS (about 3%) and the whole range up to 2^MAX_EXPONENT ns
+ * (about 2.3 minutes) fits in a fixed array.  Longer values land in the
+ * last bucket.  Recording is a few atomic increments and safe from any
+ * number of threads.
+ *
+ */
+
+public class LatencyHistogram{
+	private static final int SUB_BITS = 5;
+	private static final int SUB_BUCKETS = 1 << SUB_BITS;
+	private static final int MAX_EXPONENT = 37;
+	private static final int BUCKETS = (MAX_EXPONENT - SUB_BITS + 2) * SUB_BUCKETS;
+
+	private final AtomicLongArray counts = new AtomicLongArray(BUCKETS);
+	private final AtomicLong count = new AtomicLong();
+	private final AtomicLong sum = new AtomicLong();
+	private final AtomicLong max = new AtomicLong();
+
+	/**
+	 * Method to record one duration.
+	 *
+	 * @param nanos the duration in nanoseconds; negative values count as 0
+	 */
+	public void record(long nanos){
+		long v = Math.max(0, nanos);
+		this.counts.incrementAndGet(index(v));
+		this.count.incrementAndGet();
+		this.sum.addAndGet(v);
+		long m;
+		while (v > (m = this.max.get()) && !this.max.compareAndSet(m, v)){
+			//another thread raised the max; retry against the new value
+		}//end while
+	}
+
+	public long getCount(){
+		return this.count.get();
+	}
+
+	//total of the recorded durations, in nanoseconds
+	public long getSum(){
+		return this.sum.get();
+	}
+
+	public long getMax(){
+		return this.max.get();
+	}
+
+	public double getMean(){
+		long n = this.count.get();
+		return n == 0 ? 0.0 : (double) this.sum.get() / n;
+	}
+
+	/**
+	 * Method to estimate a percentile.  Counts are read without a lock, so
+	 * with concurrent writers the answer describes a moment close to the
+	 * call rather than an exact one.
+	 *
+	 * @param p the percentile, between 0 and 100
+	 * @return the upper bound of the bucket holding the percentile, in
+	 *         nanoseconds, capped at the largest recorded value; 0 when empty
+	 */
+	public long percentile(double p){
+		long n = this.count.get();
+		if (n == 0){
+			return 0;
+		}//end if
+		long rank = Math.max(1, (long) Math.ceil(p / 100.0 * n));
+		long seen = 0;
+		for (int i = 0; i < BUCKETS; ++i){
+			seen += this.counts.get(i);
+			if (seen >= rank){
+				return Math.min(upperBound(i), this.max.get());
+			}//end if
+		}//end for
+		return this.max.get();
+	}
+
+	public String toString(){
+		return String.format("n=%d mean=%.3fms p50=%.3fms p99=%.3fms max=%.3fms", getCount(), getMean() / 1e6,
+			percentile(50) / 1e6, percentile(99) / 1e6, getMax() / 1e6);
+	}
+
+	/*
+	 * values below SUB_BUCKETS get a bucket each; above that, the bucket is
+	 * the value's power of two plus its next SUB_BITS bits.
+	 */
+	private static int index(long v){
+		if (v < SUB_BUCKETS){
+			return (int) v;
+		}//end if
+		int exponent = 63 - Long.numberOfLeadingZeros(v);
+		if (exponent > MAX_EXPONENT){
+			return BUCKETS - 1;
+		}//end if
+		int sub = (int) (v >>> (exponent - SUB_BITS)) & (SUB_BUCKETS - 1);
+		return (exponent - SUB_BITS + 1) * SUB_BUCKETS + sub;
+	}
+
+	private static long upperBound(int i){
+		if (i < SUB_BUCKETS){
+			return i;
+		}//end if
+		int exponent = i / SUB_BUCKETS + SUB_BITS - 1;
+		long sub = i % SUB_BUCKETS;
+		return ((SUB_BUCKETS + sub + 1) << (exponent - SUB_BITS)) - 1;
+	}
+}
@@ -0,0 +1,242 @@
+import java.sql.SQLException;
+import java.sql.Time;
+import java.time.LocalDate;
+import java.time.LocalTime;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.function.Function;
+
+/**
+ * The listing menus (9 to 13) a page at a time.  Every listing is ordered
+ * by a unique key, and a page token is the key of the last row of the
+ * previous page: the next page seeks past it on the key's index instead
+ * of skipping rows with OFFSET, so a deep page costs the same as the
+ * first, and rows added or removed between pages do not shift the rest.
+ *
+ * Listings read from the database bind the token into the query and ask
+ * for one row more than the page size to know whether another page
+ * follows.  Listings served from CatalogCache and ShowtimeIndex seek in
+ * the in-memory result with a binary search.  Movie search results are
+ * keyed by their rank, score and then movie ID.  Tokens are opaque to
+ * callers; null or empty asks for the first page.
+ *
+ */
+
+public class Listings{
+	static final int PAGE_SIZE = Integer.getInteger("ticketmaster.list.pageSize", 50);
+
+	/**
+	 * A page of rows in key order.
+	 */
+	public static class Page{
+		public final String[] columns;
+		public final List<String[]> rows;
+		//the token of the next page, or null on the last page
+		public final String next;
+
+		Page(String[] columns, List<String[]> rows, String next){
+			this.columns = columns;
+			this.rows = rows;
+			this.next = next;
+		}
+
+		public boolean hasMore(){
+			return this.next != null;
+		}
+	}//end Page
+
+	/**
+	 * Reads the page after a token.
+	 */
+	public interface Pager{
+		Page page(String token) throws SQLException;
+	}//end Pager
+
+	/*
+	 * params: bid to start after, rows.  The status is a literal so that
+	 * the partial index bookings_pending_idx matches in a generic plan too.
+	 */
+	static final String PENDING_USERS_PAGE_SQL =
+		"SELECT B.bid, U.fname, U.lname, U.email FROM Bookings B, Users U "
+		+ "WHERE B.status = 'Pending' AND B.bid > ? AND U.email = B.email ORDER BY B.bid LIMIT ?";
+
+	static final String[] THEATER_COLUMNS = { "tid", "tname" };
+	static final String[] SHOWS_AT_COLUMNS = { "sid", "mvid", "sdate", "sttime", "edtime" };
+	static final String[] MOVIE_COLUMNS = { "mvid", "title", "rdate", "score" };
+	static final String[] PENDING_USER_COLUMNS = { "bid", "fname", "lname", "email" };
+	static final String[] SHOWS_AT_CINEMA_COLUMNS = { "sid", "title", "duration", "sdate", "sttime" };
+
+	private final Ticketmaster esql;
+
+	public Listings(Ticketmaster esql){
+		this.esql = esql;
+	}
+
+	/**
+	 * Method to list the theaters playing a show, by theater ID.
+	 */
+	public Page theatersPlayingShow(long sid, String token, int limit) throws SQLException {
+		return seek(THEATER_COLUMNS, this.esql.getCatalog().theatersPlayingShow(sid),
+			t -> new long[] { t.tid },
+			t -> new String[] { Long.toString(t.tid), t.tname },
+			token, limit);
+	}
+
+	/**
+	 * Method to list the shows starting at a date and time, by show ID.
+	 */
+	public Page showsStartingAt(LocalDate date, LocalTime time, String token, int limit) throws SQLException {
+		return seek(SHOWS_AT_COLUMNS, this.esql.getShowtimeIndex().showsStartingAt(date, time),
+			s -> new long[] { s.sid },
+			s -> new String[] { Long.toString(s.sid), Long.toString(s.mvid), s.sdate.toString(),
+				Time.valueOf(s.sttime).toString(), Time.valueOf(s.edtime).toString() },
+			token, limit);
+	}
+
+	/**
+	 * Method to list the movies matching a search released in a date range,
+	 * best match first.
+	 *
+	 * @param from the earliest release date, or null
+	 * @param to the latest release date, or null
+	 */
+	public Page searchMovies(String query, LocalDate from, LocalDate to, String token, int limit) throws SQLException {
+		checkLimit(limit);
+		List<MovieSearch.Hit> hits = this.esql.getMovieSearch().search(query, from, to, parse(token, 2), limit + 1);
+		List<String[]> rows = new ArrayList<String[]>(Math.min(hits.size(), limit));
+		for (int i = 0; i < hits.size() && i < limit; ++i){
+			MovieSearch.Hit h = hits.get(i);
+			rows.add(new String[] { Long.toString(h.mvid), h.title, h.rdate == null ? "" : h.rdate.toString(),
+				String.format("%.3f", h.score) });
+		}//end for
+		String next = hits.size() > limit ? format(hits.get(limit - 1).rank()) : null;
+		return new Page(MOVIE_COLUMNS, rows, next);
+	}
+
+	/**
+	 * Method to list the users of pending bookings, one row per booking, by
+	 * booking ID.
+	 */
+	public Page usersWithPendingBooking(String token, int limit) throws SQLException {
+		long[] after = parse(token, 1);
+		return query(PENDING_USER_COLUMNS, PENDING_USERS_PAGE_SQL, limit,
+			after == null ? Long.MIN_VALUE : after[0], limit + 1);
+	}
+
+	/**
+	 * Method to list the shows of a movie title at a cinema in a date range,
+	 * by date, start time and show ID.
+	 */
+	public Page showsAtCinema(String title, long cid, LocalDate from, LocalDate to, String token, int limit) throws SQLException {
+		return seek(SHOWS_AT_CINEMA_COLUMNS, this.esql.getShowtimeIndex().showsAtCinema(title, cid, from, to),
+			s -> new long[] { s.key(), s.sid },
+			s -> new String[] { Long.toString(s.sid), s.title, Integer.toString(s.duration), s.sdate.toString(),
+				Time.valueOf(s.sttime).toString() },
+			token, limit);
+	}
+
+	/*
+	 * reads up to limit rows of a query whose first column is the key and
+	 * whose last parameter asks for limit + 1 rows.
+	 */
+	private Page query(String[] columns, String sql, int limit, Object... params) throws SQLException {
+		checkLimit(limit);
+		final List<String[]> rows = new ArrayList<String[]>(Math.min(limit + 1, 1000));
+		this.esql.executeQueryStreaming(sql, 0, row -> {
+			String[] r = new String[columns.length];
+			for (int i = 0; i < r.length; ++i){
+				r[i] = row.getString(i + 1);
+			}//end for
+			rows.add(r);
+			return true;
+		}, params);
+		String next = null;
+		if (rows.size() > limit){
+			rows.remove(limit);
+			next = rows.get(limit - 1)[0];
+		}//end if
+		return new Page(columns, rows, next);
+	}
+
+	/*
+	 * pages through an in-memory result.  The items are sorted by key
+	 * first; the result lists are already in key order or close to it.
+	 */
+	private static <T> Page seek(String[] columns, List<T> items, Function<T, long[]> key, Function<T, String[]> row,
+			String token, int limit){
+		checkLimit(limit);
+		long[] after = parse(token, -1);
+		items.sort((a, b) -> compare(key.apply(a), key.apply(b)));
+		int lo = 0;
+		if (after != null){
+			//first item with a key above the token
+			int hi = items.size();
+			while (lo < hi){
+				int mid = (lo + hi) >>> 1;
+				if (compare(key.apply(items.get(mid)), after) <= 0){
+					lo = mid + 1;
+				}else{
+					hi = mid;
+				}//end if
+			}//end while
+		}//end if
+		int end = Math.min(items.size(), lo + limit);
+		List<String[]> rows = new ArrayList<String[]>(end - lo);
+		for (int i = lo; i < end; ++i){
+			rows.add(row.apply(items.get(i)));
+		}//end for
+		String next = end < items.size() ? format(key.apply(items.get(end - 1))) : null;
+		return new Page(columns, rows, next);
+	}
+
+	private static void checkLimit(int limit){
+		if (limit < 1){
+			throw new IllegalArgumentException("Invalid page size: " + limit);
+		}//end if
+	}
+
+	private static int compare(long[] a, long[] b){
+		for (int i = 0; i < Math.min(a.length, b.length); ++i){
+			int c = Long.compare(a[i], b[i]);
+			if (c != 0){
+				return c;
+			}//end if
+		}//end for
+		return Integer.compare(a.length, b.length);
+	}
+
+	//the key parts joined with '.'
+	private static String format(long[] key){
+		StringBuilder sb = new StringBuilder();
+		for (long k : key){
+			if (sb.length() > 0){
+				sb.append('.');
+			}//end if
+			sb.append(k);
+		}//end for
+		return sb.toString();
+	}
+
+	/*
+	 * the key of a token, or null for the first page.  parts is the number
+	 * of key parts expected, or -1 for any.
+	 */
+	private static long[] parse(String token, int parts){
+		if (token == null || token.isEmpty()){
+			return null;
+		}//end if
+		String[] f = token.split("\\.");
+		if (parts >= 0 && f.length != parts){
+			throw new IllegalArgumentException("Invalid page token: " + token);
+		}//end if
+		long[] key = new long[f.length];
+		try{
+			for (int i = 0; i < f.length; ++i){
+				key[i] = Long.parseLong(f[i]);
+			}//end for
+		}catch(NumberFormatException e){
+			throw new IllegalArgumentException("Invalid page token: " + token);
+		}//end try
+		return key;
+	}
+}
@@ -0,0 +1,138 @@
+import java.sql.SQLException;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * A size-bounded, read-through LRU cache with a time to live.  Entries are
+ * loaded on a miss by the caller's Loader outside the cache lock, so a slow
+ * query never blocks hits on other keys; two threads missing the same key
+ * at once may both load it.  A load that overlaps an invalidation is
+ * returned to its caller but not cached.  Hit, miss and eviction counts
+ * are kept for monitoring.
+ *
+ */
+
+public class LruCache<K, V>{
+	/**
+	 * Loads the value for a key that is not cached.
+	 */
+	public interface Loader<K, V>{
+		V load(K key) throws SQLException;
+	}
+
+	private static class Cached<V>{
+		final V value;
+		final long expires;
+
+		Cached(V value, long expires){
+			this.value = value;
+			this.expires = expires;
+		}
+	}//end Cached
+
+	private final String name;
+	private final long ttlMillis;
+	private final LinkedHashMap<K, Cached<V>> entries;
+	private final AtomicLong hits = new AtomicLong();
+	private final AtomicLong misses = new AtomicLong();
+	private final AtomicLong evictions = new AtomicLong();
+	//bumped by every invalidation, guarded by entries
+	private long generation = 0;
+
+	/**
+	 * @param name the name used when reporting statistics
+	 * @param maxSize the most entries kept; the least recently used is evicted first
+	 * @param ttlMillis how long an entry is served before it is reloaded
+	 */
+	public LruCache(String name, final int maxSize, long ttlMillis){
+		this.name = name;
+		this.ttlMillis = ttlMillis;
+		this.entries = new LinkedHashMap<K, Cached<V>>(16, 0.75f, true){
+			protected boolean removeEldestEntry(Map.Entry<K, Cached<V>> eldest){
+				if (size() > maxSize){
+					evictions.incrementAndGet();
+					return true;
+				}//end if
+				return false;
+			}
+		};
+	}
+
+	/**
+	 * Method to get the cached value of a key, loading it on a miss or after
+	 * its TTL has passed.
+	 *
+	 * @param key the key
+	 * @param loader loads the value when it is not cached
+	 * @return the value, which may be null if the loader returned null
+	 * @throws java.sql.SQLException when the loader fails
+	 */
+	public V get(K key, Loader<K, V> loader) throws SQLException {
+		long now = System.currentTimeMillis();
+		long loadedAt;
+		synchronized (this.entries){
+			Cached<V> e = this.entries.get(key);
+			if (e != null && e.expires > now){
+				this.hits.incrementAndGet();
+				return e.value;
+			}//end if
+			loadedAt = this.generation;
+		}//end synchronized
+		this.misses.incrementAndGet();
+		V value = loader.load(key);
+		synchronized (this.entries){
+			if (loadedAt == this.generation){
+				this.entries.put(key, new Cached<V>(value, now + this.ttlMillis));
+			}//end if
+		}//end synchronized
+		return value;
+	}
+
+	public void invalidate(K key){
+		synchronized (this.entries){
+			++this.generation;
+			this.entries.remove(key);
+		}//end synchronized
+	}
+
+	public void invalidateAll(){
+		synchronized (this.entries){
+			++this.generation;
+			this.entries.clear();
+		}//end synchronized
+	}
+
+	public String getName(){
+		return this.name;
+	}
+
+	public int size(){
+		synchronized (this.entries){
+			return this.entries.size();
+		}//end synchronized
+	}
+
+	public long getHits(){
+		return this.hits.get();
+	}
+
+	public long getMisses(){
+		return this.misses.get();
+	}
+
+	public long getEvictions(){
+		return this.evictions.get();
+	}
+
+	public double getHitRatio(){
+		long h = this.hits.get();
+		long total = h + this.misses.get();
+		return total == 0 ? 0.0 : (double) h / total;
+	}
+
+	public String toString(){
+		return String.format("%s: size=%d hits=%d misses=%d evictions=%d hitRatio=%.3f",
+			this.name, size(), getHits(), getMisses(), getEvictions(), getHitRatio());
+	}
+}
@@ -0,0 +1,522 @@
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpServer;
+import java.io.FileWriter;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.io.PrintWriter;
+import java.lang.management.ManagementFactory;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.nio.charset.StandardCharsets;
+import java.sql.SQLException;
+import java.time.Instant;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.regex.Pattern;
+import javax.management.JMException;
+import javax.management.MBeanServer;
+import javax.management.ObjectName;
+
+/**
+ * Latency, row and error statistics of the statements run through
+ * Ticketmaster's execute helpers and transactions, grouped by the named
+ * operation they ran for.  A thread names its operation with operation(),
+ * e.g. the menu option or service call it is serving; statements run
+ * without one are counted under "other".
+ *
+ * The statistics, with gauges of the connection pool, the caches, the
+ * write batcher and the service, are published as an MXBean and, when
+ * ticketmaster.metrics.port is set, as Prometheus text on
+ * http://127.0.0.1:port/metrics.  Statements slower than
+ * ticketmaster.metrics.slowQueryMs are appended with their bind values to
+ * ticketmaster.metrics.slowQueryLog; by default nothing is logged.  Text
+ * values, which may be emails, names or passwords, are logged as their
+ * length only, and for statements on Users no value is logged at all.
+ *
+ */
+
+public class Metrics implements MetricsMXBean{
+	static final int HTTP_PORT = Integer.getInteger("ticketmaster.metrics.port", 0);
+	static final long SLOW_QUERY_MS = Long.getLong("ticketmaster.metrics.slowQueryMs", -1L);
+	static final String SLOW_QUERY_LOG = System.getProperty("ticketmaster.metrics.slowQueryLog", "slow-queries.log");
+	//statements whose bind values are kept out of the slow query log entirely
+	private static final Pattern USERS_TABLE = Pattern.compile("\\busers\\b", Pattern.CASE_INSENSITIVE);
+	static final String OTHER = "other";
+	static final Object[] NO_PARAMS = new Object[0];
+
+	private static final ThreadLocal<String> OPERATION = new ThreadLocal<String>();
+	private static final AtomicInteger INSTANCES = new AtomicInteger();
+	private static final double[] QUANTILES = { 0.5, 0.9, 0.99, 0.999 };
+
+	/**
+	 * The operation a thread is running, ended by close().
+	 */
+	public class Scope implements AutoCloseable{
+		private final String name;
+		private final String outer;
+		private final long start = System.nanoTime();
+
+		Scope(String name, String outer){
+			this.name = name;
+			this.outer = outer;
+		}
+
+		public void close(){
+			stats(this.name).latency.record(System.nanoTime() - this.start);
+			if (this.outer == null){
+				OPERATION.remove();
+			}else{
+				OPERATION.set(this.outer);
+			}//end if
+		}
+	}//end Scope
+
+	private static class Stats{
+		final LatencyHistogram latency = new LatencyHistogram();
+		final LatencyHistogram statements = new LatencyHistogram();
+		final AtomicLong rows = new AtomicLong();
+		final AtomicLong retries = new AtomicLong();
+		final ConcurrentMap<String, AtomicLong> errors = new ConcurrentHashMap<String, AtomicLong>();
+	}//end Stats
+
+	private final Ticketmaster esql;
+	private final ConcurrentMap<String, Stats> operations = new ConcurrentHashMap<String, Stats>();
+	private final AtomicLong slowQueries = new AtomicLong();
+	private PrintWriter slowLog = null;
+	private ObjectName name = null;
+	private HttpServer http = null;
+
+	public Metrics(Ticketmaster esql){
+		this.esql = esql;
+	}
+
+	/**
+	 * Method to register the MXBean and start the HTTP endpoint if a port
+	 * is configured.  Failures are reported and leave the application
+	 * running without them.
+	 */
+	public void start(){
+		try{
+			MBeanServer server = ManagementFactory.getPlatformMBeanServer();
+			ObjectName n = new ObjectName("ticketmaster:type=Metrics,id=" + INSTANCES.incrementAndGet());
+			server.registerMBean(this, n);
+			this.name = n;
+		}catch(JMException e){
+			System.err.println("Metrics MXBean not registered: " + e.getMessage());
+		}//end try
+		if (HTTP_PORT > 0){
+			try{
+				HttpServer s = HttpServer.create(new InetSocketAddress(InetAddress.getLoopbackAddress(), HTTP_PORT), 0);
+				s.createContext("/metrics", this::serve);
+				s.start();
+				this.http = s;
+			}catch(IOException e){
+				System.err.println("Metrics endpoint not started on port " + HTTP_PORT + ": " + e.getMessage());
+			}//end try
+		}//end if
+	}
+
+	/**
+	 * Method to unregister the MXBean, stop the endpoint and close the slow
+	 * query log.
+	 */
+	public void stop(){
+		if (this.http != null){
+			this.http.stop(0);
+			this.http = null;
+		}//end if
+		if (this.name != null){
+			try{
+				ManagementFactory.getPlatformMBeanServer().unregisterMBean(this.name);
+			}catch(JMException e){
+				// ignored.
+			}//end try
+			this.name = null;
+		}//end if
+		synchronized (this){
+			if (this.slowLog != null){
+				this.slowLog.close();
+				this.slowLog = null;
+			}//end if
+		}//end synchronized
+	}
+
+	/**
+	 * Method to name the operation the current thread runs until the scope
+	 * is closed; its duration is recorded under that name.  Scopes nest, the
+	 * innermost naming the statements.
+	 *
+	 * @param name the operation name, e.g. "menu2" or "service.book"
+	 * @return the scope, to be closed in a finally block
+	 */
+	public Scope operation(String name){
+		String outer = OPERATION.get();
+		OPERATION.set(name);
+		return new Scope(name, outer);
+	}
+
+	/**
+	 * Method to record the time from now until a future completes as a run
+	 * of an operation, for operations finished on another thread.
+	 *
+	 * @return the future itself
+	 */
+	public <T> CompletableFuture<T> timed(String name, CompletableFuture<T> f){
+		final long start = System.nanoTime();
+		f.whenComplete((v, e) -> stats(name).latency.record(System.nanoTime() - start));
+		return f;
+	}
+
+	//the operation the current thread runs, or "other"
+	static String currentOperation(){
+		String op = OPERATION.get();
+		return op == null ? OTHER : op;
+	}
+
+	/**
+	 * Method to record a statement that completed.
+	 *
+	 * @param start System.nanoTime() when it was sent
+	 * @param rows rows returned or affected
+	 */
+	void statement(String sql, Object[] params, long start, long rows){
+		long nanos = System.nanoTime() - start;
+		Stats s = stats(currentOperation());
+		s.statements.record(nanos);
+		s.rows.addAndGet(rows);
+		slow(sql, params, nanos, null);
+	}
+
+	/**
+	 * Method to record a statement that raised an error.
+	 *
+	 * @param start System.nanoTime() when it was sent
+	 */
+	void failed(String sql, Object[] params, long start, SQLException e){
+		long nanos = System.nanoTime() - start;
+		Stats s = stats(currentOperation());
+		s.statements.record(nanos);
+		String state = e.getSQLState() == null ? "" : e.getSQLState();
+		AtomicLong n = s.errors.get(state);
+		if (n == null){
+			AtomicLong created = new AtomicLong();
+			n = s.errors.putIfAbsent(state, created);
+			if (n == null){
+				n = created;
+			}//end if
+		}//end if
+		n.incrementAndGet();
+		slow(sql, params, nanos, state);
+	}
+
+	//a transaction about to run again after a serialization failure or deadlock
+	void retried(){
+		stats(currentOperation()).retries.incrementAndGet();
+	}
+
+	private Stats stats(String op){
+		Stats s = this.operations.get(op);
+		if (s == null){
+			Stats created = new Stats();
+			s = this.operations.putIfAbsent(op, created);
+			if (s == null){
+				s = created;
+			}//end if
+		}//end if
+		return s;
+	}
+
+	private void slow(String sql, Object[] params, long nanos, String state){
+		if (SLOW_QUERY_MS < 0 || nanos < SLOW_QUERY_MS * 1000000L){
+			return;
+		}//end if
+		this.slowQueries.incrementAndGet();
+		StringBuilder sb = new StringBuilder();
+		sb.append(Instant.now()).append('\t').append(currentOperation())
+			.append('\t').append(String.format("%.3f", nanos / 1e6)).append("ms")
+			.append('\t').append(state == null ? "ok" : "ERROR " + state)
+			.append('\t').append(sql.replaceAll("\\s+", " ").trim())
+			.append("\t[");
+		boolean masked = USERS_TABLE.matcher(sql).find();
+		for (int i = 0; i < params.length; ++i){
+			if (i > 0){
+				sb.append(", ");
+			}//end if
+			sb.append(redact(params[i], masked));
+		}//end for
+		sb.append(']');
+		synchronized (this){
+			try{
+				if (this.slowLog == null){
+					this.slowLog = new PrintWriter(new FileWriter(SLOW_QUERY_LOG, true), true);
+				}//end if
+				this.slowLog.println(sb);
+			}catch(IOException e){
+				System.err.println("Slow query log: " + e.getMessage());
+			}//end try
+		}//end synchronized
+	}
+
+	//a bind value as the slow query log shows it
+	private static String redact(Object p, boolean masked){
+		if (p == null){
+			return "NULL";
+		}else if (masked){
+			return "?";
+		}else if (p instanceof String){
+			return "text(" + ((String) p).length() + ")";
+		}//end if
+		return p.toString();
+	}
+
+	private void serve(HttpExchange exchange) throws IOException {
+		byte[] body = scrape().getBytes(StandardCharsets.UTF_8);
+		exchange.getResponseHeaders().set("Content-Type", "text/plain; version=0.0.4; charset=utf-8");
+		exchange.sendResponseHeaders(200, body.length);
+		OutputStream out = exchange.getResponseBody();
+		try{
+			out.write(body);
+		}finally{
+			out.close();
+		}//end try
+	}
+
+	public Map<String, Long> getOperationCounts(){
+		Map<String, Long> m = new TreeMap<String, Long>();
+		for (Map.Entry<String, Stats> e : this.operations.entrySet()){
+			m.put(e.getKey(), e.getValue().latency.getCount());
+		}//end for
+		return m;
+	}
+
+	public Map<String, Double> getOperationP50Millis(){
+		return percentiles(true, 50);
+	}
+
+	public Map<String, Double> getOperationP99Millis(){
+		return percentiles(true, 99);
+	}
+
+	public Map<String, Long> getStatementCounts(){
+		Map<String, Long> m = new TreeMap<String, Long>();
+		for (Map.Entry<String, Stats> e : this.operations.entrySet()){
+			m.put(e.getKey(), e.getValue().statements.getCount());
+		}//end for
+		return m;
+	}
+
+	public Map<String, Double> getStatementP99Millis(){
+		return percentiles(false, 99);
+	}
+
+	public Map<String, Long> getStatementRows(){
+		Map<String, Long> m = new TreeMap<String, Long>();
+		for (Map.Entry<String, Stats> e : this.operations.entrySet()){
+			m.put(e.getKey(), e.getValue().rows.get());
+		}//end for
+		return m;
+	}
+
+	public Map<String, Long> getErrorsBySqlState(){
+		Map<String, Long> m = new TreeMap<String, Long>();
+		for (Stats s : this.operations.values()){
+			for (Map.Entry<String, AtomicLong> e : s.errors.entrySet()){
+				Long n = m.get(e.getKey());
+				m.put(e.getKey(), (n == null ? 0 : n) + e.getValue().get());
+			}//end for
+		}//end for
+		return m;
+	}
+
+	public Map<String, Long> getTransactionRetries(){
+		Map<String, Long> m = new TreeMap<String, Long>();
+		for (Map.Entry<String, Stats> e : this.operations.entrySet()){
+			m.put(e.getKey(), e.getValue().retries.get());
+		}//end for
+		return m;
+	}
+
+	public long getSlowQueries(){
+		return this.slowQueries.get();
+	}
+
+	public double getPoolWaitP50Millis(){
+		return this.esql.getPool().getAcquireWaits().percentile(50) / 1e6;
+	}
+
+	public double getPoolWaitP99Millis(){
+		return this.esql.getPool().getAcquireWaits().percentile(99) / 1e6;
+	}
+
+	public int getPoolOpen(){
+		return this.esql.getPool().getOpen();
+	}
+
+	public int getPoolInUse(){
+		return this.esql.getPool().getInUse();
+	}
+
+	public int getPoolWaiting(){
+		return this.esql.getPool().getWaiting();
+	}
+
+	public Map<String, Long> getReplicaLagMillis(){
+		return this.esql.getReplicas().getLagMillis();
+	}
+
+	public Map<String, Double> getCacheHitRatios(){
+		Map<String, Double> m = new TreeMap<String, Double>();
+		for (LruCache<?, ?> c : this.esql.getCatalog().caches()){
+			m.put(c.getName(), c.getHitRatio());
+		}//end for
+		return m;
+	}
+
+	public int getWriteQueue(){
+		return this.esql.getWriteBatcher().getQueued();
+	}
+
+	public int getFeedQueue(){
+		return this.esql.getChangeFeed().getQueued();
+	}
+
+	public int getServiceQueued(){
+		TicketmasterService service = this.esql.getService();
+		return service == null ? 0 : service.getQueued();
+	}
+
+	public int getServiceRunning(){
+		TicketmasterService service = this.esql.getService();
+		return service == null ? 0 : service.getRunning();
+	}
+
+	private Map<String, Double> percentiles(boolean operations, double p){
+		Map<String, Double> m = new TreeMap<String, Double>();
+		for (Map.Entry<String, Stats> e : this.operations.entrySet()){
+			LatencyHistogram h = operations ? e.getValue().latency : e.getValue().statements;
+			m.put(e.getKey(), h.percentile(p) / 1e6);
+		}//end for
+		return m;
+	}
+
+	public String scrape(){
+		StringBuilder sb = new StringBuilder();
+		Map<String, Stats> ops = new TreeMap<String, Stats>(this.operations);
+
+		header(sb, "ticketmaster_operation_seconds", "summary", "Duration of named operations.");
+		for (Map.Entry<String, Stats> e : ops.entrySet()){
+			summary(sb, "ticketmaster_operation_seconds", "operation=\"" + label(e.getKey()) + "\"", e.getValue().latency);
+		}//end for
+		header(sb, "ticketmaster_statement_seconds", "summary", "Duration of statements, by the operation that ran them.");
+		for (Map.Entry<String, Stats> e : ops.entrySet()){
+			summary(sb, "ticketmaster_statement_seconds", "operation=\"" + label(e.getKey()) + "\"", e.getValue().statements);
+		}//end for
+		header(sb, "ticketmaster_statement_rows_total", "counter", "Rows returned by queries or affected by updates.");
+		for (Map.Entry<String, Stats> e : ops.entrySet()){
+			sample(sb, "ticketmaster_statement_rows_total", "operation=\"" + label(e.getKey()) + "\"", e.getValue().rows.get());
+		}//end for
+		header(sb, "ticketmaster_statement_errors_total", "counter", "Statements that failed, by SQLState.");
+		for (Map.Entry<String, Stats> e : ops.entrySet()){
+			for (Map.Entry<String, AtomicLong> err : new TreeMap<String, AtomicLong>(e.getValue().errors).entrySet()){
+				sample(sb, "ticketmaster_statement_errors_total", "operation=\"" + label(e.getKey())
+					+ "\",sqlstate=\"" + label(err.getKey()) + "\"", err.getValue().get());
+			}//end for
+		}//end for
+		header(sb, "ticketmaster_transaction_retries_total", "counter", "Transactions retried after a serialization failure or deadlock.");
+		for (Map.Entry<String, Stats> e : ops.entrySet()){
+			sample(sb, "ticketmaster_transaction_retries_total", "operation=\"" + label(e.getKey()) + "\"", e.getValue().retries.get());
+		}//end for
+		header(sb, "ticketmaster_slow_queries_total", "counter", "Statements over the slow query threshold.");
+		sample(sb, "ticketmaster_slow_queries_total", null, this.slowQueries.get());
+
+		ConnectionPool pool = this.esql.getPool();
+		header(sb, "ticketmaster_pool_wait_seconds", "summary", "Time spent waiting for a pooled connection.");
+		summary(sb, "ticketmaster_pool_wait_seconds", null, pool.getAcquireWaits());
+		header(sb, "ticketmaster_pool_connections", "gauge", "Pooled connections by state.");
+		sample(sb, "ticketmaster_pool_connections", "state=\"open\"", pool.getOpen());
+		sample(sb, "ticketmaster_pool_connections", "state=\"idle\"", pool.getIdle());
+		sample(sb, "ticketmaster_pool_connections", "state=\"in_use\"", pool.getInUse());
+		sample(sb, "ticketmaster_pool_connections", "state=\"max\"", pool.getMaxSize());
+		header(sb, "ticketmaster_pool_waiting_threads", "gauge", "Threads blocked waiting for a pooled connection.");
+		sample(sb, "ticketmaster_pool_waiting_threads", null, pool.getWaiting());
+		header(sb, "ticketmaster_replica_lag_seconds", "gauge", "Replay lag per replica, -1 while out of use.");
+		for (Map.Entry<String, Long> e : getReplicaLagMillis().entrySet()){
+			sample(sb, "ticketmaster_replica_lag_seconds", "replica=\"" + label(e.getKey()) + "\"",
+				e.getValue() < 0 ? -1 : e.getValue() / 1e3);
+		}//end for
+
+		header(sb, "ticketmaster_cache_requests_total", "counter", "Catalog cache lookups by result.");
+		for (LruCache<?, ?> c : this.esql.getCatalog().caches()){
+			sample(sb, "ticketmaster_cache_requests_total", "cache=\"" + label(c.getName()) + "\",result=\"hit\"", c.getHits());
+			sample(sb, "ticketmaster_cache_requests_total", "cache=\"" + label(c.getName()) + "\",result=\"miss\"", c.getMisses());
+		}//end for
+		header(sb, "ticketmaster_cache_evictions_total", "counter", "Catalog cache entries evicted for size.");
+		for (LruCache<?, ?> c : this.esql.getCatalog().caches()){
+			sample(sb, "ticketmaster_cache_evictions_total", "cache=\"" + label(c.getName()) + "\"", c.getEvictions());
+		}//end for
+		header(sb, "ticketmaster_cache_entries", "gauge", "Entries held per cache.");
+		for (LruCache<?, ?> c : this.esql.getCatalog().caches()){
+			sample(sb, "ticketmaster_cache_entries", "cache=\"" + label(c.getName()) + "\"", c.size());
+		}//end for
+		sample(sb, "ticketmaster_cache_entries", "cache=\"showtimes\"", this.esql.getShowtimeIndex().size());
+
+		WriteBatcher writes = this.esql.getWriteBatcher();
+		header(sb, "ticketmaster_write_requests_total", "counter", "Requests written by the write-behind batcher.");
+		sample(sb, "ticketmaster_write_requests_total", null, writes.getRequests());
+		header(sb, "ticketmaster_write_flushes_total", "counter", "Group-commit transactions of the write-behind batcher.");
+		sample(sb, "ticketmaster_write_flushes_total", null, writes.getFlushes());
+		header(sb, "ticketmaster_write_queue", "gauge", "Requests waiting in the write-behind batcher.");
+		sample(sb, "ticketmaster_write_queue", null, writes.getQueued());
+
+		ChangeFeed feed = this.esql.getChangeFeed();
+		header(sb, "ticketmaster_feed_changes_total", "counter", "Change notifications received from the database.");
+		sample(sb, "ticketmaster_feed_changes_total", null, feed.getReceived());
+		header(sb, "ticketmaster_feed_dropped_total", "counter", "Change notifications dropped on a full queue.");
+		sample(sb, "ticketmaster_feed_dropped_total", null, feed.getDropped());
+		header(sb, "ticketmaster_feed_queue", "gauge", "Changes waiting for the change feed dispatcher.");
+		sample(sb, "ticketmaster_feed_queue", null, feed.getQueued());
+
+		header(sb, "ticketmaster_service_operations", "gauge", "Service operations by state.");
+		sample(sb, "ticketmaster_service_operations", "state=\"queued\"", getServiceQueued());
+		sample(sb, "ticketmaster_service_operations", "state=\"running\"", getServiceRunning());
+		return sb.toString();
+	}
+
+	private static void header(StringBuilder sb, String metric, String type, String help){
+		sb.append("# HELP ").append(metric).append(' ').append(help).append('\n');
+		sb.append("# TYPE ").append(metric).append(' ').append(type).append('\n');
+	}
+
+	private static void summary(StringBuilder sb, String metric, String labels, LatencyHistogram h){
+		String prefix = labels == null ? "" : labels + ",";
+		for (double q : QUANTILES){
+			sample(sb, metric, prefix + "quantile=\"" + q + "\"", h.percentile(q * 100) / 1e9);
+		}//end for
+		sample(sb, metric + "_sum", labels, h.getSum() / 1e9);
+		sample(sb, metric + "_count", labels, h.getCount());
+	}
+
+	private static void sample(StringBuilder sb, String metric, String labels, double value){
+		sb.append(metric);
+		if (labels != null){
+			sb.append('{').append(labels).append('}');
+		}//end if
+		sb.append(' ');
+		if (value == Math.rint(value) && Math.abs(value) < 1e15){
+			sb.append((long) value);
+		}else{
+			sb.append(value);
+		}//end if
+		sb.append('\n');
+	}
+
+	//label values escape backslash, quote and newline
+	private static String label(String v){
+		return v.replace("\\", "\\\\").replace("\"", "\\\"").replace("\n", "\\n");
+	}
+}
@@ -0,0 +1,60 @@
+import java.util.Map;
+
+/**
+ * The statistics of Metrics as seen through JMX, for jconsole or any
+ * other MBean client.  Maps are keyed by operation name unless noted;
+ * times are in milliseconds.
+ *
+ */
+
+public interface MetricsMXBean{
+	Map<String, Long> getOperationCounts();
+
+	Map<String, Double> getOperationP50Millis();
+
+	Map<String, Double> getOperationP99Millis();
+
+	Map<String, Long> getStatementCounts();
+
+	Map<String, Double> getStatementP99Millis();
+
+	//rows returned by queries plus rows affected by updates
+	Map<String, Long> getStatementRows();
+
+	//keyed by SQLState, over all operations
+	Map<String, Long> getErrorsBySqlState();
+
+	Map<String, Long> getTransactionRetries();
+
+	long getSlowQueries();
+
+	double getPoolWaitP50Millis();
+
+	double getPoolWaitP99Millis();
+
+	int getPoolOpen();
+
+	int getPoolInUse();
+
+	int getPoolWaiting();
+
+	//keyed by replica host:port; -1 while a replica is out of use
+	Map<String, Long> getReplicaLagMillis();
+
+	//keyed by cache name
+	Map<String, Double> getCacheHitRatios();
+
+	int getWriteQueue();
+
+	//changes from other processes not yet applied to the caches
+	int getFeedQueue();
+
+	int getServiceQueued();
+
+	int getServiceRunning();
+
+	/**
+	 * @return everything above in the Prometheus text format
+	 */
+	String scrape();
+}
@@ -0,0 +1,213 @@
+import java.io.File;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.sql.Connection;
+import java.sql.PreparedStatement;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.sql.Statement;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Properties;
+import java.util.Set;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+/**
+ * Applies the versioned schema changes in sql/migrations to a database
+ * created by sql/create.sql.  Files are named V<version>__<name>.sql and
+ * are applied in version order, each in its own transaction together with
+ * the schema_migrations row recording it, so a failed migration leaves no
+ * trace and is retried by the next run.  An advisory lock keeps two
+ * runners from applying the same version at once.
+ *
+ */
+
+public class Migrations{
+	private static final Pattern FILE_NAME = Pattern.compile("V(\\d+)__(\\w+)\\.sql");
+	//arbitrary key for pg_advisory_lock, shared by every runner
+	private static final long LOCK_KEY = 0x7469636b6d67L;
+
+	/**
+	 * A migration file and the version parsed from its name.
+	 */
+	static class Migration implements Comparable<Migration>{
+		final int version;
+		final String name;
+		final File file;
+
+		Migration(int version, String name, File file){
+			this.version = version;
+			this.name = name;
+			this.file = file;
+		}
+
+		public int compareTo(Migration other){
+			return Integer.compare(this.version, other.version);
+		}
+	}//end Migration
+
+	private final ConnectionPool pool;
+	private final File dir;
+
+	public Migrations(ConnectionPool pool, File dir){
+		this.pool = pool;
+		this.dir = dir;
+	}
+
+	/**
+	 * Method to list the migration files in version order.
+	 *
+	 * @throws java.io.IOException when the directory cannot be read or two
+	 *         files share a version
+	 */
+	public List<Migration> available() throws IOException {
+		File[] files = this.dir.listFiles();
+		if (files == null){
+			throw new IOException("Cannot read migrations directory " + this.dir);
+		}//end if
+		List<Migration> result = new ArrayList<Migration>();
+		Set<Integer> versions = new HashSet<Integer>();
+		for (File f : files){
+			Matcher m = FILE_NAME.matcher(f.getName());
+			if (!m.matches()){
+				continue;
+			}//end if
+			int version = Integer.parseInt(m.group(1));
+			if (!versions.add(version)){
+				throw new IOException("Duplicate migration version " + version + " in " + this.dir);
+			}//end if
+			result.add(new Migration(version, m.group(2), f));
+		}//end for
+		Collections.sort(result);
+		return result;
+	}
+
+	/**
+	 * Method to apply every migration not yet recorded in schema_migrations.
+	 *
+	 * @return the number of migrations applied
+	 * @throws java.sql.SQLException when a migration fails; the ones before
+	 *         it stay applied
+	 * @throws java.io.IOException when a migration file cannot be read
+	 */
+	public int migrate() throws SQLException, IOException {
+		List<Migration> migrations = available();
+		ConnectionPool.PooledConnection pc = this.pool.acquire();
+		Connection conn = pc.getConnection();
+		try{
+			Statement stmt = conn.createStatement();
+			try{
+				stmt.execute("CREATE TABLE IF NOT EXISTS schema_migrations("
+					+ "version INTEGER NOT NULL PRIMARY KEY, name TEXT NOT NULL, "
+					+ "applied_at TIMESTAMPTZ NOT NULL DEFAULT now())");
+				stmt.execute("SELECT pg_advisory_lock(" + LOCK_KEY + ")");
+			}finally{
+				stmt.close();
+			}//end try
+			try{
+				Set<Integer> applied = appliedVersions(conn);
+				int count = 0;
+				for (Migration m : migrations){
+					if (applied.contains(m.version)){
+						continue;
+					}//end if
+					apply(conn, m);
+					++count;
+				}//end for
+				return count;
+			}finally{
+				stmt = conn.createStatement();
+				try{
+					stmt.execute("SELECT pg_advisory_unlock(" + LOCK_KEY + ")");
+				}finally{
+					stmt.close();
+				}//end try
+			}//end try
+		}catch(SQLException e){
+			pc.failed(e);
+			throw e;
+		}finally{
+			this.pool.release(pc);
+		}//end try
+	}
+
+	private static Set<Integer> appliedVersions(Connection conn) throws SQLException {
+		Set<Integer> versions = new HashSet<Integer>();
+		Statement stmt = conn.createStatement();
+		try{
+			ResultSet rs = stmt.executeQuery("SELECT version FROM schema_migrations");
+			while (rs.next()){
+				versions.add(rs.getInt(1));
+			}//end while
+		}finally{
+			stmt.close();
+		}//end try
+		return versions;
+	}
+
+	private static void apply(Connection conn, Migration m) throws SQLException, IOException {
+		String sql = new String(Files.readAllBytes(m.file.toPath()), StandardCharsets.UTF_8);
+		long start = System.nanoTime();
+		conn.setAutoCommit(false);
+		try{
+			Statement stmt = conn.createStatement();
+			try{
+				stmt.execute(sql);
+			}finally{
+				stmt.close();
+			}//end try
+			PreparedStatement record = conn.prepareStatement("INSERT INTO schema_migrations(version, name) VALUES (?, ?)");
+			try{
+				record.setInt(1, m.version);
+				record.setString(2, m.name);
+				record.executeUpdate();
+			}finally{
+				record.close();
+			}//end try
+			conn.commit();
+		}catch(SQLException e){
+			conn.rollback();
+			throw new SQLException("Migration V" + m.version + "__" + m.name + " failed: " + e.getMessage(), e.getSQLState(), e);
+		}finally{
+			conn.setAutoCommit(true);
+		}//end try
+		System.out.println(String.format("Applied V%d__%s in %.1f ms", m.version, m.name, (System.nanoTime() - start) / 1e6));
+	}
+
+	/**
+	 * Applies pending migrations.
+	 *
+	 * @param args <dbname> <port> <user> <migrations dir>
+	 */
+	public static void main(String[] args){
+		if (args.length < 4) {
+			System.err.println (
+				"Usage: " + "java [-classpath <classpath>] " + Migrations.class.getName () +
+				" <dbname> <port> <user> <migrations dir>");
+			return;
+		}//end if
+
+		Properties props = new Properties();
+		props.setProperty("user", args[2]);
+		props.setProperty("password", "");
+		String url = "jdbc:postgresql://localhost:" + args[1] + "/" + args[0];
+
+		ConnectionPool pool = null;
+		try{
+			pool = new ConnectionPool(url, props, 0, 1, 60000L, 60000L);
+			int applied = new Migrations(pool, new File(args[3])).migrate();
+			System.out.println(applied == 0 ? "Schema is up to date" : applied + " migrations applied");
+		}catch(Exception e){
+			System.err.println(e.getMessage());
+			System.exit(1);
+		}finally{
+			if (pool != null){
+				pool.close();
+			}//end if
+		}//end try
+	}
+}
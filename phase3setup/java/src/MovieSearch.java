@@ -0,0 +1,484 @@
+import java.sql.Date;
+import java.sql.SQLException;
+import java.time.LocalDate;
+import java.util.AbstractMap;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.BitSet;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.PriorityQueue;
+import java.util.SortedMap;
+import java.util.TreeMap;
+import java.util.concurrent.locks.ReentrantReadWriteLock;
+
+/**
+ * In-memory inverted index for searching movies by the words of their
+ * title, description, genre and language, with an optional release date
+ * range.  The index is built once from Movies and then kept up to date
+ * movie by movie as movies are written, like ShowtimeIndex.
+ *
+ * Words are lower-cased runs of letters and digits.  Each word maps to a
+ * postings list of (movie, weight), where the weight adds up the word's
+ * occurrences with title words counting FIELD_WEIGHTS[0] times, and so
+ * on.  A query word matches the word itself, the words it is a prefix
+ * of, and, when the word itself is not in the index, words that look
+ * like it: words sharing enough trigrams with it, found through a
+ * trigram index over the vocabulary rather than over the movies.  Every
+ * query word has to match; movies are ranked by BM25 over the field
+ * weights, scaled down for prefix and misspelled matches.  The inverse
+ * document frequency is that of the query word over all its expansions,
+ * so a rare longer word does not outrank the word that was typed.
+ *
+ * Query words are intersected rarest first, so the cost of a search is
+ * set by its rarest word and not by the size of the catalog.  A changed
+ * movie is appended as a new document and the old one marked deleted;
+ * once a quarter of the documents are deleted the index is rebuilt.
+ *
+ */
+
+public class MovieSearch{
+	//title, genre, language, description
+	private static final float[] FIELD_WEIGHTS = { 3.0f, 2.0f, 2.0f, 1.0f };
+	//BM25 term-frequency saturation and length normalization
+	private static final float K1 = 1.2f;
+	private static final float B = 0.75f;
+	//score factors of the words a query word expands to
+	private static final float PREFIX_FACTOR = 0.8f;
+	private static final float FUZZY_FACTOR = 0.7f;
+	//the fewest characters before a word is expanded by prefix or by trigrams
+	private static final int MIN_PREFIX = 2;
+	private static final int MIN_FUZZY = 4;
+	static final int MAX_EXPANSIONS = Integer.getInteger("ticketmaster.search.maxExpansions", 32);
+	static final double SIMILARITY = Double.parseDouble(System.getProperty("ticketmaster.search.similarity", "0.4"));
+
+	static final String LOAD_SQL = "SELECT mvid, title, rdate, genre, lang, description FROM Movies";
+
+	/**
+	 * A matching movie and its score.
+	 */
+	public static class Hit{
+		public final long mvid;
+		public final String title;
+		//null when the movie has no release date
+		public final LocalDate rdate;
+		public final float score;
+
+		Hit(long mvid, String title, LocalDate rdate, float score){
+			this.mvid = mvid;
+			this.title = title;
+			this.rdate = rdate;
+			this.score = score;
+		}
+
+		/**
+		 * @return the hit's place in the ranking, to pass as after for the
+		 *         hits that follow it
+		 */
+		public long[] rank(){
+			return new long[] { -(long) Float.floatToIntBits(this.score), this.mvid };
+		}
+	}//end Hit
+
+	//documents containing a word, in ascending document order
+	private static class Postings{
+		int[] docs = new int[2];
+		float[] weights = new float[2];
+		int size = 0;
+
+		void add(int doc, float weight){
+			if (this.size > 0 && this.docs[this.size - 1] == doc){
+				this.weights[this.size - 1] += weight;
+				return;
+			}//end if
+			if (this.size == this.docs.length){
+				this.docs = Arrays.copyOf(this.docs, this.size * 2);
+				this.weights = Arrays.copyOf(this.weights, this.size * 2);
+			}//end if
+			this.docs[this.size] = doc;
+			this.weights[this.size] = weight;
+			++this.size;
+		}
+
+		//the weight of doc in this list, or 0
+		float weight(int doc){
+			int i = Arrays.binarySearch(this.docs, 0, this.size, doc);
+			return i < 0 ? 0.0f : this.weights[i];
+		}
+	}//end Postings
+
+	//a word a query word matched, with its score factor
+	private static class Expansion{
+		final Postings postings;
+		final float factor;
+		//of the query word, over all its expansions
+		float idf;
+
+		Expansion(Postings postings, float factor){
+			this.postings = postings;
+			this.factor = factor;
+		}
+	}//end Expansion
+
+	private final Ticketmaster esql;
+	private final ReentrantReadWriteLock lock = new ReentrantReadWriteLock();
+	private final TreeMap<String, Postings> words = new TreeMap<String, Postings>();
+	private final HashMap<String, List<String>> wordsByTrigram = new HashMap<String, List<String>>();
+	private final HashMap<Long, Integer> docByMvid = new HashMap<Long, Integer>();
+	private final BitSet deleted = new BitSet();
+	//per document
+	private long[] mvids = new long[16];
+	private String[] titles = new String[16];
+	private int[] rdays = new int[16];
+	private float[] lengths = new float[16];
+	private int docs = 0;
+	private double totalLength = 0;
+	private volatile boolean built = false;
+
+	public MovieSearch(Ticketmaster esql){
+		this.esql = esql;
+	}
+
+	/**
+	 * Method to find the best matching movies, best first.
+	 *
+	 * @param query words to search for; all must match
+	 * @param from the earliest release date, inclusive, or null
+	 * @param to the latest release date, inclusive, or null
+	 * @param after Hit.rank() of the last hit already returned, or null
+	 * @param limit the most hits returned
+	 * @return the hits ranked below after, by score and then movie ID
+	 * @throws java.sql.SQLException when the index has to be built and that fails
+	 */
+	public List<Hit> search(String query, LocalDate from, LocalDate to, long[] after, int limit) throws SQLException {
+		ensureBuilt();
+		List<String> terms = tokenize(query);
+		if (terms.isEmpty() || limit < 1){
+			return new ArrayList<Hit>();
+		}//end if
+		int lo = from == null ? Integer.MIN_VALUE : (int) from.toEpochDay();
+		int hi = to == null ? Integer.MAX_VALUE : (int) to.toEpochDay();
+		boolean dated = from != null || to != null;
+		this.lock.readLock().lock();
+		try{
+			List<List<Expansion>> expanded = new ArrayList<List<Expansion>>(terms.size());
+			for (String t : terms){
+				List<Expansion> e = expand(t);
+				if (e.isEmpty()){
+					return new ArrayList<Hit>();
+				}//end if
+				expanded.add(e);
+			}//end for
+			//rarest first: its documents are the candidates the others are checked against
+			Collections.sort(expanded, (a, b) -> Long.compare(postingsSize(a), postingsSize(b)));
+			HashMap<Integer, float[]> scores = new HashMap<Integer, float[]>();
+			for (Expansion e : expanded.get(0)){
+				for (int i = 0; i < e.postings.size; ++i){
+					int doc = e.postings.docs[i];
+					if (this.deleted.get(doc) || (dated && (this.rdays[doc] < lo || this.rdays[doc] > hi))){
+						continue;
+					}//end if
+					float s = score(e, e.postings.weights[i], doc);
+					float[] best = scores.get(doc);
+					if (best == null){
+						scores.put(doc, new float[] { s });
+					}else if (s > best[0]){
+						best[0] = s;
+					}//end if
+				}//end for
+			}//end for
+			for (int q = 1; q < expanded.size() && !scores.isEmpty(); ++q){
+				List<Expansion> es = expanded.get(q);
+				scores.entrySet().removeIf(entry -> {
+					int doc = entry.getKey();
+					float best = 0.0f;
+					for (Expansion e : es){
+						float w = e.postings.weight(doc);
+						if (w > 0){
+							best = Math.max(best, score(e, w, doc));
+						}//end if
+					}//end for
+					entry.getValue()[0] += best;
+					return best == 0.0f;
+				});
+			}//end for
+			return top(scores, after, limit);
+		}finally{
+			this.lock.readLock().unlock();
+		}//end try
+	}
+
+	/**
+	 * Method to (re)index a movie after it was written.
+	 *
+	 * @throws java.sql.SQLException when the movie cannot be read
+	 */
+	public void movieChanged(long mvid) throws SQLException {
+		if (!this.built){
+			return;
+		}//end if
+		final List<Object[]> rows = new ArrayList<Object[]>(1);
+		this.esql.executeQueryOnPrimary(LOAD_SQL + " WHERE mvid = ?", 0, row -> {
+			rows.add(new Object[] { row.getLong(1), row.getString(2), row.getDate(3), row.getString(4),
+				row.getString(5), row.getString(6) });
+			return true;
+		}, mvid);
+		this.lock.writeLock().lock();
+		try{
+			if (!this.built){
+				return;
+			}//end if
+			remove(mvid);
+			for (Object[] r : rows){
+				add((Long) r[0], (String) r[1], (Date) r[2], (String) r[3], (String) r[4], (String) r[5]);
+			}//end for
+			//too many deleted documents slow down every search; start over
+			if (this.deleted.cardinality() * 4 > this.docs){
+				this.built = false;
+				clear();
+			}//end if
+		}finally{
+			this.lock.writeLock().unlock();
+		}//end try
+	}
+
+	/**
+	 * Method to throw the index away; it is rebuilt on next use.
+	 */
+	public void invalidate(){
+		this.lock.writeLock().lock();
+		try{
+			this.built = false;
+			clear();
+		}finally{
+			this.lock.writeLock().unlock();
+		}//end try
+	}
+
+	//the number of movies indexed
+	public int size(){
+		this.lock.readLock().lock();
+		try{
+			return this.docByMvid.size();
+		}finally{
+			this.lock.readLock().unlock();
+		}//end try
+	}
+
+	//lower-cased runs of letters and digits
+	static List<String> tokenize(String text){
+		List<String> terms = new ArrayList<String>();
+		if (text == null){
+			return terms;
+		}//end if
+		int start = -1;
+		for (int i = 0; i <= text.length(); ++i){
+			boolean word = i < text.length() && Character.isLetterOrDigit(text.charAt(i));
+			if (word && start < 0){
+				start = i;
+			}else if (!word && start >= 0){
+				terms.add(text.substring(start, i).toLowerCase());
+				start = -1;
+			}//end if
+		}//end for
+		return terms;
+	}
+
+	//trigrams of a word padded like pg_trgm, two spaces before and one after
+	private static List<String> trigrams(String word){
+		String padded = "  " + word + " ";
+		List<String> grams = new ArrayList<String>(padded.length() - 2);
+		for (int i = 0; i + 3 <= padded.length(); ++i){
+			String g = padded.substring(i, i + 3);
+			if (!grams.contains(g)){
+				grams.add(g);
+			}//end if
+		}//end for
+		return grams;
+	}
+
+	/*
+	 * the words a query word matches: itself, the words it is a prefix of,
+	 * and similar words when it is not indexed itself.  Callers hold the
+	 * read lock.
+	 */
+	private List<Expansion> expand(String term){
+		List<Expansion> result = new ArrayList<Expansion>();
+		Postings exact = this.words.get(term);
+		if (exact != null){
+			result.add(new Expansion(exact, 1.0f));
+		}//end if
+		if (term.length() >= MIN_PREFIX){
+			SortedMap<String, Postings> longer = this.words.subMap(term + '\0', term + Character.MAX_VALUE);
+			for (Postings p : longer.values()){
+				if (result.size() >= MAX_EXPANSIONS){
+					break;
+				}//end if
+				result.add(new Expansion(p, PREFIX_FACTOR));
+			}//end for
+		}//end if
+		if (exact == null && term.length() >= MIN_FUZZY){
+			List<String> grams = trigrams(term);
+			HashMap<String, Integer> shared = new HashMap<String, Integer>();
+			for (String g : grams){
+				List<String> ws = this.wordsByTrigram.get(g);
+				if (ws != null){
+					for (String w : ws){
+						shared.merge(w, 1, Integer::sum);
+					}//end for
+				}//end if
+			}//end for
+			List<Map.Entry<String, Double>> similar = new ArrayList<Map.Entry<String, Double>>();
+			for (Map.Entry<String, Integer> e : shared.entrySet()){
+				int n = e.getValue();
+				double similarity = (double) n / (grams.size() + e.getKey().length() + 1 - n);
+				if (similarity >= SIMILARITY && !e.getKey().startsWith(term)){
+					similar.add(new AbstractMap.SimpleEntry<String, Double>(e.getKey(), similarity));
+				}//end if
+			}//end for
+			Collections.sort(similar, (a, b) -> Double.compare(b.getValue(), a.getValue()));
+			for (int i = 0; i < similar.size() && i < MAX_EXPANSIONS; ++i){
+				Map.Entry<String, Double> e = similar.get(i);
+				result.add(new Expansion(this.words.get(e.getKey()), (float) (FUZZY_FACTOR * e.getValue())));
+			}//end for
+		}//end if
+		int live = this.docByMvid.size();
+		long n = Math.min(postingsSize(result), live);
+		float idf = Math.max((float) Math.log(1.0 + (live - n + 0.5) / (n + 0.5)), 0.01f);
+		for (Expansion e : result){
+			e.idf = idf;
+		}//end for
+		return result;
+	}
+
+	private static long postingsSize(List<Expansion> es){
+		long n = 0;
+		for (Expansion e : es){
+			n += e.postings.size;
+		}//end for
+		return n;
+	}
+
+	//BM25 of one word in one document
+	private float score(Expansion e, float weight, int doc){
+		float avg = this.docs == 0 ? 1.0f : (float) (this.totalLength / this.docs);
+		float norm = K1 * (1 - B + B * this.lengths[doc] / avg);
+		return e.factor * e.idf * weight * (K1 + 1) / (weight + norm);
+	}
+
+	//the best limit documents ranked below after
+	private List<Hit> top(HashMap<Integer, float[]> scores, long[] after, int limit){
+		//worst on top, so it is the one dropped
+		PriorityQueue<Hit> best = new PriorityQueue<Hit>(limit + 1, (a, b) -> compare(b.rank(), a.rank()));
+		for (Map.Entry<Integer, float[]> e : scores.entrySet()){
+			int doc = e.getKey();
+			Hit h = new Hit(this.mvids[doc], this.titles[doc],
+				this.rdays[doc] == Integer.MIN_VALUE ? null : LocalDate.ofEpochDay(this.rdays[doc]), e.getValue()[0]);
+			if (after != null && compare(h.rank(), after) <= 0){
+				continue;
+			}//end if
+			best.add(h);
+			if (best.size() > limit){
+				best.poll();
+			}//end if
+		}//end for
+		List<Hit> hits = new ArrayList<Hit>(best);
+		Collections.sort(hits, (a, b) -> compare(a.rank(), b.rank()));
+		return hits;
+	}
+
+	private static int compare(long[] a, long[] b){
+		int c = Long.compare(a[0], b[0]);
+		return c != 0 ? c : Long.compare(a[1], b[1]);
+	}
+
+	private void ensureBuilt() throws SQLException {
+		if (this.built){
+			return;
+		}//end if
+		this.lock.writeLock().lock();
+		try{
+			if (this.built){
+				return;
+			}//end if
+			clear();
+			this.esql.executeQueryOnPrimary(LOAD_SQL, Ticketmaster.DEFAULT_FETCH_SIZE, row -> {
+				add(row.getLong(1), row.getString(2), row.getDate(3), row.getString(4), row.getString(5), row.getString(6));
+				return true;
+			});
+			this.built = true;
+		}finally{
+			this.lock.writeLock().unlock();
+		}//end try
+	}
+
+	//callers hold the write lock
+	private void add(long mvid, String title, Date rdate, String genre, String lang, String description){
+		if (this.docs == this.mvids.length){
+			int n = this.docs * 2;
+			this.mvids = Arrays.copyOf(this.mvids, n);
+			this.titles = Arrays.copyOf(this.titles, n);
+			this.rdays = Arrays.copyOf(this.rdays, n);
+			this.lengths = Arrays.copyOf(this.lengths, n);
+		}//end if
+		int doc = this.docs++;
+		this.mvids[doc] = mvid;
+		this.titles[doc] = title;
+		this.rdays[doc] = rdate == null ? Integer.MIN_VALUE : (int) rdate.toLocalDate().toEpochDay();
+		String[] fields = { title, genre, lang, description };
+		float length = 0;
+		for (int f = 0; f < fields.length; ++f){
+			for (String t : tokenize(fields[f])){
+				Postings p = this.words.get(t);
+				if (p == null){
+					p = new Postings();
+					this.words.put(t, p);
+					for (String g : trigrams(t)){
+						List<String> ws = this.wordsByTrigram.get(g);
+						if (ws == null){
+							ws = new ArrayList<String>(2);
+							this.wordsByTrigram.put(g, ws);
+						}//end if
+						ws.add(t);
+					}//end for
+				}//end if
+				p.add(doc, FIELD_WEIGHTS[f]);
+				length += FIELD_WEIGHTS[f];
+			}//end for
+		}//end for
+		this.lengths[doc] = length;
+		this.totalLength += length;
+		Integer old = this.docByMvid.put(mvid, doc);
+		if (old != null){
+			delete(old);
+		}//end if
+	}
+
+	//callers hold the write lock
+	private void remove(long mvid){
+		Integer doc = this.docByMvid.remove(mvid);
+		if (doc != null){
+			delete(doc);
+		}//end if
+	}
+
+	private void delete(int doc){
+		this.deleted.set(doc);
+		this.titles[doc] = null;
+	}
+
+	private void clear(){
+		this.words.clear();
+		this.wordsByTrigram.clear();
+		this.docByMvid.clear();
+		this.deleted.clear();
+		this.mvids = new long[16];
+		this.titles = new String[16];
+		this.rdays = new int[16];
+		this.lengths = new float[16];
+		this.docs = 0;
+		this.totalLength = 0;
+	}
+}
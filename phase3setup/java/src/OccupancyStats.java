@@ -0,0 +1,312 @@
+import java.sql.Connection;
+import java.sql.SQLException;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Seats sold and revenue per show, theater and cinema, read from the
+ * show_stats and theater_stats rollups (migrations V003 and V007) in one
+ * indexed lookup instead of aggregating ShowSeats and Bookings.
+ *
+ * Transactions that change bookings do not update the rollups: every
+ * buyer of a show would wait on the same rows until commit.  Instead,
+ * before a booking changes its contribution is appended to
+ * occupancy_deltas negated with subtract(), and after, the new one with
+ * add(), as one row per show and theater.  The deltas commit or roll back
+ * with the booking; a background job folds committed deltas into the
+ * rollups in short transactions of its own (fold()), and reads add the
+ * deltas not folded yet.  A booking contributes its seats as sold when
+ * paid or held when pending, and their prices as revenue when paid; a
+ * cancelled booking contributes nothing, so deleting cancelled bookings
+ * needs no delta.  Seats are counted as ShowSeats rows at every level, so
+ * a theater's seats are those of all its shows; scheduling and purging
+ * shows append their seats as deltas too.  rebuild() recomputes
+ * everything, for backfill or after writes made outside this application.
+ *
+ */
+
+public class OccupancyStats{
+	//milliseconds between folds of the deltas into the rollups
+	static final long FOLD_MS = Long.getLong("ticketmaster.occupancy.foldMs", 1000L);
+	//deltas folded per transaction
+	static final int FOLD_BATCH = Integer.getInteger("ticketmaster.occupancy.foldBatch", 5000);
+
+	/**
+	 * Occupancy and revenue of a show, theater or cinema.
+	 */
+	public static class Stats{
+		public final long seatsTotal;
+		public final long seatsSold;
+		public final long seatsHeld;
+		public final long bookings;
+		public final double revenue;
+
+		Stats(long seatsTotal, long seatsSold, long seatsHeld, long bookings, double revenue){
+			this.seatsTotal = seatsTotal;
+			this.seatsSold = seatsSold;
+			this.seatsHeld = seatsHeld;
+			this.bookings = bookings;
+			this.revenue = revenue;
+		}
+
+		//sold and held seats as a share of all seats
+		public double getOccupancy(){
+			return this.seatsTotal == 0 ? 0.0 : (double) (this.seatsSold + this.seatsHeld) / this.seatsTotal;
+		}
+
+		public String toString(){
+			return String.format("seats %d sold, %d held of %d (%.1f%%), %d bookings, revenue %.2f",
+				this.seatsSold, this.seatsHeld, this.seatsTotal, getOccupancy() * 100, this.bookings, this.revenue);
+		}
+	}//end Stats
+
+	/*
+	 * the seats of the bookings matching the filter, with the theater of
+	 * each booking's first seat, the one the booking is counted in
+	 */
+	private static String seatRows(String join, String filter){
+		return "SELECT SS.sid, CS.tid, SS.price, B.bid, B.status, MIN(CS.tid) OVER (PARTITION BY SS.bid) AS first_tid "
+			+ "FROM ShowSeats SS JOIN CinemaSeats CS ON CS.csid = SS.csid " + join + " Bookings B ON B.bid = SS.bid "
+			+ "WHERE " + filter;
+	}
+
+	//contribution of the seat rows R
+	private static final String TOTALS = "COUNT(*) FILTER (WHERE R.status = 'Paid') AS sold, "
+		+ "COUNT(*) FILTER (WHERE R.status = 'Pending') AS held, "
+		+ "COUNT(DISTINCT R.bid) FILTER (WHERE R.status IN ('Paid', 'Pending') AND R.tid = R.first_tid) AS bookings, "
+		+ "COALESCE(SUM(CAST(R.price AS NUMERIC(14, 2))) FILTER (WHERE R.status = 'Paid'), 0) AS revenue";
+
+	//params: sign, bigint[] literal of booking IDs
+	static final String APPLY_BOOKINGS_SQL =
+		"INSERT INTO occupancy_deltas(sid, tid, cid, seats_total, seats_sold, seats_held, bookings, revenue) "
+		+ "SELECT D.sid, D.tid, T.cid, 0, arg.sign * D.sold, arg.sign * D.held, arg.sign * D.bookings, arg.sign * D.revenue "
+		+ "FROM (SELECT CAST(? AS integer) AS sign) arg, "
+		+ "(SELECT R.sid, R.tid, " + TOTALS + " FROM ("
+		+ seatRows("JOIN", "B.bid = ANY(CAST(? AS bigint[]))") + ") R GROUP BY R.sid, R.tid) D, Theaters T "
+		+ "WHERE T.tid = D.tid AND D.sold + D.held > 0";
+
+	private static final String SUMS = "SUM(seats_total), SUM(seats_sold), SUM(seats_held), SUM(bookings), SUM(revenue)";
+
+	/*
+	 * moves up to FOLD_BATCH deltas into the rollups.  SKIP LOCKED leaves
+	 * deltas being folded by another process to it; deltas of shows purged
+	 * meanwhile are dropped, and the shows still there are locked against
+	 * deletion until commit.
+	 */
+	//params: limit
+	static final String FOLD_SQL =
+		"WITH d AS (DELETE FROM occupancy_deltas WHERE id IN "
+		+ "(SELECT id FROM occupancy_deltas ORDER BY id LIMIT ? FOR UPDATE SKIP LOCKED) "
+		+ "RETURNING sid, tid, cid, seats_total, seats_sold, seats_held, bookings, revenue), "
+		+ "shows AS (INSERT INTO show_stats(sid, seats_total, seats_sold, seats_held, bookings, revenue) "
+		+ "SELECT sid, " + SUMS + " FROM d "
+		+ "WHERE sid IN (SELECT S.sid FROM Shows S WHERE S.sid IN (SELECT sid FROM d) FOR KEY SHARE) GROUP BY sid "
+		+ "ON CONFLICT (sid) DO UPDATE SET seats_total = show_stats.seats_total + EXCLUDED.seats_total, "
+		+ "seats_sold = show_stats.seats_sold + EXCLUDED.seats_sold, "
+		+ "seats_held = show_stats.seats_held + EXCLUDED.seats_held, "
+		+ "bookings = show_stats.bookings + EXCLUDED.bookings, "
+		+ "revenue = show_stats.revenue + EXCLUDED.revenue), "
+		+ "theaters AS (INSERT INTO theater_stats(tid, cid, seats_total, seats_sold, seats_held, bookings, revenue) "
+		+ "SELECT tid, cid, " + SUMS + " FROM d GROUP BY tid, cid "
+		+ "ON CONFLICT (tid) DO UPDATE SET seats_total = theater_stats.seats_total + EXCLUDED.seats_total, "
+		+ "seats_sold = theater_stats.seats_sold + EXCLUDED.seats_sold, "
+		+ "seats_held = theater_stats.seats_held + EXCLUDED.seats_held, "
+		+ "bookings = theater_stats.bookings + EXCLUDED.bookings, "
+		+ "revenue = theater_stats.revenue + EXCLUDED.revenue) "
+		+ "SELECT COUNT(*) FROM d";
+
+	/*
+	 * the rollup row plus the deltas not folded yet, or no row when
+	 * neither has one
+	 */
+	private static String read(String rollup, String key, String having){
+		return "SELECT COALESCE(SUM(seats_total), 0), COALESCE(SUM(seats_sold), 0), COALESCE(SUM(seats_held), 0), "
+			+ "COALESCE(SUM(bookings), 0), COALESCE(SUM(revenue), 0) FROM ("
+			+ "SELECT seats_total, seats_sold, seats_held, bookings, revenue FROM " + rollup + " WHERE " + key + " = ? UNION ALL "
+			+ "SELECT seats_total, seats_sold, seats_held, bookings, revenue FROM occupancy_deltas WHERE " + key + " = ?) X "
+			+ "HAVING " + having;
+	}
+
+	//params: sid, sid, sid
+	static final String SHOW_SQL = read("show_stats", "sid", "EXISTS (SELECT 1 FROM Shows WHERE sid = ?)");
+	//params: tid, tid
+	static final String THEATER_SQL = read("theater_stats", "tid", "COUNT(*) > 0");
+	//params: cid, cid
+	static final String CINEMA_SQL = read("theater_stats", "cid", "COUNT(*) > 0");
+
+	private final Ticketmaster esql;
+	private ScheduledExecutorService folder;
+
+	public OccupancyStats(Ticketmaster esql){
+		this.esql = esql;
+	}
+
+	/**
+	 * Method to add the current contribution of bookings to the rollups,
+	 * after they were inserted or changed in the transaction.
+	 */
+	public void add(Transaction tx, long... bids) throws SQLException {
+		tx.update(APPLY_BOOKINGS_SQL, 1, Ticketmaster.toArrayLiteral(bids));
+	}
+
+	/**
+	 * Method to take the current contribution of bookings out of the
+	 * rollups, before they are changed or deleted in the transaction.
+	 */
+	public void subtract(Transaction tx, long... bids) throws SQLException {
+		subtract(tx, Ticketmaster.toArrayLiteral(bids));
+	}
+
+	/**
+	 * @param bids bigint[] literal of the booking IDs
+	 */
+	public void subtract(Transaction tx, String bids) throws SQLException {
+		tx.update(APPLY_BOOKINGS_SQL, -1, bids);
+	}
+
+	/**
+	 * Method to drop the rows of shows from show_stats in the transaction
+	 * that deletes them, after their bookings and seats were deleted and
+	 * subtracted.
+	 *
+	 * @param sids bigint[] literal of the show IDs
+	 */
+	public void removeShows(Transaction tx, String sids) throws SQLException {
+		tx.update("DELETE FROM show_stats WHERE sid = ANY(CAST(? AS bigint[]))", sids);
+	}
+
+	/**
+	 * @return the show's occupancy and revenue, or null for an unknown show
+	 */
+	public Stats show(long sid) throws SQLException {
+		return read(SHOW_SQL, sid, sid, sid);
+	}
+
+	/**
+	 * @return the theater's occupancy and revenue over all its shows, or
+	 *         null for an unknown theater
+	 */
+	public Stats theater(long tid) throws SQLException {
+		return read(THEATER_SQL, tid, tid);
+	}
+
+	/**
+	 * @return the cinema's occupancy and revenue over all its theaters, or
+	 *         null for an unknown cinema
+	 */
+	public Stats cinema(long cid) throws SQLException {
+		return read(CINEMA_SQL, cid, cid);
+	}
+
+	private Stats read(String sql, Object... params) throws SQLException {
+		final Stats[] stats = { null };
+		this.esql.executeQueryStreaming(sql, 0, row -> {
+			stats[0] = new Stats(row.getLong(1), row.getLong(2), row.getLong(3), row.getLong(4), row.getDouble(5));
+			return false;
+		}, params);
+		return stats[0];
+	}
+
+	/**
+	 * Method to fold committed deltas into the rollups, a batch per
+	 * transaction, until none are left.
+	 *
+	 * @return the number of deltas folded
+	 */
+	public long fold() throws SQLException {
+		long total = 0;
+		long folded;
+		do{
+			folded = this.esql.executeTransaction(Connection.TRANSACTION_READ_COMMITTED,
+				tx -> tx.queryLong(FOLD_SQL, FOLD_BATCH));
+			total += folded;
+		}while(folded == FOLD_BATCH);
+		return total;
+	}
+
+	/**
+	 * Method to start folding the deltas every FOLD_MS in the background.
+	 */
+	public void start(){
+		this.folder = Executors.newSingleThreadScheduledExecutor(new ThreadFactory(){
+			public Thread newThread(Runnable r){
+				Thread t = new Thread(r, "occupancy-folder");
+				t.setDaemon(true);
+				return t;
+			}
+		});
+		this.folder.scheduleWithFixedDelay(new Runnable(){
+			public void run(){
+				try{
+					fold();
+				}catch(SQLException | RuntimeException e){
+					//the deltas stay in place and are folded on the next run
+					System.err.println("Folding occupancy deltas failed: " + e.getMessage());
+				}//end try
+			}
+		}, FOLD_MS, FOLD_MS, TimeUnit.MILLISECONDS);
+	}
+
+	public void close(){
+		if (this.folder != null){
+			this.folder.shutdownNow();
+		}//end if
+	}
+
+	/**
+	 * Method to recompute both rollups from the base tables and drop the
+	 * deltas.  The rollups and deltas are locked against concurrent
+	 * changes for the duration; booking transactions that started before
+	 * wait for it and then append their change on top of the rebuilt rows.
+	 *
+	 * @return the number of show rows written
+	 */
+	public int rebuild() throws SQLException {
+		return this.esql.executeTransaction(Connection.TRANSACTION_READ_COMMITTED, tx -> {
+			tx.update("LOCK TABLE show_stats, theater_stats, occupancy_deltas IN EXCLUSIVE MODE");
+			tx.update("DELETE FROM occupancy_deltas");
+			tx.update("DELETE FROM show_stats");
+			tx.update("DELETE FROM theater_stats");
+			int shows = tx.update("INSERT INTO show_stats(sid, seats_total, seats_sold, seats_held, bookings, revenue) "
+				+ "SELECT S.sid, COALESCE(D.total, 0), COALESCE(D.sold, 0), COALESCE(D.held, 0), "
+				+ "COALESCE(D.bookings, 0), COALESCE(D.revenue, 0) FROM Shows S "
+				+ "LEFT JOIN (SELECT R.sid, COUNT(*) AS total, " + TOTALS + " FROM ("
+				+ seatRows("LEFT JOIN", "TRUE") + ") R GROUP BY R.sid) D ON D.sid = S.sid");
+			tx.update("INSERT INTO theater_stats(tid, cid, seats_total, seats_sold, seats_held, bookings, revenue) "
+				+ "SELECT T.tid, T.cid, COALESCE(D.total, 0), COALESCE(D.sold, 0), COALESCE(D.held, 0), "
+				+ "COALESCE(D.bookings, 0), COALESCE(D.revenue, 0) FROM Theaters T "
+				+ "LEFT JOIN (SELECT R.tid, COUNT(*) AS total, " + TOTALS + " FROM ("
+				+ seatRows("LEFT JOIN", "TRUE") + ") R GROUP BY R.tid) D ON D.tid = T.tid");
+			return shows;
+		});
+	}
+
+	/**
+	 * Rebuilds the rollups, e.g. after a bulk load.
+	 *
+	 * @param args <dbname> <port> <user>
+	 */
+	public static void main(String[] args) throws Exception {
+		if (args.length != 3) {
+			System.err.println (
+				"Usage: " + "java [-classpath <classpath>] " + OccupancyStats.class.getName () +
+				" <dbname> <port> <user>");
+			return;
+		}//end if
+
+		Class.forName("org.postgresql.Driver");
+		Ticketmaster esql = new Ticketmaster(args[0], args[1], args[2], "");
+		try{
+			long start = System.currentTimeMillis();
+			int shows = esql.getOccupancy().rebuild();
+			System.out.println("Rebuilt occupancy of " + shows + " shows in " + (System.currentTimeMillis() - start) + "ms");
+		}catch(SQLException e){
+			System.err.println(e.getMessage());
+			System.exit(1);
+		}finally{
+			esql.cleanup();
+		}//end try
+	}
+}
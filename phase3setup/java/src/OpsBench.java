@@ -0,0 +1,577 @@
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.OutputStream;
+import java.io.OutputStreamWriter;
+import java.io.PrintStream;
+import java.io.Writer;
+import java.nio.charset.StandardCharsets;
+import java.sql.Connection;
+import java.sql.Date;
+import java.sql.SQLException;
+import java.time.Instant;
+import java.time.LocalDate;
+import java.time.LocalTime;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Benchmarks the data-access work behind each menu operation and the raw
+ * execute* helpers against a loaded database.  Every operation is run for
+ * a warmup period and then a measured period at each configured thread
+ * count; throughput and latency percentiles are printed and written as
+ * JSON so runs can be compared between commits.
+ *
+ * Operations take their keys from a sample of existing shows and users.
+ * Rows an operation writes (users, bookings, shows) are removed when the
+ * run ends; operations that would change rows the run did not create are
+ * marked destructive and only run when named explicitly.  Work an
+ * operation needs before it can run, such as making the booking that
+ * menu 6 removes a payment from, is not timed.
+ *
+ * Settings: ticketmaster.bench.threads (comma separated, default 1,4,16),
+ * ticketmaster.bench.warmupSeconds (3) and ticketmaster.bench.seconds (10).
+ * The browse operations (menus 9 to 14 and 17) read from the replicas in
+ * ticketmaster.replicas when it is set.
+ *
+ */
+
+public class OpsBench{
+	static final String THREADS = System.getProperty("ticketmaster.bench.threads", "1,4,16");
+	static final int WARMUP_SECONDS = Integer.getInteger("ticketmaster.bench.warmupSeconds", 3);
+	static final int MEASURE_SECONDS = Integer.getInteger("ticketmaster.bench.seconds", 10);
+	private static final int SAMPLE_SIZE = 1000;
+
+	/**
+	 * Untimed preparation for one execution of an operation.
+	 */
+	interface Setup{
+		Object prepare(Worker w) throws SQLException;
+	}
+
+	/**
+	 * The timed part of an operation.
+	 */
+	interface Body{
+		void run(Worker w, Object arg) throws SQLException;
+	}
+
+	static class Op{
+		final String name;
+		final boolean destructive;
+		final Setup setup;
+		final Body body;
+
+		Op(String name, boolean destructive, Setup setup, Body body){
+			this.name = name;
+			this.destructive = destructive;
+			this.setup = setup;
+			this.body = body;
+		}
+	}//end Op
+
+	/**
+	 * A show with the keys its browse queries are run with.
+	 */
+	static class ShowSample{
+		long sid;
+		LocalDate sdate;
+		LocalTime sttime;
+		String title;
+		long cid;
+	}//end ShowSample
+
+	/**
+	 * Per-thread state handed to operations.
+	 */
+	class Worker{
+		final Random random;
+		final Ticketmaster esql = OpsBench.this.esql;
+
+		Worker(long seed){
+			this.random = new Random(seed);
+		}
+
+		ShowSample show(){
+			return OpsBench.this.shows.get(this.random.nextInt(OpsBench.this.shows.size()));
+		}
+
+		String email(){
+			return OpsBench.this.emails.get(this.random.nextInt(OpsBench.this.emails.size()));
+		}
+
+		//a one-seat booking the run cleans up afterwards, or -1 when the show is sold out
+		long book(boolean hold) throws SQLException {
+			ShowSample s = show();
+			BookingManager.Booking b = hold
+				? this.esql.getBookingManager().hold(s.sid, email(), 1, null)
+				: this.esql.getBookingManager().book(s.sid, email(), 1, null, "Credit Card");
+			if (b == null){
+				return -1;
+			}//end if
+			OpsBench.this.bookings.add(b.bid);
+			return b.bid;
+		}
+	}//end Worker
+
+	/**
+	 * The measurements of one operation at one thread count.
+	 */
+	static class Result{
+		String op;
+		int threads;
+		long ops;
+		long errors;
+		double seconds;
+		long[] sortedNanos;
+
+		double throughput(){
+			return this.seconds > 0 ? this.ops / this.seconds : 0.0;
+		}
+	}//end Result
+
+	private final Ticketmaster esql;
+	private final List<ShowSample> shows = new ArrayList<ShowSample>();
+	private final List<String> emails = new ArrayList<String>();
+	private final ConcurrentLinkedQueue<Long> bookings = new ConcurrentLinkedQueue<Long>();
+	private final AtomicLong nextUser = new AtomicLong(System.currentTimeMillis());
+	private final AtomicLong nextMovie = new AtomicLong();
+	private final AtomicLong nextShow = new AtomicLong();
+	private final AtomicLong nextDay = new AtomicLong();
+	private long firstMovie;
+	private long firstShow;
+	private long firstTheater;
+	private final PrintStream discard = new PrintStream(new OutputStream(){
+		public void write(int b){
+		}
+
+		public void write(byte[] b, int off, int len){
+		}
+	});
+
+	public OpsBench(Ticketmaster esql){
+		this.esql = esql;
+	}
+
+	/**
+	 * Method to read the shows and users the operations pick keys from and
+	 * the first free movie and show ids for menu 3.
+	 *
+	 * @throws java.sql.SQLException when there are no shows or users
+	 */
+	void sample() throws SQLException {
+		this.esql.executeQueryStreaming(
+			"SELECT S.sid, S.sdate, S.sttime, M.title, MIN(T.cid) FROM Shows S JOIN Movies M ON M.mvid = S.mvid "
+			+ "JOIN Plays P ON P.sid = S.sid JOIN Theaters T ON T.tid = P.tid "
+			+ "GROUP BY S.sid, S.sdate, S.sttime, M.title ORDER BY S.sid LIMIT ?",
+			0, row -> {
+				ShowSample s = new ShowSample();
+				s.sid = row.getLong(1);
+				s.sdate = row.getDate(2).toLocalDate();
+				s.sttime = row.getTime(3).toLocalTime();
+				s.title = row.getString(4);
+				s.cid = row.getLong(5);
+				this.shows.add(s);
+				return true;
+			}, SAMPLE_SIZE);
+		this.esql.executeQueryStreaming("SELECT email FROM Users ORDER BY email LIMIT ?",
+			0, row -> this.emails.add(row.getString(1)), SAMPLE_SIZE);
+		if (this.shows.isEmpty() || this.emails.isEmpty()){
+			throw new SQLException("The benchmark needs shows playing in a theater and users; load data first");
+		}//end if
+		this.esql.executeQueryStreaming("SELECT COALESCE(MAX(mvid), 0) + 1, (SELECT COALESCE(MAX(sid), 0) + 1 FROM Shows), "
+			+ "(SELECT MIN(tid) FROM Theaters) FROM Movies",
+			0, row -> {
+				this.firstMovie = row.getLong(1);
+				this.firstShow = row.getLong(2);
+				this.firstTheater = row.getLong(3);
+				return false;
+			});
+		this.nextMovie.set(this.firstMovie);
+		this.nextShow.set(this.firstShow);
+	}
+
+	List<Op> ops(){
+		List<Op> ops = new ArrayList<Op>();
+
+		//raw helpers
+		ops.add(new Op("raw.executeQuery", false, null, (w, arg) ->
+			w.esql.executeQuery("SELECT * FROM Shows WHERE sid = " + w.show().sid)));
+		ops.add(new Op("raw.executeQueryAndPrintResult", false, null, (w, arg) ->
+			w.esql.executeQueryAndPrintResult("SELECT * FROM Shows WHERE sid = " + w.show().sid)));
+		ops.add(new Op("raw.executeQueryAndReturnResult", false, null, (w, arg) ->
+			w.esql.executeQueryAndReturnResult("SELECT * FROM Shows WHERE sid = " + w.show().sid)));
+		ops.add(new Op("raw.executeUpdate", false, null, (w, arg) ->
+			w.esql.executeUpdate("UPDATE Users SET phone = phone WHERE email = '" + w.email().replace("'", "''") + "'")));
+		ops.add(new Op("raw.executeQuery.params", false, null, (w, arg) ->
+			w.esql.executeQuery("SELECT * FROM Shows WHERE sid = ?", w.show().sid)));
+		ops.add(new Op("raw.executeQueryAndReturnResult.params", false, null, (w, arg) ->
+			w.esql.executeQueryAndReturnResult("SELECT * FROM Shows WHERE sid = ?", w.show().sid)));
+		ops.add(new Op("raw.executeUpdate.params", false, null, (w, arg) ->
+			w.esql.executeUpdate("UPDATE Users SET phone = phone WHERE email = ?", w.email())));
+		ops.add(new Op("raw.executeQueryStreaming", false, null, (w, arg) ->
+			w.esql.executeQueryStreaming("SELECT ssid, bid, price FROM ShowSeats WHERE sid = ?",
+				Ticketmaster.DEFAULT_FETCH_SIZE, row -> true, w.show().sid)));
+
+		//menu operations
+		ops.add(new Op("menu1.addUser", false, null, (w, arg) ->
+			w.esql.addUser("bench-" + this.nextUser.incrementAndGet() + "@example.com", "Bench", "User", 5550000000L,
+				"0000000000000000000000000000000000000000000000000000000000000000")));
+		ops.add(new Op("menu2.book", false, null, (w, arg) -> w.book(false)));
+		ops.add(new Op("menu2.hold", false, null, (w, arg) -> w.book(true)));
+		ops.add(new Op("menu3.addMovieShowing", false, null, (w, arg) -> {
+			CatalogCache.Movie m = new CatalogCache.Movie();
+			m.mvid = this.nextMovie.getAndIncrement();
+			m.title = "Bench Movie " + m.mvid;
+			m.rdate = Date.valueOf("2020-01-01");
+			m.country = "United States";
+			m.description = "Benchmark";
+			m.duration = 5400;
+			m.lang = "en";
+			m.genre = "Drama";
+			//a date of its own per show, so that shows never overlap
+			String date = LocalDate.of(3000, 1, 1).plusDays(this.nextDay.getAndIncrement()).toString();
+			w.esql.addMovieShowing(m, this.nextShow.getAndIncrement(), date, "20:00", "21:30", 10.0, this.firstTheater);
+		}));
+		ops.add(new Op("menu4.pendingBookings", false, null, (w, arg) ->
+			w.esql.executeQueryStreaming("SELECT bid, sid, bdatetime FROM Bookings WHERE status = ?",
+				Ticketmaster.DEFAULT_FETCH_SIZE, row -> true, "Pending")));
+		//moves a fresh one-seat booking to a free seat of the same theater
+		ops.add(new Op("menu5.changeSeats", false, w -> {
+			long bid = w.book(false);
+			final long[] move = { bid, -1 };
+			w.esql.executeQueryStreaming("SELECT MIN(CS.sno) FROM ShowSeats B, CinemaSeats BC, ShowSeats SS, CinemaSeats CS "
+				+ "WHERE B.bid = ? AND BC.csid = B.csid AND SS.sid = B.sid AND SS.bid IS NULL AND CS.csid = SS.csid "
+				+ "AND CS.tid = BC.tid", 0, row -> {
+					move[1] = row.getLong(1);
+					return false;
+				}, bid);
+			return move;
+		}, (w, arg) -> {
+			long[] move = (long[]) arg;
+			w.esql.getBookingManager().changeSeats(move[0], new int[] { (int) move[1] });
+		}));
+		ops.add(new Op("menu6.removePayment", false, w -> w.book(false), (w, arg) ->
+			w.esql.removePayment((Long) arg)));
+		//deletes every cancelled booking, not only the ones it creates
+		ops.add(new Op("menu7.clearCancelledBookings", true, w -> {
+			long bid = w.book(false);
+			w.esql.removePayment(bid);
+			return bid;
+		}, (w, arg) -> new PurgeJob(w.esql, PurgeJob.CHUNK_SIZE, 0, this.discard).clearCancelledBookings()));
+		//each execution removes a show of its own on a date no real show uses
+		ops.add(new Op("menu8.removeShowsOnDate", false, w -> {
+			long sid = this.nextShow.getAndIncrement();
+			String date = LocalDate.of(2900, 1, 1).plusDays(this.nextDay.getAndIncrement()).toString();
+			w.esql.executeUpdate("INSERT INTO Shows(sid, mvid, sdate, sttime, edtime) "
+				+ "VALUES (?, (SELECT MIN(mvid) FROM Movies), CAST(? AS date), CAST(? AS time), CAST(? AS time))",
+				sid, date, "20:00", "21:30");
+			w.esql.executeUpdate("INSERT INTO Plays(sid, tid) VALUES (?, ?)", sid, this.firstTheater);
+			return date;
+		}, (w, arg) -> new PurgeJob(w.esql, PurgeJob.CHUNK_SIZE, 0, this.discard).removeShowsOnDate((String) arg)));
+		ops.add(new Op("menu9.theatersPlayingShow", false, null, browse((w, arg) ->
+			w.esql.getListings().theatersPlayingShow(w.show().sid, null, Listings.PAGE_SIZE))));
+		ops.add(new Op("menu10.showsStartingAt", false, null, browse((w, arg) -> {
+			ShowSample s = w.show();
+			w.esql.getListings().showsStartingAt(s.sdate, s.sttime, null, Listings.PAGE_SIZE);
+		})));
+		ops.add(new Op("menu11.search", false, null, browse((w, arg) ->
+			w.esql.getListings().searchMovies("love", LocalDate.of(2011, 1, 1), null, null, Listings.PAGE_SIZE))));
+		//a word of a sampled title with its last letter cut off, and with a letter dropped
+		ops.add(new Op("menu11.searchPrefix", false, null, browse((w, arg) ->
+			w.esql.getListings().searchMovies(titleWord(w, 0), null, null, null, Listings.PAGE_SIZE))));
+		ops.add(new Op("menu11.searchTypo", false, null, browse((w, arg) ->
+			w.esql.getListings().searchMovies(titleWord(w, 1), null, null, null, Listings.PAGE_SIZE))));
+		ops.add(new Op("menu12.pendingUsers", false, null, browse((w, arg) ->
+			w.esql.getListings().usersWithPendingBooking(null, Listings.PAGE_SIZE))));
+		ops.add(new Op("menu13.showsAtCinema", false, null, browse((w, arg) -> {
+			ShowSample s = w.show();
+			w.esql.getListings().showsAtCinema(s.title, s.cid, s.sdate.minusDays(7), s.sdate.plusDays(7), null,
+				Listings.PAGE_SIZE);
+		})));
+		ops.add(new Op("menu14.userBookings", false, null, browse((w, arg) ->
+			w.esql.getBookingHistory().page(w.email(), 0, BookingHistory.PAGE_SIZE))));
+		//the same write through the write-behind batcher; each caller still waits for its commit
+		ops.add(new Op("batched.menu1.addUser", false, null, (w, arg) ->
+			await(w.esql.getService().addUser("bench-" + this.nextUser.incrementAndGet() + "@example.com", "Bench", "User",
+				5550000000L, "0000000000000000000000000000000000000000000000000000000000000000"))));
+		ops.add(new Op("menu16.payPendingBooking", false, w -> w.book(true), (w, arg) ->
+			w.esql.getBookingManager().confirm((Long) arg, "Credit Card")));
+		ops.add(new Op("menu17.showOccupancy", false, null, browse((w, arg) ->
+			w.esql.getOccupancy().show(w.show().sid))));
+		ops.add(new Op("menu17.cinemaOccupancy", false, null, browse((w, arg) ->
+			w.esql.getOccupancy().cinema(w.show().cid))));
+		return ops;
+	}
+
+	/*
+	 * the longest word of a sampled show's title, cut short for a prefix
+	 * search (typo 0) or with its second letter dropped (typo 1)
+	 */
+	static String titleWord(Worker w, int typo){
+		String word = "";
+		for (String t : MovieSearch.tokenize(w.show().title)){
+			if (t.length() > word.length()){
+				word = t;
+			}//end if
+		}//end for
+		if (word.length() < 4){
+			return word;
+		}//end if
+		return typo == 0 ? word.substring(0, word.length() - 1) : word.charAt(0) + word.substring(2);
+	}
+
+	//runs the body in a browse scope, so it reads from a replica when ticketmaster.replicas lists one
+	static Body browse(Body body){
+		return (w, arg) -> {
+			ReplicaRouter.Scope route = w.esql.getReplicas().browse(null);
+			try{
+				body.run(w, arg);
+			}finally{
+				route.close();
+			}//end try
+		};
+	}
+
+	//waits for a service call, rethrowing its SQLException
+	static <T> T await(CompletableFuture<T> f) throws SQLException {
+		try{
+			return f.get();
+		}catch(ExecutionException e){
+			if (e.getCause() instanceof SQLException){
+				throw (SQLException) e.getCause();
+			}//end if
+			throw new SQLException(e.getCause());
+		}catch(InterruptedException e){
+			Thread.currentThread().interrupt();
+			throw new SQLException(e);
+		}//end try
+	}
+
+	/**
+	 * Method to run an operation for a warmup period and then a measured
+	 * period with a number of threads.
+	 */
+	Result measure(final Op op, int threads) throws InterruptedException {
+		runFor(op, threads, WARMUP_SECONDS);
+		return runFor(op, threads, MEASURE_SECONDS);
+	}
+
+	private Result runFor(final Op op, int threads, int seconds) throws InterruptedException {
+		final long deadline = System.nanoTime() + seconds * 1000000000L;
+		final long[][] latencies = new long[threads][];
+		final AtomicLong errors = new AtomicLong();
+		final CountDownLatch start = new CountDownLatch(1);
+		Thread[] workers = new Thread[threads];
+		for (int t = 0; t < threads; ++t){
+			final int id = t;
+			workers[t] = new Thread(() -> {
+				Worker w = new Worker(op.name.hashCode() * 31L + id);
+				long[] samples = new long[1024];
+				int n = 0;
+				try{
+					start.await();
+				}catch(InterruptedException e){
+					return;
+				}//end try
+				while (System.nanoTime() < deadline){
+					try{
+						Object arg = op.setup == null ? null : op.setup.prepare(w);
+						long t0 = System.nanoTime();
+						op.body.run(w, arg);
+						if (n == samples.length){
+							samples = Arrays.copyOf(samples, n * 2);
+						}//end if
+						samples[n++] = System.nanoTime() - t0;
+					}catch(SQLException e){
+						errors.incrementAndGet();
+					}//end try
+				}//end while
+				latencies[id] = Arrays.copyOf(samples, n);
+			}, "bench-" + op.name + "-" + t);
+			workers[t].start();
+		}//end for
+
+		long t0 = System.nanoTime();
+		start.countDown();
+		for (Thread t : workers){
+			t.join();
+		}//end for
+		Result r = new Result();
+		r.op = op.name;
+		r.threads = threads;
+		r.seconds = (System.nanoTime() - t0) / 1e9;
+		r.errors = errors.get();
+		long[] all = new long[0];
+		for (long[] l : latencies){
+			int from = all.length;
+			all = Arrays.copyOf(all, from + l.length);
+			System.arraycopy(l, 0, all, from, l.length);
+		}//end for
+		Arrays.sort(all);
+		r.ops = all.length;
+		r.sortedNanos = all;
+		return r;
+	}
+
+	/**
+	 * Method to remove the rows written by the run: its bookings with their
+	 * payments and seats, its users, and the movies and shows menu 3 and 8
+	 * created.
+	 */
+	void cleanup() throws SQLException {
+		List<Long> bids = new ArrayList<Long>(this.bookings);
+		this.bookings.clear();
+		final int chunk = 1000;
+		for (int from = 0; from < bids.size(); from += chunk){
+			final String array = Ticketmaster.toArrayLiteral(bids.subList(from, Math.min(bids.size(), from + chunk)));
+			this.esql.executeTransaction(Connection.TRANSACTION_READ_COMMITTED, tx -> {
+				tx.query("SELECT bid FROM Bookings WHERE bid = ANY(CAST(? AS bigint[])) ORDER BY bid FOR UPDATE",
+					row -> true, array);
+				this.esql.getOccupancy().subtract(tx, array);
+				tx.update("DELETE FROM Payments WHERE bid = ANY(CAST(? AS bigint[]))", array);
+				tx.update("UPDATE ShowSeats SET bid = NULL WHERE bid = ANY(CAST(? AS bigint[]))", array);
+				tx.update("DELETE FROM Bookings WHERE bid = ANY(CAST(? AS bigint[]))", array);
+				this.esql.getBookingHistory().refresh(tx, array);
+				return null;
+			});
+		}//end for
+		this.esql.executeTransaction(Connection.TRANSACTION_READ_COMMITTED, tx -> {
+			tx.update("DELETE FROM show_stats WHERE sid >= ?", this.firstShow);
+			//the seats of the shows leave the theater rollups
+			tx.update("INSERT INTO occupancy_deltas(sid, tid, cid, seats_total, seats_sold, seats_held, bookings, revenue) "
+				+ "SELECT SS.sid, T.tid, T.cid, -COUNT(*), 0, 0, 0, 0 FROM ShowSeats SS, CinemaSeats CS, Theaters T "
+				+ "WHERE SS.sid >= ? AND CS.csid = SS.csid AND T.tid = CS.tid GROUP BY SS.sid, T.tid, T.cid", this.firstShow);
+			tx.update("DELETE FROM ShowSeats WHERE sid >= ?", this.firstShow);
+			tx.update("DELETE FROM Plays WHERE sid >= ?", this.firstShow);
+			tx.update("DELETE FROM Shows WHERE sid >= ?", this.firstShow);
+			tx.update("DELETE FROM Movies WHERE mvid >= ?", this.firstMovie);
+			tx.update("DELETE FROM Users WHERE email LIKE ?", "bench-%@example.com");
+			return null;
+		});
+		this.esql.getSeatAvailability().invalidateAll();
+		this.esql.getCatalog().invalidateAll();
+		this.esql.getShowtimeIndex().invalidate();
+		this.esql.getMovieSearch().invalidate();
+	}
+
+	static String toJson(List<Result> results){
+		StringBuilder sb = new StringBuilder();
+		sb.append("{\n  \"timestamp\": \"").append(Instant.now()).append("\",\n");
+		sb.append("  \"warmupSeconds\": ").append(WARMUP_SECONDS).append(",\n");
+		sb.append("  \"measureSeconds\": ").append(MEASURE_SECONDS).append(",\n");
+		sb.append("  \"results\": [");
+		for (int i = 0; i < results.size(); ++i){
+			Result r = results.get(i);
+			Map<String, Object> fields = new LinkedHashMap<String, Object>();
+			fields.put("threads", r.threads);
+			fields.put("ops", r.ops);
+			fields.put("errors", r.errors);
+			fields.put("seconds", round(r.seconds));
+			fields.put("throughput", round(r.throughput()));
+			fields.put("meanMs", round(mean(r.sortedNanos) / 1e6));
+			fields.put("p50Ms", round(BookingBench.percentile(r.sortedNanos, 0.50)));
+			fields.put("p90Ms", round(BookingBench.percentile(r.sortedNanos, 0.90)));
+			fields.put("p99Ms", round(BookingBench.percentile(r.sortedNanos, 0.99)));
+			fields.put("p999Ms", round(BookingBench.percentile(r.sortedNanos, 0.999)));
+			fields.put("maxMs", round(BookingBench.percentile(r.sortedNanos, 1.0)));
+			sb.append(i == 0 ? "\n" : ",\n").append("    {\"op\": \"").append(r.op).append('"');
+			for (Map.Entry<String, Object> f : fields.entrySet()){
+				sb.append(", \"").append(f.getKey()).append("\": ").append(f.getValue());
+			}//end for
+			sb.append('}');
+		}//end for
+		sb.append("\n  ]\n}\n");
+		return sb.toString();
+	}
+
+	private static double mean(long[] values){
+		if (values.length == 0){
+			return 0;
+		}//end if
+		double sum = 0;
+		for (long v : values){
+			sum += v;
+		}//end for
+		return sum / values.length;
+	}
+
+	private static double round(double v){
+		return Math.round(v * 1000) / 1000.0;
+	}
+
+	/**
+	 * Runs the named operations, or every operation that is not destructive,
+	 * and writes the results to a JSON file.
+	 *
+	 * @param args <dbname> <port> <user> [op,op,...|all] [json file]
+	 */
+	public static void main(String[] args) throws Exception {
+		if (args.length < 3) {
+			System.err.println (
+				"Usage: " + "java [-classpath <classpath>] " + OpsBench.class.getName () +
+				" <dbname> <port> <user> [op,op,...|all] [json file]");
+			return;
+		}//end if
+		String selected = args.length > 3 ? args[3] : "all";
+		File out = new File(args.length > 4 ? args[4] : "ops-bench.json");
+		int[] threadCounts = Arrays.stream(THREADS.split(",")).mapToInt(s -> Integer.parseInt(s.trim())).toArray();
+		int maxThreads = Arrays.stream(threadCounts).max().orElse(1);
+		if (System.getProperty("ticketmaster.pool.max") == null){
+			System.setProperty("ticketmaster.pool.max", Integer.toString(maxThreads));
+		}//end if
+
+		Class.forName("org.postgresql.Driver");
+		final Ticketmaster esql = new Ticketmaster(args[0], args[1], args[2], "");
+		PrintStream console = System.out;
+		OpsBench bench = new OpsBench(esql);
+		List<Result> results = new ArrayList<Result>();
+		try{
+			bench.sample();
+			List<Op> ops = new ArrayList<Op>();
+			List<String> names = Arrays.asList(selected.split(","));
+			for (Op op : bench.ops()){
+				if (selected.equals("all") ? !op.destructive : names.contains(op.name)){
+					ops.add(op);
+				}//end if
+			}//end for
+			console.println(String.format("%-40s %7s %9s %7s %11s %9s %9s %9s", "op", "threads", "ops", "errors",
+				"ops/sec", "p50 ms", "p99 ms", "max ms"));
+			//printing operations write their rows to nowhere while measured
+			System.setOut(bench.discard);
+			for (Op op : ops){
+				for (int threads : threadCounts){
+					Result r = bench.measure(op, threads);
+					results.add(r);
+					console.println(String.format("%-40s %7d %9d %7d %11.1f %9.3f %9.3f %9.3f", r.op, r.threads, r.ops,
+						r.errors, r.throughput(), BookingBench.percentile(r.sortedNanos, 0.50),
+						BookingBench.percentile(r.sortedNanos, 0.99), BookingBench.percentile(r.sortedNanos, 1.0)));
+				}//end for
+			}//end for
+			console.println(esql.getWriteBatcher());
+		}finally{
+			System.setOut(console);
+			try{
+				bench.cleanup();
+			}finally{
+				esql.cleanup();
+			}//end try
+		}//end try
+
+		Writer w = new OutputStreamWriter(new FileOutputStream(out), StandardCharsets.UTF_8);
+		try{
+			w.write(toJson(results));
+		}finally{
+			w.close();
+		}//end try
+		console.println("Results written to " + out);
+	}
+}
@@ -0,0 +1,328 @@
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.sql.Connection;
+import java.sql.SQLException;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Properties;
+import java.util.TreeMap;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+/**
+ * Query-plan regression check for the statements the application issues.
+ * Each statement is explained with sample parameters taken from the
+ * database; SELECTs are run with EXPLAIN (ANALYZE, BUFFERS), statements
+ * that write or lock rows are only planned.  Everything runs in a
+ * transaction that is rolled back.
+ *
+ * A check fails when its plan sequentially scans a table holding more than
+ * ticketmaster.plancheck.minRows rows (small tables are cheaper to scan
+ * than to index, so the planner is right to), or when its estimated cost
+ * exceeds the baseline file by more than ticketmaster.plancheck.tolerance.
+ * Run it against a scaled-up dataset after schema or query changes; each
+ * check explains the statement constant of the class it is named after,
+ * so the checks follow the code.
+ *
+ */
+
+public class PlanCheck{
+	static final long MIN_ROWS = Long.getLong("ticketmaster.plancheck.minRows", 10000L);
+	static final double TOLERANCE = Double.parseDouble(System.getProperty("ticketmaster.plancheck.tolerance", "0.25"));
+
+	private static final Pattern SEQ_SCAN = Pattern.compile("\"Node Type\": \"Seq Scan\",[^{}]*?\"Relation Name\": \"([^\"]+)\"");
+	private static final Pattern TOTAL_COST = Pattern.compile("\"Total Cost\": ([0-9.]+)");
+	private static final Pattern ACTUAL_TIME = Pattern.compile("\"Actual Total Time\": ([0-9.]+)");
+	private static final Pattern SHARED_HIT = Pattern.compile("\"Shared Hit Blocks\": ([0-9]+)");
+	private static final Pattern SHARED_READ = Pattern.compile("\"Shared Read Blocks\": ([0-9]+)");
+
+	/**
+	 * A statement to explain and what is expected of its plan.
+	 */
+	static class Check{
+		final String name;
+		final String sql;
+		final Object[] params;
+		//run the statement under EXPLAIN ANALYZE; only for plain SELECTs
+		final boolean analyze;
+		//the statement reads a whole table by design
+		final boolean allowSeqScan;
+
+		Check(String name, String sql, boolean analyze, boolean allowSeqScan, Object... params){
+			this.name = name;
+			this.sql = sql;
+			this.params = params;
+			this.analyze = analyze;
+			this.allowSeqScan = allowSeqScan;
+		}
+	}//end Check
+
+	/**
+	 * Keys of existing rows used as statement parameters.
+	 */
+	static class Sample{
+		long bid;
+		long sid;
+		String email;
+		long mvid;
+		String sdate;
+		String sttime;
+		long tid;
+		long cid;
+		long ssid;
+	}//end Sample
+
+	private final Ticketmaster esql;
+	private final Map<String, Long> tableRows = new HashMap<String, Long>();
+
+	public PlanCheck(Ticketmaster esql){
+		this.esql = esql;
+	}
+
+	/**
+	 * Method to pick a booking and the show, theater, cinema and seat it
+	 * belongs to.
+	 *
+	 * @throws java.sql.SQLException when there is no booking to sample
+	 */
+	Sample sample() throws SQLException {
+		final Sample s = new Sample();
+		long found = this.esql.executeQueryStreaming(
+			"SELECT B.bid, B.sid, B.email, S.mvid, CAST(S.sdate AS text), CAST(S.sttime AS text), "
+			+ "T.tid, T.cid, SS.ssid "
+			+ "FROM Bookings B JOIN Shows S ON S.sid = B.sid JOIN Plays P ON P.sid = S.sid "
+			+ "JOIN Theaters T ON T.tid = P.tid "
+			+ "JOIN ShowSeats SS ON SS.sid = S.sid ORDER BY B.bid LIMIT 1",
+			0, row -> {
+				s.bid = row.getLong(1);
+				s.sid = row.getLong(2);
+				s.email = row.getString(3);
+				s.mvid = row.getLong(4);
+				s.sdate = row.getString(5);
+				s.sttime = row.getString(6);
+				s.tid = row.getLong(7);
+				s.cid = row.getLong(8);
+				s.ssid = row.getLong(9);
+				return false;
+			});
+		if (found == 0){
+			throw new SQLException("No booking with a show, theater and seats to sample parameters from");
+		}//end if
+		return s;
+	}
+
+	List<Check> checks(Sample s){
+		String bids = Ticketmaster.toArrayLiteral(new long[] { s.bid });
+		String sids = Ticketmaster.toArrayLiteral(new long[] { s.sid });
+		String ssids = Ticketmaster.toArrayLiteral(new long[] { s.ssid });
+		List<Check> checks = new ArrayList<Check>();
+
+		//BookingManager
+		checks.add(new Check("booking.claimSelected", BookingManager.CLAIM_SELECTED, false, false, s.bid, ssids));
+		checks.add(new Check("booking.claimAny", BookingManager.CLAIM_ANY, false, false, s.bid, s.sid, null, null, 2));
+		checks.add(new Check("booking.lock", BookingManager.LOCK_BOOKING, false, false, s.bid));
+		checks.add(new Check("booking.changeSeats", BookingManager.LOCK_SEATS, false, false,
+			s.sid, s.bid, "{1,2}", s.bid));
+		checks.add(new Check("booking.amount", BookingManager.AMOUNT_SQL, true, false, s.bid));
+
+		//SeatAvailability
+		checks.add(new Check("seats.load", SeatAvailability.LOAD_SQL, true, false, s.sid));
+
+		//SeatHolds
+		checks.add(new Check("holds.pending", SeatHolds.PENDING_SQL, true, false, "Pending"));
+		checks.add(new Check("holds.lock", SeatHolds.LOCK_PENDING_SQL, false, false, bids, "Pending"));
+
+		//PurgeJob; SeatHolds deletes its bookings with the same statements
+		checks.add(new Check("purge.cancelled", PurgeJob.LOCK_CANCELLED_SQL, false, false, "Cancelled", PurgeJob.CHUNK_SIZE));
+		checks.add(new Check("purge.deletePayments", PurgeJob.DELETE_PAYMENTS_SQL, false, false, bids));
+		checks.add(new Check("purge.freeSeats", PurgeJob.FREE_SEATS_SQL, false, false, bids));
+		checks.add(new Check("purge.deleteBookings", PurgeJob.DELETE_BOOKINGS_SQL, false, false, bids));
+		checks.add(new Check("purge.showsOnDate", PurgeJob.SHOWS_ON_DATE_SQL, true, false, s.sdate));
+		checks.add(new Check("purge.showBookings", PurgeJob.LOCK_SHOW_BOOKINGS_SQL, false, false, sids, PurgeJob.CHUNK_SIZE));
+		checks.add(new Check("purge.showSeats", PurgeJob.DELETE_SHOW_SEATS_SQL, false, false, sids, PurgeJob.CHUNK_SIZE));
+		checks.add(new Check("purge.plays", PurgeJob.DELETE_PLAYS_SQL, false, false, sids, PurgeJob.CHUNK_SIZE));
+		checks.add(new Check("purge.lockShows", PurgeJob.LOCK_SHOWS_SQL, false, false, sids));
+		checks.add(new Check("purge.shows", PurgeJob.DELETE_SHOWS_SQL, false, false, sids));
+
+		//CatalogCache
+		checks.add(new Check("catalog.theater", CatalogCache.THEATER_SQL, true, false, s.tid));
+		checks.add(new Check("catalog.plays", CatalogCache.PLAYS_SQL, true, false, s.sid));
+
+		//ShowtimeIndex; the full build reads every show on purpose
+		checks.add(new Check("showtimes.build", ShowtimeIndex.LOAD_SQL, true, true));
+		checks.add(new Check("showtimes.show", ShowtimeIndex.LOAD_SQL + "WHERE S.sid = ?", true, false, s.sid));
+
+		//MovieSearch, which serves menu 11
+		checks.add(new Check("search.build", MovieSearch.LOAD_SQL, true, true));
+		checks.add(new Check("search.movie", MovieSearch.LOAD_SQL + " WHERE mvid = ?", true, false, s.mvid));
+
+		//OccupancyStats; the delta insert runs in every booking transaction, and the
+		//folder may scan occupancy_deltas, which it keeps small
+		checks.add(new Check("occupancy.applyBookings", OccupancyStats.APPLY_BOOKINGS_SQL, false, false, 1, bids));
+		checks.add(new Check("occupancy.fold", OccupancyStats.FOLD_SQL, false, true, OccupancyStats.FOLD_BATCH));
+		checks.add(new Check("occupancy.show", OccupancyStats.SHOW_SQL, true, false, s.sid, s.sid, s.sid));
+		checks.add(new Check("occupancy.theater", OccupancyStats.THEATER_SQL, true, false, s.tid, s.tid));
+		checks.add(new Check("occupancy.cinema", OccupancyStats.CINEMA_SQL, true, false, s.cid, s.cid));
+
+		//Ticketmaster menu statements; the new show is on a date no real show uses
+		checks.add(new Check("menu3.scheduleShow", Ticketmaster.SCHEDULE_SHOW_SQL, false, false,
+			s.mvid, "Plan Check", "2020-01-01", "United States", null, 5400, "en", "Drama",
+			Long.MAX_VALUE, "2999-12-31", "20:00", "21:30", 10.0, Ticketmaster.toArrayLiteral(new long[] { s.tid })));
+		checks.add(new Check("menu6.cancelBooking", Ticketmaster.CANCEL_BOOKING_SQL, false, false, s.bid));
+		checks.add(new Check("menu6.deletePayment", Ticketmaster.DELETE_PAYMENT_SQL, false, false, s.bid));
+		checks.add(new Check("menu12.pendingUsers", Listings.PENDING_USERS_PAGE_SQL, true, false,
+			Long.MIN_VALUE, Listings.PAGE_SIZE + 1));
+		checks.add(new Check("menu12.pendingUsers.deep", Listings.PENDING_USERS_PAGE_SQL, true, false,
+			s.bid, Listings.PAGE_SIZE + 1));
+		checks.add(new Check("menu14.userBookings", BookingHistory.PAGE_SQL, true, false, s.email, Long.MAX_VALUE,
+			BookingHistory.PAGE_SIZE));
+		checks.add(new Check("history.refresh", BookingHistory.REFRESH_SQL, false, false, bids));
+		return checks;
+	}
+
+	/**
+	 * Method to explain every check and compare it with the baseline.
+	 *
+	 * @param baseline estimated cost per check name; checks missing from it
+	 *        only get the seq-scan test
+	 * @param costs receives the estimated cost of every check
+	 * @return the number of failed checks
+	 * @throws java.sql.SQLException when a statement cannot be explained
+	 */
+	public int run(List<Check> checks, Properties baseline, Map<String, Double> costs) throws SQLException {
+		int failed = 0;
+		System.out.println(String.format("%-24s %12s %12s %10s %10s  %s", "check", "cost", "baseline", "ms", "buffers", "result"));
+		for (Check c : checks){
+			String plan = explain(c);
+			double cost = firstDouble(TOTAL_COST, plan);
+			costs.put(c.name, cost);
+
+			List<String> problems = new ArrayList<String>();
+			if (!c.allowSeqScan){
+				Matcher m = SEQ_SCAN.matcher(plan);
+				while (m.find()){
+					long rows = tableRows(m.group(1));
+					if (rows > MIN_ROWS){
+						problems.add("seq scan on " + m.group(1) + " (" + rows + " rows)");
+					}//end if
+				}//end while
+			}//end if
+			String expected = baseline.getProperty(c.name);
+			if (expected != null && cost > Double.parseDouble(expected) * (1 + TOLERANCE)){
+				problems.add(String.format("cost %.2f exceeds baseline %s", cost, expected));
+			}//end if
+
+			String ms = "-";
+			String buffers = "-";
+			if (c.analyze){
+				ms = String.format("%.3f", firstDouble(ACTUAL_TIME, plan));
+				buffers = (long) firstDouble(SHARED_HIT, plan) + "/" + (long) firstDouble(SHARED_READ, plan);
+			}//end if
+			System.out.println(String.format("%-24s %12.2f %12s %10s %10s  %s", c.name, cost,
+				expected == null ? "-" : expected, ms, buffers, problems.isEmpty() ? "ok" : "FAIL " + String.join("; ", problems)));
+			if (!problems.isEmpty()){
+				++failed;
+			}//end if
+		}//end for
+		return failed;
+	}
+
+	private String explain(final Check c) throws SQLException {
+		final String options = c.analyze ? "(ANALYZE, BUFFERS, FORMAT JSON) " : "(FORMAT JSON) ";
+		return this.esql.executeTransaction(Connection.TRANSACTION_READ_COMMITTED, tx -> {
+			final StringBuilder plan = new StringBuilder();
+			tx.query("EXPLAIN " + options + c.sql, row -> {
+				plan.append(row.getString(1)).append('\n');
+				return true;
+			}, c.params);
+			tx.setRollbackOnly();
+			return plan.toString();
+		});
+	}
+
+	private long tableRows(String relation) throws SQLException {
+		Long rows = this.tableRows.get(relation);
+		if (rows == null){
+			final long[] found = { 0 };
+			this.esql.executeQueryStreaming("SELECT CAST(reltuples AS bigint) FROM pg_class WHERE relname = ? AND relkind = 'r'",
+				0, row -> {
+					found[0] = row.getLong(1);
+					return false;
+				}, relation);
+			rows = found[0];
+			this.tableRows.put(relation, rows);
+		}//end if
+		return rows;
+	}
+
+	private static double firstDouble(Pattern p, String text){
+		Matcher m = p.matcher(text);
+		return m.find() ? Double.parseDouble(m.group(1)) : 0.0;
+	}
+
+	/**
+	 * Explains the application's statements and exits with status 1 when a
+	 * check fails.  With --update the baseline file is rewritten from this
+	 * run's costs instead.
+	 *
+	 * @param args <dbname> <port> <user> <baseline file> [--update]
+	 */
+	public static void main(String[] args) throws Exception {
+		if (args.length < 4) {
+			System.err.println (
+				"Usage: " + "java [-classpath <classpath>] " + PlanCheck.class.getName () +
+				" <dbname> <port> <user> <baseline file> [--update]");
+			return;
+		}//end if
+		File file = new File(args[3]);
+		boolean update = args.length > 4 && args[4].equals("--update");
+		Properties baseline = new Properties();
+		if (file.exists() && !update){
+			InputStream in = new FileInputStream(file);
+			try{
+				baseline.load(in);
+			}finally{
+				in.close();
+			}//end try
+		}//end if
+
+		Class.forName("org.postgresql.Driver");
+		Ticketmaster esql = new Ticketmaster(args[0], args[1], args[2], "");
+		int failed;
+		Map<String, Double> costs = new TreeMap<String, Double>();
+		try{
+			PlanCheck check = new PlanCheck(esql);
+			failed = check.run(check.checks(check.sample()), baseline, costs);
+		}finally{
+			esql.cleanup();
+		}//end try
+
+		if (update){
+			Properties updated = new Properties();
+			for (Map.Entry<String, Double> e : costs.entrySet()){
+				updated.setProperty(e.getKey(), String.format("%.2f", e.getValue()));
+			}//end for
+			writeBaseline(file, updated);
+			System.out.println("Baseline written to " + file);
+		}//end if
+		if (failed > 0){
+			System.out.println(failed + " checks failed");
+			System.exit(1);
+		}//end if
+	}
+
+	private static void writeBaseline(File file, Properties costs) throws IOException {
+		OutputStream out = new FileOutputStream(file);
+		try{
+			costs.store(out, "Estimated plan costs per PlanCheck check");
+		}finally{
+			out.close();
+		}//end try
+	}
+}
@@ -0,0 +1,222 @@
+import java.io.PrintStream;
+import java.sql.Connection;
+import java.sql.SQLException;
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+
+/**
+ * Deletes large sets of bookings and shows in bounded chunks.  Each chunk is
+ * its own short transaction, so row locks are held for a few milliseconds
+ * at a time, and the job pauses between chunks to leave room for live
+ * booking traffic.  Dependent rows are removed before the rows they
+ * reference: Payments with their Bookings, ShowSeats, Plays and finally
+ * Shows.
+ *
+ */
+
+public class PurgeJob{
+	static final int CHUNK_SIZE = Integer.getInteger("ticketmaster.purge.chunk", 500);
+	static final long PAUSE_MILLIS = Long.getLong("ticketmaster.purge.pauseMs", 20L);
+
+	//params: bigint[] literal of booking IDs, locked by the transaction
+	static final String DELETE_PAYMENTS_SQL = "DELETE FROM Payments WHERE bid = ANY(CAST(? AS bigint[]))";
+	static final String FREE_SEATS_SQL = "UPDATE ShowSeats SET bid = NULL WHERE bid = ANY(CAST(? AS bigint[]))";
+	static final String DELETE_BOOKINGS_SQL = "DELETE FROM Bookings WHERE bid = ANY(CAST(? AS bigint[]))";
+	//params: status, chunk size
+	static final String LOCK_CANCELLED_SQL =
+		"SELECT bid, sid FROM Bookings WHERE status = ? ORDER BY bid LIMIT ? FOR UPDATE SKIP LOCKED";
+	//params: date
+	static final String SHOWS_ON_DATE_SQL = "SELECT sid FROM Shows WHERE sdate = CAST(? AS date) ORDER BY sid";
+	//params: bigint[] literal of show IDs, chunk size
+	static final String LOCK_SHOW_BOOKINGS_SQL =
+		"SELECT bid FROM Bookings WHERE sid = ANY(CAST(? AS bigint[])) ORDER BY bid LIMIT ? FOR UPDATE";
+	//the seats leave the occupancy rollups with a delta in the same statement
+	static final String DELETE_SHOW_SEATS_SQL =
+		"WITH gone AS (DELETE FROM ShowSeats WHERE ssid IN "
+		+ "(SELECT ssid FROM ShowSeats WHERE sid = ANY(CAST(? AS bigint[])) LIMIT ?) RETURNING sid, csid), "
+		+ "deltas AS (INSERT INTO occupancy_deltas(sid, tid, cid, seats_total, seats_sold, seats_held, bookings, revenue) "
+		+ "SELECT G.sid, T.tid, T.cid, -COUNT(*), 0, 0, 0, 0 FROM gone G, CinemaSeats CS, Theaters T "
+		+ "WHERE CS.csid = G.csid AND T.tid = CS.tid GROUP BY G.sid, T.tid, T.cid) "
+		+ "SELECT COUNT(*) FROM gone";
+	static final String DELETE_PLAYS_SQL =
+		"WITH gone AS (DELETE FROM Plays WHERE (sid, tid) IN "
+		+ "(SELECT sid, tid FROM Plays WHERE sid = ANY(CAST(? AS bigint[])) LIMIT ?) RETURNING sid) "
+		+ "SELECT COUNT(*) FROM gone";
+	//params: bigint[] literal of show IDs
+	static final String LOCK_SHOWS_SQL = "SELECT sid FROM Shows WHERE sid = ANY(CAST(? AS bigint[])) ORDER BY sid FOR UPDATE";
+	static final String DELETE_SHOWS_SQL = "DELETE FROM Shows WHERE sid = ANY(CAST(? AS bigint[]))";
+
+	private final Ticketmaster esql;
+	private final int chunkSize;
+	private final long pauseMillis;
+	private final PrintStream progress;
+
+	public PurgeJob(Ticketmaster esql, int chunkSize, long pauseMillis, PrintStream progress){
+		this.esql = esql;
+		this.chunkSize = chunkSize;
+		this.pauseMillis = pauseMillis;
+		this.progress = progress;
+	}
+
+	public PurgeJob(Ticketmaster esql){
+		this(esql, CHUNK_SIZE, PAUSE_MILLIS, System.out);
+	}
+
+	/**
+	 * Method to delete every cancelled booking with its payment, returning
+	 * its seats to inventory.  Bookings locked by another session are
+	 * skipped in the current chunk and picked up by a later one.
+	 *
+	 * @return the number of bookings deleted
+	 * @throws java.sql.SQLException when a chunk fails
+	 */
+	public long clearCancelledBookings() throws SQLException {
+		long total = 0;
+		final Set<Long> shows = new HashSet<Long>();
+		while (true){
+			int deleted = this.esql.executeTransaction(Connection.TRANSACTION_READ_COMMITTED, tx -> {
+				final List<Long> bids = new ArrayList<Long>();
+				tx.query(LOCK_CANCELLED_SQL,
+					row -> {
+						bids.add(row.getLong(1));
+						shows.add(row.getLong(2));
+						return true;
+					}, "Cancelled", this.chunkSize);
+				if (bids.isEmpty()){
+					return 0;
+				}//end if
+				String array = Ticketmaster.toArrayLiteral(bids);
+				//cancelled bookings are not counted in the occupancy rollups
+				tx.update(DELETE_PAYMENTS_SQL, array);
+				tx.update(FREE_SEATS_SQL, array);
+				int removed = tx.update(DELETE_BOOKINGS_SQL, array);
+				this.esql.getBookingHistory().refresh(tx, array);
+				return removed;
+			});
+			if (deleted == 0){
+				break;
+			}//end if
+			total += deleted;
+			this.progress.println("Bookings: " + total + " cancelled bookings deleted");
+			pause();
+		}//end while
+		for (long sid : shows){
+			this.esql.getSeatAvailability().invalidate(sid);
+		}//end for
+		return total;
+	}
+
+	/**
+	 * Method to delete every show on a date together with its plays,
+	 * bookings, show seats and payments.  Shows are processed chunkSize at a
+	 * time, and within each group every table is emptied chunkSize rows per
+	 * transaction.  The last transaction of a group locks its Shows rows,
+	 * which makes new bookings of the shows wait, deletes whatever was
+	 * added to the other tables since they were emptied, and then the
+	 * shows; bookings that waited fail on the missing show.
+	 *
+	 * @param date the show date, in any format Postgres accepts for a date
+	 * @return the number of shows deleted
+	 * @throws java.sql.SQLException when a chunk fails
+	 */
+	public long removeShowsOnDate(String date) throws SQLException {
+		final List<Long> sids = new ArrayList<Long>();
+		this.esql.executeQueryStreaming(SHOWS_ON_DATE_SQL, Ticketmaster.DEFAULT_FETCH_SIZE, row -> sids.add(row.getLong(1)), date);
+
+		long shows = 0;
+		for (int from = 0; from < sids.size(); from += this.chunkSize){
+			List<Long> group = sids.subList(from, Math.min(sids.size(), from + this.chunkSize));
+			String array = Ticketmaster.toArrayLiteral(group);
+			deleteBookings(array);
+			deleteInChunks("ShowSeats", DELETE_SHOW_SEATS_SQL, array);
+			deleteInChunks("Plays", DELETE_PLAYS_SQL, array);
+			shows += this.esql.executeTransaction(Connection.TRANSACTION_READ_COMMITTED, tx -> {
+				tx.query(LOCK_SHOWS_SQL, row -> true, array);
+				deleteBookingChunk(tx, array, Integer.MAX_VALUE);
+				tx.queryLong(DELETE_SHOW_SEATS_SQL, array, Integer.MAX_VALUE);
+				tx.queryLong(DELETE_PLAYS_SQL, array, Integer.MAX_VALUE);
+				this.esql.getOccupancy().removeShows(tx, array);
+				return tx.update(DELETE_SHOWS_SQL, array);
+			});
+			for (long sid : group){
+				this.esql.getSeatAvailability().invalidate(sid);
+				this.esql.getCatalog().showChanged(sid);
+				this.esql.getShowtimeIndex().showRemoved(sid);
+			}//end for
+			this.progress.println("Shows: " + shows + " of " + sids.size() + " deleted");
+			pause();
+		}//end for
+		return shows;
+	}
+
+	/*
+	 * deletes the bookings of the shows chunkSize at a time with their
+	 * payments, returning their seats.  Each chunk leaves the rollups and
+	 * the booking history in the transaction that deletes it, so a booking
+	 * made while the job runs is taken out with the chunk it ends up in.
+	 */
+	private long deleteBookings(String sids) throws SQLException {
+		long total = 0;
+		int deleted;
+		do{
+			deleted = this.esql.executeTransaction(Connection.TRANSACTION_READ_COMMITTED,
+				tx -> deleteBookingChunk(tx, sids, this.chunkSize));
+			total += deleted;
+			if (deleted > 0){
+				this.progress.println("Bookings: " + total + " rows deleted");
+				pause();
+			}//end if
+		}while (deleted == this.chunkSize);
+		return total;
+	}
+
+	//deletes up to limit bookings of the shows in the transaction
+	private int deleteBookingChunk(Transaction tx, String sids, int limit) throws SQLException {
+		final List<Long> bids = new ArrayList<Long>();
+		tx.query(LOCK_SHOW_BOOKINGS_SQL, row -> bids.add(row.getLong(1)), sids, limit);
+		if (bids.isEmpty()){
+			return 0;
+		}//end if
+		String array = Ticketmaster.toArrayLiteral(bids);
+		this.esql.getOccupancy().subtract(tx, array);
+		tx.update(DELETE_PAYMENTS_SQL, array);
+		tx.update(FREE_SEATS_SQL, array);
+		int removed = tx.update(DELETE_BOOKINGS_SQL, array);
+		this.esql.getBookingHistory().refresh(tx, array);
+		return removed;
+	}
+
+	/*
+	 * runs a DELETE whose last placeholder is a LIMIT and which selects the
+	 * number of rows deleted until it deletes fewer than chunkSize rows;
+	 * every execution commits on its own.
+	 */
+	private long deleteInChunks(String table, String sql, String array) throws SQLException {
+		long total = 0;
+		long deleted;
+		do{
+			deleted = this.esql.executeTransaction(Connection.TRANSACTION_READ_COMMITTED,
+				tx -> tx.queryLong(sql, array, this.chunkSize));
+			total += deleted;
+			if (deleted > 0){
+				this.progress.println(table + ": " + total + " rows deleted");
+				pause();
+			}//end if
+		}while (deleted == this.chunkSize);
+		return total;
+	}
+
+	private void pause() throws SQLException {
+		if (this.pauseMillis <= 0){
+			return;
+		}//end if
+		try{
+			Thread.sleep(this.pauseMillis);
+		}catch(InterruptedException e){
+			Thread.currentThread().interrupt();
+			throw new SQLException("Purge interrupted", "57014", e);
+		}//end try
+	}
+}
@@ -0,0 +1,300 @@
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.sql.Statement;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Properties;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Sends the reads of browse operations (menus 9 to 14 and 17) to read replicas
+ * so that browse traffic scales with the number of replicas instead of
+ * loading the primary.  The replicas are listed in ticketmaster.replicas
+ * as comma-separated host:port entries, or just a port on localhost; each
+ * gets a pool as large as the primary's whose connections are set
+ * read-only.  With no replicas listed everything runs on the primary.
+ *
+ * Only the queries run inside a browse scope go to a replica, all on the
+ * replica picked when the scope opened; writes, transactions and every
+ * other read use the primary, and so do the loads of the shared caches
+ * and indexes (Ticketmaster.executeQueryOnPrimary).  A checker thread asks each replica every
+ * CHECK_MS how far its replay is behind, which needs a user that may read
+ * pg_stat_wal_receiver (a superuser or member of pg_read_all_stats).  A
+ * replica whose lag cannot be told, that is behind by
+ * more than MAX_LAG_MS, or that failed its check, is skipped until a
+ * check succeeds again; with none left, browse reads fall back to the
+ * primary.
+ *
+ * Read-your-writes: a Session stands for one client, a server connection
+ * or the menu loop.  After the session writes, its browse reads stay on
+ * the primary for PIN_MS, long enough for any replica still in use to
+ * have replayed the write.
+ *
+ * To try it locally, run a second PostgreSQL instance as a streaming
+ * standby of the first on another port (pg_basebackup -R), and start with
+ * -Dticketmaster.replicas=<its port>.  A server that is not a standby is
+ * never used, unless -Dticketmaster.replicas.allowStandalone=true lets a
+ * standalone copy stand in for one in a test; it is taken as current.
+ *
+ */
+
+public class ReplicaRouter{
+	static final String REPLICAS = System.getProperty("ticketmaster.replicas", "");
+	static final long MAX_LAG_MS = Long.getLong("ticketmaster.replicas.maxLagMs", 1000L);
+	static final long CHECK_MS = Long.getLong("ticketmaster.replicas.checkMs", 250L);
+	//a write is on every usable replica once its lag has been measured below MAX_LAG_MS after it
+	static final long PIN_MS = Math.max(Long.getLong("ticketmaster.replicas.pinMs", 0L), MAX_LAG_MS + 2 * CHECK_MS);
+
+	//test only: take a server that is not a standby as a current replica
+	static final boolean ALLOW_STANDALONE = Boolean.getBoolean("ticketmaster.replicas.allowStandalone");
+	//a standby that heard nothing from the primary for longer is taken as cut off
+	static final long MAX_SILENCE_MS = Long.getLong("ticketmaster.replicas.maxSilenceMs", 60000L);
+
+	/*
+	 * the replay lag in milliseconds, or null when it cannot be told.  A
+	 * standby whose WAL receiver is not streaming, or has received nothing,
+	 * not even a keepalive, for MAX_SILENCE_MS, may have stopped receiving
+	 * with everything it has replayed, so its lag is unknown.  Otherwise
+	 * the lag is zero when everything received is replayed (an idle
+	 * primary sends nothing new), else the age of the last replayed
+	 * transaction.
+	 */
+	static final String LAG_SQL =
+		"SELECT CASE WHEN NOT pg_is_in_recovery() THEN " + (ALLOW_STANDALONE ? "0" : "NULL") + " "
+		+ "WHEN NOT EXISTS (SELECT 1 FROM pg_stat_wal_receiver WHERE status = 'streaming' "
+		+ "AND last_msg_receipt_time > now() - interval '1 millisecond' * " + MAX_SILENCE_MS + ") THEN NULL "
+		+ "WHEN pg_last_wal_receive_lsn() = pg_last_wal_replay_lsn() THEN 0 "
+		+ "ELSE CAST(EXTRACT(EPOCH FROM now() - pg_last_xact_replay_timestamp()) * 1000 AS bigint) END";
+
+	/**
+	 * The writes of one client, for read-your-writes.
+	 */
+	public static class Session{
+		private volatile long pinnedUntil = 0;
+
+		//called when a write of the session has committed
+		public void wrote(){
+			this.pinnedUntil = System.currentTimeMillis() + PIN_MS;
+		}
+
+		public boolean isPinned(){
+			return System.currentTimeMillis() < this.pinnedUntil;
+		}
+	}//end Session
+
+	/**
+	 * A replica and its pool.
+	 */
+	static class Replica{
+		final String name;
+		final ConnectionPool pool;
+		//milliseconds behind the primary, or -1 until a check succeeds
+		volatile long lag = -1;
+
+		Replica(String name, ConnectionPool pool){
+			this.name = name;
+			this.pool = pool;
+		}
+
+		boolean isUsable(){
+			return this.lag >= 0 && this.lag <= MAX_LAG_MS;
+		}
+	}//end Replica
+
+	/**
+	 * The pool the queries of the current thread go to until closed.
+	 */
+	public static class Scope implements AutoCloseable{
+		private final ConnectionPool outer;
+
+		Scope(ConnectionPool pool){
+			this.outer = ROUTE.get();
+			ROUTE.set(pool);
+		}
+
+		public void close(){
+			ROUTE.set(this.outer);
+		}
+	}//end Scope
+
+	//the replica pool of the browse scope the thread is in, or null
+	private static final ThreadLocal<ConnectionPool> ROUTE = new ThreadLocal<ConnectionPool>();
+	//the client the thread acts for, or null
+	private static final ThreadLocal<Session> SESSION = new ThreadLocal<Session>();
+
+	private final List<Replica> replicas = new ArrayList<Replica>();
+	private final AtomicInteger next = new AtomicInteger();
+	private ScheduledExecutorService checker = null;
+
+	/**
+	 * Method to open the pools of the replicas in ticketmaster.replicas and
+	 * start checking them.  A replica that cannot be reached now is tried
+	 * again by its checks.
+	 *
+	 * @param dbname the database, the same on every replica
+	 * @param props driver properties, including user and password
+	 */
+	public void start(String dbname, Properties props, int maxSize,
+			long acquireTimeoutMillis, long idleTimeoutMillis) throws SQLException {
+		for (String entry : REPLICAS.split(",")){
+			entry = entry.trim();
+			if (entry.isEmpty()){
+				continue;
+			}//end if
+			String address = entry.indexOf(':') < 0 ? "localhost:" + entry : entry;
+			String url = "jdbc:postgresql://" + address + "/" + dbname;
+			System.out.println ("Replica URL: " + url);
+			//connections are opened on demand, so an unreachable replica does not stop the start
+			this.replicas.add(new Replica(address, new ConnectionPool(url, props, 0, maxSize,
+				acquireTimeoutMillis, idleTimeoutMillis, true)));
+		}//end for
+		if (this.replicas.isEmpty()){
+			return;
+		}//end if
+		check();
+		this.checker = Executors.newSingleThreadScheduledExecutor(new ThreadFactory(){
+			public Thread newThread(Runnable r){
+				Thread t = new Thread(r, "replica-checker");
+				t.setDaemon(true);
+				return t;
+			}
+		});
+		this.checker.scheduleWithFixedDelay(new Runnable(){
+			public void run(){
+				check();
+			}
+		}, CHECK_MS, CHECK_MS, TimeUnit.MILLISECONDS);
+	}
+
+	public void close(){
+		if (this.checker != null){
+			this.checker.shutdownNow();
+		}//end if
+		for (Replica r : this.replicas){
+			r.pool.close();
+		}//end for
+	}
+
+	//the number of replicas configured, usable or not
+	public int size(){
+		return this.replicas.size();
+	}
+
+	//connections of all replica pools together
+	public int getCapacity(){
+		int n = 0;
+		for (Replica r : this.replicas){
+			n += r.pool.getMaxSize();
+		}//end for
+		return n;
+	}
+
+	/**
+	 * @return the lag of each replica in milliseconds, -1 for one that
+	 *         failed its last check
+	 */
+	public Map<String, Long> getLagMillis(){
+		Map<String, Long> m = new LinkedHashMap<String, Long>();
+		for (Replica r : this.replicas){
+			m.put(r.name, r.lag);
+		}//end for
+		return Collections.unmodifiableMap(m);
+	}
+
+	/**
+	 * Method to make the current thread act for a client until unbound
+	 * with null.  Operations submitted to TicketmasterService from it are
+	 * run for that session.
+	 */
+	public static void bind(Session session){
+		SESSION.set(session);
+	}
+
+	//the session the current thread acts for, or null
+	public static Session currentSession(){
+		return SESSION.get();
+	}
+
+	/**
+	 * Method to pick where a browse operation of a session reads from:
+	 * the next usable replica in turn, or null for the primary when the
+	 * session has written recently or no replica is usable.
+	 *
+	 * @param session the client, or null for one that never writes
+	 */
+	public ConnectionPool choose(Session session){
+		if (this.replicas.isEmpty() || (session != null && session.isPinned())){
+			return null;
+		}//end if
+		int n = this.replicas.size();
+		int start = this.next.getAndIncrement() & Integer.MAX_VALUE;
+		for (int i = 0; i < n; ++i){
+			Replica r = this.replicas.get((start + i) % n);
+			if (r.isUsable()){
+				return r.pool;
+			}//end if
+		}//end for
+		return null;
+	}
+
+	/**
+	 * Method to send the queries of the current thread to a pool chosen
+	 * with choose() until the scope is closed.
+	 *
+	 * @param pool the replica pool, or null for the primary
+	 * @return the scope, to be closed in a finally block
+	 */
+	public Scope use(ConnectionPool pool){
+		return new Scope(pool);
+	}
+
+	/**
+	 * Method to open a browse scope for a session in one step.
+	 */
+	public Scope browse(Session session){
+		return use(choose(session));
+	}
+
+	/**
+	 * @return the pool queries of the current thread go to, or null for
+	 *         the primary
+	 */
+	ConnectionPool route(){
+		return ROUTE.get();
+	}
+
+	private void check(){
+		for (Replica r : this.replicas){
+			ConnectionPool.PooledConnection pc = null;
+			try{
+				pc = r.pool.acquire();
+				Statement stmt = pc.getConnection().createStatement();
+				try{
+					ResultSet rs = stmt.executeQuery(LAG_SQL);
+					rs.next();
+					long lag = rs.getLong(1);
+					r.lag = rs.wasNull() ? -1 : lag;
+				}finally{
+					stmt.close();
+				}//end try
+			}catch(SQLException e){
+				if (pc != null){
+					pc.failed(e);
+				}//end if
+				if (r.lag >= 0){
+					System.err.println("Replica " + r.name + " is out of use: " + e.getMessage());
+				}//end if
+				r.lag = -1;
+			}finally{
+				r.pool.release(pc);
+			}//end try
+		}//end for
+	}
+}
@@ -0,0 +1,101 @@
+import java.sql.Date;
+import java.sql.ResultSet;
+import java.sql.ResultSetMetaData;
+import java.sql.SQLException;
+import java.sql.Time;
+import java.sql.Timestamp;
+
+/**
+ * A typed, read-only view of the current row of a streamed query.  The same
+ * instance is reused for every row, so handlers must copy out any values
+ * they want to keep rather than holding on to the row itself.
+ *
+ */
+
+public class ResultRow{
+	private final ResultSet rs;
+	private ResultSetMetaData rsmd = null;
+
+	ResultRow(ResultSet rs){
+		this.rs = rs;
+	}
+
+	public int getColumnCount() throws SQLException {
+		return metaData().getColumnCount();
+	}
+
+	public String getColumnName(int column) throws SQLException {
+		return metaData().getColumnName(column);
+	}
+
+	public String getString(int column) throws SQLException {
+		return this.rs.getString(column);
+	}
+
+	public String getString(String column) throws SQLException {
+		return this.rs.getString(column);
+	}
+
+	//numeric accessors return 0 for SQL NULL; check wasNull() when it matters
+	public long getLong(int column) throws SQLException {
+		return this.rs.getLong(column);
+	}
+
+	public long getLong(String column) throws SQLException {
+		return this.rs.getLong(column);
+	}
+
+	public int getInt(int column) throws SQLException {
+		return this.rs.getInt(column);
+	}
+
+	public int getInt(String column) throws SQLException {
+		return this.rs.getInt(column);
+	}
+
+	public double getDouble(int column) throws SQLException {
+		return this.rs.getDouble(column);
+	}
+
+	public double getDouble(String column) throws SQLException {
+		return this.rs.getDouble(column);
+	}
+
+	public Date getDate(int column) throws SQLException {
+		return this.rs.getDate(column);
+	}
+
+	public Date getDate(String column) throws SQLException {
+		return this.rs.getDate(column);
+	}
+
+	public Time getTime(int column) throws SQLException {
+		return this.rs.getTime(column);
+	}
+
+	public Time getTime(String column) throws SQLException {
+		return this.rs.getTime(column);
+	}
+
+	public Timestamp getTimestamp(int column) throws SQLException {
+		return this.rs.getTimestamp(column);
+	}
+
+	public Timestamp getTimestamp(String column) throws SQLException {
+		return this.rs.getTimestamp(column);
+	}
+
+	/**
+	 * @return true if the last column read was SQL NULL
+	 */
+	public boolean wasNull() throws SQLException {
+		return this.rs.wasNull();
+	}
+
+	private ResultSetMetaData metaData() throws SQLException {
+		if (this.rsmd == null){
+			this.rsmd = this.rs.getMetaData();
+		}//end if
+		return this.rsmd;
+	}
+}
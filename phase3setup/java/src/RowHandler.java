@@ -0,0 +1,15 @@
+import java.sql.SQLException;
+
+/**
+ * Callback invoked once per row by Ticketmaster.executeQueryStreaming.
+ *
+ */
+
+public interface RowHandler{
+	/**
+	 * @param row the current row; only valid until this method returns
+	 * @return true to keep reading, false to stop and close the cursor
+	 * @throws java.sql.SQLException to abort the query
+	 */
+	boolean handle(ResultRow row) throws SQLException;
+}
@@ -0,0 +1,241 @@
+import java.sql.SQLException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.BitSet;
+import java.util.List;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * In-memory seat inventory for shows.  Each show's ShowSeats rows are loaded
+ * once, ordered by theater and seat number, into a SeatMap whose free and
+ * held seats are tracked as bitmaps; sold seats are the ones in neither.
+ * Seat searches and holds run against the bitmaps only, and the database
+ * is touched when a selection is written back to ShowSeats.bid.
+ *
+ */
+
+public class SeatAvailability{
+	//the seats of a show in (tid, sno) order.  params: sid
+	static final String LOAD_SQL =
+		"SELECT SS.ssid, CS.tid, CS.sno, SS.price, CS.stype, SS.bid "
+		+ "FROM ShowSeats SS, CinemaSeats CS WHERE SS.sid = ? AND SS.csid = CS.csid ORDER BY CS.tid, CS.sno";
+
+	private final Ticketmaster esql;
+	private final ConcurrentHashMap<Long, SeatMap> shows = new ConcurrentHashMap<Long, SeatMap>();
+
+	/**
+	 * The seats of one show.  Index i refers to the i-th seat in
+	 * (tid, sno) order; all methods synchronize on the map.
+	 */
+	public static class SeatMap{
+		final long sid;
+		int size = 0;
+		long[] ssid = new long[16];
+		long[] tid = new long[16];
+		int[] sno = new int[16];
+		double[] price = new double[16];
+		//seat type of each seat as an index into types
+		byte[] type = new byte[16];
+		final List<String> types = new ArrayList<String>();
+		final BitSet free = new BitSet();
+		final BitSet held = new BitSet();
+
+		SeatMap(long sid){
+			this.sid = sid;
+		}
+
+		//appends a seat while the map is being loaded
+		void add(long ssid, long tid, int sno, double price, String stype, boolean isFree){
+			if (this.size == this.ssid.length){
+				int capacity = this.size * 2;
+				this.ssid = Arrays.copyOf(this.ssid, capacity);
+				this.tid = Arrays.copyOf(this.tid, capacity);
+				this.sno = Arrays.copyOf(this.sno, capacity);
+				this.price = Arrays.copyOf(this.price, capacity);
+				this.type = Arrays.copyOf(this.type, capacity);
+			}//end if
+			int t = this.types.indexOf(stype);
+			if (t < 0){
+				this.types.add(stype);
+				t = this.types.size() - 1;
+			}//end if
+			int i = this.size++;
+			this.ssid[i] = ssid;
+			this.tid[i] = tid;
+			this.sno[i] = sno;
+			this.price[i] = price;
+			this.type[i] = (byte) t;
+			if (isFree){
+				this.free.set(i);
+			}//end if
+		}
+
+		public synchronized int freeCount(){
+			return this.free.cardinality();
+		}
+
+		/**
+		 * Method to find n free seats of a type with consecutive seat
+		 * numbers in the same theater and mark them held.
+		 *
+		 * @param n the number of seats wanted
+		 * @param seatType the seat type, or null for any type
+		 * @return the held seat indexes, or null if no such run exists
+		 */
+		synchronized int[] holdAdjacent(int n, String seatType){
+			int wanted = seatType == null ? -1 : this.types.indexOf(seatType);
+			if (n <= 0 || (seatType != null && wanted < 0)){
+				return null;
+			}//end if
+			int runStart = -1;
+			int runLength = 0;
+			for (int i = this.free.nextSetBit(0); i >= 0; i = this.free.nextSetBit(i + 1)){
+				if (wanted >= 0 && this.type[i] != wanted){
+					runLength = 0;
+					continue;
+				}//end if
+				boolean adjacent = runLength > 0 && i == runStart + runLength
+					&& this.tid[i] == this.tid[i - 1] && this.sno[i] == this.sno[i - 1] + 1;
+				if (adjacent){
+					++runLength;
+				}else{
+					runStart = i;
+					runLength = 1;
+				}//end if
+				if (runLength == n){
+					int[] seats = new int[n];
+					for (int k = 0; k < n; ++k){
+						seats[k] = runStart + k;
+					}//end for
+					this.free.clear(runStart, runStart + n);
+					this.held.set(runStart, runStart + n);
+					return seats;
+				}//end if
+			}//end for
+			return null;
+		}
+
+		synchronized void markSold(int[] seats){
+			for (int i : seats){
+				this.held.clear(i);
+				this.free.clear(i);
+			}//end for
+		}
+
+		synchronized void markFree(int[] seats){
+			for (int i : seats){
+				this.held.clear(i);
+				this.free.set(i);
+			}//end for
+		}
+	}//end SeatMap
+
+	/**
+	 * Seats held in memory for a show, waiting to be written back or released.
+	 */
+	public static class Selection{
+		public final long sid;
+		public final long[] ssids;
+		public final int[] seatNumbers;
+		public final double totalPrice;
+		final SeatMap map;
+		final int[] seats;
+
+		Selection(SeatMap map, int[] seats){
+			this.sid = map.sid;
+			this.map = map;
+			this.seats = seats;
+			this.ssids = new long[seats.length];
+			this.seatNumbers = new int[seats.length];
+			double total = 0;
+			for (int k = 0; k < seats.length; ++k){
+				this.ssids[k] = map.ssid[seats[k]];
+				this.seatNumbers[k] = map.sno[seats[k]];
+				total += map.price[seats[k]];
+			}//end for
+			this.totalPrice = total;
+		}
+	}//end Selection
+
+	public SeatAvailability(Ticketmaster esql){
+		this.esql = esql;
+	}
+
+	/**
+	 * Method to get the seat map of a show, loading it on first use.
+	 *
+	 * @param sid the show ID
+	 * @return the show's seat map
+	 * @throws java.sql.SQLException when the seats cannot be loaded
+	 */
+	public SeatMap seatMap(long sid) throws SQLException {
+		SeatMap map = this.shows.get(sid);
+		if (map == null){
+			map = load(sid);
+			SeatMap raced = this.shows.putIfAbsent(sid, map);
+			if (raced != null){
+				map = raced;
+			}//end if
+		}//end if
+		return map;
+	}
+
+	/**
+	 * Method to hold n adjacent free seats of a show in memory.  The seats
+	 * stay unavailable to other callers until sold() or release().
+	 *
+	 * @param sid the show ID
+	 * @param n the number of seats
+	 * @param seatType the seat type (e.g. Regular, Handicap), or null for any
+	 * @return the held seats, or null when no adjacent run is free
+	 * @throws java.sql.SQLException when the seats cannot be loaded
+	 */
+	public Selection hold(long sid, int n, String seatType) throws SQLException {
+		SeatMap map = seatMap(sid);
+		int[] seats = map.holdAdjacent(n, seatType);
+		return seats == null ? null : new Selection(map, seats);
+	}
+
+	/**
+	 * Method to mark a selection as sold without touching the database,
+	 * once the caller's transaction wrote ShowSeats.bid.
+	 */
+	public void sold(Selection selection){
+		//a reloaded map already reflects the database
+		if (this.shows.get(selection.sid) == selection.map){
+			selection.map.markSold(selection.seats);
+		}//end if
+	}
+
+	/**
+	 * Method to return held seats to the free pool.
+	 */
+	public void release(Selection selection){
+		if (this.shows.get(selection.sid) == selection.map){
+			selection.map.markFree(selection.seats);
+		}//end if
+	}
+
+	/**
+	 * Method to drop a show's seat map so it is reloaded on next use, after
+	 * its ShowSeats rows were changed outside this component.
+	 */
+	public void invalidate(long sid){
+		this.shows.remove(sid);
+	}
+
+	public void invalidateAll(){
+		this.shows.clear();
+	}
+
+	private SeatMap load(long sid) throws SQLException {
+		final SeatMap map = new SeatMap(sid);
+		this.esql.executeQueryOnPrimary(LOAD_SQL, Ticketmaster.DEFAULT_FETCH_SIZE, row -> {
+			row.getLong(6);
+			boolean isFree = row.wasNull();
+			map.add(row.getLong(1), row.getLong(2), row.getInt(3), row.getDouble(4), row.getString(5).trim(), isFree);
+			return true;
+		}, sid);
+		return map;
+	}
+}
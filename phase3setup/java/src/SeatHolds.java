@@ -0,0 +1,255 @@
+import java.sql.Connection;
+import java.sql.SQLException;
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.DelayQueue;
+import java.util.concurrent.Delayed;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Expires pending bookings.  A pending booking holds its ShowSeats rows for
+ * a fixed time to live; each hold is queued with its deadline in a
+ * DelayQueue, and a background thread takes holds as they come due and
+ * releases them in small batches, each its own short transaction.  Holds
+ * that were paid for in the meantime are left alone, since only bookings
+ * still in 'Pending' status are released.
+ *
+ * A batch that fails is queued again after a delay that doubles with
+ * every failure, up to MAX_RETRIES times; after that its holds are
+ * dropped from the queue and left for the next scheduleAllPending().
+ * start() runs scheduleAllPending() once and then every RESCAN_MILLIS, so
+ * holds taken before this process started, by other processes, or dropped
+ * after failures are released too.
+ *
+ */
+
+public class SeatHolds{
+	static final long TTL_MILLIS = Long.getLong("ticketmaster.holds.ttlSeconds", 600L) * 1000;
+	static final int BATCH_SIZE = Integer.getInteger("ticketmaster.holds.batch", 100);
+	static final int MAX_RETRIES = Integer.getInteger("ticketmaster.holds.retries", 6);
+	//delay before the first retry of a failed batch
+	private static final long RETRY_MILLIS = 1000;
+	//time between scans for pending bookings not queued here
+	static final long RESCAN_MILLIS = Long.getLong("ticketmaster.holds.rescanSeconds", 60L) * 1000;
+
+	//params: status
+	static final String PENDING_SQL = "SELECT bid, sid, bdatetime FROM Bookings WHERE status = ?";
+	//params: bigint[] literal of booking IDs, status
+	static final String LOCK_PENDING_SQL =
+		"SELECT bid, sid FROM Bookings WHERE bid = ANY(CAST(? AS bigint[])) AND status = ? ORDER BY bid FOR UPDATE";
+
+	private final Ticketmaster esql;
+	private final DelayQueue<Hold> queue = new DelayQueue<Hold>();
+	//bookings with a hold in the queue or in the batch being released
+	private final Set<Long> queued = ConcurrentHashMap.newKeySet();
+	private Thread expirer = null;
+	private ScheduledExecutorService rescanner = null;
+
+	/**
+	 * A pending booking and the time its seats go back on sale.
+	 */
+	static class Hold implements Delayed{
+		final long bid;
+		final long sid;
+		final long deadline;
+		//failed releases so far
+		final int retries;
+
+		Hold(long bid, long sid, long deadlineMillis, int retries){
+			this.bid = bid;
+			this.sid = sid;
+			this.deadline = deadlineMillis;
+			this.retries = retries;
+		}
+
+		public long getDelay(TimeUnit unit){
+			return unit.convert(this.deadline - System.currentTimeMillis(), TimeUnit.MILLISECONDS);
+		}
+
+		public int compareTo(Delayed other){
+			return Long.compare(this.deadline, ((Hold) other).deadline);
+		}
+	}//end Hold
+
+	public SeatHolds(Ticketmaster esql){
+		this.esql = esql;
+	}
+
+	/**
+	 * Method to queue a pending booking for release once its hold expires,
+	 * unless it is queued already.
+	 *
+	 * @param bid the pending booking
+	 * @param sid the booking's show
+	 * @param deadlineMillis when the hold expires, in epoch milliseconds
+	 */
+	public void schedule(long bid, long sid, long deadlineMillis){
+		if (this.queued.add(bid)){
+			this.queue.put(new Hold(bid, sid, deadlineMillis, 0));
+		}//end if
+		startExpirer();
+	}
+
+	/**
+	 * Method to queue every pending booking in the database that is not
+	 * queued already, each with its booking time plus the hold TTL as
+	 * deadline.  Holds that have already expired are released by the
+	 * background thread straight away, in batches.
+	 *
+	 * @return the number of pending bookings newly queued
+	 * @throws java.sql.SQLException when the pending bookings cannot be read
+	 */
+	public long scheduleAllPending() throws SQLException {
+		final long[] added = { 0 };
+		this.esql.executeQueryStreaming(PENDING_SQL, Ticketmaster.DEFAULT_FETCH_SIZE, row -> {
+			long bid = row.getLong(1);
+			if (this.queued.add(bid)){
+				this.queue.put(new Hold(bid, row.getLong(2), row.getTimestamp(3).getTime() + TTL_MILLIS, 0));
+				++added[0];
+			}//end if
+			return true;
+		}, "Pending");
+		startExpirer();
+		return added[0];
+	}
+
+	public int pendingCount(){
+		return this.queue.size();
+	}
+
+	/**
+	 * Method to queue the pending bookings in the database now and every
+	 * RESCAN_MILLIS in the background.
+	 */
+	public synchronized void start(){
+		if (this.rescanner != null){
+			return;
+		}//end if
+		this.rescanner = Executors.newSingleThreadScheduledExecutor(new ThreadFactory(){
+			public Thread newThread(Runnable r){
+				Thread t = new Thread(r, "seat-hold-rescanner");
+				t.setDaemon(true);
+				return t;
+			}
+		});
+		this.rescanner.scheduleWithFixedDelay(new Runnable(){
+			public void run(){
+				try{
+					scheduleAllPending();
+				}catch(SQLException | RuntimeException e){
+					System.err.println("Scanning for pending bookings failed: " + e.getMessage());
+				}//end try
+			}
+		}, 0, RESCAN_MILLIS, TimeUnit.MILLISECONDS);
+	}
+
+	/**
+	 * Method to stop the background threads.  Queued holds are dropped; they
+	 * are found again by scheduleAllPending().
+	 */
+	public synchronized void shutdown(){
+		if (this.rescanner != null){
+			this.rescanner.shutdownNow();
+			this.rescanner = null;
+		}//end if
+		if (this.expirer != null){
+			this.expirer.interrupt();
+			this.expirer = null;
+		}//end if
+		this.queue.clear();
+		this.queued.clear();
+	}
+
+	private synchronized void startExpirer(){
+		if (this.expirer == null){
+			this.expirer = new Thread(this::expireLoop, "seat-hold-expirer");
+			this.expirer.setDaemon(true);
+			this.expirer.start();
+		}//end if
+	}
+
+	private void expireLoop(){
+		List<Hold> batch = new ArrayList<Hold>(BATCH_SIZE);
+		while (!Thread.currentThread().isInterrupted()){
+			try{
+				batch.add(this.queue.take());
+				//only holds that are already due are drained
+				this.queue.drainTo(batch, BATCH_SIZE - 1);
+				release(batch);
+				for (Hold h : batch){
+					this.queued.remove(h.bid);
+				}//end for
+			}catch(InterruptedException e){
+				return;
+			}catch(SQLException | RuntimeException e){
+				//the thread keeps running; the batch is tried again later
+				System.err.println("Releasing expired seat holds failed: " + e.getMessage());
+				retry(batch);
+			}//end try
+			batch.clear();
+		}//end while
+	}
+
+	//queues the holds of a failed batch again, backing off, or gives up on them
+	private void retry(List<Hold> batch){
+		int dropped = 0;
+		for (Hold h : batch){
+			if (h.retries >= MAX_RETRIES){
+				this.queued.remove(h.bid);
+				++dropped;
+			}else{
+				long delay = RETRY_MILLIS << h.retries;
+				this.queue.put(new Hold(h.bid, h.sid, System.currentTimeMillis() + delay, h.retries + 1));
+			}//end if
+		}//end for
+		if (dropped > 0){
+			System.err.println(dropped + " expired seat holds left for the next scheduleAllPending()");
+		}//end if
+	}
+
+	/**
+	 * Method to release a batch of expired holds in one transaction: their
+	 * seats are returned to inventory and the pending bookings deleted.
+	 * Bookings are locked first so a concurrent payment either wins before
+	 * the release or waits for it.
+	 *
+	 * @return the number of bookings released
+	 */
+	int release(List<Hold> batch) throws SQLException {
+		long[] bids = new long[batch.size()];
+		for (int i = 0; i < bids.length; ++i){
+			bids[i] = batch.get(i).bid;
+		}//end for
+		final String array = Ticketmaster.toArrayLiteral(bids);
+		final Set<Long> shows = new HashSet<Long>();
+		int released = this.esql.executeTransaction(Connection.TRANSACTION_READ_COMMITTED, tx -> {
+			shows.clear();
+			final List<Long> expired = new ArrayList<Long>();
+			tx.query(LOCK_PENDING_SQL, row -> {
+				expired.add(row.getLong(1));
+				shows.add(row.getLong(2));
+				return true;
+			}, array, "Pending");
+			if (expired.isEmpty()){
+				return 0;
+			}//end if
+			String locked = Ticketmaster.toArrayLiteral(expired);
+			this.esql.getOccupancy().subtract(tx, locked);
+			tx.update(PurgeJob.FREE_SEATS_SQL, locked);
+			tx.update(PurgeJob.DELETE_PAYMENTS_SQL, locked);
+			int deleted = tx.update(PurgeJob.DELETE_BOOKINGS_SQL, locked);
+			this.esql.getBookingHistory().refresh(tx, locked);
+			return deleted;
+		});
+		for (long sid : shows){
+			this.esql.getSeatAvailability().invalidate(sid);
+		}//end for
+		return released;
+	}
+}
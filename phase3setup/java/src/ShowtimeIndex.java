@@ -0,0 +1,450 @@
+import java.sql.SQLException;
+import java.time.LocalDate;
+import java.time.LocalTime;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.TreeMap;
+import java.util.concurrent.locks.ReentrantReadWriteLock;
+
+/**
+ * In-memory index of shows for the browse queries.  Shows are built once
+ * from Shows, Plays, Theaters and Movies and then kept up to date show by
+ * show as shows are added or removed.
+ *
+ * Shows are ordered by a single long key, seconds since the epoch of their
+ * date and start time.  The primary index keeps, per (cinema, movie), a
+ * sorted array of keys so a date range is two binary searches; the
+ * secondary index maps each key to the shows starting at that moment.
+ *
+ * The full build reads the tables without holding the lock, so reads of
+ * a previous index and show updates go on meanwhile, and swaps the result
+ * in.  Shows changed or removed while the build reads are recorded and
+ * read again once the new index is in place, since the build may have
+ * seen them before the change.
+ *
+ */
+
+public class ShowtimeIndex{
+	private static final long SECONDS_PER_DAY = 86400L;
+	//shows with the cinemas they play in, one row per (show, theater); a WHERE clause may follow
+	static final String LOAD_SQL = "SELECT S.sid, S.mvid, M.title, M.duration, S.sdate, S.sttime, S.edtime, T.cid "
+		+ "FROM Shows S JOIN Movies M ON M.mvid = S.mvid "
+		+ "LEFT JOIN Plays P ON P.sid = S.sid LEFT JOIN Theaters T ON T.tid = P.tid ";
+
+	/**
+	 * A show and the cinemas it plays in.
+	 */
+	public static class Show{
+		public final long sid;
+		public final long mvid;
+		public final String title;
+		public final int duration;
+		public final LocalDate sdate;
+		public final LocalTime sttime;
+		public final LocalTime edtime;
+		long[] cids = new long[0];
+
+		Show(long sid, long mvid, String title, int duration, LocalDate sdate, LocalTime sttime, LocalTime edtime){
+			this.sid = sid;
+			this.mvid = mvid;
+			this.title = title;
+			this.duration = duration;
+			this.sdate = sdate;
+			this.sttime = sttime;
+			this.edtime = edtime;
+		}
+
+		long key(){
+			return ShowtimeIndex.key(this.sdate, this.sttime);
+		}
+	}//end Show
+
+	//shows of one (cinema, movie), sorted by key
+	private static class ShowList{
+		long[] keys = new long[4];
+		Show[] shows = new Show[4];
+		int size = 0;
+
+		void insert(Show s){
+			long k = s.key();
+			int i = upperBound(k);
+			if (this.size == this.keys.length){
+				this.keys = Arrays.copyOf(this.keys, this.size * 2);
+				this.shows = Arrays.copyOf(this.shows, this.size * 2);
+			}//end if
+			System.arraycopy(this.keys, i, this.keys, i + 1, this.size - i);
+			System.arraycopy(this.shows, i, this.shows, i + 1, this.size - i);
+			this.keys[i] = k;
+			this.shows[i] = s;
+			++this.size;
+		}
+
+		void remove(Show s){
+			for (int i = lowerBound(s.key()); i < this.size && this.keys[i] == s.key(); ++i){
+				if (this.shows[i] == s){
+					System.arraycopy(this.keys, i + 1, this.keys, i, this.size - i - 1);
+					System.arraycopy(this.shows, i + 1, this.shows, i, this.size - i - 1);
+					this.shows[--this.size] = null;
+					return;
+				}//end if
+			}//end for
+		}
+
+		//first index whose key is >= k
+		int lowerBound(long k){
+			int lo = 0;
+			int hi = this.size;
+			while (lo < hi){
+				int mid = (lo + hi) >>> 1;
+				if (this.keys[mid] < k){
+					lo = mid + 1;
+				}else{
+					hi = mid;
+				}//end if
+			}//end while
+			return lo;
+		}
+
+		//first index whose key is > k
+		int upperBound(long k){
+			int lo = 0;
+			int hi = this.size;
+			while (lo < hi){
+				int mid = (lo + hi) >>> 1;
+				if (this.keys[mid] <= k){
+					lo = mid + 1;
+				}else{
+					hi = mid;
+				}//end if
+			}//end while
+			return lo;
+		}
+	}//end ShowList
+
+	private final Ticketmaster esql;
+	private final ReentrantReadWriteLock lock = new ReentrantReadWriteLock();
+	private final HashMap<Long, Show> bySid = new HashMap<Long, Show>();
+	private final HashMap<String, ShowList> byCinemaMovie = new HashMap<String, ShowList>();
+	private final TreeMap<Long, List<Show>> byStart = new TreeMap<Long, List<Show>>();
+	private final HashMap<String, List<Long>> mvidsByTitle = new HashMap<String, List<Long>>();
+	//indexed shows per movie, so a title is dropped with its last show
+	private final HashMap<Long, Integer> showsPerMovie = new HashMap<Long, Integer>();
+	private volatile boolean built = false;
+	//the rest is guarded by the write lock: a build is reading the tables,
+	//the shows changed meanwhile, and a count of invalidate() calls
+	private boolean building = false;
+	private final Set<Long> changedDuringBuild = new HashSet<Long>();
+	private long generation = 0;
+	//one build at a time
+	private final Object buildLock = new Object();
+
+	public ShowtimeIndex(Ticketmaster esql){
+		this.esql = esql;
+	}
+
+	static long key(LocalDate date, LocalTime time){
+		return date.toEpochDay() * SECONDS_PER_DAY + time.toSecondOfDay();
+	}
+
+	/**
+	 * Method to list the shows of a movie title at a cinema whose date falls
+	 * in a range.
+	 *
+	 * @param title the movie title
+	 * @param cid the cinema ID
+	 * @param from the first date, inclusive
+	 * @param to the last date, inclusive
+	 * @return the shows ordered by date and start time
+	 * @throws java.sql.SQLException when the index has to be built and that fails
+	 */
+	public List<Show> showsAtCinema(String title, long cid, LocalDate from, LocalDate to) throws SQLException {
+		ensureBuilt();
+		long lo = key(from, LocalTime.MIDNIGHT);
+		long hi = key(to, LocalTime.MIDNIGHT) + SECONDS_PER_DAY;
+		List<Show> result = new ArrayList<Show>();
+		boolean merge;
+		this.lock.readLock().lock();
+		try{
+			List<Long> mvids = this.mvidsByTitle.get(title);
+			if (mvids == null){
+				return result;
+			}//end if
+			//several movies can share a title; their lists are merged below
+			merge = mvids.size() > 1;
+			for (long mvid : mvids){
+				ShowList list = this.byCinemaMovie.get(cinemaMovie(cid, mvid));
+				if (list == null){
+					continue;
+				}//end if
+				for (int i = list.lowerBound(lo); i < list.size && list.keys[i] < hi; ++i){
+					result.add(list.shows[i]);
+				}//end for
+			}//end for
+		}finally{
+			this.lock.readLock().unlock();
+		}//end try
+		if (merge){
+			Collections.sort(result, (a, b) -> Long.compare(a.key(), b.key()));
+		}//end if
+		return result;
+	}
+
+	/**
+	 * Method to list the shows starting at a date and time.
+	 *
+	 * @return the shows, ordered by show ID
+	 * @throws java.sql.SQLException when the index has to be built and that fails
+	 */
+	public List<Show> showsStartingAt(LocalDate date, LocalTime time) throws SQLException {
+		ensureBuilt();
+		this.lock.readLock().lock();
+		try{
+			List<Show> shows = this.byStart.get(key(date, time));
+			return shows == null ? new ArrayList<Show>() : new ArrayList<Show>(shows);
+		}finally{
+			this.lock.readLock().unlock();
+		}//end try
+	}
+
+	/**
+	 * Method to (re)index a show after it or its Plays rows were written.
+	 *
+	 * @param sid the show ID
+	 * @throws java.sql.SQLException when the show cannot be read
+	 */
+	public void showChanged(long sid) throws SQLException {
+		if (!appliesNow(sid)){
+			return;
+		}//end if
+		Map<Long, Show> loaded = load("WHERE S.sid = ?", sid);
+		this.lock.writeLock().lock();
+		try{
+			remove(sid);
+			for (Show s : loaded.values()){
+				add(s);
+			}//end for
+		}finally{
+			this.lock.writeLock().unlock();
+		}//end try
+	}
+
+	/**
+	 * Method to drop a deleted show from the index.
+	 */
+	public void showRemoved(long sid){
+		this.lock.writeLock().lock();
+		try{
+			if (this.building){
+				this.changedDuringBuild.add(sid);
+			}//end if
+			remove(sid);
+		}finally{
+			this.lock.writeLock().unlock();
+		}//end try
+	}
+
+	/*
+	 * records a show changed while the index is not built, for the build
+	 * in progress to read again
+	 *
+	 * @return true when the index is built and the change applies to it
+	 */
+	private boolean appliesNow(long sid){
+		this.lock.writeLock().lock();
+		try{
+			if (this.built){
+				return true;
+			}//end if
+			if (this.building){
+				this.changedDuringBuild.add(sid);
+			}//end if
+			return false;
+		}finally{
+			this.lock.writeLock().unlock();
+		}//end try
+	}
+
+	/**
+	 * Method to throw the index away; it is rebuilt on next use.
+	 */
+	public void invalidate(){
+		this.lock.writeLock().lock();
+		try{
+			this.built = false;
+			++this.generation;
+			clear();
+		}finally{
+			this.lock.writeLock().unlock();
+		}//end try
+	}
+
+	public int size(){
+		this.lock.readLock().lock();
+		try{
+			return this.bySid.size();
+		}finally{
+			this.lock.readLock().unlock();
+		}//end try
+	}
+
+	private void ensureBuilt() throws SQLException {
+		synchronized (this.buildLock){
+			while (!this.built){
+				long started;
+				this.lock.writeLock().lock();
+				try{
+					this.building = true;
+					this.changedDuringBuild.clear();
+					started = this.generation;
+				}finally{
+					this.lock.writeLock().unlock();
+				}//end try
+				Map<Long, Show> loaded = null;
+				List<Long> replay = new ArrayList<Long>();
+				try{
+					loaded = load("");
+				}finally{
+					this.lock.writeLock().lock();
+					try{
+						this.building = false;
+						//an invalidate() during the read makes it start over
+						if (loaded != null && this.generation == started){
+							clear();
+							for (Show s : loaded.values()){
+								add(s);
+							}//end for
+							replay.addAll(this.changedDuringBuild);
+							this.built = true;
+						}//end if
+						this.changedDuringBuild.clear();
+					}finally{
+						this.lock.writeLock().unlock();
+					}//end try
+				}//end try
+				for (long sid : replay){
+					showChanged(sid);
+				}//end for
+			}//end while
+		}//end synchronized
+	}
+
+	//reads shows with the cinemas they play in, one row per (show, theater)
+	private Map<Long, Show> load(String where, Object... params) throws SQLException {
+		final HashMap<Long, Show> shows = new HashMap<Long, Show>();
+		this.esql.executeQueryOnPrimary(LOAD_SQL + where, Ticketmaster.DEFAULT_FETCH_SIZE, row -> {
+			long sid = row.getLong(1);
+			Show s = shows.get(sid);
+			if (s == null){
+				s = new Show(sid, row.getLong(2), row.getString(3), row.getInt(4),
+					row.getDate(5).toLocalDate(), row.getTime(6).toLocalTime(), row.getTime(7).toLocalTime());
+				shows.put(sid, s);
+			}//end if
+			long cid = row.getLong(8);
+			if (!row.wasNull()){
+				addCinema(s, cid);
+			}//end if
+			return true;
+		}, params);
+		return shows;
+	}
+
+	private static void addCinema(Show s, long cid){
+		for (long c : s.cids){
+			if (c == cid){
+				return;
+			}//end if
+		}//end for
+		s.cids = Arrays.copyOf(s.cids, s.cids.length + 1);
+		s.cids[s.cids.length - 1] = cid;
+	}
+
+	//callers hold the write lock
+	private void add(Show s){
+		this.bySid.put(s.sid, s);
+		List<Show> starting = this.byStart.get(s.key());
+		if (starting == null){
+			starting = new ArrayList<Show>(1);
+			this.byStart.put(s.key(), starting);
+		}//end if
+		int at = 0;
+		while (at < starting.size() && starting.get(at).sid < s.sid){
+			++at;
+		}//end while
+		starting.add(at, s);
+		Integer count = this.showsPerMovie.get(s.mvid);
+		this.showsPerMovie.put(s.mvid, count == null ? 1 : count + 1);
+		List<Long> mvids = this.mvidsByTitle.get(s.title);
+		if (mvids == null){
+			mvids = new ArrayList<Long>(1);
+			this.mvidsByTitle.put(s.title, mvids);
+		}//end if
+		if (!mvids.contains(s.mvid)){
+			mvids.add(s.mvid);
+		}//end if
+		for (long cid : s.cids){
+			String k = cinemaMovie(cid, s.mvid);
+			ShowList list = this.byCinemaMovie.get(k);
+			if (list == null){
+				list = new ShowList();
+				this.byCinemaMovie.put(k, list);
+			}//end if
+			list.insert(s);
+		}//end for
+	}
+
+	//callers hold the write lock
+	private void remove(long sid){
+		Show s = this.bySid.remove(sid);
+		if (s == null){
+			return;
+		}//end if
+		List<Show> starting = this.byStart.get(s.key());
+		if (starting != null){
+			starting.remove(s);
+			if (starting.isEmpty()){
+				this.byStart.remove(s.key());
+			}//end if
+		}//end if
+		for (long cid : s.cids){
+			String k = cinemaMovie(cid, s.mvid);
+			ShowList list = this.byCinemaMovie.get(k);
+			if (list != null){
+				list.remove(s);
+				if (list.size == 0){
+					this.byCinemaMovie.remove(k);
+				}//end if
+			}//end if
+		}//end for
+		Integer count = this.showsPerMovie.get(s.mvid);
+		if (count != null && count > 1){
+			this.showsPerMovie.put(s.mvid, count - 1);
+			return;
+		}//end if
+		this.showsPerMovie.remove(s.mvid);
+		List<Long> mvids = this.mvidsByTitle.get(s.title);
+		if (mvids != null){
+			mvids.remove(Long.valueOf(s.mvid));
+			if (mvids.isEmpty()){
+				this.mvidsByTitle.remove(s.title);
+			}//end if
+		}//end if
+	}
+
+	private void clear(){
+		this.bySid.clear();
+		this.byCinemaMovie.clear();
+		this.byStart.clear();
+		this.mvidsByTitle.clear();
+		this.showsPerMovie.clear();
+	}
+
+	private static String cinemaMovie(long cid, long mvid){
+		return cid + ":" + mvid;
+	}
+}
@@ -0,0 +1,83 @@
+import java.sql.Connection;
+import java.sql.PreparedStatement;
+import java.sql.SQLException;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+/**
+ * A per-connection LRU cache of PreparedStatements keyed by SQL text.  The
+ * cached statements stay open for the life of the connection, so callers
+ * must close their ResultSets but never the statement itself.  The driver
+ * switches a statement to a named server-side prepare once it has been
+ * executed prepareThreshold times, after which Postgres skips parsing and
+ * planning for it.
+ *
+ */
+
+public class StatementCache{
+	private final Connection connection;
+	private final int prepareThreshold;
+	private final LinkedHashMap<String, PreparedStatement> statements;
+
+	/**
+	 * @param connection the connection the statements are prepared on
+	 * @param capacity maximum number of statements kept open
+	 * @param prepareThreshold executions before the driver prepares server side
+	 */
+	public StatementCache(Connection connection, final int capacity, int prepareThreshold){
+		this.connection = connection;
+		this.prepareThreshold = prepareThreshold;
+		//access-ordered so the eldest entry is the least recently used
+		this.statements = new LinkedHashMap<String, PreparedStatement>(16, 0.75f, true){
+			protected boolean removeEldestEntry(Map.Entry<String, PreparedStatement> eldest){
+				if (size() > capacity){
+					closeQuietly(eldest.getValue());
+					return true;
+				}//end if
+				return false;
+			}
+		};
+	}
+
+	/**
+	 * Method to get the prepared statement for a SQL string, preparing and
+	 * caching it on first use.
+	 *
+	 * @param sql the SQL text with ? placeholders
+	 * @return an open statement with its parameters cleared
+	 * @throws java.sql.SQLException when the statement cannot be prepared
+	 */
+	public PreparedStatement prepare(String sql) throws SQLException {
+		PreparedStatement ps = this.statements.get(sql);
+		if (ps == null || ps.isClosed()){
+			ps = this.connection.prepareStatement(sql);
+			ps.unwrap(org.postgresql.PGStatement.class).setPrepareThreshold(this.prepareThreshold);
+			this.statements.put(sql, ps);
+		}else{
+			ps.clearParameters();
+		}//end if
+		return ps;
+	}
+
+	public int size(){
+		return this.statements.size();
+	}
+
+	/**
+	 * Method to close every cached statement.
+	 */
+	public void clear(){
+		for (PreparedStatement ps : this.statements.values()){
+			closeQuietly(ps);
+		}//end for
+		this.statements.clear();
+	}
+
+	private static void closeQuietly(PreparedStatement ps){
+		try{
+			ps.close();
+		}catch(SQLException e){
+			// ignored.
+		}//end try
+	}
+}
@@ -1,621 +1,1444 @@
-/*
- * Template JAVA User Interface
- * =============================
- *
- * Database Management Systems
- * Department of Computer Science &amp; Engineering
- * University of California - Riverside
- *
- * Target DBMS: 'Postgres'
- *
- */
-
-
-import java.sql.DriverManager;
-import java.sql.Connection;
-import java.sql.Statement;
-import java.sql.ResultSet;
-import java.sql.ResultSetMetaData;
-import java.sql.SQLException;
-import java.io.File;
-import java.io.FileReader;
-import java.io.BufferedReader;
-import java.io.InputStreamReader;
-import java.util.List;
-import java.util.ArrayList;
-import java.util.Scanner;
-
-/**
- * This class defines a simple embedded SQL utility class that is designed to
- * work with PostgreSQL JDBC drivers.
- *
- */
-
-public class Ticketmaster{
-	//reference to physical database connection
-	private Connection _connection = null;
-	static BufferedReader in = new BufferedReader(new InputStreamReader(System.in));
-	
-	public Ticketmaster(String dbname, String dbport, String user, String passwd) throws SQLException {
-		System.out.print("Connecting to database...");
-		try{
-			// constructs the connection URL
-			String url = "jdbc:postgresql://localhost:" + dbport + "/" + dbname;
-			System.out.println ("Connection URL: " + url + "\n");
-			
-			// obtain a physical connection
-	        this._connection = DriverManager.getConnection(url, user, passwd);
-	        System.out.println("Done");
-		}catch(Exception e){
-			System.err.println("Error - Unable to Connect to Database: " + e.getMessage());
-	        System.out.println("Make sure you started postgres on this machine");
-	        System.exit(-1);
-		}
-	}
-	
-	/**
-	 * Method to execute an update SQL statement.  Update SQL instructions
-	 * includes CREATE, INSERT, UPDATE, DELETE, and DROP.
-	 * 
-	 * @param sql the input SQL string
-	 * @throws java.sql.SQLException when update failed
-	 * */
-	public void executeUpdate (String sql) throws SQLException { 
-		// creates a statement object
-		Statement stmt = this._connection.createStatement ();
-
-		// issues the update instruction
-		stmt.executeUpdate (sql);
-
-		// close the instruction
-	    stmt.close ();
-	}//end executeUpdate
-
-	/**
-	 * Method to execute an input query SQL instruction (i.e. SELECT).  This
-	 * method issues the query to the DBMS and outputs the results to
-	 * standard out.
-	 * 
-	 * @param query the input query string
-	 * @return the number of rows returned
-	 * @throws java.sql.SQLException when failed to execute the query
-	 */
-	public int executeQueryAndPrintResult (String query) throws SQLException {
-		//creates a statement object
-		Statement stmt = this._connection.createStatement ();
-
-		//issues the query instruction
-		ResultSet rs = stmt.executeQuery (query);
-
-		/*
-		 *  obtains the metadata object for the returned result set.  The metadata
-		 *  contains row and column info.
-		 */
-		ResultSetMetaData rsmd = rs.getMetaData ();
-		int numCol = rsmd.getColumnCount ();
-		int rowCount = 0;
-		
-		//iterates through the result set and output them to standard out.
-		boolean outputHeader = true;
-		while (rs.next()){
-			if(outputHeader){
-				for(int i = 1; i <= numCol; i++){
-					System.out.print(rsmd.getColumnName(i) + "\t");
-			    }
-			    System.out.println();
-			    outputHeader = false;
-			}
-			for (int i=1; i<=numCol; ++i)
-				System.out.print (rs.getString (i) + "\t");
-			System.out.println ();
-			++rowCount;
-		}//end while
-		stmt.close ();
-		return rowCount;
-	}
-	
-	/**
-	 * Method to execute an input query SQL instruction (i.e. SELECT).  This
-	 * method issues the query to the DBMS and returns the results as
-	 * a list of records. Each record in turn is a list of attribute values
-	 * 
-	 * @param query the input query string
-	 * @return the query result as a list of records
-	 * @throws java.sql.SQLException when failed to execute the query
-	 */
-	public List<List<String>> executeQueryAndReturnResult (String query) throws SQLException { 
-		//creates a statement object 
-		Statement stmt = this._connection.createStatement (); 
-		
-		//issues the query instruction 
-		ResultSet rs = stmt.executeQuery (query); 
-	 
-		/*
-		 * obtains the metadata object for the returned result set.  The metadata 
-		 * contains row and column info. 
-		*/ 
-		ResultSetMetaData rsmd = rs.getMetaData (); 
-		int numCol = rsmd.getColumnCount (); 
-		int rowCount = 0; 
-	 
-		//iterates through the result set and saves the data returned by the query. 
-		boolean outputHeader = false;
-		List<List<String>> result  = new ArrayList<List<String>>(); 
-		while (rs.next()){
-			List<String> record = new ArrayList<String>(); 
-			for (int i=1; i<=numCol; ++i) 
-				record.add(rs.getString (i)); 
-			result.add(record); 
-		}//end while 
-		stmt.close (); 
-		return result; 
-	}//end executeQueryAndReturnResult
-	
-	/**
-	 * Method to execute an input query SQL instruction (i.e. SELECT).  This
-	 * method issues the query to the DBMS and returns the number of results
-	 * 
-	 * @param query the input query string
-	 * @return the number of rows returned
-	 * @throws java.sql.SQLException when failed to execute the query
-	 */
-	public int executeQuery (String query) throws SQLException {
-		//creates a statement object
-		Statement stmt = this._connection.createStatement ();
-
-		//issues the query instruction
-		ResultSet rs = stmt.executeQuery (query);
-
-		int rowCount = 0;
-
-		//iterates through the result set and count nuber of results.
-		if(rs.next()){
-			rowCount++;
-		}//end while
-		stmt.close ();
-		return rowCount;
-	}
-	
-	/**
-	 * Method to fetch the last value from sequence. This
-	 * method issues the query to the DBMS and returns the current 
-	 * value of sequence used for autogenerated keys
-	 * 
-	 * @param sequence name of the DB sequence
-	 * @return current value of a sequence
-	 * @throws java.sql.SQLException when failed to execute the query
-	 */
-	
-	public int getCurrSeqVal(String sequence) throws SQLException {
-		Statement stmt = this._connection.createStatement ();
-		
-		ResultSet rs = stmt.executeQuery (String.format("Select currval('%s')", sequence));
-		if (rs.next()) return rs.getInt(1);
-		return -1;
-	}
-
-	/**
-	 * Method to close the physical connection if it is open.
-	 */
-	public void cleanup(){
-		try{
-			if (this._connection != null){
-				this._connection.close ();
-			}//end if
-		}catch (SQLException e){
-	         // ignored.
-		}//end try
-	}//end cleanup
-
-	/**
-	 * The main execution method
-	 * 
-	 * @param args the command line arguments this inclues the <mysql|pgsql> <login file>
-	 */
-	public static void main (String[] args) {
-		if (args.length != 3) {
-			System.err.println (
-				"Usage: " + "java [-classpath <classpath>] " + Ticketmaster.class.getName () +
-		            " <dbname> <port> <user>");
-			return;
-		}//end if
-		
-		Ticketmaster esql = null;
-		
-		try{
-			System.out.println("(1)");
-			
-			try {
-				Class.forName("org.postgresql.Driver");
-			}catch(Exception e){
-
-				System.out.println("Where is your PostgreSQL JDBC Driver? " + "Include in your library path!");
-				e.printStackTrace();
-				return;
-			}
-			
-			System.out.println("(2)");
-			String dbname = args[0];
-			String dbport = args[1];
-			String user = args[2];
-			
-			esql = new Ticketmaster (dbname, dbport, user, "");
-			
-			boolean keepon = true;
-			while(keepon){
-				System.out.println("MAIN MENU");
-				System.out.println("---------");
-				System.out.println("1. Add User");
-				System.out.println("2. Add Booking");
-				System.out.println("3. Add Movie Showing for an Existing Theater");
-				System.out.println("4. Cancel Pending Bookings");
-				System.out.println("5. Change Seats Reserved for a Booking");
-				System.out.println("6. Remove a Payment");
-				System.out.println("7. Clear Cancelled Bookings");
-				System.out.println("8. Remove Shows on a Given Date");
-				System.out.println("9. List all Theaters in a Cinema Playing a Given Show");
-				System.out.println("10. List all Shows that Start at a Given Time and Date");
-				System.out.println("11. List Movie Titles Containing \"love\" Released After 2010");
-				System.out.println("12. List the First Name, Last Name, and Email of Users with a Pending Booking");
-				System.out.println("13. List the Title, Duration, Date, and Time of Shows Playing a Given Movie at a Given Cinema During a Date Range");
-				System.out.println("14. List the Movie Title, Show Date & Start Time, Theater Name, and Cinema Seat Number for all Bookings of a Given User");
-				System.out.println("15. EXIT");
-				
-				/*
-				 * FOLLOW THE SPECIFICATION IN THE PROJECT DESCRIPTION
-				 */
-				switch (readChoice()){
-					case 1: AddUser(esql); break;
-					case 2: AddBooking(esql); break;
-					case 3: AddMovieShowingToTheater(esql); break;
-					case 4: CancelPendingBookings(esql); break;
-					case 5: ChangeSeatsForBooking(esql); break;
-					case 6: RemovePayment(esql); break;
-					case 7: ClearCancelledBookings(esql); break;
-					case 8: RemoveShowsOnDate(esql); break;
-					case 9: ListTheatersPlayingShow(esql); break;
-					case 10: ListShowsStartingOnTimeAndDate(esql); break;
-					case 11: ListMovieTitlesContainingLoveReleasedAfter2010(esql); break;
-					case 12: ListUsersWithPendingBooking(esql); break;
-					case 13: ListMovieAndShowInfoAtCinemaInDateRange(esql); break;
-					case 14: ListBookingInfoForUser(esql); break;
-					case 15: keepon = false; break;
-				}
-			}
-		}catch(Exception e){
-			System.err.println (e.getMessage ());
-		}finally{
-			try{
-				if(esql != null) {
-					System.out.print("Disconnecting from database...");
-					esql.cleanup ();
-					System.out.println("Done\n\nBye !");
-				}//end if				
-			}catch(Exception e){
-				// ignored.
-			}
-		}
-	}
-
-	public static int readChoice() {
-		int input;
-		// returns only if a correct value is given.
-		do {
-			System.out.print("Please make your choice: ");
-			try { // read the integer, parse it and break.
-				input = Integer.parseInt(in.readLine());
-				break;
-			}catch (Exception e) {
-				System.out.println("Your input is invalid!");
-				continue;
-			}//end try
-		}while (true);
-		return input;
-	}//end readChoice
-	
-	public static void AddUser(Ticketmaster esql){//1
-		
-		Scanner scan = new Scanner(System.in);
-        String command = "INSERT INTO users(email, lname, fname, phone, pwd) VALUES (";
-
-
-        System.out.println("Please enter the following values: email, last name, first name, phone number, password");
-        command += scan.nextLine();
-
-        command+= ");";
-
-        try {
-                esql.executeUpdate(command);
-        } catch(Exception e) {
-                System.err.println (e.getMessage ());
-        }
-	}
-
-	
-	public static void AddBooking(Ticketmaster esql){//2
-		
-		Scanner scan = new Scanner(System.in);
-        String command = "INSERT INTO Bookings(bid, status, bdatetime, seats, sid, email) VALUES (";
-
-        System.out.println("Please enter the following values: booking id, status, date/time, seats, show ID, email");
-        command += scan.nextLine() + ");";                                                            
-        try {
-        	esql.executeUpdate(command);
-        } catch(Exception e) {                                                                                                
-        	System.err.println (e.getMessage ());
-        }
-		
-	}
-	
-	public static void AddMovieShowingToTheater(Ticketmaster esql){//3
-		Scanner scan = new Scanner(System.in);
-		String command;
-		int mvid;
-		String title;
-		String date;
-		String country;
-		String description;
-		int duration;
-		String language;
-		String genre;
-		
-		int sid;
-		String sDate;
-		String sTime;
-		String eTime;
-		
-		int tid;
-		
-		System.out.println("Please input the movie ID");
-		mvid = scan.nextInt();
-		
-		System.out.println("Please input the movie title");
-		title = scan.nextLine();
-		
-		System.out.println("Please input the movie release date");
-		date = scan.nextLine();
-		
-		System.out.println("Please input the movie's release country");
-		country = scan.nextLine();
-		
-		System.out.println("Please input the movie description");
-		description = scan.nextLine();
-		
-		System.out.println("Please input the movie duration in seconds");
-		duration = scan.nextInt();
-		
-		System.out.println("Please input the movie language code");
-		language = scan.nextLine();
-		
-		System.out.println("Please input the movie genre");
-		genre = scan.nextLine();
-		
-		System.out.println("Please enter the show ID");
-		sid = scan.nextInt();
-		
-		System.out.println("Please input the show date");
-		sDate = scan.nextLine();
-		
-		System.out.println("Please input the show start time");
-		sTime = scan.nextLine();
-		
-		System.out.println("Please input the show end time");
-		eTime = scan.nextLine();
-		
-		System.out.println("Please input the theater ID");
-		tid = scan.nextInt();
-		
-		command = "INSERT INTO Movies(mvid, title, rdate, country, description, duration, lang, genre) VALUES (";
-		command += mvid + ", '" + title + "', '" + date + "', '" + country + "', '" + description + "', " + duration + ", '" + language + "', '" + genre + "');";
-		
-		try {
-            esql.executeUpdate(command);
-		} catch(Exception e) {
-			System.err.println (e.getMessage ());
-    	}
-		
-		command = "INSERT INTO Shows(sid, mvid, sdate, sttime, edtime) VALUES (";
-		command += sid + ", " + mvid + ", '" + sDate + "', '" + sTime + "', '" + eTime + "');";
-		
-		try {
-            esql.executeUpdate(command);
-		} catch(Exception e) {
-			System.err.println (e.getMessage ());
-    	}
-		
-		command = "INSERT INTO Plays(sid, tid) VALUES (" + sid + ", " + tid + ");";
-		
-		try {
-            esql.executeUpdate(command);
-		} catch(Exception e) {
-			System.err.println (e.getMessage ());
-    	}
-	}
-	
-	public static void CancelPendingBookings(Ticketmaster esql){//4
-		String command = "DELETE FROM Bookings WHERE status = 'Pending';";
-		
-		try {
-            esql.executeUpdate(command);
-		} catch(Exception e) {
-			System.err.println (e.getMessage ());
-    	}
-		
-	}
-	
-	public static void ChangeSeatsForBooking(Ticketmaster esql) throws Exception{//5
-		
-	}
-	
-	public static void RemovePayment(Ticketmaster esql){//6
-		Scanner scan = new Scanner(System.in);
-        String command = "UPDATE Bookings SET status = 'Cancelled' WHERE bid = ";
-        int bid;
-
-        System.out.println("Please enter the booking id:");
-        bid = scan.nextInt();
-
-        command += bid;
-
-        try {
-                esql.executeUpdate(command);
-        } catch(Exception e) {
-                System.err.println (e.getMessage ());
-        }
-
-        command = "DELETE FROM Payment WHERE bid = " + bid + ";";
-
-        try {
-                esql.executeUpdate(command);
-        } catch(Exception e) {
-                System.err.println (e.getMessage ());
-        }
-		
-	}
-	
-	public static void ClearCancelledBookings(Ticketmaster esql){//7
-		String command = "DELETE FROM Bookings WHERE status = 'Cancelled';";
-		
-		try {
-            esql.executeUpdate(command);
-		} catch(Exception e) {
-    	System.err.println (e.getMessage ());
-    	}
-	}
-	
-	public static void RemoveShowsOnDate(Ticketmaster esql){//8
-		//DELETE FROM shows WHERE sdate = '1/1/2019'
-		String command = "DELETE FROM shows WHERE sdate = '";
-		Scanner scan = new Scanner(System.in);
-		
-		System.out.println("Please input the date");
-		command += scan.nextLine() + "';";
-		
-		try {
-            esql.executeUpdate(command);
-		} catch(Exception e) {
-    	System.err.println (e.getMessage ());
-    	}
-	}
-	
-	public static void ListTheatersPlayingShow(Ticketmaster esql){//9
-		//
-		//SELECT T.tname FROM theaters T, cinemas C, shows S, plays P 
-		//WHERE P.sid = 1 AND P.sid = S.sid AND P.tid = T.tid AND T.cid = C.cid;
-		
-		String command = "SELECT T.tname FROM theaters T, cinemas C, shows S, plays P WHERE P.sid = ";
-        Scanner scan = new Scanner(System.in);
-        int sid;
-
-        System.out.println("Please enter the show ID");
-        sid = scan.nextInt();
-
-        command += sid + " AND P.sid = S.sid AND P.tid = T.tid AND T.cid = C.cid;";
-
-        try {
-                esql.executeQueryAndPrintResult(command);
-        } catch(Exception e) {
-                System.err.println (e.getMessage ());
-        }
-	}
-	
-	public static void ListShowsStartingOnTimeAndDate(Ticketmaster esql){//10
-		//
-		 //SELECT * FROM shows WHERE sdate = '1/1/2009' AND sttime = '9:25';
-		
-		String command = "SELECT * FROM shows WHERE sdate = '";
-        Scanner scan = new Scanner(System.in);
-        String user_input;
-
-        System.out.println("Please enter the date in the format dd/mm/yyyy");
-        user_input = scan.nextLine();
-
-        command += user_input + "' AND sttime = '";
-
-        System.out.println("Please enter the time in the format hh:mm");
-        user_input = scan.nextLine();
-
-        command += user_input + "';";
-
-        System.out.println(command);
-
-        try {
-                esql.executeQueryAndPrintResult(command);
-        } catch(Exception e) {
-                System.err.println (e.getMessage ());
-        }
-		
-	}
-
-	public static void ListMovieTitlesContainingLoveReleasedAfter2010(Ticketmaster esql){//11
-		//
-		String command = "SELECT title FROM movies WHERE title LIKE '%Love%' AND rdate > '12/31/2010';";
-		
-		try {
-            esql.executeQueryAndPrintResult(command);
-		} catch(Exception e) {
-			System.err.println (e.getMessage ());
-    	}
-	}
-
-	public static void ListUsersWithPendingBooking(Ticketmaster esql){//12
-		//
-		String command = "SELECT U.fname, U.lname, U.email FROM users U, bookings B WHERE B.status = 'Pending' AND B.email = U.email;";
-		
-		try {
-            esql.executeQueryAndPrintResult(command);
-		} catch(Exception e) {
-			System.err.println (e.getMessage ());
-    	}
-	}
-
-	public static void ListMovieAndShowInfoAtCinemaInDateRange(Ticketmaster esql){//13
-		//
-		//SELECT M.title, M.duration, S.sdate, S.sttime FROM movies M, shows S, cinemas C, theaters T, plays P 
-		//WHERE M.title = 'Avatar' AND C.cid = '1' AND C.cid = T.cid AND T.tid = P.tid 
-		//AND S.sid = P.sid AND M.mvid = S.mvid 
-		//AND S.sdate >= '1/1/1997' AND S.sdate <= '1/1/2030';
-		Scanner scan = new Scanner(System.in);
-		String command = "SELECT M.title, M.duration, S.sdate, S.sttime FROM movies M, shows S, cinemas C, theaters T, plays P WHERE M.title = '";
-		int cid;
-		
-		System.out.println("Please enter the movie title:");
-		command += scan.nextLine() + "' AND C.cid = '";
-		
-		System.out.println("Please enter the cinema ID");
-		command += scan.nextLine() + "' AND C.cid = T.cid and T.tid = P.tid AND S.sid = P.sid AND M.mvid = S.mvid AND S.sdate >= '";
-			
-		System.out.println("Please enter the start date in the following format: dd/mm/yyyy");
-		command += scan.nextLine() + "' AND S.sdate <= '";
-		
-		System.out.println("Please enter the end date in the following format: dd/mm/yyyy");
-		command += scan.nextLine() + "';";
-		
-		try {
-            esql.executeQueryAndPrintResult(command);
-		} catch(Exception e) {
-			System.err.println (e.getMessage ());
-    	}
-		
-		//m.title,cid, date range 
-	}
-
-	public static void ListBookingInfoForUser(Ticketmaster esql){//14
-		//
-		//SELECT DISTINCT M.title, S.sdate, S.sttime, T.tname, C.sno FROM bookings B, movies M, shows S, theaters T, cinemaseats C, plays P  WHERE B.email = 'albertoscarlett@gmail.com' AND S.sid = B.bid AND P.tid = T.tid AND S.sid = P.sid;
-		
-		String command = "SELECT DISTINCT M.title, S.sdate, S.sttime, T.tname, C.sno FROM bookings B, movies M, shows S, theaters T, cinemaseats C, plays P  WHERE B.email = '";
-		Scanner scan = new Scanner(System.in);
-		String user;
-		
-		System.out.println("Please input the user's email");
-		command += scan.nextLine() + "' AND S.sid = B.bid AND P.tid = T.tid AND S.sid = P.sid;";
-		
-		try {
-            esql.executeQueryAndPrintResult(command);
-		} catch(Exception e) {
-			System.err.println (e.getMessage ());
-    	}
-	}
-	
-}
\ No newline at end of file
+/*
+ * Template JAVA User Interface
+ * =============================
+ *
+ * Database Management Systems
+ * Department of Computer Science &amp; Engineering
+ * University of California - Riverside
+ *
+ * Target DBMS: 'Postgres'
+ *
+ */
+
+
+import java.sql.Connection;
+import java.sql.Date;
+import java.sql.Statement;
+import java.sql.PreparedStatement;
+import java.sql.ResultSet;
+import java.sql.ResultSetMetaData;
+import java.sql.SQLException;
+import java.sql.Types;
+import java.io.File;
+import java.io.FileReader;
+import java.io.BufferedReader;
+import java.io.InputStreamReader;
+import java.io.IOException;
+import java.time.LocalDate;
+import java.time.LocalTime;
+import java.time.format.DateTimeFormatter;
+import java.time.format.DateTimeParseException;
+import java.util.List;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.HashSet;
+import java.util.Properties;
+import java.util.Set;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.stream.LongStream;
+
+/**
+ * This class defines a simple embedded SQL utility class that is designed to
+ * work with PostgreSQL JDBC drivers.
+ *
+ */
+
+public class Ticketmaster{
+	//rows fetched per round trip when streaming query results
+	static final int DEFAULT_FETCH_SIZE = Integer.getInteger("ticketmaster.fetchSize", 1000);
+	//retry policy for serialization failures and deadlocks
+	static final int MAX_TRANSACTION_ATTEMPTS = Integer.getInteger("ticketmaster.tx.attempts", 8);
+	private static final long BASE_BACKOFF_MILLIS = 2;
+	private static final long MAX_BACKOFF_MILLIS = 200;
+	//pool of physical database connections shared by all callers
+	private ConnectionPool _pool = null;
+	//read-only pools of the replicas the browse menus read from
+	private final ReplicaRouter _replicas = new ReplicaRouter();
+	//in-memory seat inventory per show
+	private final SeatAvailability _seats = new SeatAvailability(this);
+	//transactional booking path
+	private final BookingManager _bookings = new BookingManager(this);
+	//expiry of pending bookings
+	private final SeatHolds _holds = new SeatHolds(this);
+	//read-through cache of the catalog tables
+	private final CatalogCache _catalog = new CatalogCache(this);
+	//in-memory index of shows by cinema, movie and start time
+	private final ShowtimeIndex _showtimes = new ShowtimeIndex(this);
+	//in-memory word index of movies for menu 11
+	private final MovieSearch _search = new MovieSearch(this);
+	//write-behind batching of small writes
+	private final WriteBatcher _writes = new WriteBatcher(this);
+	//seats sold and revenue per show, theater and cinema
+	private final OccupancyStats _occupancy = new OccupancyStats(this);
+	//materialized bookings of each user, read by menu 14
+	private final BookingHistory _history = new BookingHistory(this);
+	//keyset-paginated listing menus
+	private final Listings _listings = new Listings(this);
+	//changes committed by other processes, for the caches and indexes above
+	private final ChangeFeed _feed = new ChangeFeed(this);
+	//asynchronous front end to the operations, created with the pool
+	private TicketmasterService _service = null;
+	//latency, row and error statistics of the statements run here
+	private final Metrics _metrics = new Metrics(this);
+	static BufferedReader in = new BufferedReader(new InputStreamReader(System.in));
+	
+	public Ticketmaster(String dbname, String dbport, String user, String passwd) throws SQLException {
+		System.out.print("Connecting to database...");
+		try{
+			// constructs the connection URL
+			String url = "jdbc:postgresql://localhost:" + dbport + "/" + dbname;
+			System.out.println ("Connection URL: " + url + "\n");
+			
+			Properties props = new Properties();
+			props.setProperty("user", user);
+			props.setProperty("password", passwd);
+			//JDBC batches of INSERTs go out as multi-row VALUES statements
+			props.setProperty("reWriteBatchedInserts", "true");
+			
+			// obtain a pool of physical connections
+			this._pool = new ConnectionPool(url, props,
+				Integer.getInteger("ticketmaster.pool.min", 1),
+				Integer.getInteger("ticketmaster.pool.max", 10),
+				Long.getLong("ticketmaster.pool.acquireTimeoutMs", 5000L),
+				Long.getLong("ticketmaster.pool.idleTimeoutMs", 300000L));
+			this._replicas.start(dbname, props,
+				Integer.getInteger("ticketmaster.pool.max", 10),
+				Long.getLong("ticketmaster.pool.acquireTimeoutMs", 5000L),
+				Long.getLong("ticketmaster.pool.idleTimeoutMs", 300000L));
+			this._service = new TicketmasterService(this);
+			this._metrics.start();
+			this._occupancy.start();
+			this._holds.start();
+			if (Boolean.getBoolean("ticketmaster.feed")){
+				subscribeCaches ();
+				this._feed.start ();
+			}//end if
+	        System.out.println("Done");
+		}catch(Exception e){
+			System.err.println("Error - Unable to Connect to Database: " + e.getMessage());
+	        System.out.println("Make sure you started postgres on this machine");
+	        System.exit(-1);
+		}
+	}
+	
+	/**
+	 * Method to execute an update SQL statement.  Update SQL instructions
+	 * includes CREATE, INSERT, UPDATE, DELETE, and DROP.
+	 * 
+	 * @param sql the input SQL string
+	 * @throws java.sql.SQLException when update failed
+	 * */
+	public void executeUpdate (String sql) throws SQLException { 
+		ConnectionPool.PooledConnection pc = this._pool.acquire ();
+		long start = System.nanoTime ();
+		// creates a statement object, closed with the try
+		try (Statement stmt = pc.getConnection ().createStatement ()){
+			// issues the update instruction
+			int count = stmt.executeUpdate (sql);
+			this._metrics.statement (sql, Metrics.NO_PARAMS, start, count);
+		}catch(SQLException e){
+			pc.failed (e);
+			this._metrics.failed (sql, Metrics.NO_PARAMS, start, e);
+			throw e;
+		}finally{
+			this._pool.release (pc);
+		}
+	}//end executeUpdate
+
+	//the pool queries go to: a replica inside a browse scope, the primary otherwise
+	private ConnectionPool readPool () {
+		ConnectionPool pool = this._replicas.route ();
+		return pool == null ? this._pool : pool;
+	}
+
+	/**
+	 * Method to execute an input query SQL instruction (i.e. SELECT).  This
+	 * method issues the query to the DBMS and outputs the results to
+	 * standard out.
+	 * 
+	 * @param query the input query string
+	 * @return the number of rows returned
+	 * @throws java.sql.SQLException when failed to execute the query
+	 */
+	public int executeQueryAndPrintResult (String query) throws SQLException {
+		ConnectionPool pool = readPool ();
+		ConnectionPool.PooledConnection pc = pool.acquire ();
+		long start = System.nanoTime ();
+		//creates a statement object and issues the query instruction
+		try (Statement stmt = pc.getConnection ().createStatement ();
+			ResultSet rs = stmt.executeQuery (query)){
+			int rowCount = printResult (rs);
+			this._metrics.statement (query, Metrics.NO_PARAMS, start, rowCount);
+			return rowCount;
+		}catch(SQLException e){
+			pc.failed (e);
+			this._metrics.failed (query, Metrics.NO_PARAMS, start, e);
+			throw e;
+		}finally{
+			pool.release (pc);
+		}
+	}
+	
+	/**
+	 * Method to execute an input query SQL instruction (i.e. SELECT).  This
+	 * method issues the query to the DBMS and returns the results as
+	 * a list of records. Each record in turn is a list of attribute values
+	 * 
+	 * @param query the input query string
+	 * @return the query result as a list of records
+	 * @throws java.sql.SQLException when failed to execute the query
+	 */
+	public List<List<String>> executeQueryAndReturnResult (String query) throws SQLException { 
+		ConnectionPool pool = readPool ();
+		ConnectionPool.PooledConnection pc = pool.acquire ();
+		long start = System.nanoTime ();
+		//creates a statement object and issues the query instruction
+		try (Statement stmt = pc.getConnection ().createStatement ();
+			ResultSet rs = stmt.executeQuery (query)){
+			List<List<String>> result = collectResult (rs);
+			this._metrics.statement (query, Metrics.NO_PARAMS, start, result.size ());
+			return result; 
+		}catch(SQLException e){
+			pc.failed (e);
+			this._metrics.failed (query, Metrics.NO_PARAMS, start, e);
+			throw e;
+		}finally{
+			pool.release (pc);
+		}
+	}//end executeQueryAndReturnResult
+	
+	/**
+	 * Method to execute an input query SQL instruction (i.e. SELECT).  This
+	 * method issues the query to the DBMS and returns the number of results
+	 * 
+	 * @param query the input query string
+	 * @return the number of rows returned
+	 * @throws java.sql.SQLException when failed to execute the query
+	 */
+	public int executeQuery (String query) throws SQLException {
+		ConnectionPool pool = readPool ();
+		ConnectionPool.PooledConnection pc = pool.acquire ();
+		long start = System.nanoTime ();
+		//creates a statement object and issues the query instruction
+		try (Statement stmt = pc.getConnection ().createStatement ();
+			ResultSet rs = stmt.executeQuery (query)){
+			int rowCount = 0;
+
+			//iterates through the result set and count nuber of results.
+			if(rs.next()){
+				rowCount++;
+			}//end while
+			this._metrics.statement (query, Metrics.NO_PARAMS, start, rowCount);
+			return rowCount;
+		}catch(SQLException e){
+			pc.failed (e);
+			this._metrics.failed (query, Metrics.NO_PARAMS, start, e);
+			throw e;
+		}finally{
+			pool.release (pc);
+		}
+	}
+	
+	/**
+	 * Method to execute a parameterized update SQL statement.  The statement
+	 * is prepared once per connection and reused from the statement cache;
+	 * each ? placeholder is bound to the matching entry of params.
+	 * 
+	 * @param sql the input SQL string with ? placeholders
+	 * @param params the values bound to the placeholders, in order
+	 * @return the number of rows affected
+	 * @throws java.sql.SQLException when update failed
+	 * */
+	public int executeUpdate (String sql, Object... params) throws SQLException {
+		ConnectionPool.PooledConnection pc = this._pool.acquire ();
+		long start = System.nanoTime ();
+		try{
+			PreparedStatement stmt = pc.prepare (sql);
+			bind (stmt, params);
+			int count = stmt.executeUpdate ();
+			this._metrics.statement (sql, params, start, count);
+			return count;
+		}catch(SQLException e){
+			pc.failed (e);
+			this._metrics.failed (sql, params, start, e);
+			throw e;
+		}finally{
+			this._pool.release (pc);
+		}
+	}//end executeUpdate
+
+	/**
+	 * Method to execute a parameterized query and output the results to
+	 * standard out.  Rows are streamed through a cursor, so the whole result
+	 * is never held in memory.
+	 * 
+	 * @param query the input query string with ? placeholders
+	 * @param params the values bound to the placeholders, in order
+	 * @return the number of rows returned
+	 * @throws java.sql.SQLException when failed to execute the query
+	 */
+	public int executeQueryAndPrintResult (String query, Object... params) throws SQLException {
+		final boolean[] outputHeader = { true };
+		final StringBuilder sb = output ();
+		long rowCount = executeQueryStreaming (query, DEFAULT_FETCH_SIZE, row -> {
+			int numCol = row.getColumnCount ();
+			if(outputHeader[0]){
+				for(int i = 1; i <= numCol; i++){
+					sb.append(row.getColumnName(i)).append('\t');
+				}
+				sb.append('\n');
+				outputHeader[0] = false;
+			}
+			for (int i=1; i<=numCol; ++i)
+				sb.append (row.getString (i)).append ('\t');
+			sb.append ('\n');
+			flushOutput (sb, false);
+			return true;
+		}, params);
+		flushOutput (sb, true);
+		return (int) rowCount;
+	}
+
+	/**
+	 * Method to execute a parameterized query and hand each row to a
+	 * callback as it arrives.  With a positive fetchSize the query runs
+	 * inside a read-only transaction so the driver fetches fetchSize rows at
+	 * a time from a server-side cursor instead of buffering the entire
+	 * result, which keeps memory constant for scans of any size.  A
+	 * connection of the primary is set back to read-write afterwards; one of
+	 * a replica pool is read-only anyway and stays so.  A fetchSize of 0
+	 * skips the cursor and its transaction, which is cheaper for lookups
+	 * that return a handful of rows.
+	 * 
+	 * @param query the input query string with ? placeholders
+	 * @param fetchSize number of rows fetched per round trip, or 0 for all at once
+	 * @param handler called once per row; returning false stops the scan
+	 * @param params the values bound to the placeholders, in order
+	 * @return the number of rows handed to the handler
+	 * @throws java.sql.SQLException when failed to execute the query
+	 */
+	public long executeQueryStreaming (String query, int fetchSize, RowHandler handler, Object... params) throws SQLException {
+		ConnectionPool pool = readPool ();
+		ConnectionPool.PooledConnection pc = pool.acquire ();
+		long start = System.nanoTime ();
+		//whether this call made the connection read-only
+		boolean madeReadOnly = false;
+		try{
+			//the driver only uses a cursor when autocommit is off
+			if (fetchSize > 0){
+				Connection conn = pc.getConnection ();
+				madeReadOnly = !conn.isReadOnly ();
+				if (madeReadOnly)
+					conn.setReadOnly (true);
+				conn.setAutoCommit (false);
+			}
+			PreparedStatement stmt = pc.prepare (query);
+			bind (stmt, params);
+			stmt.setFetchSize (fetchSize);
+			try (ResultSet rs = stmt.executeQuery ()){
+				ResultRow row = new ResultRow (rs);
+				long rowCount = 0;
+				while (rs.next ()){
+					++rowCount;
+					if (!handler.handle (row))
+						break;
+				}//end while
+				this._metrics.statement (query, params, start, rowCount);
+				return rowCount;
+			}finally{
+				stmt.setFetchSize (0);
+			}
+		}catch(SQLException e){
+			pc.failed (e);
+			this._metrics.failed (query, params, start, e);
+			throw e;
+		}finally{
+			//ends the read-only transaction and restores autocommit
+			if (madeReadOnly)
+				endReadOnly (pc);
+			pool.release (pc);
+		}
+	}
+
+	//ends the transaction of a stream so the connection can be set read-write again
+	private static void endReadOnly (ConnectionPool.PooledConnection pc) {
+		try{
+			Connection conn = pc.getConnection ();
+			if (conn.isClosed ())
+				return;
+			if (!conn.getAutoCommit ()){
+				conn.rollback ();
+				conn.setAutoCommit (true);
+			}
+			conn.setReadOnly (false);
+		}catch(SQLException e){
+			pc.failed (e);
+		}
+	}
+
+	/**
+	 * Method to stream a query on the primary even inside a browse scope,
+	 * for the caches and indexes that outlive the operation filling them:
+	 * filled from a lagging replica they would keep its stale rows, since
+	 * the change feed has already invalidated them for the newer ones.
+	 *
+	 * @see #executeQueryStreaming(String, int, RowHandler, Object...)
+	 */
+	public long executeQueryOnPrimary (String query, int fetchSize, RowHandler handler, Object... params) throws SQLException {
+		ReplicaRouter.Scope route = this._replicas.use (null);
+		try{
+			return executeQueryStreaming (query, fetchSize, handler, params);
+		}finally{
+			route.close ();
+		}
+	}
+
+	/**
+	 * Method to execute a parameterized query and return the results as a
+	 * list of records.
+	 * 
+	 * @param query the input query string with ? placeholders
+	 * @param params the values bound to the placeholders, in order
+	 * @return the query result as a list of records
+	 * @throws java.sql.SQLException when failed to execute the query
+	 */
+	public List<List<String>> executeQueryAndReturnResult (String query, Object... params) throws SQLException {
+		ConnectionPool pool = readPool ();
+		ConnectionPool.PooledConnection pc = pool.acquire ();
+		long start = System.nanoTime ();
+		try{
+			PreparedStatement stmt = pc.prepare (query);
+			bind (stmt, params);
+			try (ResultSet rs = stmt.executeQuery ()){
+				List<List<String>> result = collectResult (rs);
+				this._metrics.statement (query, params, start, result.size ());
+				return result;
+			}
+		}catch(SQLException e){
+			pc.failed (e);
+			this._metrics.failed (query, params, start, e);
+			throw e;
+		}finally{
+			pool.release (pc);
+		}
+	}//end executeQueryAndReturnResult
+
+	/**
+	 * Method to execute a parameterized query and return whether it produced
+	 * a row (1) or not (0).
+	 * 
+	 * @param query the input query string with ? placeholders
+	 * @param params the values bound to the placeholders, in order
+	 * @return the number of rows returned, at most 1
+	 * @throws java.sql.SQLException when failed to execute the query
+	 */
+	public int executeQuery (String query, Object... params) throws SQLException {
+		ConnectionPool pool = readPool ();
+		ConnectionPool.PooledConnection pc = pool.acquire ();
+		long start = System.nanoTime ();
+		try{
+			PreparedStatement stmt = pc.prepare (query);
+			bind (stmt, params);
+			try (ResultSet rs = stmt.executeQuery ()){
+				int rowCount = rs.next () ? 1 : 0;
+				this._metrics.statement (query, params, start, rowCount);
+				return rowCount;
+			}
+		}catch(SQLException e){
+			pc.failed (e);
+			this._metrics.failed (query, params, start, e);
+			throw e;
+		}finally{
+			pool.release (pc);
+		}
+	}
+
+	/**
+	 * Method to run several statements as one transaction.  The body runs on
+	 * a single pooled connection with autocommit off and is committed when
+	 * it returns, unless it called setRollbackOnly(); any exception rolls it
+	 * back.  Serialization failures and
+	 * deadlocks (SQLState 40001, 40P01) are retried up to
+	 * MAX_TRANSACTION_ATTEMPTS times with jittered exponential backoff, so
+	 * the body must be safe to run again.
+	 * 
+	 * @param isolation a java.sql.Connection TRANSACTION_* level
+	 * @param body the statements to run
+	 * @return the value returned by the body
+	 * @throws java.sql.SQLException when the transaction fails or runs out of retries
+	 */
+	public <T> T executeTransaction (int isolation, TransactionBody<T> body) throws SQLException {
+		for (int attempt = 1; ; ++attempt){
+			ConnectionPool.PooledConnection pc = this._pool.acquire ();
+			try{
+				Connection conn = pc.getConnection ();
+				conn.setAutoCommit (false);
+				conn.setTransactionIsolation (isolation);
+				Transaction tx = new Transaction (pc, this._metrics);
+				T result = body.run (tx);
+				if (tx.isRollbackOnly ())
+					conn.rollback ();
+				else
+					commit (conn);
+				return result;
+			}catch(SQLException e){
+				pc.failed (e);
+				if (!isRetryable (e) || attempt >= MAX_TRANSACTION_ATTEMPTS)
+					throw e;
+				this._metrics.retried ();
+			}finally{
+				endTransaction (pc);
+			}
+			backoff (attempt);
+		}//end for
+	}
+
+	//serialization failures often surface only at commit, so it is timed like a statement
+	private void commit (Connection conn) throws SQLException {
+		long start = System.nanoTime ();
+		try{
+			conn.commit ();
+			this._metrics.statement ("COMMIT", Metrics.NO_PARAMS, start, 0);
+		}catch(SQLException e){
+			this._metrics.failed ("COMMIT", Metrics.NO_PARAMS, start, e);
+			throw e;
+		}
+	}
+
+	//rolls back anything left open and restores the default isolation level
+	private void endTransaction (ConnectionPool.PooledConnection pc) {
+		try{
+			Connection conn = pc.getConnection ();
+			if (!conn.isClosed () && !conn.getAutoCommit ()){
+				conn.rollback ();
+				conn.setTransactionIsolation (Connection.TRANSACTION_READ_COMMITTED);
+			}//end if
+		}catch(SQLException e){
+			pc.failed (e);
+		}finally{
+			this._pool.release (pc);
+		}
+	}
+
+	static boolean isRetryable (SQLException e) {
+		return "40001".equals (e.getSQLState ()) || "40P01".equals (e.getSQLState ());
+	}
+
+	//sleeps between 0 and BASE_BACKOFF_MILLIS * 2^attempt, capped
+	private static void backoff (int attempt) throws SQLException {
+		long ceiling = Math.min (MAX_BACKOFF_MILLIS, BASE_BACKOFF_MILLIS << attempt);
+		try{
+			Thread.sleep (ThreadLocalRandom.current ().nextLong (ceiling + 1));
+		}catch(InterruptedException e){
+			Thread.currentThread ().interrupt ();
+			throw new SQLException ("Interrupted while retrying transaction", "40001", e);
+		}
+	}
+
+	//binds params to the ? placeholders of stmt, in order
+	static void bind (PreparedStatement stmt, Object[] params) throws SQLException {
+		for (int i = 0; i < params.length; ++i){
+			if (params[i] == null)
+				stmt.setNull (i + 1, Types.NULL);
+			else
+				stmt.setObject (i + 1, params[i]);
+		}//end for
+	}
+
+	/*
+	 * outputs every row of rs to standard out, preceded by a header line with
+	 * the column names when there is at least one row.
+	 */
+	private static int printResult (ResultSet rs) throws SQLException {
+		/*
+		 *  obtains the metadata object for the returned result set.  The metadata
+		 *  contains row and column info.
+		 */
+		ResultSetMetaData rsmd = rs.getMetaData ();
+		int numCol = rsmd.getColumnCount ();
+		int rowCount = 0;
+		
+		//iterates through the result set and output them to standard out.
+		StringBuilder sb = output ();
+		boolean outputHeader = true;
+		while (rs.next()){
+			if(outputHeader){
+				for(int i = 1; i <= numCol; i++){
+					sb.append(rsmd.getColumnName(i)).append('\t');
+			    }
+			    sb.append('\n');
+			    outputHeader = false;
+			}
+			for (int i=1; i<=numCol; ++i)
+				sb.append (rs.getString (i)).append ('\t');
+			sb.append ('\n');
+			flushOutput (sb, false);
+			++rowCount;
+		}//end while
+		flushOutput (sb, true);
+		return rowCount;
+	}
+
+	/*
+	 * rows are printed through a buffer kept per thread and reused from one
+	 * listing to the next, and written to standard out a block at a time
+	 * instead of one print per cell.
+	 */
+	private static final int OUTPUT_BLOCK = 8192;
+	private static final ThreadLocal<StringBuilder> OUTPUT =
+		ThreadLocal.withInitial (() -> new StringBuilder (OUTPUT_BLOCK * 2));
+
+	//the calling thread's output buffer, emptied
+	private static StringBuilder output () {
+		StringBuilder sb = OUTPUT.get ();
+		sb.setLength (0);
+		return sb;
+	}
+
+	//writes the buffer out once it holds a block, and always when done
+	private static void flushOutput (StringBuilder sb, boolean done) {
+		if (done || sb.length () >= OUTPUT_BLOCK){
+			System.out.print (sb);
+			sb.setLength (0);
+		}
+		//a listing with huge values should not pin its buffer
+		if (done && sb.capacity () > OUTPUT_BLOCK * 16)
+			OUTPUT.remove ();
+	}
+
+	//saves every row of rs as a list of attribute values
+	private static List<List<String>> collectResult (ResultSet rs) throws SQLException {
+		ResultSetMetaData rsmd = rs.getMetaData (); 
+		int numCol = rsmd.getColumnCount (); 
+		List<List<String>> result  = new ArrayList<List<String>>(); 
+		while (rs.next()){
+			List<String> record = new ArrayList<String>(); 
+			for (int i=1; i<=numCol; ++i) 
+				record.add(rs.getString (i)); 
+			result.add(record); 
+		}//end while 
+		return result;
+	}
+	
+	/**
+	 * Method to format ids as a Postgres array literal, for binding to
+	 * CAST(? AS bigint[]) so a whole set of ids travels as one parameter.
+	 * 
+	 * @param values the ids
+	 * @return the literal, e.g. {1,2,3}
+	 */
+	public static String toArrayLiteral (long[] values) {
+		StringBuilder sb = new StringBuilder (values.length * 8 + 2);
+		sb.append ('{');
+		for (int i = 0; i < values.length; ++i){
+			if (i > 0)
+				sb.append (',');
+			sb.append (values[i]);
+		}//end for
+		return sb.append ('}').toString ();
+	}
+
+	public static String toArrayLiteral (Collection<Long> values) {
+		long[] ids = new long[values.size ()];
+		int i = 0;
+		for (long id : values)
+			ids[i++] = id;
+		return toArrayLiteral (ids);
+	}
+
+	//for CAST(? AS integer[]), e.g. seat numbers
+	public static String toArrayLiteral (int[] values) {
+		StringBuilder sb = new StringBuilder (values.length * 4 + 2);
+		sb.append ('{');
+		for (int i = 0; i < values.length; ++i){
+			if (i > 0)
+				sb.append (',');
+			sb.append (values[i]);
+		}//end for
+		return sb.append ('}').toString ();
+	}
+
+	public SeatAvailability getSeatAvailability () {
+		return this._seats;
+	}
+
+	public BookingManager getBookingManager () {
+		return this._bookings;
+	}
+
+	public SeatHolds getSeatHolds () {
+		return this._holds;
+	}
+
+	public CatalogCache getCatalog () {
+		return this._catalog;
+	}
+
+	public ShowtimeIndex getShowtimeIndex () {
+		return this._showtimes;
+	}
+
+	public MovieSearch getMovieSearch () {
+		return this._search;
+	}
+
+	public WriteBatcher getWriteBatcher () {
+		return this._writes;
+	}
+
+	public TicketmasterService getService () {
+		return this._service;
+	}
+
+	public OccupancyStats getOccupancy () {
+		return this._occupancy;
+	}
+
+	public BookingHistory getBookingHistory () {
+		return this._history;
+	}
+
+	public ReplicaRouter getReplicas () {
+		return this._replicas;
+	}
+
+	public ChangeFeed getChangeFeed () {
+		return this._feed;
+	}
+
+	public Listings getListings () {
+		return this._listings;
+	}
+
+	public Metrics getMetrics () {
+		return this._metrics;
+	}
+
+	ConnectionPool getPool () {
+		return this._pool;
+	}
+
+	//the most connections the pool opens
+	public int getPoolSize () {
+		return this._pool.getMaxSize ();
+	}
+
+	//writes of menus 1, 3 and 6
+	static final String INSERT_USER_SQL =
+		"INSERT INTO Users(email, lname, fname, phone, pwd) VALUES (?, ?, ?, ?, ?)";
+	/*
+	 * menu 3 in one statement: the movie unless it exists, the show, its
+	 * Plays rows, a ShowSeats row for every seat of its theaters, its
+	 * show_stats row and the deltas adding its seats to the occupancy
+	 * rollups, unless a show whose times overlap already plays in
+	 * one of the theaters.  A show whose end time is not after its start
+	 * time ends on the next day, so shows of the day before and the day
+	 * after are checked too.  Selects the number of shows added, 0 on a
+	 * conflict.
+	 * params: mvid, title, rdate, country, description, duration, lang,
+	 * genre, sid, sdate, sttime, edtime, seat price, bigint[] literal of
+	 * theater IDs
+	 */
+	static final String SCHEDULE_SHOW_SQL =
+		"WITH arg AS (SELECT CAST(? AS bigint) AS mvid, CAST(? AS varchar) AS title, CAST(? AS date) AS rdate, "
+		+ "CAST(? AS varchar) AS country, CAST(? AS text) AS description, CAST(? AS integer) AS duration, "
+		+ "CAST(? AS char(2)) AS lang, CAST(? AS varchar) AS genre, CAST(? AS bigint) AS sid, CAST(? AS date) AS sdate, "
+		+ "CAST(? AS time) AS sttime, CAST(? AS time) AS edtime, CAST(? AS real) AS price, CAST(? AS bigint[]) AS tids), "
+		+ "span AS (SELECT sdate + sttime AS starts, sdate + edtime "
+		+ "+ CASE WHEN edtime <= sttime THEN interval '1 day' ELSE interval '0' END AS ends FROM arg), "
+		+ "conflict AS (SELECT 1 FROM arg, span, Shows S, Plays P WHERE S.sdate BETWEEN arg.sdate - 1 AND arg.sdate + 1 "
+		+ "AND S.sdate + S.sttime < span.ends "
+		+ "AND S.sdate + S.edtime + CASE WHEN S.edtime <= S.sttime THEN interval '1 day' ELSE interval '0' END > span.starts "
+		+ "AND P.sid = S.sid AND P.tid = ANY(arg.tids) LIMIT 1), "
+		+ "movie AS (INSERT INTO Movies(mvid, title, rdate, country, description, duration, lang, genre) "
+		+ "SELECT mvid, title, rdate, country, description, duration, lang, genre FROM arg "
+		+ "WHERE NOT EXISTS (SELECT 1 FROM conflict) ON CONFLICT (mvid) DO NOTHING), "
+		+ "show AS (INSERT INTO Shows(sid, mvid, sdate, sttime, edtime) SELECT sid, mvid, sdate, sttime, edtime FROM arg "
+		+ "WHERE NOT EXISTS (SELECT 1 FROM conflict) RETURNING sid), "
+		+ "plays AS (INSERT INTO Plays(sid, tid) SELECT show.sid, T.tid FROM show, arg, unnest(arg.tids) AS T(tid)), "
+		+ "seats AS (INSERT INTO ShowSeats(ssid, sid, csid, bid, price) "
+		+ "SELECT nextval('showseats_ssid_seq'), show.sid, CS.csid, NULL, arg.price FROM show, arg, CinemaSeats CS "
+		+ "WHERE CS.tid = ANY(arg.tids) RETURNING csid), "
+		+ "stats AS (INSERT INTO show_stats(sid, seats_total, seats_sold, seats_held, bookings, revenue) "
+		+ "SELECT show.sid, 0, 0, 0, 0, 0 FROM show), "
+		+ "deltas AS (INSERT INTO occupancy_deltas(sid, tid, cid, seats_total, seats_sold, seats_held, bookings, revenue) "
+		+ "SELECT show.sid, T.tid, T.cid, COUNT(*), 0, 0, 0, 0 FROM show, seats, CinemaSeats CS, Theaters T "
+		+ "WHERE CS.csid = seats.csid AND T.tid = CS.tid GROUP BY show.sid, T.tid, T.cid) "
+		+ "SELECT COUNT(*) FROM show";
+	static final String CANCEL_BOOKING_SQL = "UPDATE Bookings SET status = 'Cancelled' WHERE bid = ?";
+	static final String DELETE_PAYMENT_SQL = "DELETE FROM Payments WHERE bid = ?";
+
+	/**
+	 * Method to add a user account.
+	 *
+	 * @throws java.sql.SQLException when the insert fails, e.g. the email is taken
+	 */
+	public void addUser (String email, String lname, String fname, long phone, String pwd) throws SQLException {
+		executeUpdate (INSERT_USER_SQL, email, lname, fname, phone, pwd);
+	}
+
+	/**
+	 * Method to schedule a show of a movie in one or more theaters, with a
+	 * seat for sale for every seat of the theaters.  The movie is added
+	 * first unless a movie with its ID already exists.  Everything is
+	 * written by one statement in one transaction, so either all of it is
+	 * added or none of it.
+	 *
+	 * The overlap check reads the shows of the date and the days around it
+	 * through shows_sdate_sttime_idx.  The transaction is serializable, so
+	 * of two overlapping shows scheduled at the same time one fails with a
+	 * serialization error; it is retried and then sees the other.
+	 *
+	 * @param m the movie
+	 * @param sdate the show date, in any format Postgres accepts for a date
+	 * @param sttime the start time
+	 * @param edtime the end time, on the next day when it is before the
+	 *        start time
+	 * @param price the price of every seat
+	 * @param tids the theaters
+	 * @return false when a theater already has a show at an overlapping time
+	 * @throws java.sql.SQLException when the show cannot be added, e.g. its
+	 *         ID is taken or a theater does not exist
+	 */
+	public boolean addMovieShowing (CatalogCache.Movie m, long sid, String sdate, String sttime, String edtime, double price,
+			long... tids) throws SQLException {
+		long[] theaters = LongStream.of (tids).distinct ().sorted ().toArray ();
+		if (theaters.length == 0)
+			throw new IllegalArgumentException ("A show needs at least one theater");
+		if (parseTime (sttime).equals (parseTime (edtime)))
+			throw new IllegalArgumentException ("A show cannot end at the time it starts");
+		try{
+			return executeTransaction (Connection.TRANSACTION_SERIALIZABLE, tx ->
+				tx.queryLong (SCHEDULE_SHOW_SQL, m.mvid, m.title, m.rdate, m.country, m.description, m.duration,
+					m.lang, m.genre, sid, sdate, sttime, edtime, price, toArrayLiteral (theaters)) > 0);
+		}finally{
+			showingChanged (m.mvid, sid);
+		}
+	}
+
+	//makes the caches and the indexes see a show added for a movie
+	void showingChanged (long mvid, long sid) {
+		this._catalog.showChanged (sid);
+		try{
+			this._showtimes.showChanged (sid);
+		}catch(SQLException e){
+			this._showtimes.invalidate ();
+		}
+		try{
+			this._search.movieChanged (mvid);
+		}catch(SQLException e){
+			this._search.invalidate ();
+		}
+	}
+
+	//keeps the caches and the indexes in step with other processes through the change feed
+	private void subscribeCaches () {
+		this._feed.subscribe (new ChangeFeed.Subscriber () {
+			public void changed (List<ChangeFeed.Change> batch) throws SQLException {
+				applyChanges (batch);
+			}
+
+			public void reset () {
+				_seats.invalidateAll ();
+				_catalog.invalidateAll ();
+				_showtimes.invalidate ();
+				_search.invalidate ();
+			}
+		});
+	}
+
+	/*
+	 * Seat maps are dropped and reloaded on next use.  Shows and movies are
+	 * reindexed one by one, unless a batch touches more than
+	 * MAX_REINDEX of them; then the index is rebuilt on next use.
+	 */
+	private static final int MAX_REINDEX = 64;
+
+	void applyChanges (List<ChangeFeed.Change> batch) throws SQLException {
+		Set<Long> shows = new HashSet<Long>();
+		Set<Long> movies = new HashSet<Long>();
+		boolean titles = false;
+		for (ChangeFeed.Change c : batch){
+			switch (c.table){
+			case "showseats":
+				for (long sid : c.keys){
+					this._seats.invalidate (sid);
+				}//end for
+				break;
+			case "shows":
+			case "plays":
+				for (long sid : c.keys){
+					shows.add (sid);
+				}//end for
+				break;
+			case "movies":
+				for (long mvid : c.keys){
+					movies.add (mvid);
+				}//end for
+				//the showtime index holds titles
+				titles |= !c.op.equals ("INSERT");
+				break;
+			default:
+				break;
+			}//end switch
+		}//end for
+		for (long sid : shows){
+			this._catalog.showChanged (sid);
+		}//end for
+		if (titles || shows.size () > MAX_REINDEX){
+			this._showtimes.invalidate ();
+		}else{
+			for (long sid : shows){
+				this._showtimes.showChanged (sid);
+			}//end for
+		}//end if
+		if (movies.size () > MAX_REINDEX){
+			this._search.invalidate ();
+		}else{
+			for (long mvid : movies){
+				this._search.movieChanged (mvid);
+			}//end for
+		}//end if
+	}
+
+	/**
+	 * Method to cancel a booking and delete its payment, returning its
+	 * seats to inventory.  A booking that is cancelled already is left as
+	 * it is.
+	 *
+	 * @return false when there is no such booking
+	 * @throws java.sql.SQLException when the transaction fails
+	 */
+	public boolean removePayment (final long bid) throws SQLException {
+		final long[] sid = { -1 };
+		boolean found = executeTransaction (Connection.TRANSACTION_READ_COMMITTED, tx -> {
+			final String[] status = { null };
+			tx.query (BookingManager.LOCK_BOOKING, row -> {
+				sid[0] = row.getLong (1);
+				status[0] = row.getString (2);
+				return false;
+			}, bid);
+			if (status[0] == null)
+				return false;
+			//a cancelled booking counts for nothing in the rollups and holds no seats
+			if ("Cancelled".equals (status[0]))
+				return true;
+			this._occupancy.subtract (tx, bid);
+			tx.update (PurgeJob.FREE_SEATS_SQL, toArrayLiteral (new long[] { bid }));
+			tx.update (CANCEL_BOOKING_SQL, bid);
+			tx.update (DELETE_PAYMENT_SQL, bid);
+			this._history.refresh (tx, bid);
+			return true;
+		});
+		if (found && sid[0] >= 0)
+			this._seats.invalidate (sid[0]);
+		return found;
+	}
+
+	/**
+	 * Method to fetch the last value from sequence. This
+	 * method issues the query to the DBMS and returns the current 
+	 * value of sequence used for autogenerated keys.  currval() is
+	 * session-local, so with pooled connections this is only meaningful
+	 * when nextval() ran on the same physical connection.
+	 * 
+	 * @param sequence name of the DB sequence
+	 * @return current value of a sequence
+	 * @throws java.sql.SQLException when failed to execute the query
+	 */
+	
+	public int getCurrSeqVal(String sequence) throws SQLException {
+		ConnectionPool.PooledConnection pc = this._pool.acquire ();
+		try (Statement stmt = pc.getConnection ().createStatement ();
+			ResultSet rs = stmt.executeQuery (String.format("Select currval('%s')", sequence))){
+			int value = -1;
+			if (rs.next()) value = rs.getInt(1);
+			return value;
+		}catch(SQLException e){
+			pc.failed (e);
+			throw e;
+		}finally{
+			this._pool.release (pc);
+		}
+	}
+
+	/**
+	 * Method to close the pooled physical connections.
+	 */
+	public void cleanup(){
+		if (this._service != null){
+			this._service.shutdown ();
+		}//end if
+		this._feed.close ();
+		this._writes.close ();
+		this._holds.shutdown ();
+		this._occupancy.close ();
+		this._metrics.stop ();
+		this._replicas.close ();
+		if (this._pool != null){
+			this._pool.close ();
+		}//end if
+	}//end cleanup
+
+	/**
+	 * The main execution method
+	 * 
+	 * @param args the command line arguments this inclues the <mysql|pgsql> <login file>
+	 */
+	public static void main (String[] args) {
+		if (args.length != 3) {
+			System.err.println (
+				"Usage: " + "java [-classpath <classpath>] " + Ticketmaster.class.getName () +
+		            " <dbname> <port> <user>");
+			return;
+		}//end if
+		
+		Ticketmaster esql = null;
+		
+		try{
+			System.out.println("(1)");
+			
+			try {
+				Class.forName("org.postgresql.Driver");
+			}catch(Exception e){
+
+				System.out.println("Where is your PostgreSQL JDBC Driver? " + "Include in your library path!");
+				e.printStackTrace();
+				return;
+			}
+			
+			System.out.println("(2)");
+			String dbname = args[0];
+			String dbport = args[1];
+			String user = args[2];
+			
+			esql = new Ticketmaster (dbname, dbport, user, "");
+			//the menu loop is one client for read-your-writes
+			ReplicaRouter.Session session = new ReplicaRouter.Session ();
+			
+			boolean keepon = true;
+			while(keepon){
+				System.out.println("MAIN MENU");
+				System.out.println("---------");
+				System.out.println("1. Add User");
+				System.out.println("2. Add Booking");
+				System.out.println("3. Add Movie Showing for an Existing Theater");
+				System.out.println("4. Release Expired Pending Bookings");
+				System.out.println("5. Change Seats Reserved for a Booking");
+				System.out.println("6. Remove a Payment");
+				System.out.println("7. Clear Cancelled Bookings");
+				System.out.println("8. Remove Shows on a Given Date");
+				System.out.println("9. List all Theaters in a Cinema Playing a Given Show");
+				System.out.println("10. List all Shows that Start at a Given Time and Date");
+				System.out.println("11. Search Movies by Title, Description, Genre or Language");
+				System.out.println("12. List the First Name, Last Name, and Email of Users with a Pending Booking");
+				System.out.println("13. List the Title, Duration, Date, and Time of Shows Playing a Given Movie at a Given Cinema During a Date Range");
+				System.out.println("14. List the Movie Title, Show Date & Start Time, Theater Name, and Cinema Seat Number for all Bookings of a Given User");
+				System.out.println("15. EXIT");
+				System.out.println("16. Pay for a Pending Booking");
+				System.out.println("17. Show Occupancy and Revenue of a Show, Theater or Cinema");
+				
+				/*
+				 * FOLLOW THE SPECIFICATION IN THE PROJECT DESCRIPTION
+				 */
+				int choice = readChoice();
+				//the option's statements are counted under menu<n> in the metrics
+				Metrics.Scope op = esql.getMetrics().operation("menu" + choice);
+				//the listing and occupancy menus read from a replica
+				boolean browse = (choice >= 9 && choice <= 14) || choice == 17;
+				ReplicaRouter.Scope route = browse ? esql.getReplicas().browse(session) : null;
+				try{
+					switch (choice){
+						case 1: AddUser(esql); break;
+						case 2: AddBooking(esql); break;
+						case 3: AddMovieShowingToTheater(esql); break;
+						case 4: CancelPendingBookings(esql); break;
+						case 5: ChangeSeatsForBooking(esql); break;
+						case 6: RemovePayment(esql); break;
+						case 7: ClearCancelledBookings(esql); break;
+						case 8: RemoveShowsOnDate(esql); break;
+						case 9: ListTheatersPlayingShow(esql); break;
+						case 10: ListShowsStartingOnTimeAndDate(esql); break;
+						case 11: SearchMovies(esql); break;
+						case 12: ListUsersWithPendingBooking(esql); break;
+						case 13: ListMovieAndShowInfoAtCinemaInDateRange(esql); break;
+						case 14: ListBookingInfoForUser(esql); break;
+						case 15: keepon = false; break;
+						case 16: PayForPendingBooking(esql); break;
+						case 17: ShowOccupancyAndRevenue(esql); break;
+					}
+				}finally{
+					if (browse){
+						route.close();
+					}else{
+						//any other menu may have written
+						session.wrote();
+					}//end if
+					op.close();
+				}//end try
+			}
+		}catch(Exception e){
+			System.err.println (e.getMessage ());
+		}finally{
+			try{
+				if(esql != null) {
+					System.out.print("Disconnecting from database...");
+					esql.cleanup ();
+					System.out.println("Done\n\nBye !");
+				}//end if				
+			}catch(Exception e){
+				// ignored.
+			}
+		}
+	}
+
+	public static int readChoice() {
+		int input;
+		// returns only if a correct value is given.
+		do {
+			System.out.print("Please make your choice: ");
+			try { // read the integer, parse it and break.
+				input = Integer.parseInt(in.readLine());
+				break;
+			}catch (Exception e) {
+				System.out.println("Your input is invalid!");
+				continue;
+			}//end try
+		}while (true);
+		return input;
+	}//end readChoice
+	
+	/*
+	 * prints the prompt and returns the next line typed by the user, with
+	 * surrounding whitespace removed.
+	 */
+	public static String readLine(String prompt) throws IOException {
+		System.out.println(prompt);
+		String line = in.readLine();
+		if (line == null) {
+			throw new IOException("End of input");
+		}
+		return line.trim();
+	}//end readLine
+	
+	//reads a whole number, asking again until a valid one is given.
+	public static long readLong(String prompt) throws IOException {
+		do {
+			String line = readLine(prompt);
+			try {
+				return Long.parseLong(line);
+			}catch (NumberFormatException e) {
+				System.out.println("Your input is invalid!");
+			}//end try
+		}while (true);
+	}//end readLong
+	
+	/*
+	 * parses a date the way the database reads it with the default DateStyle:
+	 * either yyyy-mm-dd or mm/dd/yyyy.
+	 */
+	public static LocalDate parseDate(String text) {
+		try {
+			if (text.indexOf('-') > 0)
+				return LocalDate.parse(text);
+			return LocalDate.parse(text, DateTimeFormatter.ofPattern("M/d/yyyy"));
+		}catch (DateTimeParseException e) {
+			throw new IllegalArgumentException("Invalid date: " + text);
+		}//end try
+	}//end parseDate
+	
+	//parses a time of day such as 9:25 or 09:25:00
+	public static LocalTime parseTime(String text) {
+		try {
+			return LocalTime.parse(text, DateTimeFormatter.ofPattern("H:mm[:ss]"));
+		}catch (DateTimeParseException e) {
+			throw new IllegalArgumentException("Invalid time: " + text);
+		}//end try
+	}//end parseTime
+	
+	//outputs rows in the same layout as executeQueryAndPrintResult
+	public static int printRows(String[] columns, List<String[]> rows) {
+		StringBuilder sb = output();
+		if (!rows.isEmpty()) {
+			for (String c : columns)
+				sb.append(c).append('\t');
+			sb.append('\n');
+		}
+		for (String[] r : rows) {
+			for (String v : r)
+				sb.append(v).append('\t');
+			sb.append('\n');
+			flushOutput(sb, false);
+		}
+		flushOutput(sb, true);
+		return rows.size();
+	}//end printRows
+	
+	//prints a listing a page at a time until its last page or until the user stops
+	public static void printPages(Listings.Pager pager) throws Exception {
+		String token = null;
+		while (true) {
+			Listings.Page page = pager.page(token);
+			printRows(page.columns, page.rows);
+			if (!page.hasMore() || !readLine("Press enter for more rows, or q to stop").isEmpty())
+				break;
+			token = page.next;
+		}
+	}//end printPages
+	
+	public static void AddUser(Ticketmaster esql){//1
+		try {
+			String email = readLine("Please enter the user's email");
+			String lname = readLine("Please enter the last name");
+			String fname = readLine("Please enter the first name");
+			long phone = readLong("Please enter the phone number");
+			String pwd = readLine("Please enter the password hash");
+			
+			esql.addUser(email, lname, fname, phone, pwd);
+		} catch(Exception e) {
+			System.err.println (e.getMessage ());
+		}
+	}
+
+	
+	public static void AddBooking(Ticketmaster esql){//2
+		try {
+			long sid = readLong("Please enter the show ID");
+			String email = readLine("Please enter the user's email");
+			long seats = readLong("Please enter the number of seats");
+			String stype = readLine("Please enter the seat type (blank for any)");
+			String pmethod = readLine("Please enter the payment method (blank to hold the seats and pay later)");
+			
+			BookingManager.Booking booking;
+			if (pmethod.isEmpty()) {
+				booking = esql.getBookingManager().hold(sid, email, (int) seats, stype.isEmpty() ? null : stype);
+			} else {
+				booking = esql.getBookingManager().book(sid, email, (int) seats, stype.isEmpty() ? null : stype, pmethod);
+			}
+			if (booking == null) {
+				System.out.println("There are not " + seats + " seats available for show " + sid);
+			} else {
+				System.out.println(booking);
+				if (pmethod.isEmpty())
+					System.out.println("Seats are held for " + SeatHolds.TTL_MILLIS / 1000 + " seconds");
+			}
+		} catch(Exception e) {
+			System.err.println (e.getMessage ());
+		}
+		
+	}
+	
+	public static void AddMovieShowingToTheater(Ticketmaster esql){//3
+		CatalogCache.Movie movie = new CatalogCache.Movie();
+		long sid;
+		String sDate;
+		String sTime;
+		String eTime;
+		double price;
+		
+		long[] tids;
+		
+		try {
+			movie.mvid = readLong("Please input the movie ID");
+			movie.title = readLine("Please input the movie title");
+			movie.rdate = Date.valueOf(parseDate(readLine("Please input the movie release date")));
+			movie.country = readLine("Please input the movie's release country");
+			movie.description = readLine("Please input the movie description");
+			movie.duration = (int) readLong("Please input the movie duration in seconds");
+			movie.lang = readLine("Please input the movie language code");
+			movie.genre = readLine("Please input the movie genre");
+			
+			sid = readLong("Please enter the show ID");
+			sDate = readLine("Please input the show date");
+			sTime = readLine("Please input the show start time");
+			eTime = readLine("Please input the show end time");
+			
+			price = Double.parseDouble(readLine("Please input the seat price"));
+			String[] ids = readLine("Please input the theater IDs, separated by commas").split(",");
+			tids = new long[ids.length];
+			for (int i = 0; i < ids.length; ++i)
+				tids[i] = Long.parseLong(ids[i].trim());
+		} catch(Exception e) {
+			System.err.println (e.getMessage ());
+			return;
+		}
+		
+		try {
+			if (!esql.addMovieShowing(movie, sid, sDate, sTime, eTime, price, tids))
+				System.out.println("A theater already has a show overlapping " + sTime + " to " + eTime + " on " + sDate);
+		} catch(Exception e) {
+			System.err.println (e.getMessage ());
+		}
+	}
+	
+	public static void CancelPendingBookings(Ticketmaster esql){//4
+		//pending bookings older than the hold TTL are released in the background
+		try {
+			long queued = esql.getSeatHolds().scheduleAllPending();
+			System.out.println(queued + " pending bookings queued; expired holds are released in batches of "
+				+ SeatHolds.BATCH_SIZE);
+		} catch(Exception e) {
+			System.err.println (e.getMessage ());
+		}
+		
+	}
+	
+	public static void ChangeSeatsForBooking(Ticketmaster esql){//5
+		try {
+			long bid = readLong("Please enter the booking id");
+			String[] numbers = readLine("Please enter the new seat numbers, separated by commas").split(",");
+			int[] seats = new int[numbers.length];
+			for (int i = 0; i < numbers.length; ++i)
+				seats[i] = Integer.parseInt(numbers[i].trim());
+			BookingManager.Booking booking = esql.getBookingManager().changeSeats(bid, seats);
+			if (booking == null) {
+				System.out.println("Booking " + bid + " does not exist, is cancelled, or a seat is not free");
+			} else {
+				System.out.println(booking);
+			}
+		} catch(Exception e) {
+			System.err.println (e.getMessage ());
+		}
+	}
+	
+	public static void RemovePayment(Ticketmaster esql){//6
+		try {
+			long bid = readLong("Please enter the booking id:");
+			if (!esql.removePayment(bid))
+				System.out.println("There is no booking " + bid);
+		} catch(Exception e) {
+			System.err.println (e.getMessage ());
+		}
+	}
+	
+	public static void ClearCancelledBookings(Ticketmaster esql){//7
+		try {
+			long deleted = new PurgeJob(esql).clearCancelledBookings();
+			System.out.println(deleted + " cancelled bookings cleared");
+		} catch(Exception e) {
+			System.err.println (e.getMessage ());
+		}
+	}
+	
+	public static void RemoveShowsOnDate(Ticketmaster esql){//8
+		try {
+			String date = readLine("Please input the date");
+			long deleted = new PurgeJob(esql).removeShowsOnDate(date);
+			System.out.println(deleted + " shows removed");
+		} catch(Exception e) {
+			System.err.println (e.getMessage ());
+		}
+	}
+	
+	public static void ListTheatersPlayingShow(Ticketmaster esql){//9
+		try {
+			long sid = readLong("Please enter the show ID");
+			printPages(token -> esql.getListings().theatersPlayingShow(sid, token, Listings.PAGE_SIZE));
+		} catch(Exception e) {
+			System.err.println (e.getMessage ());
+		}
+	}
+	
+	public static void ListShowsStartingOnTimeAndDate(Ticketmaster esql){//10
+		try {
+			LocalDate date = parseDate(readLine("Please enter the date in the format mm/dd/yyyy"));
+			LocalTime time = parseTime(readLine("Please enter the time in the format hh:mm"));
+			printPages(token -> esql.getListings().showsStartingAt(date, time, token, Listings.PAGE_SIZE));
+		} catch(Exception e) {
+			System.err.println (e.getMessage ());
+		}
+		
+	}
+
+	public static void SearchMovies(Ticketmaster esql){//11
+		try {
+			String query = readLine("Please enter the words to search for (enter for love)");
+			String from = readLine("Please enter the earliest release date in the format mm/dd/yyyy (enter for 01/01/2011)");
+			String to = readLine("Please enter the latest release date in the format mm/dd/yyyy (enter for none)");
+			String words = query.isEmpty() ? "love" : query;
+			LocalDate first = parseDate(from.isEmpty() ? "01/01/2011" : from);
+			LocalDate last = to.isEmpty() ? null : parseDate(to);
+			printPages(token -> esql.getListings().searchMovies(words, first, last, token, Listings.PAGE_SIZE));
+		} catch(Exception e) {
+			System.err.println (e.getMessage ());
+		}
+	}
+
+	public static void ListUsersWithPendingBooking(Ticketmaster esql){//12
+		try {
+			printPages(token -> esql.getListings().usersWithPendingBooking(token, Listings.PAGE_SIZE));
+		} catch(Exception e) {
+			System.err.println (e.getMessage ());
+		}
+	}
+
+	public static void ListMovieAndShowInfoAtCinemaInDateRange(Ticketmaster esql){//13
+		try {
+			String title = readLine("Please enter the movie title:");
+			long cid = readLong("Please enter the cinema ID");
+			LocalDate from = parseDate(readLine("Please enter the start date in the following format: mm/dd/yyyy"));
+			LocalDate to = parseDate(readLine("Please enter the end date in the following format: mm/dd/yyyy"));
+			printPages(token -> esql.getListings().showsAtCinema(title, cid, from, to, token, Listings.PAGE_SIZE));
+		} catch(Exception e) {
+			System.err.println (e.getMessage ());
+		}
+	}
+
+	public static void ListBookingInfoForUser(Ticketmaster esql){//14
+		try {
+			String email = readLine("Please input the user's email");
+			long after = 0;
+			while (true) {
+				BookingHistory.Page page = esql.getBookingHistory().page(email, after, BookingHistory.PAGE_SIZE);
+				List<String[]> rows = new ArrayList<String[]>(page.entries.size());
+				for (BookingHistory.Entry b : page.entries)
+					rows.add(b.toRow());
+				printRows(BookingHistory.COLUMNS, rows);
+				if (!page.hasMore() || !readLine("Press enter for more bookings, or q to stop").isEmpty())
+					break;
+				after = page.next;
+			}
+		} catch(Exception e) {
+			System.err.println (e.getMessage ());
+		}
+	}
+	
+	public static void PayForPendingBooking(Ticketmaster esql){//16
+		try {
+			long bid = readLong("Please enter the booking id");
+			String pmethod = readLine("Please enter the payment method");
+			double amount = esql.getBookingManager().confirm(bid, pmethod);
+			if (amount < 0) {
+				System.out.println("Booking " + bid + " is not pending; its hold may have expired");
+			} else {
+				System.out.println("Booking " + bid + " paid, amount " + amount);
+			}
+		} catch(Exception e) {
+			System.err.println (e.getMessage ());
+		}
+	}
+
+	public static void ShowOccupancyAndRevenue(Ticketmaster esql){//17
+		try {
+			String scope = readLine("Please enter show, theater or cinema").toLowerCase();
+			OccupancyStats occupancy = esql.getOccupancy();
+			OccupancyStats.Stats stats;
+			switch (scope) {
+				case "show": stats = occupancy.show(readLong("Please enter the show ID")); break;
+				case "theater": stats = occupancy.theater(readLong("Please enter the theater ID")); break;
+				case "cinema": stats = occupancy.cinema(readLong("Please enter the cinema ID")); break;
+				default:
+					System.out.println("Unknown choice: " + scope);
+					return;
+			}
+			if (stats == null) {
+				System.out.println("No such " + scope);
+			} else {
+				System.out.println(stats);
+			}
+		} catch(Exception e) {
+			System.err.println (e.getMessage ());
+		}
+	}
+	
+}
@@ -0,0 +1,370 @@
+import java.io.BufferedReader;
+import java.io.BufferedWriter;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+import java.net.InetAddress;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.nio.charset.StandardCharsets;
+import java.sql.Date;
+import java.sql.SQLException;
+import java.time.LocalDate;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.Semaphore;
+
+/**
+ * Line protocol over TCP on the loopback interface for TicketmasterService.
+ * A request is one line of tab-separated fields: a request ID chosen by
+ * the client, a command and its arguments.  Requests on a connection run
+ * concurrently and may be pipelined without waiting for replies; each
+ * reply is tagged with its request ID and written as soon as the
+ * operation finishes, so replies can arrive out of order.
+ *
+ * A reply is either "id OK n" followed by n lines "id field...", or
+ * "id ERR sqlstate message", all tab-separated.  At most
+ * ticketmaster.server.inFlight requests per connection are outstanding;
+ * past that the server stops reading until replies have been sent.
+ *
+ * Commands (empty fields mean "any" for seat types and "hold, pay later"
+ * for payment methods; dates are yyyy-mm-dd, times hh:mm):
+ *   ping
+ *   addUser email lname fname phone pwd
+ *   book sid email seats stype pmethod
+ *   pay bid pmethod
+ *   changeSeats bid sno,...
+ *   addShowing mvid title rdate country description duration lang genre sid sdate sttime edtime price tid,...
+ *   releasePending
+ *   removePayment bid
+ *   clearCancelled
+ *   removeShows date
+ *   theaters sid token limit
+ *   showsAt date time token limit
+ *   search words from to token limit   (from and to are release dates, empty for open)
+ *   pendingUsers token limit
+ *   showsAtCinema title cid from to token limit
+ *   userBookings email after limit    (after is empty for the first page,
+ *                                      else the last bid of the previous page)
+ *   occupancy show|theater|cinema id
+ *
+ * The listing, search, userBookings and occupancy commands read from a
+ * replica when ticketmaster.replicas lists a usable one, except shortly
+ * after a write on the same connection, which they must see.
+ *
+ * The listing commands (theaters to showsAtCinema) reply with one page:
+ * a line holding the token of the next page, empty on the last page,
+ * then at most limit rows.  An empty token asks for the first page and an
+ * empty limit for ticketmaster.list.pageSize rows.
+ *
+ */
+
+public class TicketmasterServer{
+	static final int MAX_IN_FLIGHT = Integer.getInteger("ticketmaster.server.inFlight", 1024);
+
+	private final TicketmasterService service;
+	private final ServerSocket socket;
+
+	public TicketmasterServer(TicketmasterService service, int port) throws IOException {
+		this.service = service;
+		this.socket = new ServerSocket(port, 128, InetAddress.getLoopbackAddress());
+	}
+
+	/**
+	 * Method to accept connections until the socket is closed, reading each
+	 * on its own thread.
+	 */
+	public void serve(){
+		while (!this.socket.isClosed()){
+			try{
+				final Socket client = this.socket.accept();
+				client.setTcpNoDelay(true);
+				Thread reader = new Thread(() -> handle(client), "ticketmaster-client-" + client.getPort());
+				reader.setDaemon(true);
+				reader.start();
+			}catch(IOException e){
+				if (!this.socket.isClosed()){
+					System.err.println("Accept failed: " + e.getMessage());
+				}//end if
+			}//end try
+		}//end while
+	}
+
+	public void close() throws IOException {
+		this.socket.close();
+	}
+
+	private void handle(Socket client){
+		final Semaphore inFlight = new Semaphore(MAX_IN_FLIGHT);
+		//the connection is one client for read-your-writes
+		ReplicaRouter.bind(new ReplicaRouter.Session());
+		try{
+			BufferedReader in = new BufferedReader(new InputStreamReader(client.getInputStream(), StandardCharsets.UTF_8));
+			final Writer out = new BufferedWriter(new OutputStreamWriter(client.getOutputStream(), StandardCharsets.UTF_8));
+			String line;
+			while ((line = in.readLine()) != null){
+				if (line.isEmpty()){
+					continue;
+				}//end if
+				final String[] fields = line.split("\t", -1);
+				final String id = fields[0];
+				inFlight.acquire();
+				CompletableFuture<List<String[]>> reply;
+				try{
+					reply = dispatch(fields);
+				}catch(RuntimeException e){
+					reply = new CompletableFuture<List<String[]>>();
+					reply.completeExceptionally(e);
+				}//end try
+				reply.whenComplete((rows, error) -> {
+					try{
+						write(out, id, rows, error);
+					}finally{
+						inFlight.release();
+					}//end try
+				});
+			}//end while
+			//lets replies still being computed go out before closing
+			inFlight.acquire(MAX_IN_FLIGHT);
+		}catch(IOException e){
+			//the client went away
+		}catch(InterruptedException e){
+			Thread.currentThread().interrupt();
+		}finally{
+			try{
+				client.close();
+			}catch(IOException e){
+				// ignored.
+			}//end try
+		}//end try
+	}
+
+	private static void write(Writer out, String id, List<String[]> rows, Throwable error){
+		StringBuilder sb = new StringBuilder();
+		if (error != null){
+			Throwable cause = error instanceof CompletionException && error.getCause() != null ? error.getCause() : error;
+			String state = cause instanceof SQLException ? ((SQLException) cause).getSQLState() : null;
+			sb.append(id).append("\tERR\t").append(state == null ? "" : state).append('\t')
+				.append(clean(String.valueOf(cause.getMessage()))).append('\n');
+		}else{
+			sb.append(id).append("\tOK\t").append(rows.size()).append('\n');
+			for (String[] row : rows){
+				sb.append(id);
+				for (String v : row){
+					sb.append('\t').append(clean(v));
+				}//end for
+				sb.append('\n');
+			}//end for
+		}//end if
+		synchronized (out){
+			try{
+				out.write(sb.toString());
+				out.flush();
+			}catch(IOException e){
+				//the client went away; its reader thread notices
+			}//end try
+		}//end synchronized
+	}
+
+	//replies are tab and line delimited
+	private static String clean(String v){
+		return v == null ? "" : v.replace('\t', ' ').replace('\n', ' ').replace('\r', ' ');
+	}
+
+	private CompletableFuture<List<String[]>> dispatch(String[] f){
+		String command = f.length > 1 ? f[1] : "";
+		switch (command){
+			case "ping":
+				return CompletableFuture.completedFuture(Collections.<String[]>emptyList());
+			case "addUser":
+				args(f, 5);
+				return this.service.addUser(f[2], f[3], f[4], Long.parseLong(f[5]), f[6]).thenApply(v -> none());
+			case "book":
+				args(f, 5);
+				long sid = Long.parseLong(f[2]);
+				int seats = Integer.parseInt(f[4]);
+				String stype = f[5].isEmpty() ? null : f[5];
+				return (f[6].isEmpty()
+					? this.service.hold(sid, f[3], seats, stype)
+					: this.service.book(sid, f[3], seats, stype, f[6])).thenApply(TicketmasterServer::booking);
+			case "pay":
+				args(f, 2);
+				return this.service.pay(Long.parseLong(f[2]), f[3]).thenApply(TicketmasterServer::value);
+			case "changeSeats":
+				args(f, 2);
+				String[] numbers = f[3].split(",");
+				int[] snos = new int[numbers.length];
+				for (int i = 0; i < numbers.length; ++i){
+					snos[i] = Integer.parseInt(numbers[i]);
+				}//end for
+				return this.service.changeSeats(Long.parseLong(f[2]), snos).thenApply(TicketmasterServer::booking);
+			case "addShowing":
+				args(f, 14);
+				CatalogCache.Movie m = new CatalogCache.Movie();
+				m.mvid = Long.parseLong(f[2]);
+				m.title = f[3];
+				m.rdate = Date.valueOf(LocalDate.parse(f[4]));
+				m.country = f[5];
+				m.description = f[6];
+				m.duration = Integer.parseInt(f[7]);
+				m.lang = f[8];
+				m.genre = f[9];
+				String[] ids = f[15].split(",");
+				long[] tids = new long[ids.length];
+				for (int i = 0; i < ids.length; ++i){
+					tids[i] = Long.parseLong(ids[i]);
+				}//end for
+				return this.service.addMovieShowing(m, Long.parseLong(f[10]), LocalDate.parse(f[11]),
+					Ticketmaster.parseTime(f[12]), Ticketmaster.parseTime(f[13]), Double.parseDouble(f[14]), tids)
+					.thenApply(TicketmasterServer::value);
+			case "releasePending":
+				return this.service.releaseExpiredPendingBookings().thenApply(TicketmasterServer::value);
+			case "removePayment":
+				args(f, 1);
+				return this.service.removePayment(Long.parseLong(f[2])).thenApply(TicketmasterServer::value);
+			case "clearCancelled":
+				return this.service.clearCancelledBookings().thenApply(TicketmasterServer::value);
+			case "removeShows":
+				args(f, 1);
+				return this.service.removeShowsOnDate(LocalDate.parse(f[2])).thenApply(TicketmasterServer::value);
+			case "theaters":
+				args(f, 3);
+				return this.service.theatersPlayingShow(Long.parseLong(f[2]), token(f[3]), limit(f[4]))
+					.thenApply(TicketmasterServer::page);
+			case "showsAt":
+				args(f, 4);
+				return this.service.showsStartingAt(LocalDate.parse(f[2]), Ticketmaster.parseTime(f[3]), token(f[4]), limit(f[5]))
+					.thenApply(TicketmasterServer::page);
+			case "search":
+				args(f, 5);
+				return this.service.searchMovies(f[2], f[3].isEmpty() ? null : LocalDate.parse(f[3]),
+					f[4].isEmpty() ? null : LocalDate.parse(f[4]), token(f[5]), limit(f[6])).thenApply(TicketmasterServer::page);
+			case "pendingUsers":
+				args(f, 2);
+				return this.service.usersWithPendingBooking(token(f[2]), limit(f[3])).thenApply(TicketmasterServer::page);
+			case "showsAtCinema":
+				args(f, 6);
+				return this.service.showsAtCinema(f[2], Long.parseLong(f[3]), LocalDate.parse(f[4]), LocalDate.parse(f[5]),
+					token(f[6]), limit(f[7])).thenApply(TicketmasterServer::page);
+			case "userBookings":
+				args(f, 3);
+				return this.service.bookingsOfUser(f[2], f[3].isEmpty() ? 0 : Long.parseLong(f[3]), Integer.parseInt(f[4]))
+					.thenApply(page -> {
+						List<String[]> rows = new ArrayList<String[]>(page.entries.size());
+						for (BookingHistory.Entry b : page.entries){
+							rows.add(b.toRow());
+						}//end for
+						return rows;
+					});
+			case "occupancy":
+				args(f, 2);
+				long key = Long.parseLong(f[3]);
+				CompletableFuture<OccupancyStats.Stats> stats;
+				switch (f[2]){
+					case "show":
+						stats = this.service.showOccupancy(key);
+						break;
+					case "theater":
+						stats = this.service.theaterOccupancy(key);
+						break;
+					case "cinema":
+						stats = this.service.cinemaOccupancy(key);
+						break;
+					default:
+						throw new IllegalArgumentException("occupancy takes show, theater or cinema");
+				}//end switch
+				return stats.thenApply(TicketmasterServer::occupancy);
+			default:
+				throw new IllegalArgumentException("Unknown command: " + command);
+		}//end switch
+	}
+
+	private static void args(String[] f, int n){
+		if (f.length != n + 2){
+			throw new IllegalArgumentException(f[1] + " takes " + n + " arguments");
+		}//end if
+	}
+
+	private static List<String[]> none(){
+		return Collections.emptyList();
+	}
+
+	private static List<String[]> value(Object v){
+		return Collections.singletonList(new String[] { String.valueOf(v) });
+	}
+
+	private static List<String[]> booking(BookingManager.Booking b){
+		if (b == null){
+			return none();
+		}//end if
+		StringBuilder seats = new StringBuilder();
+		for (int sno : b.seatNumbers){
+			if (seats.length() > 0){
+				seats.append(',');
+			}//end if
+			seats.append(sno);
+		}//end for
+		return Collections.singletonList(new String[] {
+			Long.toString(b.bid), Long.toString(b.sid), seats.toString(), Double.toString(b.amount) });
+	}
+
+	private static List<String[]> occupancy(OccupancyStats.Stats s){
+		if (s == null){
+			return none();
+		}//end if
+		return Collections.singletonList(new String[] { Long.toString(s.seatsTotal), Long.toString(s.seatsSold),
+			Long.toString(s.seatsHeld), Long.toString(s.bookings), String.format("%.2f", s.revenue) });
+	}
+
+	//the page token field of a listing command; empty for the first page
+	private static String token(String v){
+		return v.isEmpty() ? null : v;
+	}
+
+	private static int limit(String v){
+		return v.isEmpty() ? Listings.PAGE_SIZE : Integer.parseInt(v);
+	}
+
+	//the token of the next page, empty on the last page, then the rows
+	private static List<String[]> page(Listings.Page page){
+		List<String[]> rows = new ArrayList<String[]>(page.rows.size() + 1);
+		rows.add(new String[] { page.hasMore() ? page.next : "" });
+		rows.addAll(page.rows);
+		return rows;
+	}
+
+	/**
+	 * Serves the line protocol on a loopback port until the process is
+	 * stopped.
+	 *
+	 * @param args <dbname> <port> <user> [listen port]
+	 */
+	public static void main(String[] args) throws Exception {
+		if (args.length < 3) {
+			System.err.println (
+				"Usage: " + "java [-classpath <classpath>] " + TicketmasterServer.class.getName () +
+				" <dbname> <port> <user> [listen port]");
+			return;
+		}//end if
+		int listen = args.length > 3 ? Integer.parseInt(args[3]) : 7070;
+
+		Class.forName("org.postgresql.Driver");
+		final Ticketmaster esql = new Ticketmaster(args[0], args[1], args[2], "");
+		final TicketmasterServer server = new TicketmasterServer(esql.getService(), listen);
+		Runtime.getRuntime().addShutdownHook(new Thread(() -> {
+			try{
+				server.close();
+			}catch(IOException e){
+				// ignored.
+			}//end try
+			esql.cleanup();
+		}));
+		System.out.println("Listening on " + InetAddress.getLoopbackAddress().getHostAddress() + ":" + listen
+			+ (esql.getService().usesVirtualThreads() ? " (virtual threads)" : ""));
+		server.serve();
+	}
+}
@@ -0,0 +1,339 @@
+import java.io.OutputStream;
+import java.io.PrintStream;
+import java.lang.reflect.Method;
+import java.sql.SQLException;
+import java.time.LocalDate;
+import java.time.LocalTime;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Non-interactive front end to the Ticketmaster operations.  Every method
+ * returns at once with a CompletableFuture completed by a worker thread,
+ * or completed exceptionally with the SQLException the operation threw.
+ *
+ * Workers are virtual threads when the JVM has them (Java 21 and later)
+ * and otherwise fixed pools, one as large as the primary's connection
+ * pool and one as large as the replica pools for browse operations sent
+ * to a replica, so neither kind of operation can take up the threads the
+ * other waits for.  Either way a semaphore with one permit per pooled
+ * connection bounds how many operations run at once, so a burst of
+ * requests queues here, where waiting is cheap, rather than timing out in
+ * ConnectionPool.acquire().  Browse operations sent to a replica take
+ * their permit from a second semaphore sized to the replica pools.
+ *
+ * Operations run for the ReplicaRouter session bound to the submitting
+ * thread, if any: browse operations read from a replica unless the
+ * session wrote recently, and any other operation counts as a write of
+ * the session once it completes.
+ *
+ */
+
+public class TicketmasterService{
+	/**
+	 * An operation run on a worker.
+	 */
+	interface Task<T>{
+		T run() throws SQLException;
+	}
+
+	private static final PrintStream NO_PROGRESS = new PrintStream(new OutputStream(){
+		public void write(int b){
+		}
+
+		public void write(byte[] b, int off, int len){
+		}
+	});
+
+	private final Ticketmaster esql;
+	private final Semaphore permits;
+	//for browse operations running on a replica
+	private final Semaphore replicaPermits;
+	private final ExecutorService executor;
+	//runs browse operations sent to a replica; the same as executor with virtual threads
+	private final ExecutorService replicaExecutor;
+	private final boolean virtualThreads;
+	private final AtomicInteger queued = new AtomicInteger();
+
+	public TicketmasterService(Ticketmaster esql){
+		this.esql = esql;
+		this.permits = new Semaphore(esql.getPoolSize(), true);
+		this.replicaPermits = new Semaphore(esql.getReplicas().getCapacity(), true);
+		ExecutorService virtual = newVirtualThreadExecutor();
+		this.virtualThreads = virtual != null;
+		if (virtual != null){
+			this.executor = virtual;
+			this.replicaExecutor = virtual;
+		}else{
+			this.executor = newFixedPool("ticketmaster-service-", esql.getPoolSize());
+			//without replicas every operation runs on the primary
+			this.replicaExecutor = esql.getReplicas().getCapacity() > 0
+				? newFixedPool("ticketmaster-browse-", esql.getReplicas().getCapacity()) : this.executor;
+		}//end if
+	}
+
+	private static ExecutorService newFixedPool(final String prefix, int size){
+		return Executors.newFixedThreadPool(size, new ThreadFactory(){
+			private final AtomicInteger count = new AtomicInteger();
+
+			public Thread newThread(Runnable r){
+				Thread t = new Thread(r, prefix + this.count.incrementAndGet());
+				t.setDaemon(true);
+				return t;
+			}
+		});
+	}
+
+	//Executors.newVirtualThreadPerTaskExecutor() where the JVM has it, looked up so this compiles on Java 8
+	private static ExecutorService newVirtualThreadExecutor(){
+		try{
+			Method m = Executors.class.getMethod("newVirtualThreadPerTaskExecutor");
+			return (ExecutorService) m.invoke(null);
+		}catch(ReflectiveOperationException e){
+			return null;
+		}//end try
+	}
+
+	/**
+	 * Method to run an operation on a worker once a connection permit is
+	 * free.
+	 *
+	 * @param operation the name its statements are counted under in Metrics
+	 * @return a future completed with the operation's result or exception
+	 */
+	public <T> CompletableFuture<T> submit(final String operation, final Task<T> task){
+		return written(run(operation, null, task));
+	}
+
+	/**
+	 * Method to run a read-only operation on a replica, or on the primary
+	 * when the session wrote recently or no replica is usable.
+	 */
+	public <T> CompletableFuture<T> browse(final String operation, final Task<T> task){
+		return run(operation, this.esql.getReplicas().choose(ReplicaRouter.currentSession()), task);
+	}
+
+	//marks the session of the submitting thread as having written once f completes
+	private <T> CompletableFuture<T> written(CompletableFuture<T> f){
+		final ReplicaRouter.Session session = ReplicaRouter.currentSession();
+		if (session != null){
+			f.whenComplete((v, e) -> session.wrote());
+		}//end if
+		return f;
+	}
+
+	//runs the operation with its queries sent to replica, or to the primary when null
+	private <T> CompletableFuture<T> run(final String operation, final ConnectionPool replica, final Task<T> task){
+		final CompletableFuture<T> result = new CompletableFuture<T>();
+		final Semaphore permits = replica == null ? this.permits : this.replicaPermits;
+		final ExecutorService executor = replica == null ? this.executor : this.replicaExecutor;
+		this.queued.incrementAndGet();
+		try{
+			executor.execute(() -> {
+				try{
+					permits.acquire();
+				}catch(InterruptedException e){
+					this.queued.decrementAndGet();
+					result.completeExceptionally(e);
+					return;
+				}//end try
+				this.queued.decrementAndGet();
+				Metrics.Scope op = this.esql.getMetrics().operation(operation);
+				ReplicaRouter.Scope route = this.esql.getReplicas().use(replica);
+				try{
+					result.complete(task.run());
+				}catch(Throwable e){
+					result.completeExceptionally(e);
+				}finally{
+					route.close();
+					op.close();
+					permits.release();
+				}//end try
+			});
+		}catch(RejectedExecutionException e){
+			this.queued.decrementAndGet();
+			result.completeExceptionally(e);
+		}//end try
+		return result;
+	}
+
+	public boolean usesVirtualThreads(){
+		return this.virtualThreads;
+	}
+
+	//operations waiting for a connection permit
+	public int getQueued(){
+		return this.queued.get();
+	}
+
+	//operations holding a connection permit
+	public int getRunning(){
+		return this.esql.getPoolSize() - this.permits.availablePermits()
+			+ this.esql.getReplicas().getCapacity() - this.replicaPermits.availablePermits();
+	}
+
+	/**
+	 * Method to stop accepting operations.  Operations already submitted
+	 * still run.
+	 */
+	public void shutdown(){
+		this.executor.shutdown();
+		this.replicaExecutor.shutdown();
+	}
+
+	/**
+	 * Method to add a user account through the write-behind batcher.
+	 */
+	public CompletableFuture<Void> addUser(String email, String lname, String fname, long phone, String pwd){
+		return this.esql.getMetrics().timed("service.addUser", written(this.esql.getWriteBatcher().submit(
+			new WriteBatcher.Write(Ticketmaster.INSERT_USER_SQL, email, lname, fname, phone, pwd)))).thenApply(counts -> null);
+	}
+
+	/**
+	 * Method to book and pay for seats of a show.
+	 *
+	 * @param seatType the seat type, or null for any
+	 * @return the booking, or null when there are not enough free seats
+	 */
+	public CompletableFuture<BookingManager.Booking> book(long sid, String email, int seats, String seatType, String pmethod){
+		return submit("service.book", () -> this.esql.getBookingManager().book(sid, email, seats, seatType, pmethod));
+	}
+
+	/**
+	 * Method to hold seats of a show as a pending booking, to be paid with
+	 * pay() before the hold expires.
+	 *
+	 * @return the booking, or null when there are not enough free seats
+	 */
+	public CompletableFuture<BookingManager.Booking> hold(long sid, String email, int seats, String seatType){
+		return submit("service.hold", () -> this.esql.getBookingManager().hold(sid, email, seats, seatType));
+	}
+
+	/**
+	 * @return the amount paid, or -1 when the booking is not pending
+	 */
+	public CompletableFuture<Double> pay(long bid, String pmethod){
+		return submit("service.pay", () -> this.esql.getBookingManager().confirm(bid, pmethod));
+	}
+
+	/**
+	 * Method to move a booking to other seats of its show.
+	 *
+	 * @return the booking with its new seats, or null when the booking or
+	 *         a seat is not available
+	 */
+	public CompletableFuture<BookingManager.Booking> changeSeats(long bid, int[] seatNumbers){
+		return submit("service.changeSeats", () -> this.esql.getBookingManager().changeSeats(bid, seatNumbers));
+	}
+
+	/**
+	 * Method to schedule a show of a movie in theaters, and the movie
+	 * unless it exists.
+	 *
+	 * @return false when a theater already has a show at an overlapping time
+	 */
+	public CompletableFuture<Boolean> addMovieShowing(CatalogCache.Movie m, long sid, LocalDate sdate,
+			LocalTime sttime, LocalTime edtime, double price, long... tids){
+		return submit("service.addShowing", () -> this.esql.addMovieShowing(m, sid, sdate.toString(), sttime.toString(),
+			edtime.toString(), price, tids));
+	}
+
+	/**
+	 * @return the number of pending bookings queued for release
+	 */
+	public CompletableFuture<Long> releaseExpiredPendingBookings(){
+		return submit("service.releasePending", () -> this.esql.getSeatHolds().scheduleAllPending());
+	}
+
+	/**
+	 * Method to cancel a booking and delete its payment.  It runs as a
+	 * transaction of its own, not through the write-behind batcher, since
+	 * it has to lock the booking before taking it out of the rollups.
+	 *
+	 * @return false when there is no such booking
+	 */
+	public CompletableFuture<Boolean> removePayment(long bid){
+		return submit("service.removePayment", () -> this.esql.removePayment(bid));
+	}
+
+	/**
+	 * @return the number of bookings deleted
+	 */
+	public CompletableFuture<Long> clearCancelledBookings(){
+		return submit("service.clearCancelled", () -> new PurgeJob(this.esql, PurgeJob.CHUNK_SIZE, PurgeJob.PAUSE_MILLIS, NO_PROGRESS)
+			.clearCancelledBookings());
+	}
+
+	/**
+	 * @return the number of shows deleted
+	 */
+	public CompletableFuture<Long> removeShowsOnDate(LocalDate date){
+		return submit("service.removeShows", () -> new PurgeJob(this.esql, PurgeJob.CHUNK_SIZE, PurgeJob.PAUSE_MILLIS, NO_PROGRESS)
+			.removeShowsOnDate(date.toString()));
+	}
+
+	/**
+	 * @return the show's occupancy and revenue, or null for an unknown show
+	 */
+	public CompletableFuture<OccupancyStats.Stats> showOccupancy(long sid){
+		return browse("service.showOccupancy", () -> this.esql.getOccupancy().show(sid));
+	}
+
+	public CompletableFuture<OccupancyStats.Stats> theaterOccupancy(long tid){
+		return browse("service.theaterOccupancy", () -> this.esql.getOccupancy().theater(tid));
+	}
+
+	public CompletableFuture<OccupancyStats.Stats> cinemaOccupancy(long cid){
+		return browse("service.cinemaOccupancy", () -> this.esql.getOccupancy().cinema(cid));
+	}
+
+	/*
+	 * the occupancy and listing operations read from a replica when there is
+	 * a usable one.  The listings return a page of at most limit rows; pass the next token
+	 * of a page to read the one after it, or null for the first page.
+	 */
+	public CompletableFuture<Listings.Page> theatersPlayingShow(long sid, String token, int limit){
+		return browse("service.theaters", () -> this.esql.getListings().theatersPlayingShow(sid, token, limit));
+	}
+
+	public CompletableFuture<Listings.Page> showsStartingAt(LocalDate date, LocalTime time, String token, int limit){
+		return browse("service.showsAt", () -> this.esql.getListings().showsStartingAt(date, time, token, limit));
+	}
+
+	/**
+	 * Method to search movies by title, description, genre and language,
+	 * best match first.
+	 *
+	 * @param from the earliest release date, or null
+	 * @param to the latest release date, or null
+	 */
+	public CompletableFuture<Listings.Page> searchMovies(String query, LocalDate from, LocalDate to, String token, int limit){
+		return browse("service.search", () -> this.esql.getListings().searchMovies(query, from, to, token, limit));
+	}
+
+	/**
+	 * @return booking ID, first name, last name and email per pending booking
+	 */
+	public CompletableFuture<Listings.Page> usersWithPendingBooking(String token, int limit){
+		return browse("service.pendingUsers", () -> this.esql.getListings().usersWithPendingBooking(token, limit));
+	}
+
+	public CompletableFuture<Listings.Page> showsAtCinema(String title, long cid, LocalDate from, LocalDate to,
+			String token, int limit){
+		return browse("service.showsAtCinema", () -> this.esql.getListings().showsAtCinema(title, cid, from, to, token, limit));
+	}
+
+	/**
+	 * Method to read a page of a user's bookings, newest first.
+	 *
+	 * @param after Page.next of the previous page, or 0 for the first page
+	 */
+	public CompletableFuture<BookingHistory.Page> bookingsOfUser(String email, long after, int limit){
+		return browse("service.userBookings", () -> this.esql.getBookingHistory().page(email, after, limit));
+	}
+}
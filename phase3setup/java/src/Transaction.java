@@ -0,0 +1,146 @@
+import java.sql.BatchUpdateException;
+import java.sql.Connection;
+import java.sql.PreparedStatement;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.sql.Statement;
+import java.util.List;
+
+/**
+ * Statements issued inside a transaction started by
+ * Ticketmaster.executeTransaction.  Every method runs on the one pooled
+ * connection that holds the transaction, using its statement cache.
+ *
+ */
+
+public class Transaction{
+	private final ConnectionPool.PooledConnection pc;
+	private final Metrics metrics;
+	private boolean rollbackOnly = false;
+
+	Transaction(ConnectionPool.PooledConnection pc, Metrics metrics){
+		this.pc = pc;
+		this.metrics = metrics;
+	}
+
+	public Connection getConnection(){
+		return this.pc.getConnection();
+	}
+
+	/**
+	 * Method to roll the transaction back instead of committing it when the
+	 * body returns, for outcomes such as "not enough seats" that are not
+	 * errors.
+	 */
+	public void setRollbackOnly(){
+		this.rollbackOnly = true;
+	}
+
+	public boolean isRollbackOnly(){
+		return this.rollbackOnly;
+	}
+
+	/**
+	 * Method to execute a parameterized update SQL statement.
+	 *
+	 * @return the number of rows affected
+	 */
+	public int update(String sql, Object... params) throws SQLException {
+		long start = System.nanoTime();
+		try{
+			PreparedStatement stmt = this.pc.prepare(sql);
+			Ticketmaster.bind(stmt, params);
+			int count = stmt.executeUpdate();
+			this.metrics.statement(sql, params, start, count);
+			return count;
+		}catch(SQLException e){
+			this.metrics.failed(sql, params, start, e);
+			throw e;
+		}//end try
+	}
+
+	/**
+	 * Method to execute a parameterized query (or an UPDATE ... RETURNING)
+	 * and hand each row to a callback.
+	 *
+	 * @return the number of rows handed to the handler
+	 */
+	public long query(String sql, RowHandler handler, Object... params) throws SQLException {
+		long start = System.nanoTime();
+		try{
+			PreparedStatement stmt = this.pc.prepare(sql);
+			Ticketmaster.bind(stmt, params);
+			ResultSet rs = stmt.executeQuery();
+			try{
+				ResultRow row = new ResultRow(rs);
+				long rowCount = 0;
+				while (rs.next()){
+					++rowCount;
+					if (!handler.handle(row)){
+						break;
+					}//end if
+				}//end while
+				this.metrics.statement(sql, params, start, rowCount);
+				return rowCount;
+			}finally{
+				rs.close();
+			}//end try
+		}catch(SQLException e){
+			this.metrics.failed(sql, params, start, e);
+			throw e;
+		}//end try
+	}
+
+	/**
+	 * Method to execute one parameterized statement once per parameter row
+	 * as a single JDBC batch.  With the reWriteBatchedInserts connection
+	 * property the driver sends a batch of INSERTs as multi-row VALUES
+	 * statements, and reports Statement.SUCCESS_NO_INFO for each row.
+	 *
+	 * @return the update count of each row, in order
+	 */
+	public int[] batch(String sql, List<Object[]> rows) throws SQLException {
+		//the slow query log shows the first row's values
+		Object[] first = rows.isEmpty() ? Metrics.NO_PARAMS : rows.get(0);
+		long start = System.nanoTime();
+		PreparedStatement stmt = this.pc.prepare(sql);
+		try{
+			for (Object[] params : rows){
+				Ticketmaster.bind(stmt, params);
+				stmt.addBatch();
+			}//end for
+			int[] counts = stmt.executeBatch();
+			//a row reported as SUCCESS_NO_INFO is counted as one row
+			long affected = 0;
+			for (int count : counts){
+				affected += count == Statement.SUCCESS_NO_INFO ? 1 : Math.max(count, 0);
+			}//end for
+			this.metrics.statement(sql, first, start, affected);
+			return counts;
+		}catch(BatchUpdateException e){
+			//the cause names the row that failed; the batch exception alone does not
+			SQLException cause = e.getNextException();
+			this.metrics.failed(sql, first, start, cause != null ? cause : e);
+			throw cause != null ? cause : e;
+		}catch(SQLException e){
+			this.metrics.failed(sql, first, start, e);
+			throw e;
+		}finally{
+			stmt.clearBatch();
+		}//end try
+	}
+
+	/**
+	 * Method to run a query returning a single number, such as nextval().
+	 *
+	 * @return the first column of the first row, or 0 when there is no row
+	 */
+	public long queryLong(String sql, Object... params) throws SQLException {
+		final long[] value = { 0 };
+		query(sql, row -> {
+			value[0] = row.getLong(1);
+			return false;
+		}, params);
+		return value[0];
+	}
+}
@@ -0,0 +1,13 @@
+import java.sql.SQLException;
+
+/**
+ * The work of one transaction run by Ticketmaster.executeTransaction.  The
+ * body may be invoked more than once when the transaction is retried after
+ * a serialization failure or deadlock, so it must not have side effects
+ * outside the database until it returns.
+ *
+ */
+
+public interface TransactionBody<T>{
+	T run(Transaction tx) throws SQLException;
+}
@@ -0,0 +1,248 @@
+import java.sql.Connection;
+import java.sql.SQLException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Write-behind pipeline for small independent writes such as adding a
+ * user.  Callers submit a request of one or more
+ * statements and get a future; a background thread collects requests
+ * until it has BATCH_SIZE of them or the oldest has waited MAX_DELAY_MS,
+ * then writes them all in one transaction (group commit), sending each
+ * distinct statement once as a JDBC batch.  A request's statements run in
+ * the order given and commit or fail together.
+ *
+ * When the group transaction fails, e.g. on a duplicate key in one
+ * request, every request of the group is retried in a transaction of its
+ * own so that only the requests that fail on their own are failed.  The
+ * queue holds at most QUEUE_SIZE requests; submit() blocks when it is
+ * full.
+ *
+ */
+
+public class WriteBatcher{
+	static final int BATCH_SIZE = Integer.getInteger("ticketmaster.writes.batchSize", 500);
+	static final long MAX_DELAY_MS = Long.getLong("ticketmaster.writes.maxDelayMs", 2L);
+	static final int QUEUE_SIZE = Integer.getInteger("ticketmaster.writes.queue", 10000);
+
+	/**
+	 * One parameterized statement of a request.
+	 */
+	public static class Write{
+		final String sql;
+		final Object[] params;
+
+		public Write(String sql, Object... params){
+			this.sql = sql;
+			this.params = params;
+		}
+	}//end Write
+
+	private static class Request{
+		final Write[] writes;
+		final CompletableFuture<int[]> done = new CompletableFuture<int[]>();
+
+		Request(Write[] writes){
+			this.writes = writes;
+		}
+	}//end Request
+
+	private final Ticketmaster esql;
+	private final BlockingQueue<Request> queue = new ArrayBlockingQueue<Request>(QUEUE_SIZE);
+	private final AtomicLong requests = new AtomicLong();
+	private final AtomicLong flushes = new AtomicLong();
+	private final AtomicLong retried = new AtomicLong();
+	private volatile boolean closed = false;
+	private Thread flusher = null;
+
+	public WriteBatcher(Ticketmaster esql){
+		this.esql = esql;
+	}
+
+	/**
+	 * Method to queue a request, blocking while the queue is full.
+	 *
+	 * @param writes the statements, run in order in one transaction
+	 * @return a future completed with the update count of each statement
+	 *         once the request is committed, or with the exception that
+	 *         made it fail; batched INSERTs report Statement.SUCCESS_NO_INFO
+	 */
+	public CompletableFuture<int[]> submit(Write... writes){
+		Request r = new Request(writes);
+		if (this.closed){
+			r.done.completeExceptionally(new SQLException("Write pipeline is closed", "08003"));
+			return r.done;
+		}//end if
+		start();
+		try{
+			this.queue.put(r);
+		}catch(InterruptedException e){
+			Thread.currentThread().interrupt();
+			r.done.completeExceptionally(e);
+		}//end try
+		return r.done;
+	}
+
+	/**
+	 * Method to stop taking requests and wait for the queued ones to be
+	 * written.
+	 */
+	public void close(){
+		this.closed = true;
+		Thread t;
+		synchronized (this){
+			t = this.flusher;
+		}//end synchronized
+		if (t != null){
+			try{
+				t.join(10000);
+			}catch(InterruptedException e){
+				Thread.currentThread().interrupt();
+			}//end try
+		}//end if
+	}
+
+	public long getRequests(){
+		return this.requests.get();
+	}
+
+	public long getFlushes(){
+		return this.flushes.get();
+	}
+
+	//requests waiting to be written
+	public int getQueued(){
+		return this.queue.size();
+	}
+
+	public double getAverageBatch(){
+		long f = this.flushes.get();
+		return f == 0 ? 0.0 : (double) this.requests.get() / f;
+	}
+
+	public String toString(){
+		return String.format("writes: requests=%d flushes=%d avgBatch=%.1f retried=%d queued=%d",
+			getRequests(), getFlushes(), getAverageBatch(), this.retried.get(), getQueued());
+	}
+
+	private synchronized void start(){
+		if (this.flusher == null){
+			this.flusher = new Thread(this::flushLoop, "write-batcher");
+			this.flusher.setDaemon(true);
+			this.flusher.start();
+		}//end if
+	}
+
+	private void flushLoop(){
+		List<Request> batch = new ArrayList<Request>(BATCH_SIZE);
+		while (true){
+			try{
+				Request first = this.queue.poll(100, TimeUnit.MILLISECONDS);
+				if (first == null){
+					if (this.closed){
+						return;
+					}//end if
+					continue;
+				}//end if
+				batch.add(first);
+				long deadline = System.nanoTime() + TimeUnit.MILLISECONDS.toNanos(MAX_DELAY_MS);
+				while (batch.size() < BATCH_SIZE){
+					long wait = deadline - System.nanoTime();
+					Request next = wait > 0 ? this.queue.poll(wait, TimeUnit.NANOSECONDS) : this.queue.poll();
+					if (next == null){
+						break;
+					}//end if
+					batch.add(next);
+				}//end while
+			}catch(InterruptedException e){
+				//write what was collected, then stop
+				this.closed = true;
+			}//end try
+			Metrics.Scope op = this.esql.getMetrics().operation("writes.flush");
+			try{
+				flush(batch);
+			}finally{
+				op.close();
+			}//end try
+			batch.clear();
+		}//end while
+	}
+
+	private void flush(List<Request> batch){
+		if (batch.isEmpty()){
+			return;
+		}//end if
+		this.flushes.incrementAndGet();
+		this.requests.addAndGet(batch.size());
+		try{
+			int[][] counts = write(batch);
+			for (int i = 0; i < batch.size(); ++i){
+				batch.get(i).done.complete(counts[i]);
+			}//end for
+			return;
+		}catch(SQLException e){
+			if (batch.size() == 1){
+				batch.get(0).done.completeExceptionally(e);
+				return;
+			}//end if
+		}//end try
+		//one request spoiled the group; find it by writing each on its own
+		for (Request r : batch){
+			this.retried.incrementAndGet();
+			try{
+				r.done.complete(write(Collections.singletonList(r))[0]);
+			}catch(SQLException e){
+				r.done.completeExceptionally(e);
+			}//end try
+		}//end for
+	}
+
+	/*
+	 * writes requests in one transaction.  The i-th statements of all
+	 * requests go before the (i+1)-th, grouped by SQL text, so a request's
+	 * statements keep their order and every distinct statement is one batch.
+	 */
+	private int[][] write(final List<Request> batch) throws SQLException {
+		return this.esql.executeTransaction(Connection.TRANSACTION_READ_COMMITTED, tx -> {
+			int[][] counts = new int[batch.size()][];
+			int longest = 0;
+			for (int i = 0; i < batch.size(); ++i){
+				counts[i] = new int[batch.get(i).writes.length];
+				longest = Math.max(longest, counts[i].length);
+			}//end for
+			for (int pos = 0; pos < longest; ++pos){
+				Map<String, List<Integer>> groups = new LinkedHashMap<String, List<Integer>>();
+				for (int i = 0; i < batch.size(); ++i){
+					Write[] writes = batch.get(i).writes;
+					if (pos < writes.length){
+						List<Integer> members = groups.get(writes[pos].sql);
+						if (members == null){
+							members = new ArrayList<Integer>();
+							groups.put(writes[pos].sql, members);
+						}//end if
+						members.add(i);
+					}//end if
+				}//end for
+				for (Map.Entry<String, List<Integer>> g : groups.entrySet()){
+					List<Object[]> rows = new ArrayList<Object[]>(g.getValue().size());
+					for (int i : g.getValue()){
+						rows.add(batch.get(i).writes[pos].params);
+					}//end for
+					int[] result = tx.batch(g.getKey(), rows);
+					for (int k = 0; k < result.length; ++k){
+						counts[g.getValue().get(k)][pos] = result[k];
+					}//end for
+				}//end for
+			}//end for
+			return counts;
+		});
+	}
+}
@@ -19,4 +19,11 @@ sleep 1
 cp $root/data/*.csv /tmp/$(logname)/mydb/data/
 
 echo "Initializing tables .. "
-psql -h localhost $dbname < $root/sql/create.sql
\ No newline at end of file
+psql -h localhost $dbname < $root/sql/create.sql
+
+echo "Loading data .. "
+psql -h localhost $dbname < $root/sql/load.sql
+
+echo "Applying migrations .. "
+$root/java/compile.sh
+$root/java/migrate.sh
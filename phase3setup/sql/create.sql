@@ -9,6 +9,17 @@ DROP TABLE IF EXISTS CinemaSeats;
 DROP TABLE IF EXISTS Theaters;
 DROP TABLE IF EXISTS Cinemas;
 DROP TABLE IF EXISTS Cities;
+-- Created by the migrations in sql/migrations, which createdb.sh applies
+-- after loading the data.
+DROP TABLE IF EXISTS schema_migrations;
+DROP TABLE IF EXISTS show_stats;
+DROP TABLE IF EXISTS theater_stats;
+DROP TABLE IF EXISTS occupancy_deltas;
+DROP TABLE IF EXISTS user_booking_history;
+DROP SEQUENCE IF EXISTS bookings_bid_seq;
+DROP SEQUENCE IF EXISTS payments_pid_seq;
+DROP SEQUENCE IF EXISTS showseats_ssid_seq;
+DROP FUNCTION IF EXISTS ticketmaster_notify_change();
 
 -- Entities
 
@@ -128,114 +139,8 @@ CREATE TABLE Plays (
 );
 
 
-----------------------------
--- INSERT DATA STATEMENTS --
-----------------------------
-
-COPY Cities (
-	city_id,
-	city_name,
-	city_state,
-	zip_code
-)
-FROM 'Cities.csv'
-WITH DELIMITER ',';
-
-COPY Cinemas (
-	cid,
-	city_id,
-	cname,
-	tnum
-)
-FROM 'Cinemas.csv'
-WITH DELIMITER ',';
-
-COPY Theaters (
-	tid,
-	cid,
-	tname,
-	tseats
-)
-FROM 'Theaters.csv'
-WITH DELIMITER ',';
-
-COPY CinemaSeats (
-	csid,
-	tid,
-	sno,
-	stype
-)
-FROM 'CinemaSeats.csv'
-WITH DELIMITER ',';
-
-COPY Movies  (
-	mvid,
-	title,
-	rdate,
-	country,
-	description,
-	duration,
-	lang,
-	genre
-)
-FROM 'Movies.csv'
-WITH DELIMITER ',';
-
-COPY Users (
-	email,
-	lname,
-	fname,
-	phone,
-	pwd 
-)
-FROM 'Users.csv'
-WITH DELIMITER ',';
-
-COPY Shows (
-	sid,
-	mvid,
-	sdate,
-	sttime,
-	edtime
-)
-FROM 'Shows.csv'
-WITH DELIMITER ',';
-
-COPY Bookings (
-    bid,
-    status,
-    bdatetime,
-    seats,
-    sid,
-    email
-)
-FROM 'Bookings.csv'
-WITH DELIMITER ',';
-
-COPY Payments (
-    pid,
-    bid,
-    pmethod,
-    pdatetime,
-    amount,
-    trid
-)
-FROM 'Payments.csv'
-WITH DELIMITER ',';
-
-COPY ShowSeats (
-    ssid,
-    sid,
-    csid,
-    bid,
-    price
-)
-FROM 'ShowSeats.csv'
-WITH DELIMITER ',' NULL AS '';
-
-COPY Plays (
-    sid,
-    tid
-)
-FROM 'Plays.csv'
-WITH DELIMITER ',';
+-- Sequences for keys generated by the application
+
+CREATE SEQUENCE bookings_bid_seq;
+CREATE SEQUENCE payments_pid_seq;
+CREATE SEQUENCE showseats_ssid_seq;
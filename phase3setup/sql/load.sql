@@ -0,0 +1,118 @@
+----------------------------
+-- INSERT DATA STATEMENTS --
+----------------------------
+
+COPY Cities (
+	city_id,
+	city_name,
+	city_state,
+	zip_code
+)
+FROM 'Cities.csv'
+WITH DELIMITER ',';
+
+COPY Cinemas (
+	cid,
+	city_id,
+	cname,
+	tnum
+)
+FROM 'Cinemas.csv'
+WITH DELIMITER ',';
+
+COPY Theaters (
+	tid,
+	cid,
+	tname,
+	tseats
+)
+FROM 'Theaters.csv'
+WITH DELIMITER ',';
+
+COPY CinemaSeats (
+	csid,
+	tid,
+	sno,
+	stype
+)
+FROM 'CinemaSeats.csv'
+WITH DELIMITER ',';
+
+COPY Movies  (
+	mvid,
+	title,
+	rdate,
+	country,
+	description,
+	duration,
+	lang,
+	genre
+)
+FROM 'Movies.csv'
+WITH DELIMITER ',';
+
+COPY Users (
+	email,
+	lname,
+	fname,
+	phone,
+	pwd 
+)
+FROM 'Users.csv'
+WITH DELIMITER ',';
+
+COPY Shows (
+	sid,
+	mvid,
+	sdate,
+	sttime,
+	edtime
+)
+FROM 'Shows.csv'
+WITH DELIMITER ',';
+
+COPY Bookings (
+    bid,
+    status,
+    bdatetime,
+    seats,
+    sid,
+    email
+)
+FROM 'Bookings.csv'
+WITH DELIMITER ',';
+
+COPY Payments (
+    pid,
+    bid,
+    pmethod,
+    pdatetime,
+    amount,
+    trid
+)
+FROM 'Payments.csv'
+WITH DELIMITER ',';
+
+COPY ShowSeats (
+    ssid,
+    sid,
+    csid,
+    bid,
+    price
+)
+FROM 'ShowSeats.csv'
+WITH DELIMITER ',' NULL AS '';
+
+COPY Plays (
+    sid,
+    tid
+)
+FROM 'Plays.csv'
+WITH DELIMITER ',';
+
+
+-- Start generated keys after the loaded data
+
+SELECT setval('bookings_bid_seq', (SELECT COALESCE(MAX(bid), 0) + 1 FROM Bookings), false);
+SELECT setval('payments_pid_seq', (SELECT COALESCE(MAX(pid), 0) + 1 FROM Payments), false);
+SELECT setval('showseats_ssid_seq', (SELECT COALESCE(MAX(ssid), 0) + 1 FROM ShowSeats), false);
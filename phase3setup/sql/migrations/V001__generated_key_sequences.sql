@@ -0,0 +1,10 @@
+-- Sequences used by the booking path, for databases created before they
+-- were added to create.sql. Starts them after the highest existing id.
+
+CREATE SEQUENCE IF NOT EXISTS bookings_bid_seq;
+CREATE SEQUENCE IF NOT EXISTS payments_pid_seq;
+
+SELECT setval('bookings_bid_seq',
+    GREATEST((SELECT COALESCE(MAX(bid), 0) + 1 FROM Bookings), nextval('bookings_bid_seq')), false);
+SELECT setval('payments_pid_seq',
+    GREATEST((SELECT COALESCE(MAX(pid), 0) + 1 FROM Payments), nextval('payments_pid_seq')), false);
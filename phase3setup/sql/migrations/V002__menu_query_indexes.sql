@@ -0,0 +1,30 @@
+-- Access paths for the menu operations. Primary keys and the UNIQUE
+-- constraints on Payments(bid) and ShowSeats(sid, csid) already cover
+-- lookups by id, Payments by booking and ShowSeats by show.
+
+-- Menu 12 and seat-hold expiry read pending bookings; menu 7 reads
+-- cancelled ones. Partial indexes keep these small since most bookings
+-- are paid.
+CREATE INDEX IF NOT EXISTS bookings_pending_idx ON Bookings(bid) WHERE status = 'Pending';
+CREATE INDEX IF NOT EXISTS bookings_cancelled_idx ON Bookings(bid) WHERE status = 'Cancelled';
+
+-- Menu 14 (bookings of a user) and purging a show's bookings (menu 8)
+CREATE INDEX IF NOT EXISTS bookings_email_idx ON Bookings(email);
+CREATE INDEX IF NOT EXISTS bookings_sid_idx ON Bookings(sid);
+
+-- Menu 10 (shows at a date and time) and menu 8 (shows on a date)
+CREATE INDEX IF NOT EXISTS shows_sdate_sttime_idx ON Shows(sdate, sttime);
+CREATE INDEX IF NOT EXISTS shows_mvid_idx ON Shows(mvid);
+
+-- Menus 9 and 13 join Plays and Theaters from the theater/cinema side
+CREATE INDEX IF NOT EXISTS plays_tid_idx ON Plays(tid);
+CREATE INDEX IF NOT EXISTS theaters_cid_idx ON Theaters(cid);
+
+-- Seats of a booking; unassigned seats are not indexed
+CREATE INDEX IF NOT EXISTS showseats_bid_idx ON ShowSeats(bid) WHERE bid IS NOT NULL;
+
+-- Seats of a theater in seat order
+CREATE INDEX IF NOT EXISTS cinemaseats_tid_sno_idx ON CinemaSeats(tid, sno);
+
+-- Menu 13 looks movies up by title
+CREATE INDEX IF NOT EXISTS movies_title_idx ON Movies(title);
@@ -0,0 +1,62 @@
+-- Seats sold and revenue per show and per theater, kept up to date by the
+-- booking, payment and cancellation transactions (see OccupancyStats) so
+-- that occupancy is read from one row instead of aggregating ShowSeats,
+-- Bookings and Payments. Seats of pending bookings are counted as held;
+-- cancelled bookings count for nothing. Revenue is the payments of paid
+-- bookings per show, and the price of their seats per theater.
+
+CREATE TABLE IF NOT EXISTS show_stats (
+    sid BIGINT NOT NULL,
+    seats_total INTEGER NOT NULL,  -- ShowSeats rows of the show
+    seats_sold INTEGER NOT NULL,
+    seats_held INTEGER NOT NULL,
+    bookings INTEGER NOT NULL,
+    revenue NUMERIC(14, 2) NOT NULL,
+    PRIMARY KEY(sid)
+);
+
+CREATE TABLE IF NOT EXISTS theater_stats (
+    tid BIGINT NOT NULL,
+    cid BIGINT NOT NULL,
+    seats_total INTEGER NOT NULL,  -- Theaters.tseats
+    seats_sold INTEGER NOT NULL,  -- over all shows
+    seats_held INTEGER NOT NULL,
+    bookings INTEGER NOT NULL,
+    revenue NUMERIC(14, 2) NOT NULL,
+    PRIMARY KEY(tid)
+);
+
+-- Cinema totals add up the few theaters of a cinema
+CREATE INDEX IF NOT EXISTS theater_stats_cid_idx ON theater_stats(cid);
+
+-- Backfill; the same as OccupancyStats.rebuild()
+DELETE FROM show_stats;
+DELETE FROM theater_stats;
+
+INSERT INTO show_stats(sid, seats_total, seats_sold, seats_held, bookings, revenue)
+SELECT S.sid, COALESCE(C.n, 0), COALESCE(D.sold, 0), COALESCE(D.held, 0), COALESCE(D.bookings, 0), COALESCE(D.revenue, 0)
+FROM Shows S
+LEFT JOIN (SELECT sid, COUNT(*) AS n FROM ShowSeats GROUP BY sid) C ON C.sid = S.sid
+LEFT JOIN (
+    SELECT B.sid,
+        SUM(CASE WHEN B.status = 'Paid' THEN B.seats ELSE 0 END) AS sold,
+        SUM(CASE WHEN B.status = 'Pending' THEN B.seats ELSE 0 END) AS held,
+        COUNT(*) FILTER (WHERE B.status IN ('Paid', 'Pending')) AS bookings,
+        COALESCE(SUM(CAST(P.amount AS NUMERIC(14, 2))) FILTER (WHERE B.status = 'Paid'), 0) AS revenue
+    FROM Bookings B LEFT JOIN Payments P ON P.bid = B.bid
+    GROUP BY B.sid
+) D ON D.sid = S.sid;
+
+INSERT INTO theater_stats(tid, cid, seats_total, seats_sold, seats_held, bookings, revenue)
+SELECT T.tid, T.cid, T.tseats, COALESCE(D.sold, 0), COALESCE(D.held, 0), COALESCE(D.bookings, 0), COALESCE(D.revenue, 0)
+FROM Theaters T
+LEFT JOIN (
+    SELECT CS.tid,
+        COUNT(*) FILTER (WHERE B.status = 'Paid') AS sold,
+        COUNT(*) FILTER (WHERE B.status = 'Pending') AS held,
+        COUNT(DISTINCT B.bid) FILTER (WHERE B.status IN ('Paid', 'Pending')) AS bookings,
+        COALESCE(SUM(CAST(SS.price AS NUMERIC(14, 2))) FILTER (WHERE B.status = 'Paid'), 0) AS revenue
+    FROM Bookings B, ShowSeats SS, CinemaSeats CS
+    WHERE SS.bid = B.bid AND CS.csid = SS.csid
+    GROUP BY CS.tid
+) D ON D.tid = T.tid;
@@ -0,0 +1,34 @@
+-- One row per booking with what menu 14 shows for it, keyed by user so a
+-- page of a user's bookings is a range scan of the primary key instead of
+-- a join of Bookings, Shows, Movies, ShowSeats, CinemaSeats and Theaters.
+-- Kept up to date by the transactions that change bookings (see
+-- BookingHistory). Pages are read newest first by bid.
+
+CREATE TABLE IF NOT EXISTS user_booking_history (
+    email VARCHAR(64) NOT NULL,
+    bid BIGINT NOT NULL,
+    sid BIGINT NOT NULL,
+    status VARCHAR(16) NOT NULL,
+    bdatetime TIMESTAMPTZ NOT NULL,
+    title VARCHAR(128) NOT NULL,
+    sdate DATE NOT NULL,
+    sttime TIME NOT NULL,
+    tname TEXT,  -- NULL while the booking holds no seats
+    seat_numbers INTEGER[] NOT NULL,
+    PRIMARY KEY(email, bid)
+);
+
+-- Refreshing a booking finds its row by bid alone
+CREATE UNIQUE INDEX IF NOT EXISTS user_booking_history_bid_idx ON user_booking_history(bid);
+
+-- Backfill; the same as BookingHistory.rebuild()
+DELETE FROM user_booking_history;
+
+INSERT INTO user_booking_history(email, bid, sid, status, bdatetime, title, sdate, sttime, tname, seat_numbers)
+SELECT B.email, B.bid, B.sid, B.status, B.bdatetime, M.title, S.sdate, S.sttime,
+    (SELECT string_agg(DISTINCT T.tname, ', ') FROM ShowSeats SS, CinemaSeats CS, Theaters T
+        WHERE SS.bid = B.bid AND CS.csid = SS.csid AND T.tid = CS.tid),
+    COALESCE((SELECT array_agg(CS.sno ORDER BY CS.sno) FROM ShowSeats SS, CinemaSeats CS
+        WHERE SS.bid = B.bid AND CS.csid = SS.csid), '{}')
+FROM Bookings B, Shows S, Movies M
+WHERE S.sid = B.sid AND M.mvid = S.mvid;
@@ -0,0 +1,8 @@
+-- Menu 3 creates the ShowSeats rows of a new show from CinemaSeats in the
+-- same statement as the show (see Ticketmaster.SCHEDULE_SHOW_SQL), taking
+-- their ids from this sequence. Starts it after the highest existing id.
+
+CREATE SEQUENCE IF NOT EXISTS showseats_ssid_seq;
+
+SELECT setval('showseats_ssid_seq',
+    GREATEST((SELECT COALESCE(MAX(ssid), 0) + 1 FROM ShowSeats), nextval('showseats_ssid_seq')), false);
@@ -0,0 +1,81 @@
+-- Publishes committed changes to Shows, Plays, Movies, Bookings and
+-- ShowSeats on the ticketmaster_changes channel so that the in-memory
+-- caches of other processes can drop what went stale (see ChangeFeed).
+-- One statement sends one notification per 300 distinct keys, with the
+-- payload table|op|key,key,... where the key is the show ID, or the movie
+-- ID for Movies. Notifications are delivered when the transaction commits
+-- and never for one that rolls back. Transition tables need PostgreSQL 10.
+
+CREATE OR REPLACE FUNCTION ticketmaster_notify_change() RETURNS trigger AS $$
+DECLARE
+    source TEXT;
+    keys TEXT;
+BEGIN
+    IF TG_OP = 'INSERT' THEN
+        source := format('SELECT %I AS k FROM new_rows', TG_ARGV[0]);
+    ELSIF TG_OP = 'DELETE' THEN
+        source := format('SELECT %I AS k FROM old_rows', TG_ARGV[0]);
+    ELSE
+        source := format('SELECT %I AS k FROM new_rows UNION SELECT %I FROM old_rows', TG_ARGV[0], TG_ARGV[0]);
+    END IF;
+    -- payloads must stay below 8000 bytes
+    FOR keys IN EXECUTE 'SELECT string_agg(CAST(k AS TEXT), '','') FROM '
+        || '(SELECT k, (row_number() OVER (ORDER BY k) - 1) / 300 AS part FROM (' || source || ') D '
+        || 'WHERE k IS NOT NULL GROUP BY k) P GROUP BY part'
+    LOOP
+        PERFORM pg_notify('ticketmaster_changes', TG_TABLE_NAME || '|' || TG_OP || '|' || keys);
+    END LOOP;
+    RETURN NULL;
+END;
+$$ LANGUAGE plpgsql;
+
+-- A trigger with transition tables can only fire on one kind of event
+DROP TRIGGER IF EXISTS shows_insert_feed ON Shows;
+DROP TRIGGER IF EXISTS shows_update_feed ON Shows;
+DROP TRIGGER IF EXISTS shows_delete_feed ON Shows;
+CREATE TRIGGER shows_insert_feed AFTER INSERT ON Shows REFERENCING NEW TABLE AS new_rows
+    FOR EACH STATEMENT EXECUTE PROCEDURE ticketmaster_notify_change('sid');
+CREATE TRIGGER shows_update_feed AFTER UPDATE ON Shows REFERENCING OLD TABLE AS old_rows NEW TABLE AS new_rows
+    FOR EACH STATEMENT EXECUTE PROCEDURE ticketmaster_notify_change('sid');
+CREATE TRIGGER shows_delete_feed AFTER DELETE ON Shows REFERENCING OLD TABLE AS old_rows
+    FOR EACH STATEMENT EXECUTE PROCEDURE ticketmaster_notify_change('sid');
+
+DROP TRIGGER IF EXISTS plays_insert_feed ON Plays;
+DROP TRIGGER IF EXISTS plays_update_feed ON Plays;
+DROP TRIGGER IF EXISTS plays_delete_feed ON Plays;
+CREATE TRIGGER plays_insert_feed AFTER INSERT ON Plays REFERENCING NEW TABLE AS new_rows
+    FOR EACH STATEMENT EXECUTE PROCEDURE ticketmaster_notify_change('sid');
+CREATE TRIGGER plays_update_feed AFTER UPDATE ON Plays REFERENCING OLD TABLE AS old_rows NEW TABLE AS new_rows
+    FOR EACH STATEMENT EXECUTE PROCEDURE ticketmaster_notify_change('sid');
+CREATE TRIGGER plays_delete_feed AFTER DELETE ON Plays REFERENCING OLD TABLE AS old_rows
+    FOR EACH STATEMENT EXECUTE PROCEDURE ticketmaster_notify_change('sid');
+
+DROP TRIGGER IF EXISTS movies_insert_feed ON Movies;
+DROP TRIGGER IF EXISTS movies_update_feed ON Movies;
+DROP TRIGGER IF EXISTS movies_delete_feed ON Movies;
+CREATE TRIGGER movies_insert_feed AFTER INSERT ON Movies REFERENCING NEW TABLE AS new_rows
+    FOR EACH STATEMENT EXECUTE PROCEDURE ticketmaster_notify_change('mvid');
+CREATE TRIGGER movies_update_feed AFTER UPDATE ON Movies REFERENCING OLD TABLE AS old_rows NEW TABLE AS new_rows
+    FOR EACH STATEMENT EXECUTE PROCEDURE ticketmaster_notify_change('mvid');
+CREATE TRIGGER movies_delete_feed AFTER DELETE ON Movies REFERENCING OLD TABLE AS old_rows
+    FOR EACH STATEMENT EXECUTE PROCEDURE ticketmaster_notify_change('mvid');
+
+DROP TRIGGER IF EXISTS bookings_insert_feed ON Bookings;
+DROP TRIGGER IF EXISTS bookings_update_feed ON Bookings;
+DROP TRIGGER IF EXISTS bookings_delete_feed ON Bookings;
+CREATE TRIGGER bookings_insert_feed AFTER INSERT ON Bookings REFERENCING NEW TABLE AS new_rows
+    FOR EACH STATEMENT EXECUTE PROCEDURE ticketmaster_notify_change('sid');
+CREATE TRIGGER bookings_update_feed AFTER UPDATE ON Bookings REFERENCING OLD TABLE AS old_rows NEW TABLE AS new_rows
+    FOR EACH STATEMENT EXECUTE PROCEDURE ticketmaster_notify_change('sid');
+CREATE TRIGGER bookings_delete_feed AFTER DELETE ON Bookings REFERENCING OLD TABLE AS old_rows
+    FOR EACH STATEMENT EXECUTE PROCEDURE ticketmaster_notify_change('sid');
+
+DROP TRIGGER IF EXISTS showseats_insert_feed ON ShowSeats;
+DROP TRIGGER IF EXISTS showseats_update_feed ON ShowSeats;
+DROP TRIGGER IF EXISTS showseats_delete_feed ON ShowSeats;
+CREATE TRIGGER showseats_insert_feed AFTER INSERT ON ShowSeats REFERENCING NEW TABLE AS new_rows
+    FOR EACH STATEMENT EXECUTE PROCEDURE ticketmaster_notify_change('sid');
+CREATE TRIGGER showseats_update_feed AFTER UPDATE ON ShowSeats REFERENCING OLD TABLE AS old_rows NEW TABLE AS new_rows
+    FOR EACH STATEMENT EXECUTE PROCEDURE ticketmaster_notify_change('sid');
+CREATE TRIGGER showseats_delete_feed AFTER DELETE ON ShowSeats REFERENCING OLD TABLE AS old_rows
+    FOR EACH STATEMENT EXECUTE PROCEDURE ticketmaster_notify_change('sid');
@@ -0,0 +1,63 @@
+-- Booking transactions no longer update show_stats and theater_stats
+-- themselves: every buyer of a show would wait on the same rollup rows
+-- until commit. They append their change to occupancy_deltas instead, one
+-- row per show and theater, and a background job folds the deltas into the
+-- rollups (see OccupancyStats). Reads add the deltas not yet folded.
+--
+-- Both rollups now count seats as ShowSeats rows and revenue as the price
+-- of the seats of paid bookings, and theater_stats.seats_total is the seats
+-- of all shows in the theater, the same shows its sold seats come from.
+-- A booking is counted in the theater of its first seat, so the bookings
+-- of the theaters add up to those of the show.
+
+CREATE TABLE IF NOT EXISTS occupancy_deltas (
+    id BIGSERIAL NOT NULL,
+    sid BIGINT NOT NULL,
+    tid BIGINT NOT NULL,
+    cid BIGINT NOT NULL,
+    seats_total INTEGER NOT NULL,
+    seats_sold INTEGER NOT NULL,
+    seats_held INTEGER NOT NULL,
+    bookings INTEGER NOT NULL,
+    revenue NUMERIC(14, 2) NOT NULL,
+    PRIMARY KEY(id)
+);
+
+-- Reads add up the deltas of one show, theater or cinema
+CREATE INDEX IF NOT EXISTS occupancy_deltas_sid_idx ON occupancy_deltas(sid);
+CREATE INDEX IF NOT EXISTS occupancy_deltas_tid_idx ON occupancy_deltas(tid);
+CREATE INDEX IF NOT EXISTS occupancy_deltas_cid_idx ON occupancy_deltas(cid);
+
+-- Backfill with the new definitions; the same as OccupancyStats.rebuild()
+DELETE FROM occupancy_deltas;
+DELETE FROM show_stats;
+DELETE FROM theater_stats;
+
+INSERT INTO show_stats(sid, seats_total, seats_sold, seats_held, bookings, revenue)
+SELECT S.sid, COALESCE(D.total, 0), COALESCE(D.sold, 0), COALESCE(D.held, 0), COALESCE(D.bookings, 0), COALESCE(D.revenue, 0)
+FROM Shows S
+LEFT JOIN (
+    SELECT SS.sid, COUNT(*) AS total,
+        COUNT(*) FILTER (WHERE B.status = 'Paid') AS sold,
+        COUNT(*) FILTER (WHERE B.status = 'Pending') AS held,
+        COUNT(DISTINCT B.bid) FILTER (WHERE B.status IN ('Paid', 'Pending')) AS bookings,
+        COALESCE(SUM(CAST(SS.price AS NUMERIC(14, 2))) FILTER (WHERE B.status = 'Paid'), 0) AS revenue
+    FROM ShowSeats SS LEFT JOIN Bookings B ON B.bid = SS.bid
+    GROUP BY SS.sid
+) D ON D.sid = S.sid;
+
+INSERT INTO theater_stats(tid, cid, seats_total, seats_sold, seats_held, bookings, revenue)
+SELECT T.tid, T.cid, COALESCE(D.total, 0), COALESCE(D.sold, 0), COALESCE(D.held, 0), COALESCE(D.bookings, 0), COALESCE(D.revenue, 0)
+FROM Theaters T
+LEFT JOIN (
+    SELECT R.tid, COUNT(*) AS total,
+        COUNT(*) FILTER (WHERE R.status = 'Paid') AS sold,
+        COUNT(*) FILTER (WHERE R.status = 'Pending') AS held,
+        COUNT(DISTINCT R.bid) FILTER (WHERE R.status IN ('Paid', 'Pending') AND R.tid = R.first_tid) AS bookings,
+        COALESCE(SUM(CAST(R.price AS NUMERIC(14, 2))) FILTER (WHERE R.status = 'Paid'), 0) AS revenue
+    FROM (
+        SELECT CS.tid, SS.price, B.bid, B.status, MIN(CS.tid) OVER (PARTITION BY SS.bid) AS first_tid
+        FROM ShowSeats SS JOIN CinemaSeats CS ON CS.csid = SS.csid LEFT JOIN Bookings B ON B.bid = SS.bid
+    ) R
+    GROUP BY R.tid
+) D ON D.tid = T.tid;
@@ -0,0 +1,27 @@
+-- The change feed triggers of V006 on Bookings and ShowSeats fired on every
+-- booking, whether or not any process listened, and every notifying commit
+-- takes the same lock on the notification queue, so booking transactions
+-- queued behind each other at commit. Nothing in memory derives from
+-- Bookings, so its triggers go. The ShowSeats triggers only notify when
+-- the setting ticketmaster.feed_seats is on, e.g. with
+--   ALTER DATABASE <dbname> SET ticketmaster.feed_seats = on;
+-- for deployments where several processes run with ticketmaster.feed and
+-- should drop each other's stale seat maps. Without it a stale seat map is
+-- corrected when a booking finds its seats taken.
+
+DROP TRIGGER IF EXISTS bookings_insert_feed ON Bookings;
+DROP TRIGGER IF EXISTS bookings_update_feed ON Bookings;
+DROP TRIGGER IF EXISTS bookings_delete_feed ON Bookings;
+
+DROP TRIGGER IF EXISTS showseats_insert_feed ON ShowSeats;
+DROP TRIGGER IF EXISTS showseats_update_feed ON ShowSeats;
+DROP TRIGGER IF EXISTS showseats_delete_feed ON ShowSeats;
+CREATE TRIGGER showseats_insert_feed AFTER INSERT ON ShowSeats REFERENCING NEW TABLE AS new_rows
+    FOR EACH STATEMENT WHEN (current_setting('ticketmaster.feed_seats', true) = 'on')
+    EXECUTE PROCEDURE ticketmaster_notify_change('sid');
+CREATE TRIGGER showseats_update_feed AFTER UPDATE ON ShowSeats REFERENCING OLD TABLE AS old_rows NEW TABLE AS new_rows
+    FOR EACH STATEMENT WHEN (current_setting('ticketmaster.feed_seats', true) = 'on')
+    EXECUTE PROCEDURE ticketmaster_notify_change('sid');
+CREATE TRIGGER showseats_delete_feed AFTER DELETE ON ShowSeats REFERENCING OLD TABLE AS old_rows
+    FOR EACH STATEMENT WHEN (current_setting('ticketmaster.feed_seats', true) = 'on')
+    EXECUTE PROCEDURE ticketmaster_notify_change('sid');